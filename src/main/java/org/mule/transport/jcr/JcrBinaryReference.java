@@ -0,0 +1,221 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * A lightweight reference to a binary property value, used as event content by
+ * the {@link JcrContentPayloadType#REFERENCE} payload type: the binary data is
+ * only read from the repository when {@link #openStream()} is called.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public final class JcrBinaryReference implements Serializable {
+
+    private static final long serialVersionUID = -2261739581465542308L;
+
+    private final String path;
+
+    private final String nodeUuid;
+
+    private final int valueIndex;
+
+    private final long length;
+
+    private final String mimeType;
+
+    private transient JcrConnector connector;
+
+    public JcrBinaryReference(final String path, final String nodeUuid, final int valueIndex, final long length,
+            final String mimeType, final JcrConnector connector) {
+
+        this.path = path;
+        this.nodeUuid = nodeUuid;
+        this.valueIndex = valueIndex;
+        this.length = length;
+        this.mimeType = mimeType;
+        this.connector = connector;
+    }
+
+    /**
+     * Builds a reference to a value of a binary property, which is not read.
+     *
+     * @param valueIndex the index of the value for a multi-valued property, -1
+     *            otherwise.
+     */
+    public static JcrBinaryReference newReference(final Property property, final int valueIndex, final JcrConnector connector)
+            throws RepositoryException {
+
+        final Node parentNode = property.getParent();
+
+        final String nodeUuid = parentNode.isNodeType("mix:referenceable") ? parentNode.getUUID() : null;
+
+        final String mimeType = parentNode.hasProperty("jcr:mimeType") ? parentNode.getProperty("jcr:mimeType").getString()
+                : null;
+
+        final long length = valueIndex < 0 ? property.getLength() : property.getLengths()[valueIndex];
+
+        return new JcrBinaryReference(property.getPath(), nodeUuid, valueIndex, length, mimeType, connector);
+    }
+
+    /**
+     * Opens a stream on the referenced binary with a session borrowed from the
+     * connector, which is released when the stream is closed.
+     *
+     * @throws IllegalStateException if the reference is not bound to a connector,
+     *             which is the case after it has been deserialized.
+     */
+    public InputStream openStream() throws RepositoryException {
+        final JcrConnector boundConnector = connector;
+
+        if (boundConnector == null) {
+            throw new IllegalStateException("No connector bound to: " + this);
+        }
+
+        final Session session = boundConnector.borrowSession();
+
+        try {
+            return new FilterInputStream(openStream(session)) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+
+                    closed = true;
+
+                    try {
+                        super.close();
+                    } finally {
+                        boundConnector.releaseSession(session);
+                    }
+                }
+            };
+
+        } catch (final RepositoryException re) {
+            boundConnector.releaseSession(session);
+            throw re;
+        } catch (final RuntimeException re) {
+            boundConnector.releaseSession(session);
+            throw re;
+        }
+    }
+
+    /**
+     * Opens a stream on the referenced binary with the provided session, which
+     * must stay live until the stream has been consumed.
+     */
+    public InputStream openStream(final Session session) throws RepositoryException {
+        final Property property = getProperty(session);
+
+        return valueIndex < 0 ? property.getStream() : property.getValues()[valueIndex].getStream();
+    }
+
+    /**
+     * Binds the reference to a connector, typically after deserialization.
+     */
+    public void bind(final JcrConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * @return the path of the binary property.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the UUID of the node of the property, or null if it is not
+     *         referenceable.
+     */
+    public String getNodeUuid() {
+        return nodeUuid;
+    }
+
+    /**
+     * @return the index of the value in a multi-valued property, -1 otherwise.
+     */
+    public int getValueIndex() {
+        return valueIndex;
+    }
+
+    /**
+     * @return the length of the binary, or -1 if the repository can not tell it.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the MIME type of the node of the property, or null if it has none.
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    private Property getProperty(final Session session) throws RepositoryException {
+        // the UUID survives moves of the node, the path does not
+        if (nodeUuid != null) {
+            return session.getNodeByUUID(nodeUuid).getProperty(path.substring(path.lastIndexOf('/') + 1));
+        }
+
+        final Item item = session.getItem(path);
+
+        if (item.isNode()) {
+            throw new IllegalArgumentException("No binary property at: " + path);
+        }
+
+        return (Property) item;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof JcrBinaryReference)) {
+            return false;
+        }
+
+        final JcrBinaryReference other = (JcrBinaryReference) obj;
+
+        return (valueIndex == other.valueIndex) && (length == other.length) && ObjectUtils.equals(path, other.path)
+                && ObjectUtils.equals(nodeUuid, other.nodeUuid) && ObjectUtils.equals(mimeType, other.mimeType);
+    }
+
+    @Override
+    public int hashCode() {
+        return ObjectUtils.hashCode(path) * 31 + valueIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "JcrBinaryReference[path=" + path + ", nodeUuid=" + nodeUuid + ", valueIndex=" + valueIndex + ", length="
+                + length + ", mimeType=" + mimeType + "]";
+    }
+
+}
@@ -10,11 +10,28 @@
 
 package org.mule.transport.jcr;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.jcr.Credentials;
@@ -29,11 +46,14 @@ import org.mule.DefaultMuleMessage;
 import org.mule.api.MuleContext;
 import org.mule.api.MuleEvent;
 import org.mule.api.MuleException;
+import org.mule.api.construct.FlowConstruct;
+import org.mule.api.endpoint.InboundEndpoint;
 import org.mule.api.endpoint.OutboundEndpoint;
 import org.mule.api.lifecycle.InitialisationException;
 import org.mule.api.retry.RetryCallback;
 import org.mule.api.retry.RetryContext;
 import org.mule.api.transport.ConnectorException;
+import org.mule.api.transport.MessageReceiver;
 import org.mule.config.i18n.CoreMessages;
 import org.mule.model.streaming.CallbackOutputStream;
 import org.mule.transport.AbstractConnector;
@@ -41,7 +61,20 @@ import org.mule.transport.jcr.config.JcrNamespaceHandler;
 import org.mule.transport.jcr.handlers.NodeTypeHandler;
 import org.mule.transport.jcr.handlers.NodeTypeHandlerManager;
 import org.mule.transport.jcr.i18n.JcrMessages;
+import org.mule.transport.jcr.support.JcrBinarySpooler;
+import org.mule.transport.jcr.support.JcrContentDigester;
+import org.mule.transport.jcr.support.JcrEventHandOff;
+import org.mule.transport.jcr.support.JcrEventJournal;
+import org.mule.transport.jcr.support.JcrGroupCommitter;
+import org.mule.transport.jcr.support.JcrItemCache;
+import org.mule.transport.jcr.support.JcrObservationMultiplexer;
+import org.mule.transport.jcr.support.JcrQueryCache;
+import org.mule.transport.jcr.support.JcrQueryResultIterator;
+import org.mule.transport.jcr.support.JcrSessionPool;
+import org.mule.transport.jcr.support.JcrValueCodec;
 import org.mule.util.ClassUtils;
+import org.mule.util.IOUtils;
+import org.mule.util.concurrent.NamedThreadFactory;
 
 /**
  * <code>JcrConnector</code> is a transport that connects to JCR 1.0 (aka JSR 170)
@@ -76,6 +109,128 @@ public final class JcrConnector extends AbstractConnector
 
     private final NodeTypeHandlerManager nodeTypeHandlerManager;
 
+    private boolean sessionPoolEnabled;
+
+    private int sessionPoolMinIdle;
+
+    private int sessionPoolMaxActive;
+
+    private long sessionPoolMaxWait;
+
+    private long sessionPoolMaxIdleTime;
+
+    private long sessionPoolEvictionInterval;
+
+    private volatile JcrSessionPool sessionPool;
+
+    private int streamingMaxThreads;
+
+    private int streamingBufferSize;
+
+    private boolean streamingVirtualThreads;
+
+    private long exportWriteTimeout;
+
+    private volatile ExecutorService streamingExecutor;
+
+    private volatile Semaphore streamingPermits;
+
+    private static final long STREAMING_THREAD_KEEP_ALIVE = 60000L;
+
+    private boolean groupCommitEnabled;
+
+    private int groupCommitMaxSize;
+
+    private long groupCommitMaxDelay;
+
+    private long groupCommitWriteTimeout;
+
+    private volatile JcrGroupCommitter groupCommitter;
+
+    private boolean eventHandOffEnabled;
+
+    private int eventQueueCapacity;
+
+    private int eventWorkers;
+
+    private String eventQueueOverflowPolicy;
+
+    private long eventCoalescingWindow;
+
+    private long binaryInlineThreshold;
+
+    private long binarySpoolMaxBytes;
+
+    private volatile JcrBinarySpooler binarySpooler;
+
+    private int eventFetchParallelism;
+
+    private volatile ExecutorService contentFetchExecutor;
+
+    private boolean sharedObservationEnabled;
+
+    private boolean eventJournalEnabled;
+
+    private int eventJournalSegmentSize;
+
+    private String eventJournalSyncPolicy;
+
+    private long eventJournalSyncInterval;
+
+    private boolean catchUpEnabled;
+
+    private int catchUpPageSize;
+
+    private long catchUpOverlap;
+
+    private boolean pollingEnabled;
+
+    private long pollingInterval;
+
+    private long pollingMaxInterval;
+
+    private int pollingPageSize;
+
+    private boolean itemCacheEnabled;
+
+    private int itemCacheMaxEntries;
+
+    private long itemCacheMaxBytes;
+
+    private long itemCacheTimeToLive;
+
+    private volatile JcrItemCache itemCache;
+
+    private int queryCacheSize;
+
+    private long queryResultCacheTimeToLive;
+
+    private int queryResultCacheSize;
+
+    private volatile JcrQueryCache queryCache;
+
+    private int queryPageSize;
+
+    private long queryResultIdleTimeout;
+
+    private volatile ScheduledExecutorService queryResultReaper;
+
+    private final Set<JcrQueryResultIterator> openQueryResults = new HashSet<JcrQueryResultIterator>();
+
+    private boolean contentDigestEnabled;
+
+    private String contentDigestAlgorithm;
+
+    private String contentDigestProperty;
+
+    private boolean primitiveArrayPayloads;
+
+    private JcrObservationMultiplexer observationMultiplexer;
+
+    private Session observationSession;
+
+    private Session sharedReaderSession;
+
     /**
      * Property that defines if events coming from deeper than the specified endpoint
      * path must be listened to.
@@ -154,6 +309,104 @@ public final class JcrConnector extends AbstractConnector
      */
     public static final String JCR_ITEM_PATH = "itemPath";
 
+    /**
+     * Property that holds the full paths of the items stored by a batch.
+     */
+    public static final String JCR_ITEM_PATHS = "itemPaths";
+
+    /**
+     * Property that makes a collection payload create one node per element,
+     * instead of being stored in a single item.
+     */
+    public static final String JCR_BATCH_CREATE_PROPERTY = "batchCreate";
+
+    /**
+     * Property that defines after how many created nodes a batch is saved. If not
+     * positive, the batch is saved once all its nodes have been created.
+     */
+    public static final String JCR_BATCH_SAVE_INTERVAL_PROPERTY = "batchSaveInterval";
+
+    /**
+     * Property that makes the payload be imported as system or document view XML.
+     */
+    public static final String JCR_IMPORT_XML_PROPERTY = "importXml";
+
+    /**
+     * Property that defines how UUID collisions are handled during an XML import:
+     * createNew, removeExisting, replaceExisting or throwOnCollision.
+     */
+    public static final String JCR_IMPORT_UUID_BEHAVIOR_PROPERTY = "importUuidBehavior";
+
+    /**
+     * Property that makes an XML import be directly persisted by the workspace
+     * instead of going through the session.
+     */
+    public static final String JCR_IMPORT_TO_WORKSPACE_PROPERTY = "importToWorkspace";
+
+    /**
+     * Property that holds the number of nodes imported from XML.
+     */
+    public static final String JCR_IMPORTED_NODE_COUNT = "importedNodeCount";
+
+    /**
+     * Property that makes a request export the subtree of the target node as XML,
+     * either in system or document view.
+     */
+    public static final String JCR_EXPORT_VIEW_PROPERTY = "exportView";
+
+    /**
+     * Property that defines the depth, relative to the target node, of an XML
+     * export. All the subtree is exported if not set.
+     */
+    public static final String JCR_EXPORT_DEPTH_PROPERTY = "exportDepth";
+
+    /**
+     * Property that makes an XML export skip binary property values.
+     */
+    public static final String JCR_EXPORT_SKIP_BINARY_PROPERTY = "exportSkipBinary";
+
+    /**
+     * Property that makes a query request return all the selected nodes, as an
+     * iterator of their payloads, instead of the first one.
+     */
+    public static final String JCR_QUERY_ALL_RESULTS_PROPERTY = "queryAllResults";
+
+    /**
+     * Property that defines the number of selected nodes skipped by a query
+     * request returning all its results.
+     */
+    public static final String JCR_QUERY_OFFSET_PROPERTY = "queryOffset";
+
+    /**
+     * Property that defines the maximum number of selected nodes returned by a
+     * query request returning all its results.
+     */
+    public static final String JCR_QUERY_LIMIT_PROPERTY = "queryLimit";
+
+    /**
+     * Property that defines the number of payloads per list returned by the
+     * iterator of a query request returning all its results.
+     */
+    public static final String JCR_QUERY_PAGE_SIZE_PROPERTY = "queryPageSize";
+
+    /**
+     * Property that makes the iterator of a query request returning all its
+     * results return each payload instead of lists of payloads.
+     */
+    public static final String JCR_QUERY_SPLIT_PROPERTY = "querySplit";
+
+    /**
+     * Property that makes the writes to nt:unstructured nodes only set the
+     * properties whose values have changed.
+     */
+    public static final String JCR_DELTA_UPDATE_PROPERTY = "deltaUpdate";
+
+    /**
+     * Property that makes the writes of map payloads to nt:unstructured nodes
+     * remove the properties that are absent from the map.
+     */
+    public static final String JCR_REMOVE_ABSENT_PROPERTIES_PROPERTY = "removeAbsentProperties";
+
     public JcrConnector(final MuleContext muleContext)
     {
         super(muleContext);
@@ -176,153 +429,579 @@ public final class JcrConnector extends AbstractConnector
             logger.info(JcrMessages.sqlQuerySyntaxNotSupported());
         }
 
+        if (isContentDigestEnabled())
+        {
+            try
+            {
+                nodeTypeHandlerManager.setContentDigester(new JcrContentDigester(getContentDigestAlgorithm(),
+                    getContentDigestProperty()));
+            }
+            catch (final IllegalArgumentException iae)
+            {
+                throw new InitialisationException(iae, this);
+            }
+        }
+
+        // each fetching thread needs a reader session: logging one in per range of
+        // events would cost more than fetching serially
+        if ((getEventFetchParallelism() > 1) && (!isSessionPoolEnabled()))
+        {
+            throw new InitialisationException(JcrMessages.parallelFetchRequiresSessionPool(), this);
+        }
+
     }
 
     @Override
     public void doConnect() throws Exception
     {
-        // NOOP
-    }
+        if (isSessionPoolEnabled())
+        {
+            sessionPool = new JcrSessionPool(this, getSessionPoolMinIdle(), getSessionPoolMaxActive(),
+                getSessionPoolMaxWait(), getSessionPoolEvictionInterval(), getSessionPoolMaxIdleTime());
+        }
 
-    @Override
-    public void doStart() throws MuleException
-    {
-        // NOOP
-    }
+        if (isItemCacheEnabled())
+        {
+            final JcrItemCache cache = new JcrItemCache(getItemCacheMaxEntries(), getItemCacheMaxBytes(),
+                getItemCacheTimeToLive());
 
-    @Override
-    public void doStop() throws MuleException
-    {
-        // NOOP
-    }
+            if (getRepository().getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED) != null)
+            {
+                // changes anywhere in the workspace invalidate the cached items
+                getObservationMultiplexer().subscribe(cache, JcrItemCache.INVALIDATING_EVENT_TYPES, "/", true,
+                    null, null);
+            }
+            else if (getItemCacheTimeToLive() <= 0L)
+            {
+                logger.warn("The repository does not support observation and no itemCacheTimeToLive is set: "
+                            + "cached items will only be refreshed when evicted");
+            }
 
-    @Override
-    public void doDisconnect() throws Exception
-    {
-        // NOOP
-    }
+            itemCache = cache;
+        }
 
-    @Override
-    public void doDispose()
-    {
-        // NOOP
+        if ((getQueryCacheSize() > 0) || (getQueryResultCacheTimeToLive() > 0L))
+        {
+            final JcrQueryCache cache = new JcrQueryCache(getQueryCacheSize(), getQueryResultCacheTimeToLive(),
+                getQueryResultCacheSize());
+
+            if ((cache.isResultCacheEnabled())
+                && (getRepository().getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED) != null))
+            {
+                getObservationMultiplexer().subscribe(cache, JcrItemCache.INVALIDATING_EVENT_TYPES, "/", true,
+                    null, null);
+            }
+
+            queryCache = cache;
+        }
     }
 
-    /**
-     * Will get the output stream for this type of transport. Typically this will be
-     * called only when Streaming is being used on an outbound endpoint.
-     */
     @Override
-    public OutputStream getOutputStream(final OutboundEndpoint endpoint, final MuleEvent event)
-        throws MuleException
+    public void doStart() throws MuleException
     {
+        streamingPermits = new Semaphore(getStreamingMaxThreads(), true);
+        streamingExecutor = newStreamingExecutor();
 
-        final PipedInputStream pipedInputStream = new PipedInputStream();
-        PipedOutputStream pipedOutputStream;
+        if (isGroupCommitEnabled())
+        {
+            groupCommitter = new JcrGroupCommitter(this, getGroupCommitMaxSize(), getGroupCommitMaxDelay());
+            groupCommitter.start();
+        }
 
-        try
+        if (getEventFetchParallelism() > 1)
         {
-            pipedOutputStream = new PipedOutputStream(pipedInputStream);
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(getEventFetchParallelism(),
+                getEventFetchParallelism(), STREAMING_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(getName() + ".fetcher"));
+
+            executor.allowCoreThreadTimeOut(true);
+            contentFetchExecutor = executor;
         }
-        catch (final IOException ioe)
+
+        if (getBinaryInlineThreshold() > 0L)
         {
-            throw new ConnectorException(CoreMessages.streamingFailedForEndpoint(endpoint.toString()), this,
-                ioe);
+            binarySpooler = new JcrBinarySpooler(new File(getMuleContext().getConfiguration()
+                .getWorkingDirectory(), "jcr-binaries"), getBinaryInlineThreshold(), getBinarySpoolMaxBytes());
         }
 
-        // It is essential to use a different thread for reading the piped input
-        // stream. Doing a dispatch and relying on Mule's work manager to do so
-        // might be a better option but this would require to force threading
-        // and never execute in the same thread even if the pool is expired.
-        final Thread thread = new Thread(new Runnable()
+        if (getQueryResultIdleTimeout() > 0L)
         {
-            public void run()
-            {
-                try
-                {
-                    endpoint.process(new DefaultMuleEvent(new DefaultMuleMessage(pipedInputStream,
-                        event.getMessage(), getMuleContext()), event));
+            final long idleTimeout = getQueryResultIdleTimeout();
+            final long checkInterval = Math.max(1L, idleTimeout / 2);
 
-                }
-                catch (final MuleException me)
+            queryResultReaper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(getName()
+                                                                                                  + ".queryReaper"));
+
+            queryResultReaper.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
                 {
-                    logger.error("Can not send streaming message!", me);
+                    closeIdleQueryResults(idleTimeout);
                 }
+            }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void doStop() throws MuleException
+    {
+        final JcrGroupCommitter committer = groupCommitter;
+        groupCommitter = null;
+
+        if (committer != null)
+        {
+            // pending writes are saved before the committer stops
+            committer.stop();
+
+            if (logger.isInfoEnabled())
+            {
+                logger.info("Stopped: " + committer);
             }
-        });
+        }
 
-        thread.start();
+        final JcrContentDigester contentDigester = getContentDigester();
 
-        return new CallbackOutputStream(pipedOutputStream, new JoinThreadCallback(thread));
-    }
+        if ((contentDigester != null) && (logger.isInfoEnabled()))
+        {
+            logger.info("Stopped: " + contentDigester);
+        }
 
-    private static final class JoinThreadCallback implements CallbackOutputStream.Callback
-    {
+        final ExecutorService fetchExecutor = contentFetchExecutor;
+        contentFetchExecutor = null;
 
-        private final Thread thread;
+        if (fetchExecutor != null)
+        {
+            fetchExecutor.shutdown();
+        }
 
-        JoinThreadCallback(final Thread thread)
+        final JcrBinarySpooler spooler = binarySpooler;
+        binarySpooler = null;
+
+        if (spooler != null)
         {
-            this.thread = thread;
+            // binaries not consumed yet remain readable until the JVM exits
+            spooler.stop();
         }
 
-        public void onClose() throws Exception
+        final ExecutorService executor = streamingExecutor;
+        streamingExecutor = null;
+        streamingPermits = null;
+
+        if (executor != null)
         {
-            thread.join();
+            // in-flight streams are allowed to complete
+            executor.shutdown();
         }
 
-    }
+        final ScheduledExecutorService reaper = queryResultReaper;
+        queryResultReaper = null;
 
-    public Session newSession() throws RepositoryException
-    {
-        if (logger.isDebugEnabled())
+        if (reaper != null)
         {
-            logger.debug("Opening new JCR session.");
+            reaper.shutdownNow();
         }
 
-        final Credentials credentials = ((getUsername() != null) && (getPassword() != null))
-                                                                                            ? new SimpleCredentials(
-                                                                                                getUsername(),
-                                                                                                getPassword().toCharArray())
-                                                                                            : null;
+        final List<JcrQueryResultIterator> queryResults;
 
-        return getRepository().login(credentials, getWorkspaceName());
+        synchronized (openQueryResults)
+        {
+            queryResults = new ArrayList<JcrQueryResultIterator>(openQueryResults);
+            openQueryResults.clear();
+        }
+
+        // the sessions of the query results still open are released before the
+        // pool is closed
+        for (final JcrQueryResultIterator queryResult : queryResults)
+        {
+            queryResult.close();
+        }
     }
 
-    public void terminateSession(final Session session)
+    /**
+     * Watches a query result iterator, which is closed if it is left idle for longer
+     * than the query result idle timeout, or when this connector stops.
+     */
+    public void trackQueryResult(final JcrQueryResultIterator queryResult)
     {
-        if ((session != null) && (session.isLive()))
+        synchronized (openQueryResults)
         {
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("Terminating JCR session");
-            }
+            openQueryResults.add(queryResult);
+        }
+    }
 
-            session.logout();
+    private void closeIdleQueryResults(final long idleTimeout)
+    {
+        final List<JcrQueryResultIterator> queryResults;
+
+        synchronized (openQueryResults)
+        {
+            queryResults = new ArrayList<JcrQueryResultIterator>(openQueryResults);
         }
-        else
+
+        for (final Iterator<JcrQueryResultIterator> i = queryResults.iterator(); i.hasNext();)
         {
-            if (logger.isDebugEnabled())
+            if (!i.next().closeIfIdle(idleTimeout))
             {
-                logger.debug("Can not terminate session: " + session);
+                i.remove();
             }
         }
+
+        synchronized (openQueryResults)
+        {
+            // the closed iterators are not watched anymore
+            openQueryResults.removeAll(queryResults);
+        }
     }
 
-    public Session validateSession(final Session session)
+    @Override
+    public void doDisconnect() throws Exception
     {
-        if ((session != null) && (session.isLive()))
+        queryCache = null;
+
+        final JcrItemCache cache = itemCache;
+        itemCache = null;
+
+        if ((cache != null) && (logger.isInfoEnabled()))
         {
-            return session;
+            logger.info("Dropping: " + cache);
         }
 
-        logger.info("JCR session is invalid: a new one will be created.");
+        final JcrObservationMultiplexer multiplexer;
+        final Session multiplexerSession;
+        final Session readerSession;
 
-        final AtomicReference<Session> newSessionReference = new AtomicReference<Session>();
+        synchronized (this)
+        {
+            multiplexer = observationMultiplexer;
+            multiplexerSession = observationSession;
+            readerSession = sharedReaderSession;
+            observationMultiplexer = null;
+            observationSession = null;
+            sharedReaderSession = null;
+        }
 
-        try
+        terminateSession(readerSession);
+
+        if (multiplexer != null)
         {
-            getRetryPolicyTemplate().execute(new RetryCallback()
+            try
+            {
+                multiplexer.stop();
+            }
+            finally
+            {
+                terminateSession(multiplexerSession);
+            }
+        }
+
+        final JcrSessionPool pool = sessionPool;
+        sessionPool = null;
+
+        if (pool != null)
+        {
+            if (logger.isInfoEnabled())
+            {
+                logger.info("Closing: " + pool);
+            }
+
+            pool.close();
+        }
+    }
+
+    @Override
+    public void doDispose()
+    {
+        // NOOP
+    }
+
+    /**
+     * Creates a polling receiver instead of an observing one when polling is
+     * enabled or when the repository does not support observation.
+     */
+    @Override
+    protected MessageReceiver createReceiver(final FlowConstruct flowConstruct, final InboundEndpoint endpoint)
+        throws Exception
+    {
+        if ((isPollingEnabled())
+            || (getRepository().getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED) == null))
+        {
+            return new JcrPollingMessageReceiver(this, flowConstruct, endpoint);
+        }
+
+        return super.createReceiver(flowConstruct, endpoint);
+    }
+
+    /**
+     * Will get the output stream for this type of transport. Typically this will be
+     * called only when Streaming is being used on an outbound endpoint.
+     */
+    @Override
+    public OutputStream getOutputStream(final OutboundEndpoint endpoint, final MuleEvent event)
+        throws MuleException
+    {
+
+        final PipedInputStream pipedInputStream = new PipedInputStream(getStreamingBufferSize());
+        PipedOutputStream pipedOutputStream;
+
+        try
+        {
+            pipedOutputStream = new PipedOutputStream(pipedInputStream);
+        }
+        catch (final IOException ioe)
+        {
+            throw new ConnectorException(CoreMessages.streamingFailedForEndpoint(endpoint.toString()), this,
+                ioe);
+        }
+
+        // It is essential to use a different thread for reading the piped input
+        // stream: the streaming executor provides it and makes the caller block
+        // when all its threads are busy, while the pipe buffer throttles the
+        // writer if the reader lags behind.
+        Future<Void> future;
+
+        try
+        {
+            future = submitStreamingTask(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    try
+                    {
+                        endpoint.process(new DefaultMuleEvent(new DefaultMuleMessage(pipedInputStream,
+                            event.getMessage(), getMuleContext()), event));
+
+                        // the dispatch owns the stream from now on and closes it
+                        // once consumed
+                        return null;
+                    }
+                    catch (final Exception e)
+                    {
+                        logger.error("Can not send streaming message!", e);
+
+                        // unblocks the writer, as pooled reader threads never die,
+                        // then reports the failure to it when it closes its end
+                        IOUtils.closeQuietly(pipedInputStream);
+                        throw e;
+                    }
+                }
+            });
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            IOUtils.closeQuietly(pipedOutputStream);
+            throw new ConnectorException(CoreMessages.streamingFailedForEndpoint(endpoint.toString()), this,
+                ie);
+        }
+
+        return new CallbackOutputStream(pipedOutputStream, new AwaitTaskCallback(future));
+    }
+
+    /**
+     * Runs a streaming task on the bounded streaming executor of this connector,
+     * blocking the caller until a streaming thread is available.
+     *
+     * @param task the task to run.
+     * @return the future of the task.
+     * @throws InterruptedException if interrupted while waiting for a thread.
+     */
+    public Future<?> submitStreamingTask(final Runnable task) throws InterruptedException
+    {
+        return submitStreamingTask(Executors.callable(task));
+    }
+
+    /**
+     * Runs a streaming task on the bounded streaming executor of this connector,
+     * blocking the caller until a streaming thread is available. A failure of the
+     * task is reported by the <code>get</code> methods of its future.
+     *
+     * @param task the task to run.
+     * @return the future of the task.
+     * @throws InterruptedException if interrupted while waiting for a thread.
+     */
+    public <T> Future<T> submitStreamingTask(final Callable<T> task) throws InterruptedException
+    {
+        final ExecutorService executor = streamingExecutor;
+        final Semaphore permits = streamingPermits;
+
+        if ((executor == null) || (permits == null))
+        {
+            throw new IllegalStateException("The streaming executor of connector: " + getName()
+                                            + " is not available: is the connector started?");
+        }
+
+        permits.acquire();
+
+        try
+        {
+            return executor.submit(new Callable<T>()
+            {
+                public T call() throws Exception
+                {
+                    try
+                    {
+                        return task.call();
+                    }
+                    finally
+                    {
+                        permits.release();
+                    }
+                }
+            });
+        }
+        catch (final RejectedExecutionException ree)
+        {
+            permits.release();
+            throw ree;
+        }
+    }
+
+    private ExecutorService newStreamingExecutor()
+    {
+        if (isStreamingVirtualThreads())
+        {
+            try
+            {
+                // looked up reflectively so the transport still runs on JVMs that
+                // have no virtual threads
+                final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            }
+            catch (final NoSuchMethodException nsme)
+            {
+                logger.info("Virtual threads are not supported by this JVM: using platform threads for streaming.");
+            }
+            catch (final Exception e)
+            {
+                logger.warn("Can not create a virtual thread executor: using platform threads for streaming.", e);
+            }
+        }
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(getStreamingMaxThreads(),
+            getStreamingMaxThreads(), STREAMING_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(getName() + ".streaming"));
+
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private static final class AwaitTaskCallback implements CallbackOutputStream.Callback
+    {
+
+        private final Future<?> future;
+
+        AwaitTaskCallback(final Future<?> future)
+        {
+            this.future = future;
+        }
+
+        public void onClose() throws Exception
+        {
+            try
+            {
+                future.get();
+            }
+            catch (final ExecutionException ee)
+            {
+                final Throwable cause = ee.getCause();
+                throw cause instanceof Exception ? (Exception) cause : ee;
+            }
+        }
+
+    }
+
+    public Session newSession() throws RepositoryException
+    {
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Opening new JCR session.");
+        }
+
+        final Credentials credentials = ((getUsername() != null) && (getPassword() != null))
+                                                                                            ? new SimpleCredentials(
+                                                                                                getUsername(),
+                                                                                                getPassword().toCharArray())
+                                                                                            : null;
+
+        return getRepository().login(credentials, getWorkspaceName());
+    }
+
+    public void terminateSession(final Session session)
+    {
+        final JcrQueryCache cache = queryCache;
+
+        if ((cache != null) && (session != null))
+        {
+            cache.release(session);
+        }
+
+        if ((session != null) && (session.isLive()))
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Terminating JCR session");
+            }
+
+            session.logout();
+        }
+        else
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Can not terminate session: " + session);
+            }
+        }
+    }
+
+    /**
+     * Gets a session for a single unit of work: borrowed from the session pool if
+     * it is enabled, freshly opened otherwise. The session must be handed back with
+     * {@link #releaseSession(Session)} once the work is done.
+     */
+    public Session borrowSession() throws RepositoryException
+    {
+        final JcrSessionPool pool = sessionPool;
+
+        return pool != null ? pool.borrowSession() : newSession();
+    }
+
+    /**
+     * Hands back a session obtained with {@link #borrowSession()}: it is returned to
+     * the pool if still live, discarded otherwise.
+     */
+    public void releaseSession(final Session session)
+    {
+        final JcrSessionPool pool = sessionPool;
+
+        if (pool == null)
+        {
+            terminateSession(session);
+        }
+        else if ((session != null) && (session.isLive()))
+        {
+            pool.returnSession(session);
+        }
+        else
+        {
+            pool.invalidateSession(session);
+        }
+    }
+
+    public Session validateSession(final Session session)
+    {
+        if ((session != null) && (session.isLive()))
+        {
+            return session;
+        }
+
+        logger.info("JCR session is invalid: a new one will be created.");
+
+        final AtomicReference<Session> newSessionReference = new AtomicReference<Session>();
+
+        try
+        {
+            getRetryPolicyTemplate().execute(new RetryCallback()
             {
 
                 public void doWork(final RetryContext context) throws Exception
@@ -358,6 +1037,53 @@ public final class JcrConnector extends AbstractConnector
         setNoLocal(Boolean.TRUE);
         setUuids(null);
         setNodeTypeNames(null);
+        setSessionPoolEnabled(false);
+        setSessionPoolMinIdle(0);
+        setSessionPoolMaxActive(8);
+        setSessionPoolMaxWait(30000L);
+        setSessionPoolMaxIdleTime(300000L);
+        setSessionPoolEvictionInterval(60000L);
+        setStreamingMaxThreads(16);
+        setStreamingBufferSize(65536);
+        setStreamingVirtualThreads(false);
+        setExportWriteTimeout(60000L);
+        setGroupCommitEnabled(false);
+        setGroupCommitMaxSize(64);
+        setGroupCommitMaxDelay(5L);
+        setGroupCommitWriteTimeout(30000L);
+        setEventHandOffEnabled(false);
+        setEventQueueCapacity(1000);
+        setEventWorkers(1);
+        setEventQueueOverflowPolicy(JcrEventHandOff.OverflowPolicy.BLOCK.name());
+        setEventCoalescingWindow(0L);
+        setBinaryInlineThreshold(0L);
+        setBinarySpoolMaxBytes(268435456L);
+        setEventFetchParallelism(1);
+        setSharedObservationEnabled(false);
+        setEventJournalEnabled(false);
+        setEventJournalSegmentSize(16777216);
+        setEventJournalSyncPolicy(JcrEventJournal.SyncPolicy.INTERVAL.name());
+        setEventJournalSyncInterval(1000L);
+        setCatchUpEnabled(false);
+        setCatchUpPageSize(100);
+        setCatchUpOverlap(5000L);
+        setPollingEnabled(false);
+        setPollingInterval(1000L);
+        setPollingMaxInterval(30000L);
+        setPollingPageSize(100);
+        setItemCacheEnabled(false);
+        setItemCacheMaxEntries(1000);
+        setItemCacheMaxBytes(16777216L);
+        setItemCacheTimeToLive(0L);
+        setQueryCacheSize(32);
+        setQueryResultCacheTimeToLive(0L);
+        setQueryResultCacheSize(1000);
+        setQueryPageSize(100);
+        setQueryResultIdleTimeout(60000L);
+        setContentDigestEnabled(false);
+        setContentDigestAlgorithm("SHA-256");
+        setContentDigestProperty("contentDigest");
+        setPrimitiveArrayPayloads(false);
     }
 
     public String getProtocol()
@@ -562,4 +1288,910 @@ public final class JcrConnector extends AbstractConnector
         this.contentPayloadType = contentPayloadType;
     }
 
+    /**
+     * @return the session pool, or null if pooling is disabled or the connector is
+     *         not connected.
+     */
+    public JcrSessionPool getSessionPool()
+    {
+        return sessionPool;
+    }
+
+    /**
+     * @return the sessionPoolEnabled
+     */
+    public boolean isSessionPoolEnabled()
+    {
+        return sessionPoolEnabled;
+    }
+
+    /**
+     * @param sessionPoolEnabled the sessionPoolEnabled to set
+     */
+    public void setSessionPoolEnabled(final boolean sessionPoolEnabled)
+    {
+        this.sessionPoolEnabled = sessionPoolEnabled;
+    }
+
+    /**
+     * @return the sessionPoolMinIdle
+     */
+    public int getSessionPoolMinIdle()
+    {
+        return sessionPoolMinIdle;
+    }
+
+    /**
+     * @param sessionPoolMinIdle the sessionPoolMinIdle to set
+     */
+    public void setSessionPoolMinIdle(final int sessionPoolMinIdle)
+    {
+        this.sessionPoolMinIdle = sessionPoolMinIdle;
+    }
+
+    /**
+     * @return the sessionPoolMaxActive
+     */
+    public int getSessionPoolMaxActive()
+    {
+        return sessionPoolMaxActive;
+    }
+
+    /**
+     * @param sessionPoolMaxActive the sessionPoolMaxActive to set
+     */
+    public void setSessionPoolMaxActive(final int sessionPoolMaxActive)
+    {
+        this.sessionPoolMaxActive = sessionPoolMaxActive;
+    }
+
+    /**
+     * @return the sessionPoolMaxWait
+     */
+    public long getSessionPoolMaxWait()
+    {
+        return sessionPoolMaxWait;
+    }
+
+    /**
+     * @param sessionPoolMaxWait the sessionPoolMaxWait to set
+     */
+    public void setSessionPoolMaxWait(final long sessionPoolMaxWait)
+    {
+        this.sessionPoolMaxWait = sessionPoolMaxWait;
+    }
+
+    /**
+     * @return the sessionPoolMaxIdleTime
+     */
+    public long getSessionPoolMaxIdleTime()
+    {
+        return sessionPoolMaxIdleTime;
+    }
+
+    /**
+     * @param sessionPoolMaxIdleTime the sessionPoolMaxIdleTime to set
+     */
+    public void setSessionPoolMaxIdleTime(final long sessionPoolMaxIdleTime)
+    {
+        this.sessionPoolMaxIdleTime = sessionPoolMaxIdleTime;
+    }
+
+    /**
+     * @return the sessionPoolEvictionInterval
+     */
+    public long getSessionPoolEvictionInterval()
+    {
+        return sessionPoolEvictionInterval;
+    }
+
+    /**
+     * @param sessionPoolEvictionInterval the sessionPoolEvictionInterval to set
+     */
+    public void setSessionPoolEvictionInterval(final long sessionPoolEvictionInterval)
+    {
+        this.sessionPoolEvictionInterval = sessionPoolEvictionInterval;
+    }
+
+    /**
+     * @return the streamingMaxThreads
+     */
+    public int getStreamingMaxThreads()
+    {
+        return streamingMaxThreads;
+    }
+
+    /**
+     * @param streamingMaxThreads the streamingMaxThreads to set
+     */
+    public void setStreamingMaxThreads(final int streamingMaxThreads)
+    {
+        this.streamingMaxThreads = streamingMaxThreads;
+    }
+
+    /**
+     * @return the streamingBufferSize
+     */
+    public int getStreamingBufferSize()
+    {
+        return streamingBufferSize;
+    }
+
+    /**
+     * @param streamingBufferSize the streamingBufferSize to set
+     */
+    public void setStreamingBufferSize(final int streamingBufferSize)
+    {
+        this.streamingBufferSize = streamingBufferSize;
+    }
+
+    /**
+     * @return the streamingVirtualThreads
+     */
+    public boolean isStreamingVirtualThreads()
+    {
+        return streamingVirtualThreads;
+    }
+
+    /**
+     * @param streamingVirtualThreads the streamingVirtualThreads to set
+     */
+    public void setStreamingVirtualThreads(final boolean streamingVirtualThreads)
+    {
+        this.streamingVirtualThreads = streamingVirtualThreads;
+    }
+
+    /**
+     * @return the exportWriteTimeout
+     */
+    public long getExportWriteTimeout()
+    {
+        return exportWriteTimeout;
+    }
+
+    /**
+     * @param exportWriteTimeout the exportWriteTimeout to set
+     */
+    public void setExportWriteTimeout(final long exportWriteTimeout)
+    {
+        this.exportWriteTimeout = exportWriteTimeout;
+    }
+
+    /**
+     * @return the group committer of this connector, or null if group commit is
+     *         not enabled or the connector is not started.
+     */
+    public JcrGroupCommitter getGroupCommitter()
+    {
+        return groupCommitter;
+    }
+
+    /**
+     * @return the groupCommitEnabled
+     */
+    public boolean isGroupCommitEnabled()
+    {
+        return groupCommitEnabled;
+    }
+
+    /**
+     * @param groupCommitEnabled the groupCommitEnabled to set
+     */
+    public void setGroupCommitEnabled(final boolean groupCommitEnabled)
+    {
+        this.groupCommitEnabled = groupCommitEnabled;
+    }
+
+    /**
+     * @return the groupCommitMaxSize
+     */
+    public int getGroupCommitMaxSize()
+    {
+        return groupCommitMaxSize;
+    }
+
+    /**
+     * @param groupCommitMaxSize the groupCommitMaxSize to set
+     */
+    public void setGroupCommitMaxSize(final int groupCommitMaxSize)
+    {
+        this.groupCommitMaxSize = groupCommitMaxSize;
+    }
+
+    /**
+     * @return the groupCommitMaxDelay
+     */
+    public long getGroupCommitMaxDelay()
+    {
+        return groupCommitMaxDelay;
+    }
+
+    /**
+     * @param groupCommitMaxDelay the groupCommitMaxDelay to set
+     */
+    public void setGroupCommitMaxDelay(final long groupCommitMaxDelay)
+    {
+        this.groupCommitMaxDelay = groupCommitMaxDelay;
+    }
+
+    /**
+     * @return the groupCommitWriteTimeout
+     */
+    public long getGroupCommitWriteTimeout()
+    {
+        return groupCommitWriteTimeout;
+    }
+
+    /**
+     * @param groupCommitWriteTimeout the groupCommitWriteTimeout to set
+     */
+    public void setGroupCommitWriteTimeout(final long groupCommitWriteTimeout)
+    {
+        this.groupCommitWriteTimeout = groupCommitWriteTimeout;
+    }
+
+    /**
+     * @return the eventHandOffEnabled
+     */
+    public boolean isEventHandOffEnabled()
+    {
+        return eventHandOffEnabled;
+    }
+
+    /**
+     * @param eventHandOffEnabled the eventHandOffEnabled to set
+     */
+    public void setEventHandOffEnabled(final boolean eventHandOffEnabled)
+    {
+        this.eventHandOffEnabled = eventHandOffEnabled;
+    }
+
+    /**
+     * @return the eventQueueCapacity
+     */
+    public int getEventQueueCapacity()
+    {
+        return eventQueueCapacity;
+    }
+
+    /**
+     * @param eventQueueCapacity the eventQueueCapacity to set
+     */
+    public void setEventQueueCapacity(final int eventQueueCapacity)
+    {
+        this.eventQueueCapacity = eventQueueCapacity;
+    }
+
+    /**
+     * @return the eventWorkers
+     */
+    public int getEventWorkers()
+    {
+        return eventWorkers;
+    }
+
+    /**
+     * @param eventWorkers the eventWorkers to set
+     */
+    public void setEventWorkers(final int eventWorkers)
+    {
+        this.eventWorkers = eventWorkers;
+    }
+
+    /**
+     * @return the eventQueueOverflowPolicy
+     */
+    public String getEventQueueOverflowPolicy()
+    {
+        return eventQueueOverflowPolicy;
+    }
+
+    /**
+     * @param eventQueueOverflowPolicy the eventQueueOverflowPolicy to set: BLOCK,
+     *            DROP_OLDEST or SPILL.
+     */
+    public void setEventQueueOverflowPolicy(final String eventQueueOverflowPolicy)
+    {
+        this.eventQueueOverflowPolicy = JcrEventHandOff.OverflowPolicy.valueOf(eventQueueOverflowPolicy).name();
+    }
+
+    /**
+     * @return the eventCoalescingWindow
+     */
+    public long getEventCoalescingWindow()
+    {
+        return eventCoalescingWindow;
+    }
+
+    /**
+     * @param eventCoalescingWindow the eventCoalescingWindow to set
+     */
+    public void setEventCoalescingWindow(final long eventCoalescingWindow)
+    {
+        this.eventCoalescingWindow = eventCoalescingWindow;
+    }
+
+    /**
+     * @return the binary spooler of this connector, or null if the binaries of
+     *         FULL payloads are always inlined or the connector is not started.
+     */
+    public JcrBinarySpooler getBinarySpooler()
+    {
+        return binarySpooler;
+    }
+
+    /**
+     * @return the binaryInlineThreshold
+     */
+    public long getBinaryInlineThreshold()
+    {
+        return binaryInlineThreshold;
+    }
+
+    /**
+     * @param binaryInlineThreshold the binaryInlineThreshold to set
+     */
+    public void setBinaryInlineThreshold(final long binaryInlineThreshold)
+    {
+        this.binaryInlineThreshold = binaryInlineThreshold;
+    }
+
+    /**
+     * @return the binarySpoolMaxBytes
+     */
+    public long getBinarySpoolMaxBytes()
+    {
+        return binarySpoolMaxBytes;
+    }
+
+    /**
+     * @param binarySpoolMaxBytes the binarySpoolMaxBytes to set
+     */
+    public void setBinarySpoolMaxBytes(final long binarySpoolMaxBytes)
+    {
+        this.binarySpoolMaxBytes = binarySpoolMaxBytes;
+    }
+
+    /**
+     * @return the executor used to fetch event content in parallel, or null if
+     *         the event fetch parallelism is 1 or the connector is not started.
+     */
+    public ExecutorService getContentFetchExecutor()
+    {
+        return contentFetchExecutor;
+    }
+
+    /**
+     * @return the eventFetchParallelism
+     */
+    public int getEventFetchParallelism()
+    {
+        return eventFetchParallelism;
+    }
+
+    /**
+     * @param eventFetchParallelism the eventFetchParallelism to set
+     */
+    public void setEventFetchParallelism(final int eventFetchParallelism)
+    {
+        this.eventFetchParallelism = eventFetchParallelism;
+    }
+
+    /**
+     * @return the observation listener shared by the receivers of this connector,
+     *         which is created with its own session on first call. This session
+     *         is private to the multiplexer and is never handed to receivers.
+     */
+    public synchronized JcrObservationMultiplexer getObservationMultiplexer() throws RepositoryException
+    {
+        if (observationMultiplexer == null)
+        {
+            final Session session = newSession();
+
+            try
+            {
+                observationMultiplexer = new JcrObservationMultiplexer(session);
+                observationSession = session;
+            }
+            catch (final RepositoryException re)
+            {
+                terminateSession(session);
+                throw re;
+            }
+        }
+
+        return observationMultiplexer;
+    }
+
+    /**
+     * @return the session the receivers sharing the observation listener read
+     *         event content with, which is created on first call. As JCR sessions
+     *         are not thread-safe, it must only be used while synchronized on it.
+     */
+    public synchronized Session getSharedReaderSession() throws RepositoryException
+    {
+        if (sharedReaderSession == null)
+        {
+            sharedReaderSession = newSession();
+        }
+
+        return sharedReaderSession;
+    }
+
+    /**
+     * Looks up the context of a receiver of this connector, for example to process
+     * an event batch that has lost it while being serialized.
+     *
+     * @param receiverKey the key the receiver is registered with.
+     * @return the context of the receiver, or null if no connected receiver is
+     *         registered with this key.
+     */
+    public JcrMessageReceiverContext lookupReceiverContext(final String receiverKey)
+    {
+        final MessageReceiver receiver = receiverKey != null ? lookupReceiver(receiverKey) : null;
+
+        if (receiver instanceof JcrMessageReceiver)
+        {
+            return ((JcrMessageReceiver) receiver).getReceiverContext();
+        }
+
+        if (receiver instanceof JcrPollingMessageReceiver)
+        {
+            return ((JcrPollingMessageReceiver) receiver).getReceiverContext();
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the sharedObservationEnabled
+     */
+    public boolean isSharedObservationEnabled()
+    {
+        return sharedObservationEnabled;
+    }
+
+    /**
+     * @param sharedObservationEnabled the sharedObservationEnabled to set
+     */
+    public void setSharedObservationEnabled(final boolean sharedObservationEnabled)
+    {
+        this.sharedObservationEnabled = sharedObservationEnabled;
+    }
+
+    /**
+     * @return the eventJournalEnabled
+     */
+    public boolean isEventJournalEnabled()
+    {
+        return eventJournalEnabled;
+    }
+
+    /**
+     * @param eventJournalEnabled the eventJournalEnabled to set
+     */
+    public void setEventJournalEnabled(final boolean eventJournalEnabled)
+    {
+        this.eventJournalEnabled = eventJournalEnabled;
+    }
+
+    /**
+     * @return the eventJournalSegmentSize
+     */
+    public int getEventJournalSegmentSize()
+    {
+        return eventJournalSegmentSize;
+    }
+
+    /**
+     * @param eventJournalSegmentSize the eventJournalSegmentSize to set
+     */
+    public void setEventJournalSegmentSize(final int eventJournalSegmentSize)
+    {
+        this.eventJournalSegmentSize = eventJournalSegmentSize;
+    }
+
+    /**
+     * @return the eventJournalSyncPolicy
+     */
+    public String getEventJournalSyncPolicy()
+    {
+        return eventJournalSyncPolicy;
+    }
+
+    /**
+     * @param eventJournalSyncPolicy the eventJournalSyncPolicy to set: ALWAYS,
+     *            INTERVAL or NEVER.
+     */
+    public void setEventJournalSyncPolicy(final String eventJournalSyncPolicy)
+    {
+        this.eventJournalSyncPolicy = JcrEventJournal.SyncPolicy.valueOf(eventJournalSyncPolicy).name();
+    }
+
+    /**
+     * @return the eventJournalSyncInterval
+     */
+    public long getEventJournalSyncInterval()
+    {
+        return eventJournalSyncInterval;
+    }
+
+    /**
+     * @param eventJournalSyncInterval the eventJournalSyncInterval to set
+     */
+    public void setEventJournalSyncInterval(final long eventJournalSyncInterval)
+    {
+        this.eventJournalSyncInterval = eventJournalSyncInterval;
+    }
+
+    /**
+     * @return the catchUpEnabled
+     */
+    public boolean isCatchUpEnabled()
+    {
+        return catchUpEnabled;
+    }
+
+    /**
+     * @param catchUpEnabled the catchUpEnabled to set
+     */
+    public void setCatchUpEnabled(final boolean catchUpEnabled)
+    {
+        this.catchUpEnabled = catchUpEnabled;
+    }
+
+    /**
+     * @return the catchUpPageSize
+     */
+    public int getCatchUpPageSize()
+    {
+        return catchUpPageSize;
+    }
+
+    /**
+     * @param catchUpPageSize the catchUpPageSize to set
+     */
+    public void setCatchUpPageSize(final int catchUpPageSize)
+    {
+        this.catchUpPageSize = catchUpPageSize;
+    }
+
+    /**
+     * @return the catchUpOverlap
+     */
+    public long getCatchUpOverlap()
+    {
+        return catchUpOverlap;
+    }
+
+    /**
+     * @param catchUpOverlap the catchUpOverlap to set
+     */
+    public void setCatchUpOverlap(final long catchUpOverlap)
+    {
+        this.catchUpOverlap = catchUpOverlap;
+    }
+
+    /**
+     * @return the pollingEnabled
+     */
+    public boolean isPollingEnabled()
+    {
+        return pollingEnabled;
+    }
+
+    /**
+     * @param pollingEnabled the pollingEnabled to set
+     */
+    public void setPollingEnabled(final boolean pollingEnabled)
+    {
+        this.pollingEnabled = pollingEnabled;
+    }
+
+    /**
+     * @return the pollingInterval
+     */
+    public long getPollingInterval()
+    {
+        return pollingInterval;
+    }
+
+    /**
+     * @param pollingInterval the pollingInterval to set
+     */
+    public void setPollingInterval(final long pollingInterval)
+    {
+        this.pollingInterval = pollingInterval;
+    }
+
+    /**
+     * @return the pollingMaxInterval
+     */
+    public long getPollingMaxInterval()
+    {
+        return pollingMaxInterval;
+    }
+
+    /**
+     * @param pollingMaxInterval the pollingMaxInterval to set
+     */
+    public void setPollingMaxInterval(final long pollingMaxInterval)
+    {
+        this.pollingMaxInterval = pollingMaxInterval;
+    }
+
+    /**
+     * @return the pollingPageSize
+     */
+    public int getPollingPageSize()
+    {
+        return pollingPageSize;
+    }
+
+    /**
+     * @param pollingPageSize the pollingPageSize to set
+     */
+    public void setPollingPageSize(final int pollingPageSize)
+    {
+        this.pollingPageSize = pollingPageSize;
+    }
+
+    /**
+     * @return the item cache shared by the requesters of this connector, which
+     *         holds hit, eviction and invalidation metrics, or null if items are
+     *         not cached.
+     */
+    public JcrItemCache getItemCache()
+    {
+        return itemCache;
+    }
+
+    /**
+     * @return the itemCacheEnabled
+     */
+    public boolean isItemCacheEnabled()
+    {
+        return itemCacheEnabled;
+    }
+
+    /**
+     * @param itemCacheEnabled the itemCacheEnabled to set
+     */
+    public void setItemCacheEnabled(final boolean itemCacheEnabled)
+    {
+        this.itemCacheEnabled = itemCacheEnabled;
+    }
+
+    /**
+     * @return the itemCacheMaxEntries
+     */
+    public int getItemCacheMaxEntries()
+    {
+        return itemCacheMaxEntries;
+    }
+
+    /**
+     * @param itemCacheMaxEntries the itemCacheMaxEntries to set
+     */
+    public void setItemCacheMaxEntries(final int itemCacheMaxEntries)
+    {
+        this.itemCacheMaxEntries = itemCacheMaxEntries;
+    }
+
+    /**
+     * @return the itemCacheMaxBytes
+     */
+    public long getItemCacheMaxBytes()
+    {
+        return itemCacheMaxBytes;
+    }
+
+    /**
+     * @param itemCacheMaxBytes the itemCacheMaxBytes to set
+     */
+    public void setItemCacheMaxBytes(final long itemCacheMaxBytes)
+    {
+        this.itemCacheMaxBytes = itemCacheMaxBytes;
+    }
+
+    /**
+     * @return the itemCacheTimeToLive
+     */
+    public long getItemCacheTimeToLive()
+    {
+        return itemCacheTimeToLive;
+    }
+
+    /**
+     * @param itemCacheTimeToLive the itemCacheTimeToLive to set
+     */
+    public void setItemCacheTimeToLive(final long itemCacheTimeToLive)
+    {
+        this.itemCacheTimeToLive = itemCacheTimeToLive;
+    }
+
+    /**
+     * @return the cache of the queries parsed by the sessions of this connector,
+     *         and of their results, or null if queries are not cached.
+     */
+    public JcrQueryCache getQueryCache()
+    {
+        return queryCache;
+    }
+
+    /**
+     * @return the queryCacheSize
+     */
+    public int getQueryCacheSize()
+    {
+        return queryCacheSize;
+    }
+
+    /**
+     * @param queryCacheSize the queryCacheSize to set
+     */
+    public void setQueryCacheSize(final int queryCacheSize)
+    {
+        this.queryCacheSize = queryCacheSize;
+    }
+
+    /**
+     * @return the queryResultCacheTimeToLive
+     */
+    public long getQueryResultCacheTimeToLive()
+    {
+        return queryResultCacheTimeToLive;
+    }
+
+    /**
+     * @param queryResultCacheTimeToLive the queryResultCacheTimeToLive to set
+     */
+    public void setQueryResultCacheTimeToLive(final long queryResultCacheTimeToLive)
+    {
+        this.queryResultCacheTimeToLive = queryResultCacheTimeToLive;
+    }
+
+    /**
+     * @return the queryResultCacheSize
+     */
+    public int getQueryResultCacheSize()
+    {
+        return queryResultCacheSize;
+    }
+
+    /**
+     * @param queryResultCacheSize the queryResultCacheSize to set
+     */
+    public void setQueryResultCacheSize(final int queryResultCacheSize)
+    {
+        this.queryResultCacheSize = queryResultCacheSize;
+    }
+
+    /**
+     * @return the queryPageSize
+     */
+    public int getQueryPageSize()
+    {
+        return queryPageSize;
+    }
+
+    /**
+     * @param queryPageSize the queryPageSize to set
+     */
+    public void setQueryPageSize(final int queryPageSize)
+    {
+        this.queryPageSize = queryPageSize;
+    }
+
+    /**
+     * @return the queryResultIdleTimeout
+     */
+    public long getQueryResultIdleTimeout()
+    {
+        return queryResultIdleTimeout;
+    }
+
+    /**
+     * @param queryResultIdleTimeout the queryResultIdleTimeout to set
+     */
+    public void setQueryResultIdleTimeout(final long queryResultIdleTimeout)
+    {
+        this.queryResultIdleTimeout = queryResultIdleTimeout;
+    }
+
+    /**
+     * @return the digester used to skip the writes of unchanged binary contents,
+     *         which counts written and skipped contents, or null if content
+     *         digests are not enabled.
+     */
+    public JcrContentDigester getContentDigester()
+    {
+        return nodeTypeHandlerManager.getContentDigester();
+    }
+
+    /**
+     * @return the contentDigestEnabled
+     */
+    public boolean isContentDigestEnabled()
+    {
+        return contentDigestEnabled;
+    }
+
+    /**
+     * @param contentDigestEnabled the contentDigestEnabled to set
+     */
+    public void setContentDigestEnabled(final boolean contentDigestEnabled)
+    {
+        this.contentDigestEnabled = contentDigestEnabled;
+    }
+
+    /**
+     * @return the contentDigestAlgorithm
+     */
+    public String getContentDigestAlgorithm()
+    {
+        return contentDigestAlgorithm;
+    }
+
+    /**
+     * @param contentDigestAlgorithm the contentDigestAlgorithm to set
+     */
+    public void setContentDigestAlgorithm(final String contentDigestAlgorithm)
+    {
+        this.contentDigestAlgorithm = contentDigestAlgorithm;
+    }
+
+    /**
+     * @return the contentDigestProperty
+     */
+    public String getContentDigestProperty()
+    {
+        return contentDigestProperty;
+    }
+
+    /**
+     * @param contentDigestProperty the contentDigestProperty to set
+     */
+    public void setContentDigestProperty(final String contentDigestProperty)
+    {
+        this.contentDigestProperty = contentDigestProperty;
+    }
+
+    /**
+     * @return the codec of the values that have no JCR type, or null if they are
+     *         stored with Java serialization.
+     */
+    public JcrValueCodec getValueCodec()
+    {
+        return nodeTypeHandlerManager.getValueCodec();
+    }
+
+    /**
+     * Sets the codec used to store the values that have no JCR type, like maps or
+     * integers, as binaries and to decode them when they are read. A
+     * {@link org.mule.transport.jcr.support.JcrCompactValueCodec} is provided.
+     *
+     * @param valueCodec the valueCodec to set, or null to use Java serialization.
+     */
+    public void setValueCodec(final JcrValueCodec valueCodec)
+    {
+        nodeTypeHandlerManager.setValueCodec(valueCodec);
+    }
+
+    /**
+     * @return the primitiveArrayPayloads
+     */
+    public boolean isPrimitiveArrayPayloads()
+    {
+        return primitiveArrayPayloads;
+    }
+
+    /**
+     * @param primitiveArrayPayloads the primitiveArrayPayloads to set
+     */
+    public void setPrimitiveArrayPayloads(final boolean primitiveArrayPayloads)
+    {
+        this.primitiveArrayPayloads = primitiveArrayPayloads;
+    }
+
 }
@@ -36,7 +36,14 @@ public enum JcrContentPayloadType {
      * The payload will contain event information and data from the node source
      * of the event.
      */
-    FULL("full");
+    FULL("full"),
+
+    /**
+     * The payload will contain event information and data from the node source
+     * of the event, binary data being replaced by a {@link JcrBinaryReference}
+     * that reads it only when its stream is opened.
+     */
+    REFERENCE("reference");
 
     private final String name;
 
@@ -0,0 +1,255 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+import org.mule.transport.jcr.support.JcrEventUtils;
+
+/**
+ * A serializable <code>javax.jcr.observation.EventIterator</code> over events that
+ * have been detached from the repository, so they can be processed after the
+ * observation manager has moved on, possibly by another thread. A batch routed by
+ * a receiver carries the context of this receiver, which is not serialized: a
+ * deserialized batch only carries the name of the connector and the key of the
+ * receiver, which the context can be looked up with.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public final class JcrEventBatch implements EventIterator, Serializable {
+
+    private static final long serialVersionUID = 3404585066424373105L;
+
+    private final List<JcrMessage> events;
+
+    private final long creationTime;
+
+    // for each event, the journal entries it comes from with the number of their
+    // events it stands for: null if the events are not journaled
+    private List<Map<Long, Integer>> journalEntries;
+
+    private int position;
+
+    private transient JcrMessageReceiverContext receiverContext;
+
+    private String connectorName;
+
+    private String receiverKey;
+
+    public JcrEventBatch(final List<JcrMessage> events) {
+        this(events, System.currentTimeMillis());
+    }
+
+    public JcrEventBatch(final List<JcrMessage> events, final long creationTime) {
+        this(events, creationTime, null);
+    }
+
+    /**
+     * @param journalEntries for each event, the journal entries it comes from with
+     *            the number of their events it stands for, or null.
+     */
+    public JcrEventBatch(final List<JcrMessage> events, final long creationTime, final List<Map<Long, Integer>> journalEntries) {
+        this.events = events;
+        this.creationTime = creationTime;
+        this.journalEntries = journalEntries;
+    }
+
+    /**
+     * Copies the events of an iterator, without their content.
+     */
+    public static JcrEventBatch detach(final EventIterator eventIterator) throws RepositoryException {
+        final List<JcrMessage> events = new ArrayList<JcrMessage>();
+
+        while (eventIterator.hasNext()) {
+            events.add(detach(eventIterator.nextEvent()));
+        }
+
+        return new JcrEventBatch(events);
+    }
+
+    /**
+     * Copies an event, without its content.
+     */
+    public static JcrMessage detach(final Event event) throws RepositoryException {
+        if (event instanceof JcrMessage) {
+            return (JcrMessage) event;
+        }
+
+        return new JcrMessage(event.getPath(), event.getType(), JcrEventUtils.getEventTypeNameFromValue(event.getType()),
+                event.getUserID(), "", null);
+    }
+
+    /**
+     * @return the events
+     */
+    public List<JcrMessage> getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the time, in milliseconds, when the events have been detached.
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Tags all the events as coming from a single journal entry.
+     */
+    public void setJournalEntry(final long entryId) {
+        final List<Map<Long, Integer>> eventJournalEntries = new ArrayList<Map<Long, Integer>>(events.size());
+
+        for (int i = 0; i < events.size(); i++) {
+            eventJournalEntries.add(Collections.singletonMap(Long.valueOf(entryId), Integer.valueOf(1)));
+        }
+
+        journalEntries = eventJournalEntries;
+    }
+
+    /**
+     * @return the journal entries the event at the specified index comes from,
+     *         with the number of their events it stands for, or null if the events
+     *         are not journaled.
+     */
+    public Map<Long, Integer> getJournalEntries(final int eventIndex) {
+        return journalEntries == null ? null : journalEntries.get(eventIndex);
+    }
+
+    /**
+     * @return the journal entries all the events come from, with the number of
+     *         their events they stand for, or null if the events are not
+     *         journaled.
+     */
+    public Map<Long, Integer> getJournalEntries() {
+        if (journalEntries == null) {
+            return null;
+        }
+
+        final Map<Long, Integer> result = new LinkedHashMap<Long, Integer>();
+
+        for (final Map<Long, Integer> eventJournalEntries : journalEntries) {
+            mergeJournalEntries(result, eventJournalEntries);
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds journal entries and their event counts to a map of the same kind.
+     */
+    public static void mergeJournalEntries(final Map<Long, Integer> target, final Map<Long, Integer> journalEntries) {
+        if (journalEntries == null) {
+            return;
+        }
+
+        for (final Map.Entry<Long, Integer> journalEntry : journalEntries.entrySet()) {
+            final Integer count = target.get(journalEntry.getKey());
+            target.put(journalEntry.getKey(), Integer.valueOf((count == null ? 0 : count.intValue()) + journalEntry.getValue().intValue()));
+        }
+    }
+
+    /**
+     * @return the context of the receiver that observed the events, or null if
+     *         the batch has not been routed by a receiver.
+     */
+    public JcrMessageReceiverContext getReceiverContext() {
+        return receiverContext;
+    }
+
+    /**
+     * @param receiverContext the receiverContext to set
+     */
+    public void setReceiverContext(final JcrMessageReceiverContext receiverContext) {
+        this.receiverContext = receiverContext;
+    }
+
+    /**
+     * Binds the batch to the receiver routing it.
+     *
+     * @param receiverContext the context of the receiver.
+     * @param connectorName the name of the connector of the receiver.
+     * @param receiverKey the key the receiver is registered with on its connector.
+     */
+    public void setReceiver(final JcrMessageReceiverContext receiverContext, final String connectorName,
+            final String receiverKey) {
+        this.receiverContext = receiverContext;
+        this.connectorName = connectorName;
+        this.receiverKey = receiverKey;
+    }
+
+    /**
+     * @return the name of the connector of the receiver that routed the batch, or
+     *         null if it has not been routed by a receiver.
+     */
+    public String getConnectorName() {
+        return connectorName;
+    }
+
+    /**
+     * @return the key of the receiver that routed the batch on its connector, or
+     *         null if it has not been routed by a receiver.
+     */
+    public String getReceiverKey() {
+        return receiverKey;
+    }
+
+    public Event nextEvent() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return events.get(position++);
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getSize() {
+        return events.size();
+    }
+
+    public void skip(final long skipNum) {
+        if ((skipNum < 0) || (position + skipNum > events.size())) {
+            throw new NoSuchElementException();
+        }
+
+        position += (int) skipNum;
+    }
+
+    public boolean hasNext() {
+        return position < events.size();
+    }
+
+    public Object next() {
+        return nextEvent();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+        return "JcrEventBatch[size=" + events.size() + ", position=" + position + ", creationTime=" + creationTime + "]";
+    }
+
+}
@@ -10,13 +10,24 @@
 
 package org.mule.transport.jcr;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 import javax.jcr.observation.Event;
 
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
-import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.ObjectUtils;
+import org.mule.transport.jcr.support.JcrEventUtils;
 
 /**
  * Provides an immutable JCR message, which is an augmented and serializable
@@ -40,6 +51,8 @@ public final class JcrMessage implements Event, Serializable {
 
     private final String uuid;
 
+    private final boolean coalesced;
+
     /**
      * @deprecated Prefer using the complete constructor.
      */
@@ -53,6 +66,19 @@ public final class JcrMessage implements Event, Serializable {
     public JcrMessage(final String path, final int type,
             final String typeAsString, final String userID,
             final Serializable content, final String uuid) {
+        this(path, type, typeAsString, userID, content, uuid, false);
+    }
+
+    /**
+     * @param coalesced true if the message consolidates several events of the
+     *            node at <code>path</code>, in which case <code>type</code> is a
+     *            mask of their types and <code>content</code> a map of the
+     *            changed property names and values.
+     */
+    public JcrMessage(final String path, final int type,
+            final String typeAsString, final String userID,
+            final Serializable content, final String uuid,
+            final boolean coalesced) {
 
         this.path = path;
         this.type = type;
@@ -60,21 +86,81 @@ public final class JcrMessage implements Event, Serializable {
         this.userID = userID;
         this.content = content;
         this.uuid = uuid;
+        this.coalesced = coalesced;
     }
 
     @Override
     public String toString() {
-        return ToStringBuilder.reflectionToString(this);
+        final StringBuilder result = new StringBuilder("JcrMessage[path=").append(path).append(", type=").append(type)
+                .append(", typeAsString=").append(typeAsString).append(", userID=").append(userID).append(", uuid=")
+                .append(uuid).append(", coalesced=").append(coalesced).append(", content=");
+
+        if (content instanceof byte[]) {
+            // binary content is summarized to keep logs readable
+            result.append("byte[").append(((byte[]) content).length).append(']');
+        } else {
+            result.append(content);
+        }
+
+        return result.append(']').toString();
     }
 
     @Override
     public int hashCode() {
-        return HashCodeBuilder.reflectionHashCode(this);
+        int result = type;
+        result = 31 * result + (path == null ? 0 : path.hashCode());
+        result = 31 * result + (uuid == null ? 0 : uuid.hashCode());
+        result = 31 * result + contentHashCode(content);
+        return result;
     }
 
     @Override
     public boolean equals(final Object obj) {
-        return EqualsBuilder.reflectionEquals(this, obj);
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof JcrMessage)) {
+            return false;
+        }
+
+        final JcrMessage other = (JcrMessage) obj;
+
+        return (type == other.type) && (coalesced == other.coalesced) && ObjectUtils.equals(path, other.path)
+                && ObjectUtils.equals(typeAsString, other.typeAsString) && ObjectUtils.equals(userID, other.userID)
+                && ObjectUtils.equals(uuid, other.uuid) && contentEquals(content, other.content);
+    }
+
+    private static int contentHashCode(final Serializable content) {
+        if (content instanceof byte[]) {
+            return Arrays.hashCode((byte[]) content);
+        }
+
+        if ((content != null) && (content.getClass().isArray())) {
+            return Arrays.deepHashCode(new Object[] { content });
+        }
+
+        return ObjectUtils.hashCode(content);
+    }
+
+    private static boolean contentEquals(final Serializable content, final Serializable otherContent) {
+        if ((content instanceof byte[]) && (otherContent instanceof byte[])) {
+            return Arrays.equals((byte[]) content, (byte[]) otherContent);
+        }
+
+        if ((content != null) && (content.getClass().isArray())) {
+            return Arrays.deepEquals(new Object[] { content }, new Object[] { otherContent });
+        }
+
+        return ObjectUtils.equals(content, otherContent);
+    }
+
+    /**
+     * Messages are serialized in the compact form of {@link CompactForm}. Messages
+     * serialized with the default form by former versions can still be read.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new CompactForm(this);
     }
 
     /**
@@ -119,4 +205,230 @@ public final class JcrMessage implements Event, Serializable {
         return uuid;
     }
 
+    /**
+     * @return the coalesced
+     */
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * The versioned serialized form of a message: the usual event type names are
+     * coded on a byte, <code>String</code> and <code>byte[]</code> contents are
+     * length-prefixed and deflated when they are larger than
+     * <code>COMPRESSION_THRESHOLD</code> bytes and compress well, other contents
+     * are serialized as objects.
+     */
+    static final class CompactForm implements Externalizable {
+
+        private static final long serialVersionUID = 2870454526412434571L;
+
+        private static final byte VERSION = 1;
+
+        private static final byte COALESCED_FLAG = 1;
+
+        private static final byte TYPE_NAME_FROM_VALUE = 0;
+
+        private static final byte TYPE_NAMES_FROM_MASK = 1;
+
+        private static final byte TYPE_NAME_EXPLICIT = 2;
+
+        private static final byte TYPE_NAME_NULL = 3;
+
+        private static final byte CONTENT_NULL = 0;
+
+        private static final byte CONTENT_STRING = 1;
+
+        private static final byte CONTENT_BYTES = 2;
+
+        private static final byte CONTENT_OBJECT = 3;
+
+        private static final byte CONTENT_COMPRESSED_FLAG = 0x10;
+
+        static final int COMPRESSION_THRESHOLD = 4096;
+
+        private JcrMessage message;
+
+        public CompactForm() {
+            // for deserialization
+        }
+
+        CompactForm(final JcrMessage message) {
+            this.message = message;
+        }
+
+        public void writeExternal(final ObjectOutput out) throws IOException {
+            out.writeByte(VERSION);
+            out.writeByte(message.coalesced ? COALESCED_FLAG : 0);
+            writeNullableString(out, message.path);
+            out.writeInt(message.type);
+
+            if (message.typeAsString == null) {
+                out.writeByte(TYPE_NAME_NULL);
+            } else if (message.typeAsString.equals(JcrEventUtils.getEventTypeNameFromValue(message.type))) {
+                out.writeByte(TYPE_NAME_FROM_VALUE);
+            } else if (message.typeAsString.equals(JcrEventUtils.getEventTypeNamesFromMask(message.type))) {
+                out.writeByte(TYPE_NAMES_FROM_MASK);
+            } else {
+                out.writeByte(TYPE_NAME_EXPLICIT);
+                out.writeUTF(message.typeAsString);
+            }
+
+            writeNullableString(out, message.userID);
+            writeNullableString(out, message.uuid);
+
+            if (message.content == null) {
+                out.writeByte(CONTENT_NULL);
+            } else if (message.content instanceof String) {
+                writeBytes(out, CONTENT_STRING, ((String) message.content).getBytes("UTF-8"));
+            } else if (message.content instanceof byte[]) {
+                writeBytes(out, CONTENT_BYTES, (byte[]) message.content);
+            } else {
+                out.writeByte(CONTENT_OBJECT);
+                out.writeObject(message.content);
+            }
+        }
+
+        public void readExternal(final ObjectInput in) throws IOException, ClassNotFoundException {
+            final byte version = in.readByte();
+
+            if ((version < 1) || (version > VERSION)) {
+                throw new InvalidObjectException("Unsupported JcrMessage serialized form version: " + version);
+            }
+
+            final boolean coalesced = (in.readByte() & COALESCED_FLAG) != 0;
+            final String path = readNullableString(in);
+            final int type = in.readInt();
+
+            final String typeAsString;
+            final byte typeNameCode = in.readByte();
+
+            switch (typeNameCode) {
+            case TYPE_NAME_FROM_VALUE:
+                typeAsString = JcrEventUtils.getEventTypeNameFromValue(type);
+                break;
+            case TYPE_NAMES_FROM_MASK:
+                typeAsString = JcrEventUtils.getEventTypeNamesFromMask(type);
+                break;
+            case TYPE_NAME_EXPLICIT:
+                typeAsString = in.readUTF();
+                break;
+            default:
+                typeAsString = null;
+            }
+
+            final String userID = readNullableString(in);
+            final String uuid = readNullableString(in);
+
+            final Serializable content;
+            final byte contentKind = in.readByte();
+
+            switch (contentKind & ~CONTENT_COMPRESSED_FLAG) {
+            case CONTENT_NULL:
+                content = null;
+                break;
+            case CONTENT_STRING:
+                content = new String(readBytes(in, contentKind), "UTF-8");
+                break;
+            case CONTENT_BYTES:
+                content = readBytes(in, contentKind);
+                break;
+            case CONTENT_OBJECT:
+                content = (Serializable) in.readObject();
+                break;
+            default:
+                throw new InvalidObjectException("Unsupported JcrMessage content kind: " + contentKind);
+            }
+
+            message = new JcrMessage(path, type, typeAsString, userID, content, uuid, coalesced);
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return message;
+        }
+
+        private static void writeNullableString(final ObjectOutput out, final String value) throws IOException {
+            out.writeBoolean(value != null);
+
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readNullableString(final ObjectInput in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        private static void writeBytes(final ObjectOutput out, final byte contentKind, final byte[] bytes) throws IOException {
+            if (bytes.length > COMPRESSION_THRESHOLD) {
+                final ByteArrayOutputStream compressedBytes = new ByteArrayOutputStream(bytes.length / 2);
+                final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+                try {
+                    final DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressedBytes, deflater);
+                    deflaterStream.write(bytes);
+                    deflaterStream.close();
+                } finally {
+                    deflater.end();
+                }
+
+                // content that does not compress well is written as is
+                if (compressedBytes.size() < bytes.length - bytes.length / 8) {
+                    out.writeByte(contentKind | CONTENT_COMPRESSED_FLAG);
+                    out.writeInt(bytes.length);
+                    out.writeInt(compressedBytes.size());
+                    out.write(compressedBytes.toByteArray());
+                    return;
+                }
+            }
+
+            out.writeByte(contentKind);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static byte[] readBytes(final ObjectInput in, final byte contentKind) throws IOException {
+            final byte[] bytes = new byte[in.readInt()];
+
+            if ((contentKind & CONTENT_COMPRESSED_FLAG) == 0) {
+                in.readFully(bytes);
+                return bytes;
+            }
+
+            final byte[] compressedBytes = new byte[in.readInt()];
+            in.readFully(compressedBytes);
+
+            final Inflater inflater = new Inflater();
+
+            try {
+                inflater.setInput(compressedBytes);
+                int inflated = 0;
+
+                while ((inflated < bytes.length) && (!inflater.finished())) {
+                    final int count = inflater.inflate(bytes, inflated, bytes.length - inflated);
+
+                    if ((count == 0) && (inflater.needsInput())) {
+                        break;
+                    }
+
+                    inflated += count;
+                }
+
+                if (inflated != bytes.length) {
+                    throw new InvalidObjectException("Truncated JcrMessage content: " + inflated + " of " + bytes.length
+                            + " bytes");
+                }
+
+                return bytes;
+
+            } catch (final DataFormatException dfe) {
+                final InvalidObjectException ioe = new InvalidObjectException("Corrupted JcrMessage content");
+                ioe.initCause(dfe);
+                throw ioe;
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
 }
@@ -10,13 +10,24 @@
 
 package org.mule.transport.jcr;
 
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jcr.Item;
 import javax.jcr.Node;
 import javax.jcr.Property;
+import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
+import org.mule.DefaultMuleMessage;
 import org.mule.api.MuleEvent;
 import org.mule.api.MuleMessage;
 import org.mule.api.endpoint.OutboundEndpoint;
@@ -25,8 +36,12 @@ import org.mule.api.transport.PropertyScope;
 import org.mule.transport.AbstractMessageDispatcher;
 import org.mule.transport.jcr.handlers.NodeTypeHandler;
 import org.mule.transport.jcr.i18n.JcrMessages;
+import org.mule.transport.jcr.support.JcrGroupCommitter;
+import org.mule.transport.jcr.support.JcrItemCache;
 import org.mule.transport.jcr.support.JcrNodeUtils;
 import org.mule.transport.jcr.support.JcrPropertyUtils;
+import org.mule.transport.jcr.support.JcrXmlUtils;
+import org.mule.util.IOUtils;
 import org.mule.util.StringUtils;
 
 /**
@@ -56,7 +71,10 @@ public class JcrMessageDispatcher extends AbstractMessageDispatcher
     @Override
     public void doConnect() throws Exception
     {
-        dispatcherSession = jcrConnector.newSession();
+        if (!jcrConnector.isSessionPoolEnabled())
+        {
+            dispatcherSession = jcrConnector.newSession();
+        }
     }
 
     @Override
@@ -101,7 +119,8 @@ public class JcrMessageDispatcher extends AbstractMessageDispatcher
      * If an existing target item is found and is a property, the
      * <code>MuleMessage</code> payload will be directly written to it, using a
      * simple conversion mechanism. Note that if the payload is a
-     * <code>Collection</code>, the property will be multi-valued.
+     * <code>Collection</code> or a primitive array, like <code>long[]</code>, the
+     * property will be multi-valued.
      * </p>
      * <p>
      * If no existing target item is found or if the creation of a new node is forced
@@ -112,12 +131,182 @@ public class JcrMessageDispatcher extends AbstractMessageDispatcher
      * ). If the endpoint URI points to a property and not a node, an exception will
      * be raised.
      * </p>
+     * <p>
+     * If the <code>deltaUpdate</code> event or endpoint property is true, writes
+     * to nt:unstructured nodes only set the properties whose values have changed,
+     * and if the <code>removeAbsentProperties</code> one is true, the properties
+     * absent from a map payload are removed from the node.
+     * </p>
+     * <p>
+     * If the <code>batchCreate</code> event or endpoint property is true and the
+     * payload is a <code>Collection</code>, one node is created per element instead,
+     * and the paths of all the created nodes are returned in the
+     * <code>itemPaths</code> property.
+     * </p>
+     * <p>
+     * If the <code>importXml</code> event or endpoint property is true, the payload
+     * is streamed as system or document view XML under the target node, and the
+     * number of imported nodes is returned in the <code>importedNodeCount</code>
+     * property.
+     * </p>
      * 
      * @see org.mule.transport.jcr.JcrConnector Property names constants
      * @return the source <code>MuleMessage</code>.
      */
     @Override
     public MuleMessage doSend(final MuleEvent event) throws Exception
+    {
+        final JcrGroupCommitter groupCommitter = jcrConnector.getGroupCommitter();
+
+        // streamed payloads can not be replayed if their group fails to save, while
+        // batches and imports manage their own saves
+        final Object payload = event.getMessage().getPayload();
+
+        if ((groupCommitter != null) && !(payload instanceof InputStream) && !isBatchCreate(event)
+            && !isImportXml(event))
+        {
+            return doGroupSend(event, groupCommitter);
+        }
+
+        try
+        {
+            return doSessionSend(event);
+        }
+        finally
+        {
+            // a streamed payload is owned by the dispatch, which closes it once
+            // stored, also releasing the writer of a streaming output stream
+            if (payload instanceof InputStream)
+            {
+                IOUtils.closeQuietly((InputStream) payload);
+            }
+        }
+    }
+
+    private MuleMessage doSessionSend(final MuleEvent event) throws Exception
+    {
+        if (!jcrConnector.isSessionPoolEnabled())
+        {
+            return doSend(event, getSession());
+        }
+
+        // with pooling, the session is only held for the duration of the write
+        final Session session = jcrConnector.borrowSession();
+
+        try
+        {
+            return doSend(event, session);
+        }
+        finally
+        {
+            jcrConnector.releaseSession(session);
+        }
+    }
+
+    private MuleMessage doSend(final MuleEvent event, final Session session) throws Exception
+    {
+        if (isImportXml(event))
+        {
+            return doImportSend(event, session);
+        }
+
+        if (isBatchCreate(event))
+        {
+            return doBatchSend(event, session);
+        }
+
+        final Item storedItem = storeContent(event, session);
+
+        final String storedItemPath = storedItem != null ? storedItem.getPath() : null;
+
+        // nothing is pending when an unchanged content has not been written
+        if (session.hasPendingChanges())
+        {
+            session.save();
+            invalidateCachedItems(storedItemPath);
+        }
+
+        return setItemPath(event.getMessage(), storedItemPath);
+    }
+
+    /**
+     * Hands the write over to the group committer of the connector, which will save
+     * it along with the writes of other concurrent dispatches.
+     */
+    private MuleMessage doGroupSend(final MuleEvent event, final JcrGroupCommitter groupCommitter)
+        throws Exception
+    {
+        final Future<String> itemPath = groupCommitter.submit(new JcrGroupCommitter.ItemWriter()
+        {
+            public String write(final Session session) throws Exception
+            {
+                final Item storedItem = storeContent(event, session);
+                return storedItem != null ? storedItem.getPath() : null;
+            }
+        });
+
+        String storedItemPath;
+
+        try
+        {
+            try
+            {
+                storedItemPath = itemPath.get(jcrConnector.getGroupCommitWriteTimeout(), TimeUnit.MILLISECONDS);
+            }
+            catch (final TimeoutException te)
+            {
+                // the write is withdrawn so a retry of the dispatch does not store
+                // the content twice, unless it is already being performed
+                if (itemPath.cancel(false))
+                {
+                    throw new DispatchException(JcrMessages.groupCommitTimeout(
+                        jcrConnector.getGroupCommitWriteTimeout()), event, null, te);
+                }
+
+                storedItemPath = itemPath.get();
+            }
+        }
+        catch (final ExecutionException ee)
+        {
+            final Throwable cause = ee.getCause();
+            throw cause instanceof Exception ? (Exception) cause : ee;
+        }
+
+        invalidateCachedItems(storedItemPath);
+        return setItemPath(event.getMessage(), storedItemPath);
+    }
+
+    /**
+     * Invalidates the cached items at, above or under a saved item, without waiting
+     * for the observation events of the save, so requests that follow this
+     * dispatch do not read stale items.
+     */
+    private void invalidateCachedItems(final String savedItemPath)
+    {
+        final JcrItemCache itemCache = jcrConnector.getItemCache();
+
+        if ((itemCache != null) && (savedItemPath != null))
+        {
+            itemCache.invalidate(savedItemPath);
+        }
+    }
+
+    private MuleMessage setItemPath(final MuleMessage message, final String itemPath)
+    {
+        if (itemPath != null)
+        {
+            message.setProperty(JcrConnector.JCR_ITEM_PATH, itemPath, PropertyScope.INVOCATION);
+        }
+
+        return message;
+    }
+
+    /**
+     * Stores the content of the event in the session, without saving it.
+     *
+     * @return the stored item.
+     */
+    private Item storeContent(final MuleEvent event, final Session session) throws Exception
     {
         final MuleMessage message = event.getMessage();
 
@@ -127,7 +316,6 @@ public class JcrMessageDispatcher extends AbstractMessageDispatcher
         final String nodeUUID = JcrNodeUtils.getNodeUUID(event);
         final String nodeRelPath = JcrNodeUtils.getNodeRelPath(event);
         final String propertyRelPath = JcrPropertyUtils.getPropertyRelPath(event);
-        final Session session = getSession();
 
         Item targetItem = alwaysCreate ? null : JcrNodeUtils.getTargetItem(session, endpoint, event, true);
         Item storedItem = null;
@@ -158,11 +346,17 @@ public class JcrMessageDispatcher extends AbstractMessageDispatcher
                 if ((payload instanceof Collection<?>))
                 {
                     targetProperty.setValue(JcrPropertyUtils.newPropertyValues(session,
-                        (Collection<?>) payload));
+                        (Collection<?>) payload, jcrConnector.getValueCodec()));
+                }
+                else if (JcrPropertyUtils.isMultiValued(payload))
+                {
+                    // a primitive array, stored without boxing its elements
+                    targetProperty.setValue(JcrPropertyUtils.newPrimitivePropertyValues(session, payload));
                 }
                 else
                 {
-                    targetProperty.setValue(JcrPropertyUtils.newPropertyValue(session, payload));
+                    targetProperty.setValue(JcrPropertyUtils.newPropertyValue(session, payload,
+                        jcrConnector.getValueCodec()));
                 }
 
                 storedItem = targetProperty;
@@ -185,26 +379,8 @@ public class JcrMessageDispatcher extends AbstractMessageDispatcher
                 final Node targetParentNode = (Node) targetItem;
 
                 // create the target node, based on its type and relpath
-                final String nodeTypeName = JcrNodeUtils.getNodeTypeName(event);
-
-                NodeTypeHandler nodeTypeHandler;
-
-                if (StringUtils.isNotBlank(nodeTypeName))
-                {
-                    nodeTypeHandler = jcrConnector.getNodeTypeHandlerManager().getNodeTypeHandler(
-                        nodeTypeName);
-                }
-                else
-                {
-                    nodeTypeHandler = jcrConnector.getNodeTypeHandlerManager().getChildNodeTypeHandler(
-                        targetParentNode);
-                }
-
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug("Selected node type handler: " + nodeTypeHandler + " for node: "
-                                 + targetParentNode.getPath());
-                }
+                final NodeTypeHandler nodeTypeHandler = getCreationHandler(targetParentNode,
+                    JcrNodeUtils.getNodeTypeName(event));
 
                 storedItem = nodeTypeHandler.createNode(session, targetParentNode, nodeRelPath, message);
             }
@@ -221,13 +397,203 @@ public class JcrMessageDispatcher extends AbstractMessageDispatcher
 
         }
 
+        return storedItem;
+    }
+
+    /**
+     * Creates one node per element of the collection payload of the event, under
+     * the node targeted by the endpoint, saving the session every
+     * <code>batchSaveInterval</code> nodes. Elements that are maps can carry their
+     * own <code>nodeRelPath</code> and <code>nodeTypeName</code> entries, which
+     * override the ones of the event.
+     *
+     * @return the source <code>MuleMessage</code>, with the paths of the created
+     *         nodes in the <code>itemPaths</code> property.
+     */
+    private MuleMessage doBatchSend(final MuleEvent event, final Session session) throws Exception
+    {
+        final MuleMessage message = event.getMessage();
+        final Collection<?> payloads = (Collection<?>) message.getPayload();
+
+        final Item targetItem = JcrNodeUtils.getTargetItem(session, endpoint, event, false);
+
+        if ((targetItem == null) || (!targetItem.isNode()))
+        {
+            throw new DispatchException(JcrMessages.noNodeFor("Endpoint URI: "
+                                                              + endpoint.getEndpointURI().toString()
+                                                              + " ; NodeUUID: "
+                                                              + JcrNodeUtils.getNodeUUID(event)), event, null);
+        }
+
+        final Node targetParentNode = (Node) targetItem;
+        final String defaultNodeRelPath = JcrNodeUtils.getNodeRelPath(event);
+        final String defaultNodeTypeName = JcrNodeUtils.getNodeTypeName(event);
+        final int saveInterval = getBatchSaveInterval(message);
+
+        final List<String> itemPaths = new ArrayList<String>(payloads.size());
+        int unsaved = 0;
+
+        for (final Object payload : payloads)
+        {
+            String nodeRelPath = defaultNodeRelPath;
+            String nodeTypeName = defaultNodeTypeName;
+            Object itemPayload = payload;
+
+            if (payload instanceof Map<?, ?>)
+            {
+                final Map<?, ?> payloadMap = (Map<?, ?>) payload;
+
+                if (payloadMap.containsKey(JcrConnector.JCR_NODE_RELPATH_PROPERTY)
+                    || payloadMap.containsKey(JcrConnector.JCR_NODE_TYPE_NAME_PROPERTY))
+                {
+                    final Map<Object, Object> contentMap = new HashMap<Object, Object>(payloadMap);
+
+                    final Object itemNodeRelPath = contentMap.remove(JcrConnector.JCR_NODE_RELPATH_PROPERTY);
+                    final Object itemNodeTypeName = contentMap.remove(JcrConnector.JCR_NODE_TYPE_NAME_PROPERTY);
+
+                    if (itemNodeRelPath != null)
+                    {
+                        nodeRelPath = itemNodeRelPath.toString();
+                    }
+
+                    if (itemNodeTypeName != null)
+                    {
+                        nodeTypeName = itemNodeTypeName.toString();
+                    }
+
+                    itemPayload = contentMap;
+                }
+            }
+
+            final Node node = getCreationHandler(targetParentNode, nodeTypeName).createNode(session,
+                targetParentNode, nodeRelPath,
+                new DefaultMuleMessage(itemPayload, message, jcrConnector.getMuleContext()));
+
+            itemPaths.add(node.getPath());
+
+            if ((saveInterval > 0) && (++unsaved >= saveInterval))
+            {
+                session.save();
+                invalidateCachedItems(targetParentNode.getPath());
+                unsaved = 0;
+            }
+        }
+
         session.save();
+        invalidateCachedItems(targetParentNode.getPath());
 
-        if (storedItem != null)
+        if (logger.isDebugEnabled())
         {
-            message.setProperty(JcrConnector.JCR_ITEM_PATH, storedItem.getPath(), PropertyScope.INVOCATION);
+            logger.debug("Created " + itemPaths.size() + " nodes under: " + targetParentNode.getPath());
         }
 
+        message.setProperty(JcrConnector.JCR_ITEM_PATHS, itemPaths, PropertyScope.INVOCATION);
         return message;
     }
+
+    /**
+     * Streams the XML payload of the event, in system or document view, under the
+     * node targeted by the endpoint. The import goes through the session, then
+     * saved, unless the <code>importToWorkspace</code> property is true, in which
+     * case it is directly persisted by the workspace.
+     *
+     * @return the source <code>MuleMessage</code>, with the number of imported nodes
+     *         in the <code>importedNodeCount</code> property.
+     */
+    private MuleMessage doImportSend(final MuleEvent event, final Session session) throws Exception
+    {
+        final MuleMessage message = event.getMessage();
+
+        final Item targetItem = JcrNodeUtils.getTargetItem(session, endpoint, event, true);
+
+        if ((targetItem == null) || (!targetItem.isNode()))
+        {
+            throw new DispatchException(JcrMessages.noNodeFor("Endpoint URI: "
+                                                              + endpoint.getEndpointURI().toString()
+                                                              + " ; NodeUUID: "
+                                                              + JcrNodeUtils.getNodeUUID(event)), event, null);
+        }
+
+        final String parentPath = targetItem.getPath();
+
+        final int uuidBehavior = JcrXmlUtils.getImportUuidBehavior((String) message.findPropertyInAnyScope(
+            JcrConnector.JCR_IMPORT_UUID_BEHAVIOR_PROPERTY, null));
+
+        final boolean toWorkspace = Boolean.valueOf(String.valueOf(message.findPropertyInAnyScope(
+            JcrConnector.JCR_IMPORT_TO_WORKSPACE_PROPERTY, "false")));
+
+        long importedNodeCount;
+
+        if (toWorkspace)
+        {
+            importedNodeCount = JcrXmlUtils.importXml(message.getPayload(), session.getWorkspace()
+                .getImportContentHandler(parentPath, uuidBehavior));
+        }
+        else
+        {
+            importedNodeCount = JcrXmlUtils.importXml(message.getPayload(), session.getImportContentHandler(
+                parentPath, uuidBehavior));
+
+            session.save();
+        }
+
+        invalidateCachedItems(parentPath);
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Imported " + importedNodeCount + " nodes under: " + parentPath);
+        }
+
+        message.setProperty(JcrConnector.JCR_IMPORTED_NODE_COUNT, Long.valueOf(importedNodeCount),
+            PropertyScope.INVOCATION);
+
+        return setItemPath(message, parentPath);
+    }
+
+    private NodeTypeHandler getCreationHandler(final Node targetParentNode, final String nodeTypeName)
+        throws RepositoryException
+    {
+        NodeTypeHandler nodeTypeHandler;
+
+        if (StringUtils.isNotBlank(nodeTypeName))
+        {
+            nodeTypeHandler = jcrConnector.getNodeTypeHandlerManager().getNodeTypeHandler(nodeTypeName);
+        }
+        else
+        {
+            nodeTypeHandler = jcrConnector.getNodeTypeHandlerManager().getChildNodeTypeHandler(
+                targetParentNode);
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Selected node type handler: " + nodeTypeHandler + " for node: "
+                         + targetParentNode.getPath());
+        }
+
+        return nodeTypeHandler;
+    }
+
+    private static boolean isBatchCreate(final MuleEvent event)
+    {
+        final MuleMessage message = event.getMessage();
+
+        return (message.getPayload() instanceof Collection<?>)
+               && Boolean.valueOf(String.valueOf(message.findPropertyInAnyScope(
+                   JcrConnector.JCR_BATCH_CREATE_PROPERTY, "false")));
+    }
+
+    private static boolean isImportXml(final MuleEvent event)
+    {
+        return Boolean.valueOf(String.valueOf(event.getMessage().findPropertyInAnyScope(
+            JcrConnector.JCR_IMPORT_XML_PROPERTY, "false")));
+    }
+
+    private static int getBatchSaveInterval(final MuleMessage message)
+    {
+        final Object saveInterval = message.findPropertyInAnyScope(
+            JcrConnector.JCR_BATCH_SAVE_INTERVAL_PROPERTY, null);
+
+        return saveInterval != null ? Integer.parseInt(saveInterval.toString().trim()) : 0;
+    }
 }
@@ -10,6 +10,10 @@
 
 package org.mule.transport.jcr;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -34,6 +38,10 @@ import org.mule.transport.AbstractMessageReceiver;
 import org.mule.transport.ConnectException;
 import org.mule.transport.jcr.config.JcrNamespaceHandler;
 import org.mule.transport.jcr.i18n.JcrMessages;
+import org.mule.transport.jcr.support.JcrChangeScanner;
+import org.mule.transport.jcr.support.JcrEventCoalescer;
+import org.mule.transport.jcr.support.JcrEventHandOff;
+import org.mule.transport.jcr.support.JcrEventJournal;
 
 /**
  * Registers a JCR <code>javax.jcr.observation.EventListener</code> to the
@@ -65,12 +73,37 @@ public final class JcrMessageReceiver extends AbstractMessageReceiver implements
 
     private Session receiverSession;
 
+    private volatile JcrEventHandOff eventHandOff;
+
+    private volatile JcrEventCoalescer eventCoalescer;
+
+    private volatile JcrEventJournal eventJournal;
+
+    private volatile JcrChangeScanner changeScanner;
+
+    // live events received while catching up, guarded by the catch-up lock
+    private List<JcrEventBatch> catchUpBuffer;
+
+    private final Object catchUpLock = new Object();
+
+    private volatile JcrMessageReceiverContext receiverContext;
+
     private static final AtomicReference<JcrMessageReceiverContext> jcrMessageReceiverContext = new AtomicReference<JcrMessageReceiverContext>();
 
+    /**
+     * @deprecated the context is now carried by the <code>JcrEventBatch</code>
+     *             routed by each receiver: this shared context is only used as a
+     *             fallback for event iterators that do not carry any.
+     */
+    @Deprecated
     public static JcrMessageReceiverContext getJcrMessageReceiverContext() {
         return jcrMessageReceiverContext.get();
     }
 
+    /**
+     * @deprecated see {@link #getJcrMessageReceiverContext()}
+     */
+    @Deprecated
     public static void setJcrMessageReceiverContext(final JcrMessageReceiverContext context) {
         jcrMessageReceiverContext.set(context);
     }
@@ -139,10 +172,17 @@ public final class JcrMessageReceiver extends AbstractMessageReceiver implements
         }
 
         try {
-            receiverSession = jcrConnector.newSession();
-            observationManager = receiverSession.getWorkspace().getObservationManager();
+            // the session of the shared listener is private to the multiplexer, so
+            // receivers sharing it read event content with the reader session of
+            // the connector, while the others observe with a session of their own
+            if (jcrConnector.isSharedObservationEnabled()) {
+                receiverSession = jcrConnector.getSharedReaderSession();
+            } else {
+                receiverSession = jcrConnector.newSession();
+                observationManager = receiverSession.getWorkspace().getObservationManager();
+            }
 
-            setJcrMessageReceiverContext(new JcrMessageReceiverContext() {
+            receiverContext = new JcrMessageReceiverContext() {
                 public JcrContentPayloadType getContentPayloadType() {
                     return contentPayloadType;
                 }
@@ -150,7 +190,11 @@ public final class JcrMessageReceiver extends AbstractMessageReceiver implements
                 public Session getObservingSession() {
                     return receiverSession;
                 }
-            });
+
+                public JcrConnector getConnector() {
+                    return jcrConnector;
+                }
+            };
 
         } catch (final Exception e) {
             throw new ConnectException(JcrMessages.canNotGetObservationManager(jcrConnector.getWorkspaceName()), e, this);
@@ -159,10 +203,76 @@ public final class JcrMessageReceiver extends AbstractMessageReceiver implements
 
     @Override
     public void doStart() throws MuleException {
+        final String workerName = (jcrConnector.getName() + absPath).replaceAll("[^A-Za-z0-9._-]", "_");
+
+        final JcrEventHandOff.EventBatchProcessor router = new JcrEventHandOff.EventBatchProcessor() {
+            public void process(final JcrEventBatch eventBatch) throws Exception {
+                routeEventBatch(eventBatch);
+            }
+        };
+
+        final List<JcrEventBatch> replayedBatches;
+
+        if (jcrConnector.isEventJournalEnabled()) {
+            eventJournal = new JcrEventJournal(workerName, new File(new File(jcrConnector.getMuleContext().getConfiguration()
+                    .getWorkingDirectory(), "jcr-journal"), workerName), jcrConnector.getEventJournalSegmentSize(),
+                    JcrEventJournal.SyncPolicy.valueOf(jcrConnector.getEventJournalSyncPolicy()), jcrConnector
+                            .getEventJournalSyncInterval());
+
+            try {
+                replayedBatches = eventJournal.open();
+            } catch (final IOException ioe) {
+                eventJournal = null;
+                throw new LifecycleException(ioe, this);
+            }
+        } else {
+            replayedBatches = Collections.emptyList();
+        }
+
+        if (jcrConnector.isEventHandOffEnabled()) {
+            eventHandOff = new JcrEventHandOff(workerName, router, jcrConnector.getEventQueueCapacity(), jcrConnector.getEventWorkers(),
+                    JcrEventHandOff.OverflowPolicy.valueOf(jcrConnector.getEventQueueOverflowPolicy()), new File(jcrConnector
+                            .getMuleContext().getConfiguration().getWorkingDirectory(), "jcr-events"));
+
+            eventHandOff.start();
+        }
+
+        if (jcrConnector.getEventCoalescingWindow() > 0L) {
+            final JcrEventHandOff coalescedEventHandOff = eventHandOff;
+
+            eventCoalescer = new JcrEventCoalescer(workerName, jcrConnector.getEventCoalescingWindow(),
+                    coalescedEventHandOff == null ? router : new JcrEventHandOff.EventBatchProcessor() {
+                        public void process(final JcrEventBatch eventBatch) throws Exception {
+                            coalescedEventHandOff.handOff(eventBatch);
+                        }
+                    });
+
+            eventCoalescer.start();
+        }
+
+        // events received but not processed before the last stop are replayed
+        // before new ones
+        for (final JcrEventBatch replayedBatch : replayedBatches) {
+            dispatch(replayedBatch);
+        }
+
+        if (jcrConnector.isCatchUpEnabled()) {
+            // the listener is subscribed before the scan, so no change is missed
+            // in between: live events are held until the scan is over
+            synchronized (catchUpLock) {
+                catchUpBuffer = new ArrayList<JcrEventBatch>();
+            }
+        }
+
         try {
-            observationManager.addEventListener(this, eventTypes.intValue(), absPath, deep.booleanValue(), uuids == null ? null
-                    : (String[]) uuids.toArray(EMPTY_STRING_ARRAY),
-                    nodeTypeNames == null ? null : (String[]) nodeTypeNames.toArray(EMPTY_STRING_ARRAY), noLocal.booleanValue());
+            if (jcrConnector.isSharedObservationEnabled()) {
+                jcrConnector.getObservationMultiplexer().subscribe(this, eventTypes.intValue(), absPath, deep.booleanValue(),
+                        uuids, nodeTypeNames);
+            } else {
+                observationManager.addEventListener(this, eventTypes.intValue(), absPath, deep.booleanValue(), uuids == null ? null
+                        : (String[]) uuids.toArray(EMPTY_STRING_ARRAY), nodeTypeNames == null ? null : (String[]) nodeTypeNames
+                        .toArray(EMPTY_STRING_ARRAY), noLocal.booleanValue());
+            }
 
             if (logger.isInfoEnabled()) {
                 logger.info("Observing JCR for events of types: " + eventTypes + " - at: " + absPath + " - deep: " + deep + " - uuid: "
@@ -171,25 +281,91 @@ public final class JcrMessageReceiver extends AbstractMessageReceiver implements
             }
 
         } catch (final RepositoryException re) {
+            synchronized (catchUpLock) {
+                catchUpBuffer = null;
+            }
+
             throw new LifecycleException(re, this);
         }
+
+        if (jcrConnector.isCatchUpEnabled()) {
+            catchUp(workerName);
+        }
     }
 
     @Override
     public void doStop() throws MuleException {
         try {
-            observationManager.removeEventListener(this);
+            unsubscribe();
         } catch (final RepositoryException re) {
             throw new LifecycleException(re, this);
+        } finally {
+            final JcrEventCoalescer stoppedEventCoalescer = eventCoalescer;
+            eventCoalescer = null;
+
+            if (stoppedEventCoalescer != null) {
+                // pending nodes are emitted before the receiver stops
+                stoppedEventCoalescer.stop();
+
+                if (logger.isInfoEnabled()) {
+                    logger.info("Stopped: " + stoppedEventCoalescer);
+                }
+            }
+
+            final JcrEventHandOff stoppedEventHandOff = eventHandOff;
+            eventHandOff = null;
+
+            if (stoppedEventHandOff != null) {
+                // queued events are processed before the receiver stops
+                stoppedEventHandOff.stop();
+
+                if (logger.isInfoEnabled()) {
+                    logger.info("Stopped: " + stoppedEventHandOff);
+                }
+            }
+
+            final JcrChangeScanner stoppedChangeScanner = changeScanner;
+            changeScanner = null;
+
+            if (stoppedChangeScanner != null) {
+                try {
+                    stoppedChangeScanner.save();
+                } catch (final IOException ioe) {
+                    logger.error("Can not save the watermark of: " + stoppedChangeScanner, ioe);
+                }
+            }
+
+            final JcrEventJournal closedEventJournal = eventJournal;
+            eventJournal = null;
+
+            if (closedEventJournal != null) {
+                closedEventJournal.close();
+
+                if (logger.isInfoEnabled()) {
+                    logger.info("Closed: " + closedEventJournal);
+                }
+            }
         }
 
     }
 
+    private void unsubscribe() throws RepositoryException {
+        if (jcrConnector.isSharedObservationEnabled()) {
+            jcrConnector.getObservationMultiplexer().unsubscribe(this);
+        } else {
+            observationManager.removeEventListener(this);
+        }
+    }
+
     @Override
     public void doDisconnect() throws ConnectException {
-        jcrConnector.terminateSession(receiverSession);
+        // the shared reader session is terminated by the connector
+        if (!jcrConnector.isSharedObservationEnabled()) {
+            jcrConnector.terminateSession(receiverSession);
+        }
 
         receiverSession = null;
+        receiverContext = null;
     }
 
     @Override
@@ -202,14 +378,222 @@ public final class JcrMessageReceiver extends AbstractMessageReceiver implements
             logger.debug("JCR events received");
         }
 
+        final JcrEventBatch eventBatch;
+
+        try {
+            eventBatch = JcrEventBatch.detach(eventIterator);
+        } catch (final RepositoryException re) {
+            logger.error("Can not detach JCR events", re);
+            return;
+        }
+
+        synchronized (catchUpLock) {
+            if (catchUpBuffer != null) {
+                // the watermark must not move before the catch-up scan is over
+                catchUpBuffer.add(eventBatch);
+                return;
+            }
+        }
+
+        receiveLive(eventBatch);
+    }
+
+    private void receiveLive(final JcrEventBatch eventBatch) {
+        final JcrChangeScanner currentChangeScanner = changeScanner;
+
+        if (currentChangeScanner != null) {
+            // live events move the watermark the next catch-up will start from
+            currentChangeScanner.advance(eventBatch.getCreationTime());
+        }
+
+        receive(eventBatch);
+    }
+
+    private void receive(final JcrEventBatch eventBatch) {
+        final JcrEventJournal currentEventJournal = eventJournal;
+
+        if (currentEventJournal != null) {
+            try {
+                currentEventJournal.append(eventBatch);
+            } catch (final IOException ioe) {
+                logger.error("Can not journal JCR events: " + eventBatch.getEvents(), ioe);
+            }
+        }
+
+        dispatch(eventBatch);
+    }
+
+    /**
+     * Emits the changes that happened while the receiver was stopped, found by a
+     * query from the persisted watermark, then the live events received during the
+     * scan, except those reporting changes it has already emitted.
+     */
+    private void catchUp(final String workerName) throws MuleException {
+        final JcrChangeScanner catchUpScanner = new JcrChangeScanner(absPath, deep.booleanValue(), eventTypes.intValue(),
+                jcrConnector.getCatchUpPageSize(), jcrConnector.getCatchUpOverlap(), new File(new File(jcrConnector
+                        .getMuleContext().getConfiguration().getWorkingDirectory(), "jcr-watermarks"), workerName
+                        + ".properties"));
+
+        Session scanSession = null;
+
+        try {
+            catchUpScanner.load();
+
+            // the receiver session may already be reading the content of the
+            // scanned changes in other threads
+            scanSession = jcrConnector.newSession();
+
+            final int caughtUpChanges = catchUpScanner.scan(scanSession, new JcrEventHandOff.EventBatchProcessor() {
+                public void process(final JcrEventBatch eventBatch) throws Exception {
+                    receive(eventBatch);
+                }
+            });
+
+            changeScanner = catchUpScanner;
+            releaseCatchUpBuffer(catchUpScanner);
+            catchUpScanner.save();
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Caught up " + caughtUpChanges + " JCR change(s) with: " + catchUpScanner);
+            }
+
+        } catch (final Exception e) {
+            changeScanner = null;
+
+            synchronized (catchUpLock) {
+                catchUpBuffer = null;
+            }
+
+            try {
+                unsubscribe();
+            } catch (final RepositoryException re) {
+                logger.warn("Can not stop observing JCR after a failed catch-up", re);
+            }
+
+            throw new LifecycleException(e, this);
+        } finally {
+            jcrConnector.terminateSession(scanSession);
+        }
+    }
+
+    /**
+     * Routes the live events held during the catch-up scan, in order, and lets new
+     * events through: the lock is held meanwhile so no live event can overtake
+     * them.
+     */
+    private void releaseCatchUpBuffer(final JcrChangeScanner catchUpScanner) {
+        synchronized (catchUpLock) {
+            for (final JcrEventBatch bufferedBatch : catchUpBuffer) {
+                final List<JcrMessage> liveEvents = new ArrayList<JcrMessage>();
+
+                for (final JcrMessage event : bufferedBatch.getEvents()) {
+                    if (!catchUpScanner.isEmitted(event, bufferedBatch.getCreationTime())) {
+                        liveEvents.add(event);
+                    }
+                }
+
+                if (!liveEvents.isEmpty()) {
+                    receiveLive(new JcrEventBatch(liveEvents, bufferedBatch.getCreationTime()));
+                } else {
+                    catchUpScanner.advance(bufferedBatch.getCreationTime());
+                }
+            }
+
+            catchUpBuffer = null;
+        }
+    }
+
+    private void dispatch(final JcrEventBatch eventBatch) {
+        final JcrEventCoalescer currentEventCoalescer = eventCoalescer;
+
+        if (currentEventCoalescer != null) {
+            currentEventCoalescer.add(eventBatch);
+            return;
+        }
+
+        final JcrEventHandOff currentEventHandOff = eventHandOff;
+
+        if (currentEventHandOff != null) {
+            // the observation thread is released as soon as the events are queued
+            try {
+                currentEventHandOff.handOff(eventBatch);
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while handing off JCR events");
+            }
+
+            return;
+        }
+
         try {
-            routeMessage(new DefaultMuleMessage(eventIterator, jcrConnector.getMuleContext()));
+            routeEventBatch(eventBatch);
 
         } catch (final MuleException mue) {
-            throw new MuleRuntimeException(mue);
+            if (eventBatch.getJournalEntries() == null) {
+                throw new MuleRuntimeException(mue);
+            }
+
+            // the events stay in the journal, to be replayed on next start
+            logger.error("Can not route journaled JCR events: " + eventBatch.getEvents(), mue);
+        }
+    }
+
+    private void routeEventBatch(final JcrEventBatch eventBatch) throws MuleException {
+        // the context is bound to the batch so concurrent receivers, with their
+        // own sessions and payload types, do not share any static state
+        eventBatch.setReceiver(receiverContext, jcrConnector.getName(), getReceiverKey());
+        routeMessage(new DefaultMuleMessage(eventBatch, jcrConnector.getMuleContext()));
+
+        final JcrEventJournal currentEventJournal = eventJournal;
+
+        if (currentEventJournal != null) {
+            try {
+                currentEventJournal.acknowledge(eventBatch.getJournalEntries());
+            } catch (final IOException ioe) {
+                logger.error("Can not acknowledge journaled JCR events: " + eventBatch.getEvents(), ioe);
+            }
         }
     }
 
+    /**
+     * @return the context of this receiver, or null if it is not connected.
+     */
+    public JcrMessageReceiverContext getReceiverContext() {
+        return receiverContext;
+    }
+
+    /**
+     * @return the event hand-off of this receiver, which holds queue metrics, or
+     *         null if events are routed synchronously.
+     */
+    public JcrEventHandOff getEventHandOff() {
+        return eventHandOff;
+    }
+
+    /**
+     * @return the event journal of this receiver, or null if events are not
+     *         journaled.
+     */
+    public JcrEventJournal getEventJournal() {
+        return eventJournal;
+    }
+
+    /**
+     * @return the change scanner of this receiver, which holds its watermark, or
+     *         null if it does not catch up on start.
+     */
+    public JcrChangeScanner getChangeScanner() {
+        return changeScanner;
+    }
+
+    /**
+     * @return the event coalescer of this receiver, or null if events are not
+     *         coalesced.
+     */
+    public JcrEventCoalescer getEventCoalescer() {
+        return eventCoalescer;
+    }
+
     /**
      * @return the absPath
      */
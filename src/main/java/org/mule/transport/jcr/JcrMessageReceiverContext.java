@@ -23,4 +23,10 @@ public interface JcrMessageReceiverContext {
 
 	Session getObservingSession();
 
+	/**
+	 * @return the connector of the receiver, which can provide pooled sessions for
+	 *         fetching content, or null if not available.
+	 */
+	JcrConnector getConnector();
+
 }
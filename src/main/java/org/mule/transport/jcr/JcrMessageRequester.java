@@ -10,7 +10,16 @@
 
 package org.mule.transport.jcr;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
 import javax.jcr.Item;
+import javax.jcr.NodeIterator;
 import javax.jcr.Session;
 
 import org.mule.RequestContext;
@@ -22,9 +31,15 @@ import org.mule.api.transformer.Transformer;
 import org.mule.transport.AbstractMessageRequester;
 import org.mule.transport.jcr.filters.JcrNodeNameFilter;
 import org.mule.transport.jcr.filters.JcrPropertyNameFilter;
+import org.mule.transport.jcr.support.JcrItemCache;
 import org.mule.transport.jcr.support.JcrNodeUtils;
 import org.mule.transport.jcr.support.JcrPropertyUtils;
+import org.mule.transport.jcr.support.JcrQueryResultIterator;
+import org.mule.transport.jcr.support.JcrXmlUtils;
 import org.mule.transport.jcr.transformers.JcrItemToObject;
+import org.mule.util.IOUtils;
+import org.mule.util.StringUtils;
+import org.xml.sax.ContentHandler;
 
 /**
  * <code>JcrMessageRequester</code> is responsible for receiving messages from JCR
@@ -34,6 +49,18 @@ import org.mule.transport.jcr.transformers.JcrItemToObject;
  */
 public class JcrMessageRequester extends AbstractMessageRequester
 {
+    /**
+     * Value of the <code>exportView</code> property that selects system view XML.
+     */
+    public static final String EXPORT_VIEW_SYSTEM = "system";
+
+    /**
+     * Value of the <code>exportView</code> property that selects document view XML.
+     */
+    public static final String EXPORT_VIEW_DOCUMENT = "document";
+
+    private static final long STALL_CHECK_INTERVAL = 1000L;
+
     private final JcrConnector jcrConnector;
     private final String nodeNamePatternFilter;
     private final String propertyNamePatternFilter;
@@ -59,14 +86,20 @@ public class JcrMessageRequester extends AbstractMessageRequester
         propertyNamePatternFilter = JcrPropertyUtils.getPropertyNamePatternFilter(filter,
             JcrPropertyNameFilter.class);
 
-        receiveTransformer = new JcrItemToObject();
-        receiveTransformer.setMuleContext(jcrConnector.getMuleContext());
+        final JcrItemToObject itemToObject = new JcrItemToObject();
+        itemToObject.setMuleContext(jcrConnector.getMuleContext());
+        itemToObject.setValueCodec(jcrConnector.getValueCodec());
+        itemToObject.setPrimitiveArrayPayloads(jcrConnector.isPrimitiveArrayPayloads());
+        receiveTransformer = itemToObject;
     }
 
     @Override
     protected void doConnect() throws Exception
     {
-        requesterSession = jcrConnector.newSession();
+        if (!jcrConnector.isSessionPoolEnabled())
+        {
+            requesterSession = jcrConnector.newSession();
+        }
     }
 
     @Override
@@ -126,6 +159,23 @@ public class JcrMessageRequester extends AbstractMessageRequester
      * property values (for these values, the previous two rules will apply).</li>
      * </ul>
      * </p>
+     * <p>
+     * If the <code>exportView</code> event or endpoint property is set to
+     * <code>system</code> or <code>document</code>, the payload will instead be an
+     * <code>InputStream</code> of the subtree under the target node, exported as
+     * XML in the matching view, optionally limited by the <code>exportDepth</code>
+     * and <code>exportSkipBinary</code> properties.
+     * </p>
+     * <p>
+     * If the <code>queryAllResults</code> property is true, the payload will instead
+     * be a <code>JcrQueryResultIterator</code> over all the nodes selected by the
+     * query, optionally from <code>queryOffset</code> and up to
+     * <code>queryLimit</code>, returning <code>List</code>s of
+     * <code>queryPageSize</code> payloads or, if <code>querySplit</code> is true,
+     * each payload. This iterator holds a session until it is exhausted: it must be
+     * closed if it is not consumed to the end, otherwise it is closed once idle for
+     * longer than the <code>queryResultIdleTimeout</code> of the connector.
+     * </p>
      * 
      * @see org.mule.transport.jcr.JcrConnector Property names constants
      * @param ignoredTimeout ignored timeout parameter.
@@ -133,6 +183,26 @@ public class JcrMessageRequester extends AbstractMessageRequester
      */
     @Override
     protected MuleMessage doRequest(final long ignoredTimeout) throws Exception
+    {
+        if (!jcrConnector.isSessionPoolEnabled())
+        {
+            return doRequest(getSession());
+        }
+
+        // with pooling, the session is only held for the duration of the read
+        final Session session = jcrConnector.borrowSession();
+
+        try
+        {
+            return doRequest(session);
+        }
+        finally
+        {
+            jcrConnector.releaseSession(session);
+        }
+    }
+
+    private MuleMessage doRequest(final Session session) throws Exception
     {
         final MuleEvent event = RequestContext.getEvent();
 
@@ -148,8 +218,62 @@ public class JcrMessageRequester extends AbstractMessageRequester
             }
         }
 
-        final Item targetItem = JcrNodeUtils.getTargetItem(getSession(), endpoint, event, true);
+        if (Boolean.valueOf(getRequestProperty(event, JcrConnector.JCR_QUERY_ALL_RESULTS_PROPERTY)))
+        {
+            return jcrConnector.getMuleMessageFactory().create(queryAllResults(event),
+                getCurrentEncoding(event));
+        }
+
+        final String exportView = getRequestProperty(event, JcrConnector.JCR_EXPORT_VIEW_PROPERTY);
+
+        final JcrItemCache itemCache = jcrConnector.getItemCache();
+
+        final String cacheKey = (itemCache != null) && (StringUtils.isBlank(exportView))
+                                                                                        ? JcrItemCache.newKey(
+                                                                                            endpoint, event,
+                                                                                            nodeNamePatternFilter,
+                                                                                            propertyNamePatternFilter)
+                                                                                        : null;
+
+        long invalidationSequence = 0L;
+
+        if (cacheKey != null)
+        {
+            final Object cachedPayload = itemCache.get(cacheKey);
+
+            if (cachedPayload != null)
+            {
+                return jcrConnector.getMuleMessageFactory().create(cachedPayload, getCurrentEncoding(event));
+            }
+
+            invalidationSequence = itemCache.getInvalidationSequence();
+        }
+
+        final Item targetItem = JcrNodeUtils.getTargetItem(session, endpoint, event, true);
+
+        if (StringUtils.isNotBlank(exportView))
+        {
+            final Object payload = ((targetItem != null) && (targetItem.isNode()))
+                                                                                  ? exportSubtree(
+                                                                                      targetItem.getPath(),
+                                                                                      exportView, event)
+                                                                                  : null;
+
+            return jcrConnector.getMuleMessageFactory().create(payload, getCurrentEncoding(event));
+        }
+
+        final Object payload = getPayload(targetItem);
+
+        if ((cacheKey != null) && (targetItem != null))
+        {
+            itemCache.put(cacheKey, targetItem.getPath(), payload, invalidationSequence);
+        }
 
+        return jcrConnector.getMuleMessageFactory().create(payload, getCurrentEncoding(event));
+    }
+
+    private Object getPayload(final Item targetItem) throws Exception
+    {
         Object rawJcrContent = null;
 
         if (targetItem != null)
@@ -165,8 +289,271 @@ public class JcrMessageRequester extends AbstractMessageRequester
             }
         }
 
-        final Object payload = rawJcrContent == null ? null : receiveTransformer.transform(rawJcrContent);
-        return jcrConnector.getMuleMessageFactory().create(payload, getCurrentEncoding(event));
+        return rawJcrContent == null ? null : receiveTransformer.transform(rawJcrContent);
+    }
+
+    /**
+     * Executes the query of the event in a session of its own and returns an
+     * iterator that lazily builds the payloads of all the selected nodes, from the
+     * optional offset and up to the optional limit, either one by one or by lists
+     * of the page size. The session is released when the iterator is exhausted or
+     * closed.
+     */
+    private JcrQueryResultIterator queryAllResults(final MuleEvent event) throws Exception
+    {
+        final long offset = getLongRequestProperty(event, JcrConnector.JCR_QUERY_OFFSET_PROPERTY, 0L);
+        final long limit = getLongRequestProperty(event, JcrConnector.JCR_QUERY_LIMIT_PROPERTY, -1L);
+        final int pageSize = (int) getLongRequestProperty(event, JcrConnector.JCR_QUERY_PAGE_SIZE_PROPERTY,
+            jcrConnector.getQueryPageSize());
+        final boolean split = Boolean.valueOf(getRequestProperty(event, JcrConnector.JCR_QUERY_SPLIT_PROPERTY));
+
+        final String nodeRelPath = JcrNodeUtils.getNodeRelPath(event);
+        final String propertyRelPath = JcrPropertyUtils.getPropertyRelPath(event);
+
+        final Session querySession = jcrConnector.borrowSession();
+
+        try
+        {
+            final NodeIterator nodes = JcrNodeUtils.executeQuery(querySession, endpoint, event);
+
+            if (nodes == null)
+            {
+                throw new IllegalArgumentException("The " + JcrConnector.JCR_QUERY_ALL_RESULTS_PROPERTY
+                                                   + " property requires a "
+                                                   + JcrConnector.JCR_QUERY_STATEMENT_PROPERTY + " property");
+            }
+
+            final JcrQueryResultIterator queryResult = new JcrQueryResultIterator(nodes, offset, limit, pageSize,
+                split,
+                new JcrQueryResultIterator.PayloadFactory()
+                {
+                    public Object newPayload(final Item item) throws Exception
+                    {
+                        return getPayload(JcrNodeUtils.getRelativeTargetItem(item, nodeRelPath, propertyRelPath));
+                    }
+                }, new Runnable()
+                {
+                    public void run()
+                    {
+                        jcrConnector.releaseSession(querySession);
+                    }
+                });
+
+            jcrConnector.trackQueryResult(queryResult);
+            return queryResult;
+        }
+        catch (final Exception e)
+        {
+            jcrConnector.releaseSession(querySession);
+            throw e;
+        }
+    }
+
+    private long getLongRequestProperty(final MuleEvent event, final String propertyName, final long defaultValue)
+    {
+        final String value = getRequestProperty(event, propertyName);
+        return StringUtils.isNotBlank(value) ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    /**
+     * Streams the subtree under a node as system or document view XML. The export
+     * runs in its own session on a streaming thread of the connector, writing to a
+     * pipe that is consumed as the returned payload, so the subtree is never held
+     * in memory. If the payload is not read for longer than the export write
+     * timeout of the connector, the export is aborted and reading the payload then
+     * fails.
+     */
+    private InputStream exportSubtree(final String nodePath, final String exportView, final MuleEvent event)
+        throws Exception
+    {
+        final boolean documentView = EXPORT_VIEW_DOCUMENT.equals(exportView);
+
+        if ((!documentView) && (!EXPORT_VIEW_SYSTEM.equals(exportView)))
+        {
+            throw new IllegalArgumentException("Unsupported export view: " + exportView + " (expected: "
+                                               + EXPORT_VIEW_SYSTEM + " or " + EXPORT_VIEW_DOCUMENT + ")");
+        }
+
+        final String depthProperty = getRequestProperty(event, JcrConnector.JCR_EXPORT_DEPTH_PROPERTY);
+        final int depth = StringUtils.isNotBlank(depthProperty) ? Integer.parseInt(depthProperty.trim()) : -1;
+
+        final boolean skipBinary = Boolean.valueOf(getRequestProperty(event,
+            JcrConnector.JCR_EXPORT_SKIP_BINARY_PROPERTY));
+
+        final ExportInputStream exportInputStream = new ExportInputStream(jcrConnector.getStreamingBufferSize());
+        final OutputStream exportOutputStream = new StallGuardOutputStream(new PipedOutputStream(
+            exportInputStream), exportInputStream, jcrConnector.getExportWriteTimeout());
+
+        jcrConnector.submitStreamingTask(new Runnable()
+        {
+            public void run()
+            {
+                Session exportSession = null;
+
+                try
+                {
+                    exportSession = jcrConnector.borrowSession();
+
+                    // a depth of zero is natively supported by not recursing
+                    final ContentHandler xmlWriter = JcrXmlUtils.newXmlWriter(exportOutputStream, depth > 0
+                                                                                                            ? depth
+                                                                                                            : -1);
+
+                    if (documentView)
+                    {
+                        exportSession.exportDocumentView(nodePath, xmlWriter, skipBinary, depth == 0);
+                    }
+                    else
+                    {
+                        exportSession.exportSystemView(nodePath, xmlWriter, skipBinary, depth == 0);
+                    }
+                }
+                catch (final Exception e)
+                {
+                    logger.error("Can not export subtree of: " + nodePath, e);
+                    exportInputStream.setFailure(e);
+                }
+                finally
+                {
+                    jcrConnector.releaseSession(exportSession);
+                    IOUtils.closeQuietly(exportOutputStream);
+                }
+            }
+        });
+
+        return exportInputStream;
+    }
+
+    private String getRequestProperty(final MuleEvent event, final String propertyName)
+    {
+        Object value = event != null ? event.getMessage().findPropertyInAnyScope(propertyName, null) : null;
+
+        if (value == null)
+        {
+            value = endpoint.getProperty(propertyName);
+        }
+
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * A pipe end that fails, instead of just ending, if the export feeding it
+     * failed.
+     */
+    private static final class ExportInputStream extends PipedInputStream
+    {
+        private volatile Exception failure;
+
+        ExportInputStream(final int pipeSize)
+        {
+            super(pipeSize);
+        }
+
+        void setFailure(final Exception failure)
+        {
+            this.failure = failure;
+        }
+
+        /**
+         * Waits until the pipe has room for at least one byte, so writing no more
+         * than the returned number of bytes never blocks.
+         *
+         * @throws IOException if no room has been made for the write timeout.
+         */
+        synchronized int awaitSpace(final long writeTimeout) throws IOException
+        {
+            final long deadline = System.currentTimeMillis() + writeTimeout;
+            int space;
+
+            while ((space = buffer.length - available()) == 0)
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0L)
+                {
+                    throw new IOException("The exported subtree has not been read for " + writeTimeout
+                                          + "ms: aborting the export");
+                }
+
+                try
+                {
+                    notifyAll();
+                    wait(Math.min(remaining, STALL_CHECK_INTERVAL));
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the export to be read");
+                }
+            }
+
+            return space;
+        }
+
+        @Override
+        public synchronized int read() throws IOException
+        {
+            return checkFailure(super.read());
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            return checkFailure(super.read(b, off, len));
+        }
+
+        private int checkFailure(final int result) throws IOException
+        {
+            if ((result == -1) && (failure != null))
+            {
+                final IOException ioe = new IOException("Subtree export failed");
+                ioe.initCause(failure);
+                throw ioe;
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Only writes what the pipe can take without blocking, so an export whose
+     * stream is never read or closed fails after the write timeout instead of
+     * holding its streaming thread and its session forever.
+     */
+    private static final class StallGuardOutputStream extends FilterOutputStream
+    {
+        private final ExportInputStream exportInputStream;
+
+        private final long writeTimeout;
+
+        StallGuardOutputStream(final OutputStream out,
+                               final ExportInputStream exportInputStream,
+                               final long writeTimeout)
+        {
+            super(out);
+            this.exportInputStream = exportInputStream;
+            this.writeTimeout = writeTimeout;
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            exportInputStream.awaitSpace(writeTimeout);
+            out.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            int written = 0;
+
+            while (written < len)
+            {
+                final int chunk = Math.min(len - written, exportInputStream.awaitSpace(writeTimeout));
+                out.write(b, off + written, chunk);
+                written += chunk;
+            }
+        }
     }
 
     private String getCurrentEncoding(final MuleEvent event)
@@ -0,0 +1,303 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Session;
+
+import org.apache.commons.beanutils.converters.BooleanConverter;
+import org.apache.commons.beanutils.converters.IntegerConverter;
+import org.mule.DefaultMuleMessage;
+import org.mule.api.MuleException;
+import org.mule.api.construct.FlowConstruct;
+import org.mule.api.endpoint.InboundEndpoint;
+import org.mule.api.lifecycle.CreateException;
+import org.mule.api.lifecycle.LifecycleException;
+import org.mule.api.transport.Connector;
+import org.mule.transport.AbstractMessageReceiver;
+import org.mule.transport.ConnectException;
+import org.mule.transport.jcr.support.JcrChangeScanner;
+import org.mule.transport.jcr.support.JcrEventHandOff;
+import org.mule.util.concurrent.NamedThreadFactory;
+
+/**
+ * Polls a JCR repository for the nodes created or modified under a path, for
+ * repositories that do not support observation. Each poll queries the changes
+ * since the last one and routes them, by pages, as batches of
+ * <code>JcrMessage</code> shaped like observation events. The polling interval
+ * shrinks towards the configured one while changes are found, and grows towards
+ * the configured maximum while none are.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public final class JcrPollingMessageReceiver extends AbstractMessageReceiver {
+
+    private final JcrConnector jcrConnector;
+
+    private final Integer eventTypes;
+
+    private final String absPath;
+
+    private final Boolean deep;
+
+    private final JcrContentPayloadType contentPayloadType;
+
+    private Session receiverSession;
+
+    private Session scanSession;
+
+    private volatile JcrMessageReceiverContext receiverContext;
+
+    private volatile JcrChangeScanner changeScanner;
+
+    private volatile ScheduledExecutorService poller;
+
+    private volatile long currentPollingInterval;
+
+    public JcrPollingMessageReceiver(final Connector connector, final FlowConstruct flowConstruct, final InboundEndpoint endpoint)
+            throws CreateException {
+
+        super(connector, flowConstruct, endpoint);
+
+        jcrConnector = (JcrConnector) getConnector();
+
+        absPath = endpoint.getEndpointURI().getAddress();
+
+        eventTypes = (Integer) new IntegerConverter(jcrConnector.getEventTypes()).convert(Integer.class,
+                endpoint.getProperty(JcrConnector.JCR_EVENT_TYPES_PROPERTY));
+
+        deep = (Boolean) new BooleanConverter(jcrConnector.isDeep()).convert(Boolean.class,
+                endpoint.getProperty(JcrConnector.JCR_DEEP_PROPERTY));
+
+        String contentPayloadTypeProperty = (String) endpoint.getProperty(JcrConnector.JCR_CONTENT_PAYLOAD_TYPE_PROPERTY);
+
+        if (contentPayloadTypeProperty == null) {
+            contentPayloadTypeProperty = jcrConnector.getContentPayloadType();
+        }
+
+        try {
+            contentPayloadType = JcrContentPayloadType.fromString(contentPayloadTypeProperty);
+
+        } catch (final IllegalArgumentException iae) {
+            throw new CreateException(iae, this);
+        }
+    }
+
+    @Override
+    public void doConnect() throws ConnectException {
+        try {
+            receiverSession = jcrConnector.newSession();
+
+            // the receiver session is read by the flow threads transforming the
+            // routed batches, so the poll thread scans with its own session
+            scanSession = jcrConnector.newSession();
+
+        } catch (final Exception e) {
+            jcrConnector.terminateSession(receiverSession);
+            receiverSession = null;
+            throw new ConnectException(e, this);
+        }
+
+        receiverContext = new JcrMessageReceiverContext() {
+            public JcrContentPayloadType getContentPayloadType() {
+                return contentPayloadType;
+            }
+
+            public Session getObservingSession() {
+                return receiverSession;
+            }
+
+            public JcrConnector getConnector() {
+                return jcrConnector;
+            }
+        };
+    }
+
+    @Override
+    public void doStart() throws MuleException {
+        final String workerName = (jcrConnector.getName() + absPath).replaceAll("[^A-Za-z0-9._-]", "_");
+
+        changeScanner = new JcrChangeScanner(absPath, deep.booleanValue(), eventTypes.intValue(), jcrConnector
+                .getPollingPageSize(), jcrConnector.getCatchUpOverlap(), new File(new File(jcrConnector.getMuleContext()
+                .getConfiguration().getWorkingDirectory(), "jcr-watermarks"), workerName + ".properties"));
+
+        try {
+            changeScanner.load();
+        } catch (final IOException ioe) {
+            changeScanner = null;
+            throw new LifecycleException(ioe, this);
+        }
+
+        currentPollingInterval = jcrConnector.getPollingInterval();
+        poller = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(workerName + ".poller"));
+        schedulePoll(0L);
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Polling JCR for events of types: " + eventTypes + " - at: " + absPath + " - deep: " + deep
+                    + " - every: " + currentPollingInterval + "ms - contentPayloadType: " + contentPayloadType);
+        }
+    }
+
+    @Override
+    public void doStop() throws MuleException {
+        final ScheduledExecutorService stoppedPoller = poller;
+        poller = null;
+
+        if (stoppedPoller != null) {
+            // the poll in progress, if any, is allowed to complete
+            stoppedPoller.shutdown();
+
+            try {
+                stoppedPoller.awaitTermination(jcrConnector.getPollingMaxInterval(), TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final JcrChangeScanner stoppedChangeScanner = changeScanner;
+        changeScanner = null;
+
+        if (stoppedChangeScanner != null) {
+            try {
+                stoppedChangeScanner.save();
+            } catch (final IOException ioe) {
+                throw new LifecycleException(ioe, this);
+            }
+        }
+    }
+
+    @Override
+    public void doDisconnect() throws ConnectException {
+        jcrConnector.terminateSession(scanSession);
+        scanSession = null;
+        jcrConnector.terminateSession(receiverSession);
+        receiverSession = null;
+        receiverContext = null;
+    }
+
+    @Override
+    public void doDispose() {
+        // NOOP
+    }
+
+    /**
+     * Queries and routes the changes since the last poll, then schedules the next
+     * one after an interval adapted to the number of changes found.
+     */
+    void poll() {
+        final JcrChangeScanner currentChangeScanner = changeScanner;
+
+        if (currentChangeScanner == null) {
+            return;
+        }
+
+        int changes = 0;
+
+        try {
+            changes = currentChangeScanner.scan(scanSession, new JcrEventHandOff.EventBatchProcessor() {
+                public void process(final JcrEventBatch eventBatch) throws Exception {
+                    eventBatch.setReceiver(receiverContext, jcrConnector.getName(), getReceiverKey());
+                    routeMessage(new DefaultMuleMessage(eventBatch, jcrConnector.getMuleContext()));
+                }
+            });
+
+            if (changes > 0) {
+                currentChangeScanner.save();
+            }
+
+        } catch (final Exception e) {
+            logger.error("Can not poll JCR changes with: " + currentChangeScanner, e);
+        }
+
+        currentPollingInterval = getNextPollingInterval(currentPollingInterval, changes, jcrConnector.getPollingInterval(),
+                jcrConnector.getPollingMaxInterval());
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Polled " + changes + " JCR change(s), next poll in: " + currentPollingInterval + "ms");
+        }
+
+        schedulePoll(currentPollingInterval);
+    }
+
+    /**
+     * Halves the interval while changes are found, down to the minimum, and
+     * doubles it while none are, up to the maximum.
+     */
+    static long getNextPollingInterval(final long interval, final int changes, final long minInterval, final long maxInterval) {
+        if (changes > 0) {
+            return Math.max(minInterval, interval / 2L);
+        }
+
+        return Math.max(minInterval, Math.min(maxInterval, interval * 2L));
+    }
+
+    private void schedulePoll(final long delay) {
+        final ScheduledExecutorService currentPoller = poller;
+
+        if (currentPoller == null) {
+            return;
+        }
+
+        try {
+            currentPoller.schedule(new Runnable() {
+                public void run() {
+                    poll();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+
+        } catch (final RejectedExecutionException ree) {
+            // the receiver is stopping
+        }
+    }
+
+    /**
+     * @return the current polling interval, in milliseconds.
+     */
+    public long getCurrentPollingInterval() {
+        return currentPollingInterval;
+    }
+
+    /**
+     * @return the context of this receiver, or null if it is not connected.
+     */
+    public JcrMessageReceiverContext getReceiverContext() {
+        return receiverContext;
+    }
+
+    /**
+     * @return the change scanner of this receiver, which holds its watermark, or
+     *         null if it is not started.
+     */
+    public JcrChangeScanner getChangeScanner() {
+        return changeScanner;
+    }
+
+    /**
+     * @return the absPath
+     */
+    String getAbsPath() {
+        return absPath;
+    }
+
+    /**
+     * @return the contentPayloadType
+     */
+    JcrContentPayloadType getContentPayloadType() {
+        return contentPayloadType;
+    }
+
+}
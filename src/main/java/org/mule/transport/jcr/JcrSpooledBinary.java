@@ -0,0 +1,198 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.mule.transport.jcr.support.ByteBufferInputStream;
+import org.mule.transport.jcr.support.JcrBinarySpooler;
+import org.mule.util.IOUtils;
+
+/**
+ * A binary property value too large to be inlined in a <code>FULL</code> event
+ * payload, which has been spooled to a temporary file. The file is deleted when
+ * {@link #dispose()} is called or, at the latest, once the message that holds this
+ * object has been garbage collected. As serialized copies can outlive the file,
+ * they carry the bytes of the binary instead of a reference to the file.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public final class JcrSpooledBinary implements Serializable {
+
+    private static final long serialVersionUID = 5126581739064468921L;
+
+    private final String path;
+
+    private final File file;
+
+    private final long length;
+
+    private final byte[] inlinedData;
+
+    private transient JcrBinarySpooler spooler;
+
+    public JcrSpooledBinary(final String path, final File file, final long length, final JcrBinarySpooler spooler) {
+        this.path = path;
+        this.file = file;
+        this.length = length;
+        this.inlinedData = null;
+        this.spooler = spooler;
+    }
+
+    private JcrSpooledBinary(final String path, final byte[] inlinedData) {
+        this.path = path;
+        this.file = null;
+        this.length = inlinedData.length;
+        this.inlinedData = inlinedData;
+    }
+
+    /**
+     * Opens a stream on the spooled data, which is memory-mapped if its length
+     * allows it.
+     */
+    public InputStream openStream() throws IOException {
+        if (inlinedData != null) {
+            return new ByteArrayInputStream(inlinedData);
+        }
+
+        if (length > Integer.MAX_VALUE) {
+            return new FileInputStream(file);
+        }
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            // the mapping stays valid after the channel is closed
+            return new ByteBufferInputStream(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L,
+                    length));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Deletes the spooled file and releases its bytes from the spooler cap.
+     */
+    public void dispose() {
+        final JcrBinarySpooler currentSpooler = spooler;
+        spooler = null;
+
+        if (currentSpooler != null) {
+            currentSpooler.release(file);
+        }
+    }
+
+    /**
+     * @return the path of the binary property.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the spooled file, or null for a deserialized copy, which holds the
+     *         bytes of the binary instead.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the length of the binary.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof JcrSpooledBinary)) {
+            return false;
+        }
+
+        final JcrSpooledBinary other = (JcrSpooledBinary) obj;
+
+        return (length == other.length) && ObjectUtils.equals(path, other.path) && ObjectUtils.equals(file, other.file)
+                && Arrays.equals(inlinedData, other.inlinedData);
+    }
+
+    @Override
+    public int hashCode() {
+        return file != null ? file.hashCode() : Arrays.hashCode(inlinedData);
+    }
+
+    @Override
+    public String toString() {
+        return "JcrSpooledBinary[path=" + path + ", file=" + file + ", length=" + length + "]";
+    }
+
+    /**
+     * Replaces this binary with its bytes when serialized, as the spooled file is
+     * deleted once this object is disposed or collected, while serialized copies
+     * can be read much later, for example from a journal or a persistent queue.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        if (inlinedData != null) {
+            return new InlinedForm(path, inlinedData);
+        }
+
+        if (length > Integer.MAX_VALUE) {
+            throw new NotSerializableException("Spooled binary too large to be serialized: " + this);
+        }
+
+        InputStream data = null;
+
+        try {
+            data = openStream();
+            return new InlinedForm(path, IOUtils.toByteArray(data));
+        } catch (final IOException ioe) {
+            final NotSerializableException nse = new NotSerializableException("Can not read spooled binary: " + this);
+            nse.initCause(ioe);
+            throw nse;
+        } finally {
+            IOUtils.closeQuietly(data);
+        }
+    }
+
+    private static final class InlinedForm implements Serializable {
+
+        private static final long serialVersionUID = -2839170954426218213L;
+
+        private final String path;
+
+        private final byte[] data;
+
+        InlinedForm(final String path, final byte[] data) {
+            this.path = path;
+            this.data = data;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return new JcrSpooledBinary(path, data);
+        }
+    }
+
+}
@@ -16,6 +16,8 @@ import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.nodetype.NodeType;
 
+import org.mule.transport.jcr.support.JcrContentDigester;
+import org.mule.transport.jcr.support.JcrValueCodec;
 import org.mule.util.StringUtils;
 
 /**
@@ -27,6 +29,10 @@ public class NodeTypeHandlerManager {
 
     private final ConcurrentHashMap<String, NodeTypeHandler> registeredHandlers;
 
+    private volatile JcrContentDigester contentDigester;
+
+    private volatile JcrValueCodec valueCodec;
+
     public NodeTypeHandlerManager() {
         registeredHandlers = new ConcurrentHashMap<String, NodeTypeHandler>();
         registerHandler(new NtFileHandler());
@@ -120,4 +126,35 @@ public class NodeTypeHandlerManager {
         return handler;
     }
 
+    /**
+     * @return the digester that handlers use to skip the writes of unchanged binary contents, or null if they always
+     *         write them.
+     */
+    public JcrContentDigester getContentDigester() {
+        return contentDigester;
+    }
+
+    /**
+     * @param contentDigester
+     *            the contentDigester to set, or null to always write binary contents.
+     */
+    public void setContentDigester(final JcrContentDigester contentDigester) {
+        this.contentDigester = contentDigester;
+    }
+
+    /**
+     * @return the codec that handlers use for the values that have no JCR type, or null if they serialize them.
+     */
+    public JcrValueCodec getValueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * @param valueCodec
+     *            the valueCodec to set, or null to serialize the values that have no JCR type.
+     */
+    public void setValueCodec(final JcrValueCodec valueCodec) {
+        this.valueCodec = valueCodec;
+    }
+
 }
@@ -21,6 +21,8 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.mule.api.MuleMessage;
+import org.mule.transport.jcr.support.JcrContentDigester;
+import org.mule.transport.jcr.support.JcrPropertyUtils;
 
 /**
  * A handler for nt:resource types of nodes.
@@ -84,15 +86,11 @@ final class NtResourceHandler extends AbstractNodeTypeHandler
                                                + " can not be null for node type: " + getNodeTypeName());
         }
 
-        node.setProperty(JCR_MIME_TYPE_PROPERTY_NAME, mimeType);
-
-        InputStream binaryContent;
+        // files, paths, channels and buffers are streamed without being loaded in
+        // memory first
+        InputStream binaryContent = JcrPropertyUtils.openBinaryStream(data);
 
-        if (data instanceof InputStream)
-        {
-            binaryContent = (InputStream) data;
-        }
-        else
+        if (binaryContent == null)
         {
             try
             {
@@ -105,7 +103,39 @@ final class NtResourceHandler extends AbstractNodeTypeHandler
             }
         }
 
-        node.setProperty(JCR_DATA_PROPERTY_NAME, binaryContent);
+        final JcrContentDigester contentDigester = getNodeTypeManager().getContentDigester();
+        boolean contentChanged = true;
+
+        try
+        {
+            if (contentDigester == null)
+            {
+                node.setProperty(JCR_DATA_PROPERTY_NAME, binaryContent);
+            }
+            else
+            {
+                contentChanged = contentDigester.setIfChanged(session, node, JCR_DATA_PROPERTY_NAME,
+                    binaryContent);
+            }
+        }
+        finally
+        {
+            if (JcrPropertyUtils.isFileReference(data))
+            {
+                binaryContent.close();
+            }
+        }
+
+        if (!contentChanged)
+        {
+            // the content and its last modification date are left untouched, so
+            // only metadata that actually differs gets written
+            setPropertyIfChanged(node, JCR_MIME_TYPE_PROPERTY_NAME, mimeType);
+            setPropertyIfChanged(node, JCR_ENCODING_PROPERTY_NAME, encoding);
+            return;
+        }
+
+        node.setProperty(JCR_MIME_TYPE_PROPERTY_NAME, mimeType);
 
         // encoding is optional: do not set it, unless it has been specified as
         // a property
@@ -122,4 +152,14 @@ final class NtResourceHandler extends AbstractNodeTypeHandler
 
         node.setProperty(JCR_LAST_MODIFIED_PROPERTY_NAME, lastModified);
     }
+
+    private static void setPropertyIfChanged(final Node node, final String propertyName, final String value)
+        throws RepositoryException
+    {
+        if ((value != null)
+            && ((!node.hasProperty(propertyName)) || (!value.equals(node.getProperty(propertyName).getString()))))
+        {
+            node.setProperty(propertyName, value);
+        }
+    }
 }
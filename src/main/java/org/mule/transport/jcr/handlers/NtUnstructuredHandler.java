@@ -11,7 +11,7 @@
 package org.mule.transport.jcr.handlers;
 
 import java.io.IOException;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 
 import javax.jcr.Node;
@@ -19,7 +19,9 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.mule.api.MuleMessage;
+import org.mule.transport.jcr.JcrConnector;
 import org.mule.transport.jcr.support.JcrPropertyUtils;
+import org.mule.transport.jcr.support.JcrValueCodec;
 
 /**
  * A handler for nt:unstructured types of nodes.
@@ -37,27 +39,42 @@ final class NtUnstructuredHandler extends AbstractNodeTypeHandler {
 		// no children to create
 	}
 
+	/**
+	 * Stores the entries of a map payload as properties, or any other payload
+	 * in the jcr:data property. If the <code>deltaUpdate</code> event or
+	 * endpoint property is true, unchanged properties are not set, and if the
+	 * <code>removeAbsentProperties</code> one is true, the properties absent
+	 * from a map payload are removed.
+	 */
 	public void updateContent(final Session session, final Node node,
 			final MuleMessage message) throws RepositoryException, IOException {
 
-		node.setProperty(NtResourceHandler.JCR_DATA_PROPERTY_NAME, message
-				.getPayload().toString());
-
 		final Object payload = message.getPayload();
+		final boolean deltaUpdate = isEnabled(message,
+				JcrConnector.JCR_DELTA_UPDATE_PROPERTY);
+		final JcrValueCodec valueCodec = getNodeTypeManager().getValueCodec();
 
 		if (payload instanceof Map<?, ?>) {
 			@SuppressWarnings("unchecked")
 			final Map<String, ?> mapPayload = (Map<String, ?>) payload;
-			JcrPropertyUtils.storeProperties(session, node, mapPayload);
+			JcrPropertyUtils.storeProperties(session, node, mapPayload,
+					deltaUpdate, isEnabled(message,
+							JcrConnector.JCR_REMOVE_ABSENT_PROPERTIES_PROPERTY),
+					valueCodec);
 
-		} else if (payload instanceof Collection<?>) {
-			node.setProperty(NtResourceHandler.JCR_DATA_PROPERTY_NAME,
-					JcrPropertyUtils.newPropertyValues(session,
-							(Collection<?>) payload));
 		} else {
-			node.setProperty(NtResourceHandler.JCR_DATA_PROPERTY_NAME,
-					JcrPropertyUtils.newPropertyValue(session, payload));
+			// a collection or primitive array payload makes jcr:data multi-valued
+			JcrPropertyUtils.storeProperties(session, node, Collections
+					.singletonMap(NtResourceHandler.JCR_DATA_PROPERTY_NAME,
+							payload), deltaUpdate, false, valueCodec);
 		}
 
 	}
+
+	private static boolean isEnabled(final MuleMessage message,
+			final String propertyName) {
+
+		return Boolean.valueOf(String.valueOf(message.findPropertyInAnyScope(
+				propertyName, "false")));
+	}
 }
@@ -56,4 +56,17 @@ public class JcrMessages extends MessageFactory {
     public static Message notAnOutboundEndpoint(final ImmutableEndpoint endpoint) {
         return INSTANCE.createMessage(BUNDLE_PATH, 7, endpoint);
     }
+
+    public static Message unsupportedXmlPayload(final Class<?> clazz) {
+        return INSTANCE.createMessage(BUNDLE_PATH, 8, clazz);
+    }
+
+    public static Message groupCommitTimeout(final long timeout) {
+        // formatted as is, not as a localized number
+        return INSTANCE.createMessage(BUNDLE_PATH, 9, String.valueOf(timeout));
+    }
+
+    public static Message parallelFetchRequiresSessionPool() {
+        return INSTANCE.createMessage(BUNDLE_PATH, 10);
+    }
 }
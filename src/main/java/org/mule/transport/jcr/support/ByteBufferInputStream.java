@@ -0,0 +1,96 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+
+/**
+ * Reads the remaining bytes of a buffer, heap, direct or memory-mapped, without
+ * copying them to an intermediate array. The buffer is read through a duplicate,
+ * so its position is left untouched.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class ByteBufferInputStream extends InputStream
+{
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(final ByteBuffer buffer)
+    {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read()
+    {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length)
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+
+        if (!buffer.hasRemaining())
+        {
+            return -1;
+        }
+
+        final int readLength = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, readLength);
+        return readLength;
+    }
+
+    @Override
+    public long skip(final long length)
+    {
+        final int skippedLength = (int) Math.max(0L, Math.min(length, buffer.remaining()));
+        buffer.position(buffer.position() + skippedLength);
+        return skippedLength;
+    }
+
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(final int readLimit)
+    {
+        buffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() throws IOException
+    {
+        try
+        {
+            buffer.reset();
+        }
+        catch (final InvalidMarkException ime)
+        {
+            throw new IOException("The stream has not been marked");
+        }
+    }
+}
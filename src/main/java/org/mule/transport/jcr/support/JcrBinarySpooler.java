@@ -0,0 +1,299 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.transport.jcr.JcrSpooledBinary;
+
+/**
+ * Spools the binaries of <code>FULL</code> event payloads that are larger than an
+ * inline threshold to temporary files, within a global cap of spooled bytes. Each
+ * file is tracked until its <code>JcrSpooledBinary</code> is disposed or garbage
+ * collected, at which point it is deleted and its bytes are released.
+ * <p>
+ * As event messages can be processed asynchronously, the receiver does not know
+ * when their processing ends: unless a flow disposes them, spooled binaries are
+ * only deleted once garbage collected, not when the routing of their message
+ * completes. The files still tracked when the spooler stops may belong to
+ * messages in flight, so they are only deleted when the JVM exits.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrBinarySpooler
+{
+    private static final Log LOG = LogFactory.getLog(JcrBinarySpooler.class);
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final File directory;
+
+    private final long inlineThreshold;
+
+    private final long maxSpooledBytes;
+
+    private final ReferenceQueue<JcrSpooledBinary> collectedBinaries = new ReferenceQueue<JcrSpooledBinary>();
+
+    private final Map<File, SpooledFile> spooledFiles = new ConcurrentHashMap<File, SpooledFile>();
+
+    private final AtomicLong spooledBytes = new AtomicLong();
+
+    private final AtomicLong spooledCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param maxSpooledBytes the maximum number of bytes spooled at any time, 0 for
+     *            no limit.
+     */
+    public JcrBinarySpooler(final File directory, final long inlineThreshold, final long maxSpooledBytes)
+    {
+        this.directory = directory;
+        this.inlineThreshold = inlineThreshold;
+        this.maxSpooledBytes = maxSpooledBytes;
+    }
+
+    /**
+     * @return true if a binary of this length must be spooled instead of inlined.
+     */
+    public boolean isSpooled(final long length)
+    {
+        return (length < 0) || (length > inlineThreshold);
+    }
+
+    /**
+     * Copies a binary to a temporary file. The bytes of a binary longer than
+     * reported, or of unknown length, are reserved while they are copied, so the
+     * cap is never exceeded.
+     *
+     * @return the spooled binary, or null if spooling it would exceed the cap of
+     *         spooled bytes, in which case the data has been partially read.
+     */
+    public JcrSpooledBinary spool(final String path, final InputStream data, final long length) throws IOException
+    {
+        deleteCollectedFiles();
+
+        long reservedBytes = Math.max(0L, length);
+
+        if (!reserve(reservedBytes))
+        {
+            rejectedCount.incrementAndGet();
+            return null;
+        }
+
+        File file = null;
+
+        try
+        {
+            directory.mkdirs();
+            file = File.createTempFile("jcr-binary-", ".bin", directory);
+
+            final OutputStream out = new FileOutputStream(file);
+            long actualLength = 0L;
+            boolean capExceeded = false;
+
+            try
+            {
+                final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+
+                while ((read = data.read(buffer)) != -1)
+                {
+                    actualLength += read;
+
+                    if (actualLength > reservedBytes)
+                    {
+                        if (!reserve(actualLength - reservedBytes))
+                        {
+                            capExceeded = true;
+                            break;
+                        }
+
+                        reservedBytes = actualLength;
+                    }
+
+                    out.write(buffer, 0, read);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (capExceeded)
+            {
+                spooledBytes.addAndGet(-reservedBytes);
+                file.delete();
+                rejectedCount.incrementAndGet();
+                return null;
+            }
+
+            // the actual length prevails over the one reported by the repository
+            spooledBytes.addAndGet(actualLength - reservedBytes);
+
+            final JcrSpooledBinary spooledBinary = new JcrSpooledBinary(path, file, actualLength, this);
+            spooledFiles.put(file, new SpooledFile(spooledBinary, collectedBinaries, file, actualLength));
+            spooledCount.incrementAndGet();
+
+            return spooledBinary;
+        }
+        catch (final IOException ioe)
+        {
+            spooledBytes.addAndGet(-reservedBytes);
+
+            if (file != null)
+            {
+                file.delete();
+            }
+
+            throw ioe;
+        }
+    }
+
+    /**
+     * Deletes a spooled file and releases its bytes.
+     */
+    public void release(final File file)
+    {
+        final SpooledFile spooledFile = spooledFiles.remove(file);
+
+        if (spooledFile != null)
+        {
+            spooledFile.clear();
+            delete(spooledFile);
+        }
+    }
+
+    /**
+     * Deletes the spooled files of the binaries already collected, and schedules
+     * the deletion of the others, which messages in flight may still read, when
+     * the JVM exits.
+     */
+    public void stop()
+    {
+        deleteCollectedFiles();
+
+        for (final File file : spooledFiles.keySet())
+        {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * @return the inline threshold in bytes.
+     */
+    public long getInlineThreshold()
+    {
+        return inlineThreshold;
+    }
+
+    /**
+     * @return the number of bytes currently spooled.
+     */
+    public long getSpooledBytes()
+    {
+        deleteCollectedFiles();
+        return spooledBytes.get();
+    }
+
+    /**
+     * @return the number of binaries spooled since start.
+     */
+    public long getSpooledCount()
+    {
+        return spooledCount.get();
+    }
+
+    /**
+     * @return the number of binaries that could not be spooled because of the cap.
+     */
+    public long getRejectedCount()
+    {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JcrBinarySpooler[directory=" + directory + ", inlineThreshold=" + inlineThreshold
+               + ", maxSpooledBytes=" + maxSpooledBytes + ", spooledBytes=" + spooledBytes.get()
+               + ", spooledCount=" + getSpooledCount() + ", rejectedCount=" + getRejectedCount() + "]";
+    }
+
+    private boolean reserve(final long length)
+    {
+        while (true)
+        {
+            final long current = spooledBytes.get();
+
+            if ((maxSpooledBytes > 0L) && (current + length > maxSpooledBytes))
+            {
+                return false;
+            }
+
+            if (spooledBytes.compareAndSet(current, current + length))
+            {
+                return true;
+            }
+        }
+    }
+
+    private void deleteCollectedFiles()
+    {
+        SpooledFile spooledFile;
+
+        while ((spooledFile = (SpooledFile) collectedBinaries.poll()) != null)
+        {
+            if (spooledFiles.remove(spooledFile.file) != null)
+            {
+                delete(spooledFile);
+            }
+        }
+    }
+
+    private void delete(final SpooledFile spooledFile)
+    {
+        spooledBytes.addAndGet(-spooledFile.length);
+
+        if ((!spooledFile.file.delete()) && (spooledFile.file.exists()))
+        {
+            LOG.warn("Can not delete spooled binary: " + spooledFile.file);
+        }
+    }
+
+    private static final class SpooledFile extends PhantomReference<JcrSpooledBinary>
+    {
+        private final File file;
+
+        private final long length;
+
+        SpooledFile(final JcrSpooledBinary spooledBinary,
+                    final ReferenceQueue<JcrSpooledBinary> queue,
+                    final File file,
+                    final long length)
+        {
+            super(spooledBinary, queue);
+            this.file = file;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.query.Query;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.transport.jcr.JcrEventBatch;
+import org.mule.transport.jcr.JcrMessage;
+
+/**
+ * Finds the nodes created or modified under a path since a watermark, with a query
+ * on <code>jcr:created</code> and <code>jcr:lastModified</code>, and emits them as
+ * pages of synthetic events: <code>NODE_ADDED</code> for created nodes and
+ * <code>PROPERTY_CHANGED</code> on <code>jcr:lastModified</code> for modified ones.
+ * Each scan starts an overlap window before the watermark, to tolerate clock skew
+ * and late saves, and skips the changes it has already emitted in this window.
+ * The watermark and these changes can be persisted to a file, so scans resume
+ * where they stopped across restarts. Live events received while a scan runs can
+ * be checked against the changes it has emitted, so they are not routed twice.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrChangeScanner
+{
+    private static final Log LOG = LogFactory.getLog(JcrChangeScanner.class);
+
+    private static final String CREATED_PROPERTY = "jcr:created";
+
+    private static final String LAST_MODIFIED_PROPERTY = "jcr:lastModified";
+
+    private static final String LAST_MODIFIED_BY_PROPERTY = "jcr:lastModifiedBy";
+
+    private static final String WATERMARK_KEY = "watermark";
+
+    private static final String SEEN_KEY_PREFIX = "seen.";
+
+    private final String absPath;
+
+    private final boolean deep;
+
+    private final int eventTypes;
+
+    private final int pageSize;
+
+    private final long overlap;
+
+    private final File watermarkFile;
+
+    // keys of the changes already emitted in the overlap window, with their time
+    private final Map<String, Long> seenChanges = new HashMap<String, Long>();
+
+    // nodes whose changes have been emitted by the last scan
+    private final Set<String> scannedNodes = new HashSet<String>();
+
+    private long watermark;
+
+    private long lastQueryTime;
+
+    /**
+     * @param eventTypes the types of the events to emit, among
+     *            <code>NODE_ADDED</code> and <code>PROPERTY_CHANGED</code>.
+     * @param watermarkFile the file the watermark is persisted to, or null if it
+     *            is only kept in memory.
+     */
+    public JcrChangeScanner(final String absPath,
+                            final boolean deep,
+                            final int eventTypes,
+                            final int pageSize,
+                            final long overlap,
+                            final File watermarkFile)
+    {
+        this.absPath = absPath;
+        this.deep = deep;
+        this.eventTypes = eventTypes;
+        this.pageSize = pageSize;
+        this.overlap = overlap;
+        this.watermarkFile = watermarkFile;
+    }
+
+    /**
+     * Loads the persisted watermark, if any.
+     */
+    public synchronized void load() throws IOException
+    {
+        if ((watermarkFile == null) || (!watermarkFile.exists()))
+        {
+            return;
+        }
+
+        final Properties properties = new Properties();
+        final InputStream in = new FileInputStream(watermarkFile);
+
+        try
+        {
+            properties.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        watermark = Long.parseLong(properties.getProperty(WATERMARK_KEY, "0"));
+        seenChanges.clear();
+
+        for (final Map.Entry<Object, Object> property : properties.entrySet())
+        {
+            final String key = property.getKey().toString();
+
+            if (key.startsWith(SEEN_KEY_PREFIX))
+            {
+                final String seenChange = property.getValue().toString();
+                seenChanges.put(seenChange, Long.valueOf(seenChange.substring(seenChange.lastIndexOf('@') + 1)));
+            }
+        }
+    }
+
+    /**
+     * Persists the watermark, if a file has been provided.
+     */
+    public synchronized void save() throws IOException
+    {
+        if (watermarkFile == null)
+        {
+            return;
+        }
+
+        final Properties properties = new Properties();
+        properties.setProperty(WATERMARK_KEY, Long.toString(watermark));
+
+        int i = 0;
+
+        for (final String seenChange : seenChanges.keySet())
+        {
+            properties.setProperty(SEEN_KEY_PREFIX + i++, seenChange);
+        }
+
+        watermarkFile.getParentFile().mkdirs();
+
+        // written aside then renamed, so a crash never leaves a truncated file
+        final File temporaryFile = new File(watermarkFile.getPath() + ".tmp");
+        final OutputStream out = new FileOutputStream(temporaryFile);
+
+        try
+        {
+            properties.store(out, "JCR change watermark of: " + absPath);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if ((!temporaryFile.renameTo(watermarkFile))
+            && ((!watermarkFile.delete()) || (!temporaryFile.renameTo(watermarkFile))))
+        {
+            throw new IOException("Can not write watermark file: " + watermarkFile);
+        }
+    }
+
+    /**
+     * Moves the watermark forward, for changes received by other means.
+     */
+    public synchronized void advance(final long timestamp)
+    {
+        watermark = Math.max(watermark, timestamp);
+    }
+
+    /**
+     * @return the time, in milliseconds, up to which changes have been emitted, or
+     *         0 if no scan has happened yet.
+     */
+    public synchronized long getWatermark()
+    {
+        return watermark;
+    }
+
+    /**
+     * Emits the changes that happened since the watermark, by pages. The first
+     * scan, without watermark, emits nothing and sets the watermark to the
+     * current time.
+     *
+     * @return the number of changes emitted.
+     */
+    public synchronized int scan(final Session session, final JcrEventHandOff.EventBatchProcessor processor)
+        throws Exception
+    {
+        if (watermark <= 0L)
+        {
+            watermark = System.currentTimeMillis();
+            return 0;
+        }
+
+        final long since = watermark - overlap;
+        final String statement = getStatement(since);
+
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Scanning changes with: " + statement);
+        }
+
+        scannedNodes.clear();
+        lastQueryTime = System.currentTimeMillis();
+
+        final NodeIterator nodes = session.getWorkspace().getQueryManager().createQuery(statement, Query.XPATH)
+            .execute()
+            .getNodes();
+
+        List<JcrMessage> page = new ArrayList<JcrMessage>();
+        long latestChange = watermark;
+        int emitted = 0;
+
+        while (nodes.hasNext())
+        {
+            final Node node = nodes.nextNode();
+
+            final long created = getTime(node, CREATED_PROPERTY);
+            final long lastModified = Math.max(created, getTime(node, LAST_MODIFIED_PROPERTY));
+
+            if (lastModified < since)
+            {
+                continue;
+            }
+
+            final String seenChange = node.getPath() + '@' + lastModified;
+
+            if (seenChanges.containsKey(seenChange))
+            {
+                // emitted by a previous scan of the overlap window
+                continue;
+            }
+
+            seenChanges.put(seenChange, Long.valueOf(lastModified));
+            latestChange = Math.max(latestChange, lastModified);
+
+            final JcrMessage change = newJcrMessage(node, created >= since);
+
+            if ((eventTypes & change.getType()) == 0)
+            {
+                continue;
+            }
+
+            page.add(change);
+            scannedNodes.add(node.getPath());
+            emitted++;
+
+            if (page.size() >= pageSize)
+            {
+                processor.process(new JcrEventBatch(page));
+                page = new ArrayList<JcrMessage>();
+            }
+        }
+
+        if (!page.isEmpty())
+        {
+            processor.process(new JcrEventBatch(page));
+        }
+
+        watermark = Math.max(watermark, latestChange);
+
+        for (final Iterator<Long> seenTimes = seenChanges.values().iterator(); seenTimes.hasNext();)
+        {
+            if (seenTimes.next().longValue() < watermark - overlap)
+            {
+                seenTimes.remove();
+            }
+        }
+
+        return emitted;
+    }
+
+    /**
+     * Tells if a live event, received while the last scan was running, reports a
+     * change this scan has already emitted. Only the events received before the
+     * query of the scan ran can be told apart, the later ones are never considered
+     * emitted.
+     *
+     * @param event a live event.
+     * @param receivedTime the time the event has been received at.
+     * @return true if the event can be dropped.
+     */
+    public synchronized boolean isEmitted(final JcrMessage event, final long receivedTime)
+    {
+        if ((lastQueryTime <= 0L) || (receivedTime >= lastQueryTime))
+        {
+            return false;
+        }
+
+        if (event.getType() == Event.NODE_ADDED)
+        {
+            return scannedNodes.contains(event.getPath());
+        }
+
+        final String lastModifiedSuffix = '/' + LAST_MODIFIED_PROPERTY;
+
+        if ((event.getType() == Event.PROPERTY_CHANGED) && (event.getPath().endsWith(lastModifiedSuffix)))
+        {
+            return scannedNodes.contains(event.getPath().substring(0,
+                event.getPath().length() - lastModifiedSuffix.length()));
+        }
+
+        return false;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "JcrChangeScanner[absPath=" + absPath + ", deep=" + deep + ", watermark=" + watermark + "]";
+    }
+
+    String getStatement(final long since)
+    {
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final String sinceDate = dateFormat.format(new Date(since));
+
+        final StringBuilder statement = new StringBuilder("/jcr:root");
+
+        for (final String segment : JcrObservationMultiplexer.getSegments(absPath))
+        {
+            statement.append('/').append(encodeName(segment));
+        }
+
+        return statement.append(deep ? "//" : "/")
+            .append("element(*, nt:base)[@")
+            .append(LAST_MODIFIED_PROPERTY)
+            .append(" >= xs:dateTime('")
+            .append(sinceDate)
+            .append("') or @")
+            .append(CREATED_PROPERTY)
+            .append(" >= xs:dateTime('")
+            .append(sinceDate)
+            .append("')] order by @")
+            .append(LAST_MODIFIED_PROPERTY)
+            .toString();
+    }
+
+    /**
+     * Encodes the characters of a name that are not valid in XPath, as specified
+     * by ISO 9075.
+     */
+    static String encodeName(final String name)
+    {
+        final StringBuilder encodedName = new StringBuilder();
+
+        for (int i = 0; i < name.length(); i++)
+        {
+            final char c = name.charAt(i);
+
+            final boolean valid = Character.isLetter(c) || (c == '_') || (c == ':')
+                                  || ((i > 0) && (Character.isDigit(c) || (c == '.') || (c == '-')));
+
+            if (valid)
+            {
+                encodedName.append(c);
+            }
+            else
+            {
+                encodedName.append(String.format("_x%04X_", Integer.valueOf(c)));
+            }
+        }
+
+        return encodedName.toString();
+    }
+
+    private static JcrMessage newJcrMessage(final Node node, final boolean created) throws RepositoryException
+    {
+        final String userID = node.hasProperty(LAST_MODIFIED_BY_PROPERTY) ? node.getProperty(
+            LAST_MODIFIED_BY_PROPERTY).getString() : null;
+
+        if (created)
+        {
+            return new JcrMessage(node.getPath(), Event.NODE_ADDED,
+                JcrEventUtils.getEventTypeNameFromValue(Event.NODE_ADDED), userID, "", null);
+        }
+
+        return new JcrMessage(node.getPath() + '/' + LAST_MODIFIED_PROPERTY, Event.PROPERTY_CHANGED,
+            JcrEventUtils.getEventTypeNameFromValue(Event.PROPERTY_CHANGED), userID, "", null);
+    }
+
+    private static long getTime(final Node node, final String propertyName) throws RepositoryException
+    {
+        return node.hasProperty(propertyName) ? node.getProperty(propertyName).getDate().getTimeInMillis() : 0L;
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * A compact binary codec for the common payload types: nulls, strings, primitive
+ * wrappers, byte arrays, dates, calendars, and the lists, sets and maps made of
+ * them. Each value is written as a one byte tag followed by its content, integers
+ * and lengths being variable length encoded, after a four bytes header that
+ * identifies the binaries written by this codec. Only the collections that are
+ * decoded as the same class are encoded: <code>ArrayList</code>,
+ * <code>LinkedHashSet</code> and <code>LinkedHashMap</code>, as well as
+ * <code>GregorianCalendar</code> for calendars. Other types, and collections that
+ * contain themselves, are left to Java serialization.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrCompactValueCodec implements JcrValueCodec
+{
+    private static final byte[] HEADER = {'M', 'J', 'V', 1};
+
+    private static final int NULL = 0;
+
+    private static final int TRUE = 1;
+
+    private static final int FALSE = 2;
+
+    private static final int BYTE = 3;
+
+    private static final int SHORT = 4;
+
+    private static final int INTEGER = 5;
+
+    private static final int LONG = 6;
+
+    private static final int FLOAT = 7;
+
+    private static final int DOUBLE = 8;
+
+    private static final int CHARACTER = 9;
+
+    private static final int STRING = 10;
+
+    private static final int BYTES = 11;
+
+    private static final int DATE = 12;
+
+    private static final int CALENDAR = 13;
+
+    private static final int LIST = 14;
+
+    private static final int SET = 15;
+
+    private static final int MAP = 16;
+
+    private static final String UTF_8 = "UTF-8";
+
+    private static final int READ_CHUNK_SIZE = 8192;
+
+    public boolean canEncode(final Object value)
+    {
+        return canEncode(value, new IdentityHashMap<Object, Object>());
+    }
+
+    /**
+     * @param enclosingValues the collections being checked that enclose the value,
+     *            so a collection that contains itself is left to Java
+     *            serialization instead of being walked endlessly.
+     */
+    private boolean canEncode(final Object value, final Map<Object, Object> enclosingValues)
+    {
+        if ((value == null) || (value instanceof String) || (value instanceof Boolean)
+            || (value instanceof Byte) || (value instanceof Short) || (value instanceof Integer)
+            || (value instanceof Long) || (value instanceof Float) || (value instanceof Double)
+            || (value instanceof Character) || (value instanceof byte[]) || (value.getClass() == Date.class)
+            || (value.getClass() == GregorianCalendar.class))
+        {
+            return true;
+        }
+
+        // collections are decoded as these classes, so other implementations,
+        // like sorted or concurrent ones, are left to Java serialization so they
+        // are restored as such
+        if ((value.getClass() != ArrayList.class) && (value.getClass() != LinkedHashSet.class)
+            && (value.getClass() != LinkedHashMap.class))
+        {
+            return false;
+        }
+
+        if (enclosingValues.put(value, value) != null)
+        {
+            return false;
+        }
+
+        try
+        {
+            if (value instanceof Map<?, ?>)
+            {
+                for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                {
+                    if ((!canEncode(entry.getKey(), enclosingValues))
+                        || (!canEncode(entry.getValue(), enclosingValues)))
+                    {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+
+            for (final Object element : (Collection<?>) value)
+            {
+                if (!canEncode(element, enclosingValues))
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+        finally
+        {
+            enclosingValues.remove(value);
+        }
+    }
+
+    public void encode(final Object value, final OutputStream out) throws IOException
+    {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.write(HEADER);
+        write(value, data);
+        data.flush();
+    }
+
+    public boolean isEncoded(final InputStream in) throws IOException
+    {
+        in.mark(HEADER.length);
+
+        try
+        {
+            for (final byte headerByte : HEADER)
+            {
+                if (in.read() != (headerByte & 0xFF))
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+        finally
+        {
+            in.reset();
+        }
+    }
+
+    public Object decode(final InputStream in) throws IOException
+    {
+        final DataInputStream data = new DataInputStream(in);
+
+        final byte[] header = new byte[HEADER.length];
+        data.readFully(header);
+
+        for (int i = 0; i < HEADER.length; i++)
+        {
+            if (header[i] != HEADER[i])
+            {
+                throw new StreamCorruptedException("Not a compact value");
+            }
+        }
+
+        return read(data);
+    }
+
+    private void write(final Object value, final DataOutputStream data) throws IOException
+    {
+        if (value == null)
+        {
+            data.write(NULL);
+        }
+        else if (value instanceof String)
+        {
+            data.write(STRING);
+            writeBytes(((String) value).getBytes(UTF_8), data);
+        }
+        else if (value instanceof Boolean)
+        {
+            data.write(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        }
+        else if (value instanceof Byte)
+        {
+            data.write(BYTE);
+            data.writeByte(((Byte) value).byteValue());
+        }
+        else if (value instanceof Short)
+        {
+            data.write(SHORT);
+            writeVarLong(((Short) value).shortValue(), data);
+        }
+        else if (value instanceof Integer)
+        {
+            data.write(INTEGER);
+            writeVarLong(((Integer) value).intValue(), data);
+        }
+        else if (value instanceof Long)
+        {
+            data.write(LONG);
+            writeVarLong(((Long) value).longValue(), data);
+        }
+        else if (value instanceof Float)
+        {
+            data.write(FLOAT);
+            data.writeFloat(((Float) value).floatValue());
+        }
+        else if (value instanceof Double)
+        {
+            data.write(DOUBLE);
+            data.writeDouble(((Double) value).doubleValue());
+        }
+        else if (value instanceof Character)
+        {
+            data.write(CHARACTER);
+            data.writeChar(((Character) value).charValue());
+        }
+        else if (value instanceof byte[])
+        {
+            data.write(BYTES);
+            writeBytes((byte[]) value, data);
+        }
+        else if (value instanceof Date)
+        {
+            data.write(DATE);
+            writeVarLong(((Date) value).getTime(), data);
+        }
+        else if (value instanceof Calendar)
+        {
+            final Calendar calendar = (Calendar) value;
+            data.write(CALENDAR);
+            writeVarLong(calendar.getTimeInMillis(), data);
+            writeBytes(calendar.getTimeZone().getID().getBytes(UTF_8), data);
+        }
+        else if ((value instanceof List<?>) || (value instanceof Set<?>))
+        {
+            final Collection<?> collection = (Collection<?>) value;
+            data.write(value instanceof List<?> ? LIST : SET);
+            writeVarLong(collection.size(), data);
+
+            for (final Object element : collection)
+            {
+                write(element, data);
+            }
+        }
+        else if (value instanceof Map<?, ?>)
+        {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            data.write(MAP);
+            writeVarLong(map.size(), data);
+
+            for (final Map.Entry<?, ?> entry : map.entrySet())
+            {
+                write(entry.getKey(), data);
+                write(entry.getValue(), data);
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("Impossible to encode object of type: " + value.getClass());
+        }
+    }
+
+    private Object read(final DataInputStream data) throws IOException
+    {
+        final int tag = data.read();
+
+        switch (tag)
+        {
+            case NULL :
+                return null;
+
+            case TRUE :
+                return Boolean.TRUE;
+
+            case FALSE :
+                return Boolean.FALSE;
+
+            case BYTE :
+                return Byte.valueOf(data.readByte());
+
+            case SHORT :
+                return Short.valueOf((short) readVarLong(data));
+
+            case INTEGER :
+                return Integer.valueOf((int) readVarLong(data));
+
+            case LONG :
+                return Long.valueOf(readVarLong(data));
+
+            case FLOAT :
+                return Float.valueOf(data.readFloat());
+
+            case DOUBLE :
+                return Double.valueOf(data.readDouble());
+
+            case CHARACTER :
+                return Character.valueOf(data.readChar());
+
+            case STRING :
+                return new String(readBytes(data), UTF_8);
+
+            case BYTES :
+                return readBytes(data);
+
+            case DATE :
+                return new Date(readVarLong(data));
+
+            case CALENDAR :
+            {
+                final long timeInMillis = readVarLong(data);
+                final Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone(new String(readBytes(data),
+                    UTF_8)));
+                calendar.setTimeInMillis(timeInMillis);
+                return calendar;
+            }
+
+            case LIST :
+            {
+                final int size = readSize(data);
+                // sizes are read from the value, which can be corrupt, so they
+                // are never used to allocate memory up front
+                final List<Object> list = new ArrayList<Object>();
+
+                for (int i = 0; i < size; i++)
+                {
+                    list.add(read(data));
+                }
+
+                return list;
+            }
+
+            case SET :
+            {
+                final int size = readSize(data);
+                final Set<Object> set = new LinkedHashSet<Object>();
+
+                for (int i = 0; i < size; i++)
+                {
+                    set.add(read(data));
+                }
+
+                return set;
+            }
+
+            case MAP :
+            {
+                final int size = readSize(data);
+                final Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+
+                for (int i = 0; i < size; i++)
+                {
+                    map.put(read(data), read(data));
+                }
+
+                return map;
+            }
+
+            case -1 :
+                throw new EOFException("Truncated compact value");
+
+            default :
+                throw new StreamCorruptedException("Unknown compact value tag: " + tag);
+        }
+    }
+
+    private static void writeBytes(final byte[] bytes, final DataOutputStream data) throws IOException
+    {
+        writeVarLong(bytes.length, data);
+        data.write(bytes);
+    }
+
+    private static byte[] readBytes(final DataInputStream data) throws IOException
+    {
+        final int size = readSize(data);
+
+        // the bytes are read in chunks so a corrupt size fails on the end of
+        // the value instead of allocating a huge array
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(size, READ_CHUNK_SIZE));
+        final byte[] chunk = new byte[Math.min(size, READ_CHUNK_SIZE)];
+        int remaining = size;
+
+        while (remaining > 0)
+        {
+            final int length = Math.min(remaining, chunk.length);
+            data.readFully(chunk, 0, length);
+            bytes.write(chunk, 0, length);
+            remaining -= length;
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static int readSize(final DataInputStream data) throws IOException
+    {
+        final long size = readVarLong(data);
+
+        if ((size < 0L) || (size > Integer.MAX_VALUE))
+        {
+            throw new StreamCorruptedException("Invalid compact value size: " + size);
+        }
+
+        return (int) size;
+    }
+
+    /**
+     * Writes a zig-zag encoded long, seven bits per byte, so small positive and
+     * negative values take a single byte.
+     */
+    private static void writeVarLong(final long value, final DataOutputStream data) throws IOException
+    {
+        long zigZag = (value << 1) ^ (value >> 63);
+
+        while ((zigZag & ~0x7FL) != 0L)
+        {
+            data.write((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+
+        data.write((int) zigZag);
+    }
+
+    private static long readVarLong(final DataInputStream data) throws IOException
+    {
+        long zigZag = 0L;
+
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            final int varByte = data.readUnsignedByte();
+            zigZag |= (long) (varByte & 0x7F) << shift;
+
+            if ((varByte & 0x80) == 0)
+            {
+                return (zigZag >>> 1) ^ -(zigZag & 1L);
+            }
+        }
+
+        throw new StreamCorruptedException("Malformed variable length value");
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NodeType;
+
+/**
+ * Skips the writes of binary contents that have not changed. The digest of an
+ * incoming content is computed while the content is streamed into a repository
+ * value, then compared with the digest of the current content: if they match,
+ * the value is discarded and the node is left untouched, so saving the session
+ * persists nothing and fires no event. The digest is stored in a property of the
+ * node when its type allows it, along with the length of the content it has been
+ * computed from. As the content can be rewritten without the digest, for example
+ * by another client, a stored digest is only used to tell that the content has
+ * changed: a write is never skipped before the digest of the current content has
+ * been computed by reading it, which remains cheaper than rewriting it.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrContentDigester
+{
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private static final char LENGTH_SEPARATOR = '/';
+
+    private final String algorithm;
+
+    private final String digestPropertyName;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    private final AtomicLong skippedWriteCount = new AtomicLong();
+
+    /**
+     * @param algorithm the name of a <code>MessageDigest</code> algorithm, like
+     *            SHA-256.
+     * @param digestPropertyName the name of the property the digest is stored in.
+     * @throws IllegalArgumentException if the algorithm is not available.
+     */
+    public JcrContentDigester(final String algorithm, final String digestPropertyName)
+    {
+        this.algorithm = algorithm;
+        this.digestPropertyName = digestPropertyName;
+
+        // fails fast on unknown algorithms
+        newMessageDigest();
+    }
+
+    /**
+     * Sets a binary property of a node, unless its current content has the same
+     * digest as the new one.
+     *
+     * @return true if the property has been set, false if the write has been
+     *         skipped.
+     */
+    public boolean setIfChanged(final Session session,
+                                final Node node,
+                                final String propertyName,
+                                final InputStream content) throws RepositoryException, IOException
+    {
+        final MessageDigest messageDigest = newMessageDigest();
+
+        // the content is consumed once, while the repository spools it
+        final Value value = session.getValueFactory().createValue(new DigestInputStream(content, messageDigest));
+        final String digest = toDigestString(messageDigest.digest());
+
+        if (isCurrentContent(node, propertyName, digest))
+        {
+            skippedWriteCount.incrementAndGet();
+            return false;
+        }
+
+        final Property property = node.setProperty(propertyName, value);
+        final String storedDigest = digest + LENGTH_SEPARATOR + property.getLength();
+
+        if (canStoreDigest(node, session.getValueFactory().createValue(storedDigest)))
+        {
+            node.setProperty(digestPropertyName, storedDigest);
+        }
+
+        writtenCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return the number of contents written because they had changed.
+     */
+    public long getWrittenCount()
+    {
+        return writtenCount.get();
+    }
+
+    /**
+     * @return the number of writes skipped because the contents had not changed.
+     */
+    public long getSkippedWriteCount()
+    {
+        return skippedWriteCount.get();
+    }
+
+    public String getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    public String getDigestPropertyName()
+    {
+        return digestPropertyName;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JcrContentDigester[algorithm=" + algorithm + ", property=" + digestPropertyName + ", written="
+               + writtenCount + ", skipped=" + skippedWriteCount + "]";
+    }
+
+    private boolean isCurrentContent(final Node node, final String propertyName, final String digest)
+        throws RepositoryException, IOException
+    {
+        if (!node.hasProperty(propertyName))
+        {
+            return false;
+        }
+
+        final Property property = node.getProperty(propertyName);
+
+        if (node.hasProperty(digestPropertyName))
+        {
+            final String storedDigest = getStoredDigest(node.getProperty(digestPropertyName).getString(),
+                property.getLength());
+
+            // a different stored digest shows the content has changed, unless it is
+            // stale, in which case the write is merely not needed; a matching one
+            // can be stale too, so it is never trusted on its own
+            if ((storedDigest != null) && (!storedDigest.equals(digest)))
+            {
+                return false;
+            }
+        }
+
+        return digest.equals(getCurrentDigest(property));
+    }
+
+    private String getCurrentDigest(final Property property) throws RepositoryException, IOException
+    {
+        final MessageDigest messageDigest = newMessageDigest();
+        final InputStream currentContent = property.getStream();
+
+        try
+        {
+            final byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int length;
+
+            while ((length = currentContent.read(buffer)) != -1)
+            {
+                messageDigest.update(buffer, 0, length);
+            }
+        }
+        finally
+        {
+            currentContent.close();
+        }
+
+        return toDigestString(messageDigest.digest());
+    }
+
+    /**
+     * @return the stored digest if it has been computed from a content of the
+     *         current length, or null if it can not be trusted.
+     */
+    private static String getStoredDigest(final String storedDigest, final long currentLength)
+    {
+        final int separatorIndex = storedDigest.lastIndexOf(LENGTH_SEPARATOR);
+
+        if ((separatorIndex == -1) || (currentLength < 0L))
+        {
+            return null;
+        }
+
+        try
+        {
+            if (Long.parseLong(storedDigest.substring(separatorIndex + 1)) == currentLength)
+            {
+                return storedDigest.substring(0, separatorIndex);
+            }
+        }
+        catch (final NumberFormatException nfe)
+        {
+            // not a digest stored by this class
+        }
+
+        return null;
+    }
+
+    private boolean canStoreDigest(final Node node, final Value digestValue) throws RepositoryException
+    {
+        if (node.getPrimaryNodeType().canSetProperty(digestPropertyName, digestValue))
+        {
+            return true;
+        }
+
+        for (final NodeType mixinNodeType : node.getMixinNodeTypes())
+        {
+            if (mixinNodeType.canSetProperty(digestPropertyName, digestValue))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private MessageDigest newMessageDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (final NoSuchAlgorithmException nsae)
+        {
+            throw new IllegalArgumentException("Unsupported content digest algorithm: " + algorithm, nsae);
+        }
+    }
+
+    /**
+     * @return the digest prefixed with its algorithm, so digests computed with
+     *         another algorithm never match.
+     */
+    private String toDigestString(final byte[] digest)
+    {
+        final StringBuilder digestString = new StringBuilder(algorithm.length() + 1 + 2 * digest.length).append(
+            algorithm).append(':');
+
+        for (final byte digestByte : digest)
+        {
+            digestString.append(HEX_DIGITS[(digestByte >> 4) & 0x0F]).append(HEX_DIGITS[digestByte & 0x0F]);
+        }
+
+        return digestString.toString();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.observation.Event;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.transport.jcr.JcrEventBatch;
+import org.mule.transport.jcr.JcrMessage;
+import org.mule.util.concurrent.NamedThreadFactory;
+
+/**
+ * Merges the events of each node received within a time window into a single
+ * coalesced <code>JcrMessage</code>, whose type is the mask of all the merged
+ * event types and whose content is the map of the names of the changed properties.
+ * A save typically raises a burst of events for a node: coalescing them spares
+ * as many content fetches and flow executions.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrEventCoalescer
+{
+    private static final Log LOG = LogFactory.getLog(JcrEventCoalescer.class);
+
+    private static final int PROPERTY_EVENTS = Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+                                               | Event.PROPERTY_REMOVED;
+
+    private final long window;
+
+    private final JcrEventHandOff.EventBatchProcessor processor;
+
+    private final Map<String, PendingNode> pendingNodes = new LinkedHashMap<String, PendingNode>();
+
+    private final Thread flusherThread;
+
+    private final AtomicLong receivedEvents = new AtomicLong();
+
+    private final AtomicLong emittedMessages = new AtomicLong();
+
+    private volatile boolean running;
+
+    public JcrEventCoalescer(final String name,
+                             final long window,
+                             final JcrEventHandOff.EventBatchProcessor processor)
+    {
+        this.window = window;
+        this.processor = processor;
+
+        flusherThread = new NamedThreadFactory(name + ".coalescer").newThread(new Runnable()
+        {
+            public void run()
+            {
+                flushPeriodically();
+            }
+        });
+    }
+
+    public void start()
+    {
+        running = true;
+        flusherThread.start();
+    }
+
+    /**
+     * Stops the coalescer after having emitted all the pending nodes.
+     */
+    public void stop()
+    {
+        running = false;
+
+        synchronized (pendingNodes)
+        {
+            pendingNodes.notifyAll();
+        }
+
+        try
+        {
+            flusherThread.join();
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Merges events with the ones pending for the same nodes.
+     */
+    public void add(final JcrEventBatch eventBatch)
+    {
+        synchronized (pendingNodes)
+        {
+            final List<JcrMessage> events = eventBatch.getEvents();
+
+            for (int i = 0; i < events.size(); i++)
+            {
+                final JcrMessage event = events.get(i);
+                final String nodePath = JcrEventHandOff.getNodePath(event);
+
+                PendingNode pendingNode = pendingNodes.get(nodePath);
+
+                if (pendingNode == null)
+                {
+                    pendingNode = new PendingNode(nodePath, event.getUserID(), eventBatch.getCreationTime());
+                    pendingNodes.put(nodePath, pendingNode);
+                }
+
+                pendingNode.merge(event, eventBatch.getJournalEntries(i));
+            }
+        }
+
+        receivedEvents.addAndGet(eventBatch.getEvents().size());
+    }
+
+    /**
+     * @return the number of events received.
+     */
+    public long getReceivedEvents()
+    {
+        return receivedEvents.get();
+    }
+
+    /**
+     * @return the number of coalesced messages emitted.
+     */
+    public long getEmittedMessages()
+    {
+        return emittedMessages.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JcrEventCoalescer[window=" + window + "ms, receivedEvents=" + getReceivedEvents()
+               + ", emittedMessages=" + getEmittedMessages() + "]";
+    }
+
+    private void flushPeriodically()
+    {
+        while (true)
+        {
+            final boolean stopping = !running;
+
+            final List<JcrMessage> expiredNodes = new ArrayList<JcrMessage>();
+            final List<Map<Long, Integer>> journalEntries = new ArrayList<Map<Long, Integer>>();
+            boolean journaled = false;
+            long creationTime = System.currentTimeMillis();
+
+            synchronized (pendingNodes)
+            {
+                final long now = System.currentTimeMillis();
+                final Iterator<PendingNode> pendingNodesIterator = pendingNodes.values().iterator();
+
+                // nodes are kept in the order they were first seen
+                while (pendingNodesIterator.hasNext())
+                {
+                    final PendingNode pendingNode = pendingNodesIterator.next();
+
+                    if ((!stopping) && (pendingNode.firstSeen + window > now))
+                    {
+                        break;
+                    }
+
+                    creationTime = Math.min(creationTime, pendingNode.firstSeen);
+                    expiredNodes.add(pendingNode.toJcrMessage());
+                    journalEntries.add(pendingNode.journalEntries);
+                    journaled |= (pendingNode.journalEntries != null);
+                    pendingNodesIterator.remove();
+                }
+
+                if ((expiredNodes.isEmpty()) && (!stopping))
+                {
+                    try
+                    {
+                        pendingNodes.wait(Math.max(1L, window / 2));
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+
+            if (!expiredNodes.isEmpty())
+            {
+                emittedMessages.addAndGet(expiredNodes.size());
+
+                try
+                {
+                    processor.process(new JcrEventBatch(expiredNodes, creationTime, journaled ? journalEntries : null));
+                }
+                catch (final Exception e)
+                {
+                    LOG.error("Can not process coalesced JCR events: " + expiredNodes, e);
+                }
+            }
+
+            if (stopping)
+            {
+                return;
+            }
+        }
+    }
+
+    private static final class PendingNode
+    {
+        private final String nodePath;
+
+        private final String userID;
+
+        private final long firstSeen;
+
+        private final LinkedHashMap<String, Serializable> changedProperties = new LinkedHashMap<String, Serializable>();
+
+        private int eventTypes;
+
+        private Map<Long, Integer> journalEntries;
+
+        PendingNode(final String nodePath, final String userID, final long firstSeen)
+        {
+            this.nodePath = nodePath;
+            this.userID = userID;
+            this.firstSeen = firstSeen;
+        }
+
+        void merge(final JcrMessage event, final Map<Long, Integer> eventJournalEntries)
+        {
+            eventTypes |= event.getType();
+
+            if (eventJournalEntries != null)
+            {
+                if (journalEntries == null)
+                {
+                    journalEntries = new LinkedHashMap<Long, Integer>();
+                }
+
+                JcrEventBatch.mergeJournalEntries(journalEntries, eventJournalEntries);
+            }
+
+            if ((event.getType() & PROPERTY_EVENTS) != 0)
+            {
+                final String path = event.getPath();
+                changedProperties.put(path.substring(path.lastIndexOf('/') + 1), "");
+            }
+        }
+
+        JcrMessage toJcrMessage()
+        {
+            return new JcrMessage(nodePath, eventTypes, JcrEventUtils.getEventTypeNamesFromMask(eventTypes),
+                userID, changedProperties, null, true);
+        }
+    }
+}
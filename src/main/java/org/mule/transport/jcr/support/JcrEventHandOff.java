@@ -0,0 +1,578 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.observation.Event;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.transport.jcr.JcrEventBatch;
+import org.mule.transport.jcr.JcrMessage;
+import org.mule.util.IOUtils;
+import org.mule.util.concurrent.NamedThreadFactory;
+
+/**
+ * Decouples the reception of JCR events from their processing: events are queued
+ * in bounded stripes, each drained by its own worker thread. All the events of a
+ * particular node go to the same stripe, hence are processed in the order they
+ * have been observed.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrEventHandOff
+{
+    private static final Log LOG = LogFactory.getLog(JcrEventHandOff.class);
+
+    private static final long IDLE_POLL_MILLIS = 500L;
+
+    /**
+     * What to do with events when the queue of their stripe is full.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * The observation thread waits for room in the queue.
+         */
+        BLOCK,
+
+        /**
+         * The oldest queued events are dropped to make room.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Events are written to disk until the queue has been drained.
+         */
+        SPILL
+    }
+
+    /**
+     * Processes batches of events taken from the queue.
+     */
+    public interface EventBatchProcessor
+    {
+        void process(JcrEventBatch eventBatch) throws Exception;
+    }
+
+    private final String name;
+
+    private final EventBatchProcessor processor;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final File spillDirectory;
+
+    private final Stripe[] stripes;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong processed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong spilled = new AtomicLong();
+
+    private final AtomicLong maxEventAge = new AtomicLong();
+
+    private final AtomicLong spillSequence = new AtomicLong();
+
+    private volatile boolean running;
+
+    public JcrEventHandOff(final String name,
+                           final EventBatchProcessor processor,
+                           final int capacity,
+                           final int workers,
+                           final OverflowPolicy overflowPolicy,
+                           final File spillDirectory)
+    {
+        this.name = name;
+        this.processor = processor;
+        this.overflowPolicy = overflowPolicy;
+        this.spillDirectory = spillDirectory;
+
+        final int stripeCount = Math.max(1, workers);
+        final int stripeCapacity = Math.max(1, capacity / stripeCount);
+
+        stripes = new Stripe[stripeCount];
+
+        final NamedThreadFactory threadFactory = new NamedThreadFactory(name + ".events");
+
+        for (int i = 0; i < stripeCount; i++)
+        {
+            stripes[i] = new Stripe(i, stripeCapacity, threadFactory);
+        }
+    }
+
+    public void start()
+    {
+        if ((OverflowPolicy.SPILL.equals(overflowPolicy)) && (!spillDirectory.isDirectory())
+            && (!spillDirectory.mkdirs()))
+        {
+            throw new IllegalStateException("Can not create event spill directory: " + spillDirectory);
+        }
+
+        running = true;
+
+        for (final Stripe stripe : stripes)
+        {
+            stripe.worker.start();
+        }
+    }
+
+    /**
+     * Stops the workers once they have processed all the queued events.
+     */
+    public void stop()
+    {
+        running = false;
+
+        for (final Stripe stripe : stripes)
+        {
+            try
+            {
+                stripe.worker.join();
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues events for processing, splitting them by stripe while keeping their
+     * relative order.
+     *
+     * @throws InterruptedException if interrupted while waiting for room in a
+     *             queue.
+     */
+    public void handOff(final JcrEventBatch eventBatch) throws InterruptedException
+    {
+        final List<List<JcrMessage>> eventsByStripe = new ArrayList<List<JcrMessage>>(stripes.length);
+        final List<List<Map<Long, Integer>>> journalEntriesByStripe = new ArrayList<List<Map<Long, Integer>>>(
+            stripes.length);
+
+        for (int i = 0; i < stripes.length; i++)
+        {
+            eventsByStripe.add(null);
+            journalEntriesByStripe.add(null);
+        }
+
+        final List<JcrMessage> events = eventBatch.getEvents();
+        final boolean journaled = eventBatch.getJournalEntries() != null;
+
+        for (int i = 0; i < events.size(); i++)
+        {
+            final JcrMessage event = events.get(i);
+            final int stripeIndex = getStripeIndex(event);
+
+            List<JcrMessage> stripeEvents = eventsByStripe.get(stripeIndex);
+
+            if (stripeEvents == null)
+            {
+                stripeEvents = new ArrayList<JcrMessage>();
+                eventsByStripe.set(stripeIndex, stripeEvents);
+
+                if (journaled)
+                {
+                    journalEntriesByStripe.set(stripeIndex, new ArrayList<Map<Long, Integer>>());
+                }
+            }
+
+            stripeEvents.add(event);
+
+            if (journaled)
+            {
+                journalEntriesByStripe.get(stripeIndex).add(eventBatch.getJournalEntries(i));
+            }
+        }
+
+        received.addAndGet(events.size());
+
+        for (int i = 0; i < stripes.length; i++)
+        {
+            final List<JcrMessage> stripeEvents = eventsByStripe.get(i);
+
+            if (stripeEvents != null)
+            {
+                stripes[i].offer(new JcrEventBatch(stripeEvents, eventBatch.getCreationTime(),
+                    journalEntriesByStripe.get(i)));
+            }
+        }
+    }
+
+    /**
+     * @return the number of events waiting to be processed, in memory or on disk.
+     */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+
+        for (final Stripe stripe : stripes)
+        {
+            depth += stripe.getDepth();
+        }
+
+        return depth;
+    }
+
+    /**
+     * @return the age, in milliseconds, of the oldest event waiting to be
+     *         processed.
+     */
+    public long getOldestEventAge()
+    {
+        final long now = System.currentTimeMillis();
+        long oldest = now;
+
+        for (final Stripe stripe : stripes)
+        {
+            oldest = Math.min(oldest, stripe.getOldestCreationTime(now));
+        }
+
+        return now - oldest;
+    }
+
+    /**
+     * @return the maximum age, in milliseconds, of an event when its processing
+     *         started.
+     */
+    public long getMaxEventAge()
+    {
+        return maxEventAge.get();
+    }
+
+    public long getReceivedCount()
+    {
+        return received.get();
+    }
+
+    public long getProcessedCount()
+    {
+        return processed.get();
+    }
+
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    public long getSpilledCount()
+    {
+        return spilled.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JcrEventHandOff[name=" + name + ", workers=" + stripes.length + ", overflowPolicy="
+               + overflowPolicy + ", queueDepth=" + getQueueDepth() + ", received=" + getReceivedCount()
+               + ", processed=" + getProcessedCount() + ", dropped=" + getDroppedCount() + ", spilled="
+               + getSpilledCount() + ", maxEventAge=" + getMaxEventAge() + "ms]";
+    }
+
+    private int getStripeIndex(final Event event)
+    {
+        return (getNodePath(event).hashCode() & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    /**
+     * @return the path of the node an event is about: the parent path of the
+     *         property for property events, the node path otherwise.
+     */
+    static String getNodePath(final Event event)
+    {
+        String path;
+
+        try
+        {
+            path = event.getPath();
+        }
+        catch (final Exception e)
+        {
+            return "";
+        }
+
+        if ((path == null)
+            || ((event.getType() & (Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED)) == 0))
+        {
+            return path == null ? "" : path;
+        }
+
+        final int lastSlash = path.lastIndexOf('/');
+        return lastSlash > 0 ? path.substring(0, lastSlash) : "/";
+    }
+
+    private void process(final JcrEventBatch eventBatch)
+    {
+        final long age = System.currentTimeMillis() - eventBatch.getCreationTime();
+
+        long currentMax;
+        while ((age > (currentMax = maxEventAge.get())) && (!maxEventAge.compareAndSet(currentMax, age)))
+        {
+            // retry until the maximum is updated or exceeded
+        }
+
+        try
+        {
+            processor.process(eventBatch);
+        }
+        catch (final Exception e)
+        {
+            LOG.error("Can not process JCR events: " + eventBatch.getEvents(), e);
+        }
+        finally
+        {
+            processed.addAndGet(eventBatch.getEvents().size());
+        }
+    }
+
+    private static final class SpilledBatch
+    {
+        private final File file;
+
+        private final long creationTime;
+
+        private final int size;
+
+        SpilledBatch(final File file, final long creationTime, final int size)
+        {
+            this.file = file;
+            this.creationTime = creationTime;
+            this.size = size;
+        }
+    }
+
+    private final class Stripe
+    {
+        private final int index;
+
+        private final BlockingQueue<JcrEventBatch> queue;
+
+        private final LinkedList<SpilledBatch> spilledBatches = new LinkedList<SpilledBatch>();
+
+        private final Thread worker;
+
+        Stripe(final int index, final int capacity, final NamedThreadFactory threadFactory)
+        {
+            this.index = index;
+
+            queue = new ArrayBlockingQueue<JcrEventBatch>(capacity);
+
+            worker = threadFactory.newThread(new Runnable()
+            {
+                public void run()
+                {
+                    drain();
+                }
+            });
+        }
+
+        void offer(final JcrEventBatch eventBatch) throws InterruptedException
+        {
+            switch (overflowPolicy)
+            {
+                case DROP_OLDEST :
+                    while (!queue.offer(eventBatch))
+                    {
+                        final JcrEventBatch droppedBatch = queue.poll();
+
+                        if (droppedBatch != null)
+                        {
+                            dropped.addAndGet(droppedBatch.getEvents().size());
+
+                            if (LOG.isWarnEnabled())
+                            {
+                                LOG.warn("Event queue of " + name + " is full, dropped: "
+                                         + droppedBatch.getEvents());
+                            }
+                        }
+                    }
+                    break;
+
+                case SPILL :
+                    synchronized (this)
+                    {
+                        // once spilling has started, events keep on being spilled
+                        // until the spill is drained so they stay in order
+                        if ((!spilledBatches.isEmpty()) || (!queue.offer(eventBatch)))
+                        {
+                            spill(eventBatch);
+                        }
+                    }
+                    break;
+
+                default :
+                    queue.put(eventBatch);
+            }
+        }
+
+        int getDepth()
+        {
+            int depth = 0;
+
+            for (final JcrEventBatch eventBatch : queue)
+            {
+                depth += eventBatch.getEvents().size();
+            }
+
+            synchronized (this)
+            {
+                for (final SpilledBatch spilledBatch : spilledBatches)
+                {
+                    depth += spilledBatch.size;
+                }
+            }
+
+            return depth;
+        }
+
+        long getOldestCreationTime(final long defaultTime)
+        {
+            final JcrEventBatch head = queue.peek();
+
+            if (head != null)
+            {
+                return head.getCreationTime();
+            }
+
+            synchronized (this)
+            {
+                return spilledBatches.isEmpty() ? defaultTime : spilledBatches.getFirst().creationTime;
+            }
+        }
+
+        private void spill(final JcrEventBatch eventBatch)
+        {
+            final File file = new File(spillDirectory, name + "-" + index + "-"
+                                                       + spillSequence.incrementAndGet() + ".spill");
+            ObjectOutputStream oos = null;
+
+            try
+            {
+                oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                oos.writeObject(eventBatch);
+                oos.flush();
+            }
+            catch (final IOException ioe)
+            {
+                dropped.addAndGet(eventBatch.getEvents().size());
+                LOG.error("Can not spill JCR events to: " + file + ", dropped: " + eventBatch.getEvents(), ioe);
+                return;
+            }
+            finally
+            {
+                IOUtils.closeQuietly(oos);
+            }
+
+            spilledBatches.add(new SpilledBatch(file, eventBatch.getCreationTime(), eventBatch.getEvents()
+                .size()));
+            spilled.addAndGet(eventBatch.getEvents().size());
+        }
+
+        private JcrEventBatch unspill()
+        {
+            final SpilledBatch spilledBatch;
+
+            synchronized (this)
+            {
+                if (spilledBatches.isEmpty())
+                {
+                    return null;
+                }
+
+                spilledBatch = spilledBatches.getFirst();
+            }
+
+            ObjectInputStream ois = null;
+
+            try
+            {
+                ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(spilledBatch.file)));
+                return (JcrEventBatch) ois.readObject();
+            }
+            catch (final Exception e)
+            {
+                dropped.addAndGet(spilledBatch.size);
+                LOG.error("Can not read spilled JCR events from: " + spilledBatch.file + ", dropping them", e);
+                return null;
+            }
+            finally
+            {
+                IOUtils.closeQuietly(ois);
+
+                synchronized (this)
+                {
+                    spilledBatches.removeFirst();
+                }
+
+                if (!spilledBatch.file.delete())
+                {
+                    LOG.warn("Can not delete spill file: " + spilledBatch.file);
+                }
+            }
+        }
+
+        private void drain()
+        {
+            try
+            {
+                while (true)
+                {
+                    JcrEventBatch eventBatch = queue.poll();
+
+                    if (eventBatch == null)
+                    {
+                        // the in-memory events are older than the spilled ones
+                        eventBatch = unspill();
+                    }
+
+                    if ((eventBatch == null) && (!running) && (getDepth() == 0))
+                    {
+                        return;
+                    }
+
+                    if (eventBatch == null)
+                    {
+                        eventBatch = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+
+                    if (eventBatch != null)
+                    {
+                        process(eventBatch);
+                    }
+                }
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,654 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.transport.jcr.JcrEventBatch;
+import org.mule.util.concurrent.NamedThreadFactory;
+
+/**
+ * An append-only journal of received event batches, stored in memory-mapped
+ * segment files. A batch is appended before it is routed and acknowledged once
+ * all its events have been processed: the batches that have not been acknowledged
+ * are returned when the journal is opened, so they can be replayed after a
+ * restart. Segments whose entries are all acknowledged are deleted, and the live
+ * entries of the oldest segment are moved to the current one when most of its
+ * entries are acknowledged. Each record carries a checksum: records torn by a crash
+ * or corrupted on disk are logged and skipped when the journal is opened.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrEventJournal
+{
+    public enum SyncPolicy
+    {
+        /**
+         * Each write is forced to disk before returning.
+         */
+        ALWAYS,
+
+        /**
+         * Writes are forced to disk periodically.
+         */
+        INTERVAL,
+
+        /**
+         * Writes are left to the operating system.
+         */
+        NEVER
+    }
+
+    private static final Log LOG = LogFactory.getLog(JcrEventJournal.class);
+
+    private static final byte ENTRY_RECORD = 1;
+
+    private static final byte ACK_RECORD = 2;
+
+    // payload length, record kind, entry id and checksum
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8 + 4;
+
+    private static final int CHECKSUM_OFFSET = 4 + 1 + 8;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final double COMPACTION_THRESHOLD = 0.5d;
+
+    private final String name;
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final SyncPolicy syncPolicy;
+
+    private final long syncInterval;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    private final Map<Long, PendingEntry> pendingEntries = new LinkedHashMap<Long, PendingEntry>();
+
+    private Segment currentSegment;
+
+    private long nextEntryId;
+
+    private long nextSegmentSequence;
+
+    private Thread syncThread;
+
+    private volatile boolean open;
+
+    public JcrEventJournal(final String name,
+                           final File directory,
+                           final int segmentSize,
+                           final SyncPolicy syncPolicy,
+                           final long syncInterval)
+    {
+        this.name = name;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncPolicy = syncPolicy;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Opens the journal, recovering the existing segments.
+     *
+     * @return the batches that have not been acknowledged, in the order they have
+     *         been appended, tagged with their journal entries.
+     */
+    public synchronized List<JcrEventBatch> open() throws IOException
+    {
+        directory.mkdirs();
+
+        final File[] segmentFiles = directory.listFiles(new FileFilter()
+        {
+            public boolean accept(final File file)
+            {
+                return file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        // zero-padded sequences sort in their numerical order
+        Arrays.sort(segmentFiles);
+
+        for (final File segmentFile : segmentFiles)
+        {
+            recover(segmentFile);
+        }
+
+        final List<JcrEventBatch> pendingBatches = new ArrayList<JcrEventBatch>();
+        final List<PendingEntry> unreadableEntries = new ArrayList<PendingEntry>();
+
+        for (final PendingEntry pendingEntry : pendingEntries.values())
+        {
+            final JcrEventBatch eventBatch;
+
+            try
+            {
+                eventBatch = pendingEntry.segment.readBatch(pendingEntry);
+            }
+            catch (final Exception e)
+            {
+                // a single bad entry must not prevent the others from being replayed
+                LOG.error("Skipping unreadable journal entry: " + pendingEntry.id + " of: "
+                          + pendingEntry.segment.file, e);
+                unreadableEntries.add(pendingEntry);
+                continue;
+            }
+
+            eventBatch.setJournalEntry(pendingEntry.id);
+            pendingEntry.remainingEvents = eventBatch.getEvents().size();
+            pendingBatches.add(eventBatch);
+        }
+
+        rollSegment(0);
+
+        for (final PendingEntry unreadableEntry : unreadableEntries)
+        {
+            // acknowledged so it is not read again on next open
+            unreadableEntry.remainingEvents = 0;
+            acknowledge(unreadableEntry.id, 0);
+        }
+
+        deleteAcknowledgedSegments();
+
+        open = true;
+
+        if (syncPolicy == SyncPolicy.INTERVAL)
+        {
+            syncThread = new NamedThreadFactory(name + ".journal").newThread(new Runnable()
+            {
+                public void run()
+                {
+                    syncPeriodically();
+                }
+            });
+
+            syncThread.start();
+        }
+
+        if (LOG.isInfoEnabled())
+        {
+            LOG.info("Opened: " + this + " - batches to replay: " + pendingBatches.size());
+        }
+
+        return pendingBatches;
+    }
+
+    /**
+     * Writes a batch to the journal and tags its events with the new entry.
+     */
+    public synchronized long append(final JcrEventBatch eventBatch) throws IOException
+    {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(eventBatch);
+        oos.close();
+
+        final long entryId = nextEntryId++;
+        final PendingEntry pendingEntry = writeEntry(entryId, baos.toByteArray());
+        pendingEntry.remainingEvents = eventBatch.getEvents().size();
+
+        eventBatch.setJournalEntry(entryId);
+
+        if (pendingEntry.remainingEvents == 0)
+        {
+            acknowledge(entryId, 0);
+        }
+
+        return entryId;
+    }
+
+    /**
+     * Acknowledges processed events, as tagged by
+     * {@link JcrEventBatch#getJournalEntries()}: an entry is acknowledged once all
+     * its events have been.
+     */
+    public synchronized void acknowledge(final Map<Long, Integer> journalEntries) throws IOException
+    {
+        if (journalEntries == null)
+        {
+            return;
+        }
+
+        for (final Map.Entry<Long, Integer> journalEntry : journalEntries.entrySet())
+        {
+            acknowledge(journalEntry.getKey().longValue(), journalEntry.getValue().intValue());
+        }
+    }
+
+    /**
+     * Forces all the segments to disk and stops the journal.
+     */
+    public void close()
+    {
+        final Thread currentSyncThread;
+
+        synchronized (this)
+        {
+            open = false;
+            currentSyncThread = syncThread;
+            syncThread = null;
+            notifyAll();
+
+            for (final Segment segment : segments)
+            {
+                segment.buffer.force();
+            }
+        }
+
+        if (currentSyncThread != null)
+        {
+            try
+            {
+                currentSyncThread.join();
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries that have not been acknowledged.
+     */
+    public synchronized int getPendingEntryCount()
+    {
+        return pendingEntries.size();
+    }
+
+    /**
+     * @return the number of segment files.
+     */
+    public synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "JcrEventJournal[directory=" + directory + ", segmentSize=" + segmentSize + ", syncPolicy="
+               + syncPolicy + ", segments=" + segments.size() + ", pendingEntries=" + pendingEntries.size() + "]";
+    }
+
+    private void acknowledge(final long entryId, final int eventCount) throws IOException
+    {
+        final PendingEntry pendingEntry = pendingEntries.get(Long.valueOf(entryId));
+
+        if (pendingEntry == null)
+        {
+            return;
+        }
+
+        pendingEntry.remainingEvents -= eventCount;
+
+        if (pendingEntry.remainingEvents > 0)
+        {
+            return;
+        }
+
+        writeRecord(ACK_RECORD, entryId, new byte[0]);
+        sync();
+
+        pendingEntries.remove(Long.valueOf(entryId));
+        pendingEntry.segment.liveEntries--;
+
+        deleteAcknowledgedSegments();
+    }
+
+    private PendingEntry writeEntry(final long entryId, final byte[] payload) throws IOException
+    {
+        final int offset = writeRecord(ENTRY_RECORD, entryId, payload);
+        sync();
+
+        final PendingEntry pendingEntry = new PendingEntry(entryId, currentSegment, offset, payload.length);
+        pendingEntries.put(Long.valueOf(entryId), pendingEntry);
+        currentSegment.entries++;
+        currentSegment.liveEntries++;
+
+        return pendingEntry;
+    }
+
+    private int writeRecord(final byte kind, final long entryId, final byte[] payload) throws IOException
+    {
+        final int recordSize = RECORD_HEADER_SIZE + payload.length;
+
+        if (currentSegment.buffer.remaining() < recordSize)
+        {
+            rollSegment(recordSize);
+        }
+
+        final MappedByteBuffer buffer = currentSegment.buffer;
+        final int offset = buffer.position();
+
+        // the kind is written last, but as the pages of a mapped buffer may reach
+        // the disk in any order, the checksum is what tells a complete record
+        buffer.putInt(offset, payload.length);
+        buffer.putLong(offset + 5, entryId);
+        buffer.putInt(offset + CHECKSUM_OFFSET, checksum(kind, entryId, payload));
+        buffer.position(offset + RECORD_HEADER_SIZE);
+        buffer.put(payload);
+        buffer.put(offset + 4, kind);
+
+        return offset;
+    }
+
+    private void sync()
+    {
+        if (syncPolicy == SyncPolicy.ALWAYS)
+        {
+            currentSegment.buffer.force();
+        }
+    }
+
+    private void rollSegment(final int minimumSize) throws IOException
+    {
+        if (currentSegment != null)
+        {
+            currentSegment.buffer.force();
+        }
+
+        final File segmentFile = new File(directory, SEGMENT_PREFIX + String.format("%020d", nextSegmentSequence++)
+                                                     + SEGMENT_SUFFIX);
+
+        currentSegment = new Segment(segmentFile, map(segmentFile, Math.max(segmentSize, minimumSize)));
+        segments.add(currentSegment);
+
+        compactOldestSegment(minimumSize);
+    }
+
+    /**
+     * Moves the live entries of the oldest segment to the current one if most of
+     * its entries have been acknowledged, so it can be deleted.
+     */
+    private void compactOldestSegment(final int reservedSize) throws IOException
+    {
+        if (segments.size() < 2)
+        {
+            return;
+        }
+
+        final Segment oldestSegment = segments.get(0);
+
+        if ((oldestSegment.liveEntries == 0)
+            || (oldestSegment.liveEntries > oldestSegment.entries * COMPACTION_THRESHOLD))
+        {
+            return;
+        }
+
+        final List<PendingEntry> movedEntries = new ArrayList<PendingEntry>();
+
+        for (final PendingEntry pendingEntry : pendingEntries.values())
+        {
+            if (pendingEntry.segment == oldestSegment)
+            {
+                movedEntries.add(pendingEntry);
+            }
+        }
+
+        for (final PendingEntry movedEntry : movedEntries)
+        {
+            final byte[] payload = oldestSegment.readPayload(movedEntry);
+
+            if (currentSegment.buffer.remaining() < RECORD_HEADER_SIZE + payload.length + reservedSize)
+            {
+                // compaction does not roll segments by itself, and leaves room for
+                // the record that caused the roll
+                return;
+            }
+
+            final int offset = writeRecord(ENTRY_RECORD, movedEntry.id, payload);
+
+            oldestSegment.liveEntries--;
+            movedEntry.segment = currentSegment;
+            movedEntry.offset = offset;
+            currentSegment.entries++;
+            currentSegment.liveEntries++;
+        }
+
+        currentSegment.buffer.force();
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Deletes the oldest segments as long as they have no live entry: a segment is
+     * never deleted before an older one, which may hold entries its
+     * acknowledgments refer to.
+     */
+    private void deleteAcknowledgedSegments()
+    {
+        while ((segments.size() > 1) && (segments.get(0) != currentSegment) && (segments.get(0).liveEntries == 0))
+        {
+            final Segment segment = segments.remove(0);
+
+            if (!segment.file.delete())
+            {
+                LOG.warn("Can not delete journal segment: " + segment.file);
+            }
+        }
+    }
+
+    private void recover(final File segmentFile) throws IOException
+    {
+        final Segment segment = new Segment(segmentFile, map(segmentFile, (int) segmentFile.length()));
+        segments.add(segment);
+
+        final String sequence = segmentFile.getName().substring(SEGMENT_PREFIX.length(),
+            segmentFile.getName().length() - SEGMENT_SUFFIX.length());
+
+        nextSegmentSequence = Math.max(nextSegmentSequence, Long.parseLong(sequence) + 1);
+
+        final MappedByteBuffer buffer = segment.buffer;
+
+        while (buffer.remaining() >= RECORD_HEADER_SIZE)
+        {
+            final int offset = buffer.position();
+            final int payloadLength = buffer.getInt(offset);
+            final byte kind = buffer.get(offset + 4);
+            final long entryId = buffer.getLong(offset + 5);
+
+            if (((kind != ENTRY_RECORD) && (kind != ACK_RECORD)) || (payloadLength < 0)
+                || (payloadLength > buffer.limit() - offset - RECORD_HEADER_SIZE))
+            {
+                // end of the written records, or a record torn by a crash
+                break;
+            }
+
+            buffer.position(offset + RECORD_HEADER_SIZE + payloadLength);
+
+            if (buffer.getInt(offset + CHECKSUM_OFFSET) != checksum(kind, entryId,
+                segment.readPayload(offset, payloadLength)))
+            {
+                LOG.warn("Skipping corrupt journal record at offset: " + offset + " of: " + segmentFile);
+                continue;
+            }
+
+            nextEntryId = Math.max(nextEntryId, entryId + 1);
+
+            if (kind == ENTRY_RECORD)
+            {
+                // a compacted entry supersedes its previous copy
+                final PendingEntry previousEntry = pendingEntries.remove(Long.valueOf(entryId));
+
+                if (previousEntry != null)
+                {
+                    previousEntry.segment.liveEntries--;
+                }
+
+                pendingEntries.put(Long.valueOf(entryId), new PendingEntry(entryId, segment, offset, payloadLength));
+                segment.entries++;
+                segment.liveEntries++;
+            }
+            else
+            {
+                final PendingEntry acknowledgedEntry = pendingEntries.remove(Long.valueOf(entryId));
+
+                if (acknowledgedEntry != null)
+                {
+                    acknowledgedEntry.segment.liveEntries--;
+                }
+            }
+        }
+    }
+
+    private void syncPeriodically()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (!open)
+                {
+                    return;
+                }
+
+                try
+                {
+                    wait(syncInterval);
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                if (currentSegment != null)
+                {
+                    currentSegment.buffer.force();
+                }
+            }
+        }
+    }
+
+    private static int checksum(final byte kind, final long entryId, final byte[] payload)
+    {
+        final CRC32 crc = new CRC32();
+        crc.update(kind);
+
+        for (int shift = 56; shift >= 0; shift -= 8)
+        {
+            crc.update((int) (entryId >>> shift));
+        }
+
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static MappedByteBuffer map(final File file, final int size) throws IOException
+    {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            // the mapping stays valid after the channel is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    private static final class Segment
+    {
+        private final File file;
+
+        private final MappedByteBuffer buffer;
+
+        private int entries;
+
+        private int liveEntries;
+
+        Segment(final File file, final MappedByteBuffer buffer)
+        {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        byte[] readPayload(final PendingEntry pendingEntry)
+        {
+            return readPayload(pendingEntry.offset, pendingEntry.payloadLength);
+        }
+
+        byte[] readPayload(final int offset, final int payloadLength)
+        {
+            final byte[] payload = new byte[payloadLength];
+
+            final ByteBuffer record = buffer.duplicate();
+            record.position(offset + RECORD_HEADER_SIZE);
+            record.get(payload);
+
+            return payload;
+        }
+
+        JcrEventBatch readBatch(final PendingEntry pendingEntry) throws IOException
+        {
+            final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readPayload(pendingEntry)));
+
+            try
+            {
+                return (JcrEventBatch) ois.readObject();
+            }
+            catch (final ClassNotFoundException cnfe)
+            {
+                throw (IOException) new IOException("Can not read journal entry: " + pendingEntry.id).initCause(cnfe);
+            }
+            finally
+            {
+                ois.close();
+            }
+        }
+    }
+
+    private static final class PendingEntry
+    {
+        private final long id;
+
+        private final int payloadLength;
+
+        private Segment segment;
+
+        private int offset;
+
+        private int remainingEvents;
+
+        PendingEntry(final long id, final Segment segment, final int offset, final int payloadLength)
+        {
+            this.id = id;
+            this.segment = segment;
+            this.offset = offset;
+            this.payloadLength = payloadLength;
+        }
+    }
+}
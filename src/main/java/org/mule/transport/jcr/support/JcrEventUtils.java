@@ -10,6 +10,10 @@
 
 package org.mule.transport.jcr.support;
 
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import javax.jcr.Item;
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -20,7 +24,9 @@ import javax.jcr.observation.Event;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mule.api.MuleEvent;
+import org.mule.transport.jcr.JcrConnector;
 import org.mule.transport.jcr.JcrContentPayloadType;
+import org.mule.transport.jcr.JcrMessage;
 
 /**
  * @author David Dossot (david@dossot.net)
@@ -55,6 +61,30 @@ public abstract class JcrEventUtils
         }
     }
 
+    /**
+     * @return the names of the event types of a mask, separated by '|'.
+     */
+    public static String getEventTypeNamesFromMask(final int eventTypes)
+    {
+        final StringBuilder names = new StringBuilder();
+
+        for (final int eventType : new int[]{Event.NODE_ADDED, Event.NODE_REMOVED, Event.PROPERTY_ADDED,
+            Event.PROPERTY_CHANGED, Event.PROPERTY_REMOVED})
+        {
+            if ((eventTypes & eventType) != 0)
+            {
+                if (names.length() > 0)
+                {
+                    names.append('|');
+                }
+
+                names.append(getEventTypeNameFromValue(eventType));
+            }
+        }
+
+        return names.length() > 0 ? names.toString() : getEventTypeNameFromValue(eventTypes);
+    }
+
     public static String getParsableEventProperty(final MuleEvent event, final String propertyName)
     {
         final String expression = (String) event.getMessage().findPropertyInAnyScope(propertyName, null);
@@ -79,9 +109,15 @@ public abstract class JcrEventUtils
 
     static EventContent getEventContent(final Event event,
                                         final Session session,
-                                        final JcrContentPayloadType contentPayloadType)
+                                        final JcrContentPayloadType contentPayloadType,
+                                        final JcrConnector connector)
     {
 
+        if ((event instanceof JcrMessage) && (((JcrMessage) event).isCoalesced()))
+        {
+            return getCoalescedEventContent((JcrMessage) event, session, contentPayloadType, connector);
+        }
+
         final EventContent result = new EventContent();
 
         if (!JcrContentPayloadType.NONE.equals(contentPayloadType))
@@ -109,7 +145,7 @@ public abstract class JcrEventUtils
                     {
                         // is not a node == is a property
                         result.setData(JcrPropertyUtils.outputProperty(eventPath, (Property) item,
-                            contentPayloadType));
+                            contentPayloadType, connector));
                     }
 
                 }
@@ -142,6 +178,82 @@ public abstract class JcrEventUtils
         return result;
     }
 
+    /**
+     * Fetches the current values of the properties changed by a coalesced event,
+     * and the UUID of its node if it has been added.
+     */
+    private static EventContent getCoalescedEventContent(final JcrMessage event,
+                                                         final Session session,
+                                                         final JcrContentPayloadType contentPayloadType,
+                                                         final JcrConnector connector)
+    {
+        final EventContent result = new EventContent();
+
+        final Map<String, Serializable> changedProperties = new LinkedHashMap<String, Serializable>();
+
+        if (event.getContent() instanceof Map<?, ?>)
+        {
+            for (final Object propertyName : ((Map<?, ?>) event.getContent()).keySet())
+            {
+                changedProperties.put(propertyName.toString(), "");
+            }
+        }
+
+        result.setData((Serializable) changedProperties);
+
+        if (JcrContentPayloadType.NONE.equals(contentPayloadType))
+        {
+            return result;
+        }
+
+        final String nodePath = event.getPath();
+
+        try
+        {
+            // the merged type of a node removed then re-added in the same window
+            // keeps both bits, so only the repository can tell if it still exists
+            if (!session.itemExists(nodePath))
+            {
+                return result;
+            }
+
+            final Item item = session.getItem(nodePath);
+
+            if (!item.isNode())
+            {
+                return result;
+            }
+
+            final Node node = (Node) item;
+
+            if (((event.getType() & Event.NODE_ADDED) != 0) && (node.isNodeType("mix:referenceable")))
+            {
+                result.setUuid(node.getUUID());
+            }
+
+            for (final Map.Entry<String, Serializable> changedProperty : changedProperties.entrySet())
+            {
+                if (node.hasProperty(changedProperty.getKey()))
+                {
+                    final Property property = node.getProperty(changedProperty.getKey());
+
+                    changedProperty.setValue(JcrPropertyUtils.outputProperty(property.getPath(), property,
+                        contentPayloadType, connector));
+                }
+            }
+        }
+        catch (final RepositoryException ignoredException)
+        {
+            if (LOG.isInfoEnabled())
+            {
+                LOG.info("Can not fetch content for coalesced event path: " + nodePath + "("
+                         + ignoredException.getMessage() + ")");
+            }
+        }
+
+        return result;
+    }
+
     private JcrEventUtils()
     {
         throw new UnsupportedOperationException("Do not instantiate");
@@ -0,0 +1,446 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.transport.jcr.JcrConnector;
+import org.mule.util.concurrent.NamedThreadFactory;
+
+/**
+ * Collects the writes of concurrent dispatches and persists them with a single
+ * <code>Session.save()</code>. Writes are applied by a dedicated thread, which owns
+ * its own session, in groups bounded by a maximum size and a maximum delay. If a
+ * group can not be saved, its changes are discarded and each write is replayed and
+ * saved on its own, so only the faulty writes fail. A write can be cancelled as
+ * long as the committer has not started to perform it.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrGroupCommitter
+{
+    private static final Log LOG = LogFactory.getLog(JcrGroupCommitter.class);
+
+    private static final long IDLE_POLL_MILLIS = 500L;
+
+    /**
+     * A write to perform in the session of the group committer, without saving it.
+     */
+    public interface ItemWriter
+    {
+        /**
+         * @param session the session to write to.
+         * @return the path of the stored item, or null if none has been stored.
+         * @throws Exception if the write failed.
+         */
+        String write(Session session) throws Exception;
+    }
+
+    private final JcrConnector connector;
+
+    private final int maxSize;
+
+    private final long maxDelay;
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+
+    private final Thread writerThread;
+
+    private final AtomicLong groupSaves = new AtomicLong();
+
+    private final AtomicLong fallbackSaves = new AtomicLong();
+
+    private final AtomicLong writes = new AtomicLong();
+
+    // guards the transitions of running against the writes being queued
+    private final Object runningLock = new Object();
+
+    private volatile boolean running;
+
+    private Session session;
+
+    public JcrGroupCommitter(final JcrConnector connector, final int maxSize, final long maxDelay)
+    {
+        this.connector = connector;
+        this.maxSize = Math.max(1, maxSize);
+        this.maxDelay = Math.max(0L, maxDelay);
+
+        writerThread = new NamedThreadFactory(connector.getName() + ".groupCommit").newThread(new Runnable()
+        {
+            public void run()
+            {
+                processWrites();
+            }
+        });
+    }
+
+    public void start()
+    {
+        running = true;
+        writerThread.start();
+    }
+
+    /**
+     * Stops accepting writes, persists the pending ones and releases the session of
+     * the committer.
+     */
+    public void stop()
+    {
+        synchronized (runningLock)
+        {
+            running = false;
+        }
+
+        try
+        {
+            writerThread.join();
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a write for the next group.
+     *
+     * @param writer the write to perform.
+     * @return a future completed with the path of the stored item once it has been
+     *         saved, which can be cancelled until the write is performed.
+     */
+    public Future<String> submit(final ItemWriter writer)
+    {
+        final PendingWrite pendingWrite = new PendingWrite(writer);
+
+        // once running is false, the writer thread only drains what has been
+        // queued before, so no write can be queued after its last drain
+        synchronized (runningLock)
+        {
+            if (!running)
+            {
+                throw new IllegalStateException("The group committer of connector: " + connector.getName()
+                                                + " is not running: is the connector started?");
+            }
+
+            queue.add(pendingWrite);
+        }
+
+        return pendingWrite;
+    }
+
+    /**
+     * @return the number of groups persisted with a single save.
+     */
+    public long getGroupSaves()
+    {
+        return groupSaves.get();
+    }
+
+    /**
+     * @return the number of writes that had to be saved on their own after the
+     *         failure of their group.
+     */
+    public long getFallbackSaves()
+    {
+        return fallbackSaves.get();
+    }
+
+    /**
+     * @return the total number of writes processed.
+     */
+    public long getWrites()
+    {
+        return writes.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JcrGroupCommitter[maxSize=" + maxSize + ", maxDelay=" + maxDelay + "ms, writes="
+               + getWrites() + ", groupSaves=" + getGroupSaves() + ", fallbackSaves="
+               + getFallbackSaves() + "]";
+    }
+
+    private void processWrites()
+    {
+        try
+        {
+            final List<PendingWrite> group = new ArrayList<PendingWrite>(maxSize);
+
+            while (running || !queue.isEmpty())
+            {
+                final PendingWrite first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (first == null)
+                {
+                    continue;
+                }
+
+                group.add(first);
+                final long deadline = System.currentTimeMillis() + maxDelay;
+
+                while (group.size() < maxSize)
+                {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    final PendingWrite next = remaining > 0L
+                                                            ? queue.poll(remaining, TimeUnit.MILLISECONDS)
+                                                            : queue.poll();
+                    if (next == null)
+                    {
+                        break;
+                    }
+
+                    group.add(next);
+                }
+
+                commit(group);
+                group.clear();
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            // the writer thread may also end when interrupted
+            synchronized (runningLock)
+            {
+                running = false;
+            }
+
+            failPendingWrites();
+            connector.terminateSession(session);
+            session = null;
+        }
+    }
+
+    private void commit(final List<PendingWrite> group)
+    {
+        // writes cancelled while queued, for example when their dispatch timed
+        // out, are dropped so they are not stored behind the back of their caller
+        for (final Iterator<PendingWrite> i = group.iterator(); i.hasNext();)
+        {
+            if (!i.next().start())
+            {
+                i.remove();
+            }
+        }
+
+        if (group.isEmpty())
+        {
+            return;
+        }
+
+        writes.addAndGet(group.size());
+
+        final Session groupSession;
+
+        try
+        {
+            session = connector.validateSession(session);
+            groupSession = session;
+        }
+        catch (final RuntimeException re)
+        {
+            for (final PendingWrite pendingWrite : group)
+            {
+                pendingWrite.fail(re);
+            }
+            return;
+        }
+
+        try
+        {
+            final String[] paths = new String[group.size()];
+
+            for (int i = 0; i < paths.length; i++)
+            {
+                paths[i] = group.get(i).writer.write(groupSession);
+            }
+
+            groupSession.save();
+            groupSaves.incrementAndGet();
+
+            for (int i = 0; i < paths.length; i++)
+            {
+                group.get(i).complete(paths[i]);
+            }
+        }
+        catch (final Exception e)
+        {
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Group of " + group.size() + " writes could not be saved, saving each write alone",
+                    e);
+            }
+
+            discardChanges(groupSession);
+
+            for (final PendingWrite pendingWrite : group)
+            {
+                commitAlone(groupSession, pendingWrite);
+            }
+        }
+    }
+
+    private void commitAlone(final Session groupSession, final PendingWrite pendingWrite)
+    {
+        fallbackSaves.incrementAndGet();
+
+        try
+        {
+            final String path = pendingWrite.writer.write(groupSession);
+            groupSession.save();
+            pendingWrite.complete(path);
+        }
+        catch (final Exception e)
+        {
+            discardChanges(groupSession);
+            pendingWrite.fail(e);
+        }
+    }
+
+    private void discardChanges(final Session groupSession)
+    {
+        try
+        {
+            groupSession.refresh(false);
+        }
+        catch (final RepositoryException re)
+        {
+            LOG.warn("Can not discard pending changes of group commit session", re);
+        }
+    }
+
+    private void failPendingWrites()
+    {
+        PendingWrite pendingWrite;
+
+        while ((pendingWrite = queue.poll()) != null)
+        {
+            pendingWrite.fail(new IllegalStateException("The group committer of connector: "
+                                                        + connector.getName() + " has been stopped"));
+        }
+    }
+
+    private static final class PendingWrite implements Future<String>
+    {
+        private final ItemWriter writer;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private volatile boolean cancelled;
+
+        private volatile String path;
+
+        private volatile Exception failure;
+
+        PendingWrite(final ItemWriter writer)
+        {
+            this.writer = writer;
+        }
+
+        /**
+         * @return false if the write has been cancelled and must not be performed.
+         */
+        boolean start()
+        {
+            return started.compareAndSet(false, true);
+        }
+
+        void complete(final String itemPath)
+        {
+            path = itemPath;
+            done.countDown();
+        }
+
+        void fail(final Exception e)
+        {
+            failure = e;
+            done.countDown();
+        }
+
+        public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+            // a write can not be interrupted once the committer has started it
+            if (!started.compareAndSet(false, true))
+            {
+                return false;
+            }
+
+            cancelled = true;
+            done.countDown();
+            return true;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        public boolean isDone()
+        {
+            return done.getCount() == 0;
+        }
+
+        public String get() throws InterruptedException, ExecutionException
+        {
+            done.await();
+            return result();
+        }
+
+        public String get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if (!done.await(timeout, unit))
+            {
+                throw new TimeoutException();
+            }
+
+            return result();
+        }
+
+        private String result() throws ExecutionException
+        {
+            if (cancelled)
+            {
+                throw new CancellationException();
+            }
+
+            if (failure != null)
+            {
+                throw new ExecutionException(failure);
+            }
+
+            return path;
+        }
+    }
+}
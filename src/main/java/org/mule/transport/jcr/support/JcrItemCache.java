@@ -0,0 +1,534 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.api.MuleEvent;
+import org.mule.api.endpoint.ImmutableEndpoint;
+import org.mule.transport.jcr.JcrConnector;
+
+/**
+ * A least-recently-used cache of the payloads read by requesters, bounded in
+ * entries and in estimated bytes. Entries are keyed by the way their item has
+ * been targeted (endpoint path, UUID, relative paths and filters) and indexed by
+ * the path of this item, so the cache, registered as an observation listener,
+ * invalidates the entries of the items changed, added or removed at, above or
+ * under the path of any event. Dispatchers also invalidate the items they store
+ * as soon as they are saved. Only payloads made of values that are immutable or
+ * can be copied are cached: payloads holding streams or other objects are not.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrItemCache implements EventListener
+{
+    /**
+     * All the event types that invalidate entries.
+     */
+    public static final int INVALIDATING_EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED
+                                                       | Event.PROPERTY_ADDED | Event.PROPERTY_REMOVED
+                                                       | Event.PROPERTY_CHANGED;
+
+    private static final Log LOG = LogFactory.getLog(JcrItemCache.class);
+
+    private static final char KEY_SEPARATOR = '|';
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    private final long timeToLive;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    // cache keys by item path, for invalidating subtrees with range lookups
+    private final TreeMap<String, Set<String>> keysByPath = new TreeMap<String, Set<String>>();
+
+    private long bytes;
+
+    private long invalidationSequence;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    private long invalidationCount;
+
+    /**
+     * @param timeToLive the time, in milliseconds, after which entries expire, or 0
+     *            if they only expire when invalidated or evicted.
+     */
+    public JcrItemCache(final int maxEntries, final long maxBytes, final long timeToLive)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return the key of the item targeted by a request, or null if the request
+     *         can not be cached because it targets its item with a query.
+     */
+    public static String newKey(final ImmutableEndpoint endpoint,
+                                final MuleEvent event,
+                                final String nodeNamePatternFilter,
+                                final String propertyNamePatternFilter)
+    {
+        if ((event != null)
+            && (JcrEventUtils.getParsableEventProperty(event, JcrConnector.JCR_QUERY_STATEMENT_PROPERTY) != null))
+        {
+            return null;
+        }
+
+        return new StringBuilder(endpoint.getEndpointURI().getAddress()).append(KEY_SEPARATOR)
+            .append(JcrNodeUtils.getNodeUUID(event))
+            .append(KEY_SEPARATOR)
+            .append(JcrNodeUtils.getNodeRelPath(event))
+            .append(KEY_SEPARATOR)
+            .append(JcrPropertyUtils.getPropertyRelPath(event))
+            .append(KEY_SEPARATOR)
+            .append(nodeNamePatternFilter)
+            .append(KEY_SEPARATOR)
+            .append(propertyNamePatternFilter)
+            .toString();
+    }
+
+    /**
+     * @return the sequence number of the last invalidation, to be passed to
+     *         {@link #put(String, String, Object, long)} by readers so a payload
+     *         read while its item was being changed is not cached.
+     */
+    public synchronized long getInvalidationSequence()
+    {
+        return invalidationSequence;
+    }
+
+    /**
+     * @return a copy of the cached payload, or null if it is not cached.
+     */
+    public synchronized Object get(final String key)
+    {
+        final Entry entry = entries.get(key);
+
+        if ((entry != null) && (timeToLive > 0L)
+            && (System.currentTimeMillis() - entry.creationTime > timeToLive))
+        {
+            remove(key);
+            missCount++;
+            return null;
+        }
+
+        if (entry == null)
+        {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return copy(entry.payload);
+    }
+
+    /**
+     * Caches a payload, unless it holds streams or an invalidation occurred since
+     * <code>invalidationSequence</code> was read.
+     *
+     * @return true if the payload has been cached.
+     */
+    public synchronized boolean put(final String key,
+                                    final String itemPath,
+                                    final Object payload,
+                                    final long invalidationSequence)
+    {
+        if ((payload == null) || (invalidationSequence != this.invalidationSequence))
+        {
+            return false;
+        }
+
+        final long size = estimateSize(payload);
+
+        if ((size < 0L) || (size > maxBytes))
+        {
+            return false;
+        }
+
+        remove(key);
+
+        entries.put(key, new Entry(itemPath, copy(payload), size));
+        bytes += size;
+
+        Set<String> pathKeys = keysByPath.get(itemPath);
+
+        if (pathKeys == null)
+        {
+            pathKeys = new HashSet<String>();
+            keysByPath.put(itemPath, pathKeys);
+        }
+
+        pathKeys.add(key);
+
+        // the least recently used entries come first
+        final Iterator<Map.Entry<String, Entry>> leastRecentlyUsedEntries = entries.entrySet().iterator();
+
+        while (((entries.size() > maxEntries) || (bytes > maxBytes)) && (leastRecentlyUsedEntries.hasNext()))
+        {
+            final Map.Entry<String, Entry> evictedEntry = leastRecentlyUsedEntries.next();
+            leastRecentlyUsedEntries.remove();
+            unindex(evictedEntry.getKey(), evictedEntry.getValue());
+            evictionCount++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Invalidates the entries of the items at, above or under a path.
+     *
+     * @return the number of invalidated entries.
+     */
+    public synchronized int invalidate(final String path)
+    {
+        invalidationSequence++;
+
+        final List<String> invalidatedKeys = new ArrayList<String>();
+
+        // the item at the path and its ancestors
+        String ancestorPath = path;
+
+        while (true)
+        {
+            final Set<String> pathKeys = keysByPath.get(ancestorPath);
+
+            if (pathKeys != null)
+            {
+                invalidatedKeys.addAll(pathKeys);
+            }
+
+            if ("/".equals(ancestorPath))
+            {
+                break;
+            }
+
+            ancestorPath = JcrObservationMultiplexer.getParentPath(ancestorPath);
+        }
+
+        // its descendants, whose paths sort between "path/" and "path0"
+        final String pathPrefix = path.endsWith("/") ? path : path + '/';
+        final String pathPrefixEnd = pathPrefix.substring(0, pathPrefix.length() - 1) + '0';
+        final SortedMap<String, Set<String>> descendants = keysByPath.subMap(pathPrefix, pathPrefixEnd);
+
+        for (final Set<String> pathKeys : descendants.values())
+        {
+            invalidatedKeys.addAll(pathKeys);
+        }
+
+        for (final String invalidatedKey : invalidatedKeys)
+        {
+            remove(invalidatedKey);
+        }
+
+        invalidationCount += invalidatedKeys.size();
+        return invalidatedKeys.size();
+    }
+
+    /**
+     * Drops all the entries.
+     */
+    public synchronized void clear()
+    {
+        invalidationSequence++;
+        entries.clear();
+        keysByPath.clear();
+        bytes = 0L;
+    }
+
+    public void onEvent(final EventIterator eventIterator)
+    {
+        while (eventIterator.hasNext())
+        {
+            try
+            {
+                invalidate(eventIterator.nextEvent().getPath());
+            }
+            catch (final RepositoryException re)
+            {
+                // the changed path is unknown: nothing cached can be trusted
+                LOG.warn("Can not get the path of a JCR event, clearing the item cache", re);
+                clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached entries.
+     */
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated size, in bytes, of the cached payloads.
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * @return the ratio of hits among lookups, or 0 if there has been none.
+     */
+    public synchronized double getHitRate()
+    {
+        final long lookups = hitCount + missCount;
+        return lookups == 0L ? 0D : (double) hitCount / lookups;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    public synchronized long getInvalidationCount()
+    {
+        return invalidationCount;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "JcrItemCache[entries=" + entries.size() + ", bytes=" + bytes + ", hitRate=" + getHitRate()
+               + ", evictions=" + evictionCount + ", invalidations=" + invalidationCount + "]";
+    }
+
+    private void remove(final String key)
+    {
+        final Entry entry = entries.remove(key);
+
+        if (entry != null)
+        {
+            unindex(key, entry);
+        }
+    }
+
+    private void unindex(final String key, final Entry entry)
+    {
+        bytes -= entry.size;
+
+        final Set<String> pathKeys = keysByPath.get(entry.itemPath);
+
+        if (pathKeys != null)
+        {
+            pathKeys.remove(key);
+
+            if (pathKeys.isEmpty())
+            {
+                keysByPath.remove(entry.itemPath);
+            }
+        }
+    }
+
+    /**
+     * Copies the maps and collections of a payload, so callers can not alter the
+     * cached one.
+     */
+    @SuppressWarnings("unchecked")
+    static Object copy(final Object payload)
+    {
+        if (payload instanceof Map)
+        {
+            final Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+
+            for (final Map.Entry<Object, Object> entry : ((Map<Object, Object>) payload).entrySet())
+            {
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+
+            return copy;
+        }
+
+        if (payload instanceof Collection)
+        {
+            final List<Object> copy = new ArrayList<Object>();
+
+            for (final Object element : (Collection<Object>) payload)
+            {
+                copy.add(copy(element));
+            }
+
+            return copy;
+        }
+
+        if (payload instanceof byte[])
+        {
+            return ((byte[]) payload).clone();
+        }
+
+        if (payload instanceof long[])
+        {
+            return ((long[]) payload).clone();
+        }
+
+        if (payload instanceof double[])
+        {
+            return ((double[]) payload).clone();
+        }
+
+        if (payload instanceof boolean[])
+        {
+            return ((boolean[]) payload).clone();
+        }
+
+        if (payload instanceof Calendar)
+        {
+            return ((Calendar) payload).clone();
+        }
+
+        return payload;
+    }
+
+    /**
+     * @return the estimated size of a payload in bytes, or -1 if it holds values,
+     *         like streams or objects that {@link #copy(Object)} does not know,
+     *         that can not be cached.
+     */
+    static long estimateSize(final Object payload)
+    {
+        if (payload == null)
+        {
+            return 0L;
+        }
+
+        if (payload instanceof String)
+        {
+            return 40L + 2L * ((String) payload).length();
+        }
+
+        if ((payload instanceof byte[]) || (payload instanceof boolean[]))
+        {
+            return 16L + Array.getLength(payload);
+        }
+
+        if ((payload instanceof long[]) || (payload instanceof double[]))
+        {
+            return 16L + 8L * Array.getLength(payload);
+        }
+
+        if ((payload instanceof Long) || (payload instanceof Integer) || (payload instanceof Short)
+            || (payload instanceof Byte) || (payload instanceof Double) || (payload instanceof Float)
+            || (payload instanceof Boolean) || (payload instanceof Character))
+        {
+            return 16L;
+        }
+
+        if ((payload instanceof BigDecimal) || (payload instanceof BigInteger))
+        {
+            return 64L;
+        }
+
+        if (payload instanceof Calendar)
+        {
+            return 200L;
+        }
+
+        if (payload instanceof Map)
+        {
+            long size = 48L;
+
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) payload).entrySet())
+            {
+                final long keySize = estimateSize(entry.getKey());
+                final long valueSize = estimateSize(entry.getValue());
+
+                if ((keySize < 0L) || (valueSize < 0L))
+                {
+                    return -1L;
+                }
+
+                size += 32L + keySize + valueSize;
+            }
+
+            return size;
+        }
+
+        if (payload instanceof Collection)
+        {
+            long size = 24L;
+
+            for (final Object element : (Collection<?>) payload)
+            {
+                final long elementSize = estimateSize(element);
+
+                if (elementSize < 0L)
+                {
+                    return -1L;
+                }
+
+                size += 8L + elementSize;
+            }
+
+            return size;
+        }
+
+        // streams can only be consumed once, and other objects could be altered
+        // by callers while they are shared with the cache
+        return -1L;
+    }
+
+    private static final class Entry
+    {
+        private final String itemPath;
+
+        private final Object payload;
+
+        private final long size;
+
+        private final long creationTime = System.currentTimeMillis();
+
+        Entry(final String itemPath, final Object payload, final long size)
+        {
+            this.itemPath = itemPath;
+            this.payload = payload;
+            this.size = size;
+        }
+    }
+}
@@ -22,7 +22,7 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.ValueFormatException;
 import javax.jcr.observation.Event;
-import javax.jcr.query.QueryResult;
+import javax.jcr.query.Query;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -54,13 +54,28 @@ public abstract class JcrNodeUtils
     public static Object getItemPayload(final Item item)
         throws IllegalStateException, ValueFormatException, RepositoryException
     {
+        return getItemPayload(item, null, false);
+    }
+
+    /**
+     * @param valueCodec the codec that decodes the binaries it has encoded, or
+     *            null.
+     * @param primitiveArrays true to return the values of multi-valued long,
+     *            double and boolean properties as primitive arrays.
+     */
+    public static Object getItemPayload(final Item item,
+                                        final JcrValueCodec valueCodec,
+                                        final boolean primitiveArrays)
+        throws IllegalStateException, ValueFormatException, RepositoryException
+    {
 
         if (item.isNode())
         {
-            return JcrPropertyUtils.getPropertiesPayload(((Node) item).getProperties());
+            return JcrPropertyUtils.getPropertiesPayload(((Node) item).getProperties(), valueCodec,
+                primitiveArrays);
         }
 
-        return JcrPropertyUtils.getPropertyPayload((Property) item);
+        return JcrPropertyUtils.getPropertyPayload((Property) item, valueCodec, primitiveArrays);
     }
 
     public static String getNodeRelPath(final MuleEvent event)
@@ -219,7 +234,8 @@ public abstract class JcrNodeUtils
         }
         else if ((queryDefinition != null) && (queryDefinition.getStatement() != null))
         {
-            targetItem = getTargetItemFromQuery(session, queryDefinition, nodeRelPath, propertyRelPath);
+            targetItem = getTargetItemFromQuery(session, getQueryCache(endpoint), queryDefinition, nodeRelPath,
+                propertyRelPath);
         }
         else
         {
@@ -246,8 +262,9 @@ public abstract class JcrNodeUtils
 
     private static Item getTargetItemFromNodeIterator(final String pathContext, final NodeIterator nodes)
     {
-
-        if (nodes.getSize() == 0)
+        // the size of the iterator is not used as it can force the whole result to
+        // be fetched, or be unknown
+        if (!nodes.hasNext())
         {
             LOG.warn(JcrMessages.noNodeFor(pathContext).getMessage());
 
@@ -255,12 +272,14 @@ public abstract class JcrNodeUtils
 
         }
 
-        if (nodes.getSize() > 1)
+        final Node node = nodes.nextNode();
+
+        if (nodes.hasNext())
         {
             LOG.warn(JcrMessages.moreThanOneNodeFor(pathContext).getMessage());
         }
 
-        return nodes.nextNode();
+        return node;
     }
 
     private static Item getTargetItemFromPath(final Session session,
@@ -292,26 +311,107 @@ public abstract class JcrNodeUtils
         return targetItem.getItem();
     }
 
+    /**
+     * Executes the query defined by the properties of an event.
+     *
+     * @return the nodes selected by the query, or null if the event defines no
+     *         query.
+     */
+    public static NodeIterator executeQuery(final Session session,
+                                            final ImmutableEndpoint endpoint,
+                                            final MuleEvent event) throws RepositoryException
+    {
+        final QueryDefinition queryDefinition = getQueryDefinition(event);
+
+        if ((queryDefinition == null) || (queryDefinition.getStatement() == null))
+        {
+            return null;
+        }
+
+        final JcrQueryCache queryCache = getQueryCache(endpoint);
+
+        final Query query = queryCache != null ? queryCache.getQuery(session, queryDefinition.getLanguage(),
+            queryDefinition.getStatement()) : session.getWorkspace().getQueryManager().createQuery(
+            queryDefinition.getStatement(), queryDefinition.getLanguage());
+
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Executing query : " + queryDefinition);
+        }
+
+        return query.execute().getNodes();
+    }
+
+    /**
+     * @return the item found by navigating the optional relative paths from an
+     *         item, or null if there is none.
+     */
+    public static Item getRelativeTargetItem(final Item item, final String nodeRelPath, final String propertyRelPath)
+        throws RepositoryException
+    {
+        final TargetItem targetItem = new TargetItem(item, item.getPath());
+        navigateToRelativeTargetItem(targetItem, nodeRelPath, propertyRelPath);
+        return targetItem.getItem();
+    }
+
+    private static JcrQueryCache getQueryCache(final ImmutableEndpoint endpoint)
+    {
+        return endpoint.getConnector() instanceof JcrConnector
+                                                              ? ((JcrConnector) endpoint.getConnector()).getQueryCache()
+                                                              : null;
+    }
+
     private static Item getTargetItemFromQuery(final Session session,
+                                               final JcrQueryCache queryCache,
                                                final QueryDefinition queryDefinition,
                                                final String nodeRelpath,
                                                final String propertyRelPath) throws RepositoryException
     {
-
-        final QueryResult queryResult = session.getWorkspace().getQueryManager().createQuery(
-            queryDefinition.getStatement(), queryDefinition.getLanguage()).execute();
-
         // there is no way to get a Property out of a QueryResult so we will
         // return only a Node
         final String context = queryDefinition.getLanguage() + ": " + queryDefinition.getStatement();
 
-        if (LOG.isDebugEnabled())
+        Item queriedItem = null;
+
+        if ((queryCache != null) && (queryCache.isResultCacheEnabled()))
         {
-            LOG.debug("Query : " + context + " returned: " + queryResult.getRows().getSize() + " rows.");
+            final String resultPath = queryCache.getResultPath(queryDefinition.getLanguage(),
+                queryDefinition.getStatement());
+
+            if ((resultPath != null) && (session.itemExists(resultPath)))
+            {
+                if (LOG.isDebugEnabled())
+                {
+                    LOG.debug("Query : " + context + " result cached: " + resultPath);
+                }
+
+                queriedItem = session.getItem(resultPath);
+            }
+        }
+
+        if (queriedItem == null)
+        {
+            final long invalidationSequence = queryCache != null ? queryCache.getInvalidationSequence() : 0L;
+
+            final Query query = queryCache != null ? queryCache.getQuery(session, queryDefinition.getLanguage(),
+                queryDefinition.getStatement()) : session.getWorkspace().getQueryManager().createQuery(
+                queryDefinition.getStatement(), queryDefinition.getLanguage());
+
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Executing query : " + context);
+            }
+
+            queriedItem = getTargetItemFromNodeIterator(context, query.execute().getNodes());
+
+            if ((queryCache != null) && (queriedItem != null))
+            {
+                queryCache.putResultPath(queryDefinition.getLanguage(), queryDefinition.getStatement(),
+                    queriedItem.getPath(), invalidationSequence);
+            }
         }
 
-        final TargetItem targetItem = new TargetItem(getTargetItemFromNodeIterator(context,
-            queryResult.getNodes()), context);
+        final TargetItem targetItem = new TargetItem(queriedItem, context);
 
         navigateToRelativeTargetItem(targetItem, nodeRelpath, propertyRelPath);
 
@@ -413,8 +513,30 @@ public abstract class JcrNodeUtils
                                            final JcrContentPayloadType contentPayloadType)
         throws RepositoryException
     {
+        return newJcrMessage(event, session, contentPayloadType, null);
+    }
 
-        final EventContent eventContent = JcrEventUtils.getEventContent(event, session, contentPayloadType);
+    /**
+     * @param connector the connector binary references are bound to, so they can
+     *            later open their streams, may be null.
+     */
+    public static JcrMessage newJcrMessage(final Event event,
+                                           final Session session,
+                                           final JcrContentPayloadType contentPayloadType,
+                                           final JcrConnector connector) throws RepositoryException
+    {
+
+        final EventContent eventContent = JcrEventUtils.getEventContent(event, session, contentPayloadType,
+            connector);
+
+        if ((event instanceof JcrMessage) && (((JcrMessage) event).isCoalesced()))
+        {
+            final JcrMessage coalescedEvent = (JcrMessage) event;
+
+            return new JcrMessage(coalescedEvent.getPath(), coalescedEvent.getType(),
+                coalescedEvent.getTypeAsString(), coalescedEvent.getUserID(), eventContent.getData(),
+                eventContent.getUuid(), true);
+        }
 
         return new JcrMessage(event.getPath(), event.getType(),
             JcrEventUtils.getEventTypeNameFromValue(event.getType()), event.getUserID(),
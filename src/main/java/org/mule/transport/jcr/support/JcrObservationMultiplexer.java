@@ -0,0 +1,585 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.transport.jcr.JcrEventBatch;
+import org.mule.transport.jcr.JcrMessage;
+
+/**
+ * A single observation listener shared by all the receivers of a connector. It is
+ * registered once, deep, on the common ancestor path of the receivers, and routes
+ * each event to the receivers whose path, event types, UUIDs and node types match,
+ * using an in-memory trie of the observed paths. Its session is only used by the
+ * observation thread, to filter events on the UUID and node types of their parent
+ * node: receivers must read event content with sessions of their own.
+ * <p>
+ * When subscriptions widen or narrow the observed path or event types, the new
+ * JCR listener is registered before the previous one is removed, so no event is
+ * missed in between, and the events delivered to both are routed only once.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrObservationMultiplexer implements EventListener
+{
+    private static final Log LOG = LogFactory.getLog(JcrObservationMultiplexer.class);
+
+    private final Session session;
+
+    private final ObservationManager observationManager;
+
+    private final PathNode root = new PathNode();
+
+    private final Map<EventListener, Subscription> subscriptions = new LinkedHashMap<EventListener, Subscription>();
+
+    private Registration registration;
+
+    // the events delivered by the current and the previous JCR listener while
+    // both are registered, per event key
+    private final Map<String, List<Registration>> overlapDeliveries = new HashMap<String, List<Registration>>();
+
+    private boolean overlapping;
+
+    public JcrObservationMultiplexer(final Session session) throws RepositoryException
+    {
+        this.session = session;
+        observationManager = session.getWorkspace().getObservationManager();
+    }
+
+    /**
+     * Routes to a listener the events that would have been delivered to it if it
+     * had been registered on the observation manager with the same arguments.
+     */
+    public synchronized void subscribe(final EventListener listener,
+                                       final int eventTypes,
+                                       final String absPath,
+                                       final boolean deep,
+                                       final List<String> uuids,
+                                       final List<String> nodeTypeNames) throws RepositoryException
+    {
+        unsubscribe(listener, false);
+
+        final Subscription subscription = new Subscription(listener, eventTypes, absPath, deep, uuids,
+            nodeTypeNames);
+
+        subscriptions.put(listener, subscription);
+        root.getOrCreate(absPath).add(subscription);
+
+        register();
+    }
+
+    public synchronized void unsubscribe(final EventListener listener) throws RepositoryException
+    {
+        unsubscribe(listener, true);
+    }
+
+    /**
+     * Unregisters the shared listener and drops all the subscriptions.
+     */
+    public synchronized void stop() throws RepositoryException
+    {
+        subscriptions.clear();
+        root.clear();
+        register();
+    }
+
+    /**
+     * @return the number of subscribed listeners.
+     */
+    public synchronized int getSubscriptionCount()
+    {
+        return subscriptions.size();
+    }
+
+    public void onEvent(final EventIterator eventIterator)
+    {
+        route(detach(eventIterator, null));
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "JcrObservationMultiplexer[subscriptions=" + subscriptions.size() + ", observedPath="
+               + (registration != null ? registration.observedPath : null) + "]";
+    }
+
+    private List<JcrMessage> detach(final EventIterator eventIterator, final Registration source)
+    {
+        final List<JcrMessage> events = new ArrayList<JcrMessage>();
+
+        while (eventIterator.hasNext())
+        {
+            try
+            {
+                final JcrMessage event = JcrEventBatch.detach(eventIterator.nextEvent());
+
+                if ((source == null) || (isFirstDelivery(source, event)))
+                {
+                    events.add(event);
+                }
+            }
+            catch (final RepositoryException re)
+            {
+                LOG.error("Can not route JCR event", re);
+            }
+        }
+
+        return events;
+    }
+
+    /**
+     * @return false if the event has already been delivered by the other JCR
+     *         listener registered during a re-registration.
+     */
+    private boolean isFirstDelivery(final Registration source, final JcrMessage event)
+    {
+        synchronized (overlapDeliveries)
+        {
+            if (!overlapping)
+            {
+                return true;
+            }
+
+            final String eventKey = event.getType() + ":" + event.getPath() + ":" + event.getUserID();
+            List<Registration> deliveries = overlapDeliveries.get(eventKey);
+
+            if (deliveries == null)
+            {
+                deliveries = new ArrayList<Registration>();
+                overlapDeliveries.put(eventKey, deliveries);
+            }
+
+            for (final Iterator<Registration> i = deliveries.iterator(); i.hasNext();)
+            {
+                if (i.next() != source)
+                {
+                    // the same event delivered by the other listener
+                    i.remove();
+                    return false;
+                }
+            }
+
+            deliveries.add(source);
+            return true;
+        }
+    }
+
+    private void setOverlapping(final boolean overlapping)
+    {
+        synchronized (overlapDeliveries)
+        {
+            this.overlapping = overlapping;
+            overlapDeliveries.clear();
+        }
+    }
+
+    private void route(final List<JcrMessage> events)
+    {
+        final Map<EventListener, List<JcrMessage>> routedEvents = new LinkedHashMap<EventListener, List<JcrMessage>>();
+        final Map<String, Node> parentNodes = new HashMap<String, Node>();
+
+        for (final JcrMessage event : events)
+        {
+            try
+            {
+                for (final Subscription subscription : getMatchingSubscriptions(event, parentNodes))
+                {
+                    List<JcrMessage> listenerEvents = routedEvents.get(subscription.listener);
+
+                    if (listenerEvents == null)
+                    {
+                        listenerEvents = new ArrayList<JcrMessage>();
+                        routedEvents.put(subscription.listener, listenerEvents);
+                    }
+
+                    listenerEvents.add(event);
+                }
+            }
+            catch (final RepositoryException re)
+            {
+                LOG.error("Can not route JCR event", re);
+            }
+        }
+
+        for (final Map.Entry<EventListener, List<JcrMessage>> listenerEvents : routedEvents.entrySet())
+        {
+            try
+            {
+                listenerEvents.getKey().onEvent(new JcrEventBatch(listenerEvents.getValue()));
+            }
+            catch (final RuntimeException re)
+            {
+                // a failing receiver must not deprive the others of their events
+                LOG.error("Can not deliver JCR events to: " + listenerEvents.getKey(), re);
+            }
+        }
+    }
+
+    private synchronized List<Subscription> getMatchingSubscriptions(final JcrMessage event,
+                                                                     final Map<String, Node> parentNodes)
+        throws RepositoryException
+    {
+        final List<Subscription> result = new ArrayList<Subscription>();
+
+        // as specified by JCR, the path filter applies to the parent node
+        // associated with the event, ie the parent of the event path
+        final String parentPath = getParentPath(event.getPath());
+        final String[] segments = getSegments(parentPath);
+
+        PathNode pathNode = root;
+        collect(pathNode.deepSubscriptions, event, parentPath, parentNodes, result);
+
+        for (int i = 0; (i < segments.length) && (pathNode != null); i++)
+        {
+            pathNode = pathNode.children.get(segments[i]);
+
+            if (pathNode != null)
+            {
+                collect(pathNode.deepSubscriptions, event, parentPath, parentNodes, result);
+            }
+        }
+
+        if (pathNode != null)
+        {
+            collect(pathNode.exactSubscriptions, event, parentPath, parentNodes, result);
+        }
+
+        return result;
+    }
+
+    private void collect(final List<Subscription> candidates,
+                         final JcrMessage event,
+                         final String parentPath,
+                         final Map<String, Node> parentNodes,
+                         final List<Subscription> result) throws RepositoryException
+    {
+        for (final Subscription subscription : candidates)
+        {
+            if ((subscription.eventTypes & event.getType()) == 0)
+            {
+                continue;
+            }
+
+            if ((subscription.uuids != null) || (subscription.nodeTypeNames != null))
+            {
+                final Node parentNode = getParentNode(parentPath, parentNodes);
+
+                if ((parentNode == null) || (!subscription.matches(parentNode)))
+                {
+                    continue;
+                }
+            }
+
+            result.add(subscription);
+        }
+    }
+
+    private Node getParentNode(final String parentPath, final Map<String, Node> parentNodes)
+    {
+        if (parentNodes.containsKey(parentPath))
+        {
+            return parentNodes.get(parentPath);
+        }
+
+        Node parentNode = null;
+
+        try
+        {
+            final Item item = session.getItem(parentPath);
+            parentNode = item.isNode() ? (Node) item : null;
+        }
+        catch (final RepositoryException re)
+        {
+            // the node is gone: filters on UUID and node types can not match
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Can not fetch the parent node of event path: " + parentPath, re);
+            }
+        }
+
+        parentNodes.put(parentPath, parentNode);
+        return parentNode;
+    }
+
+    private void unsubscribe(final EventListener listener, final boolean reRegister) throws RepositoryException
+    {
+        final Subscription subscription = subscriptions.remove(listener);
+
+        if (subscription != null)
+        {
+            root.getOrCreate(subscription.absPath).remove(subscription);
+
+            if (reRegister)
+            {
+                register();
+            }
+        }
+    }
+
+    /**
+     * (Re-)registers the shared listener on the common ancestor of the observed
+     * paths, for the union of the observed event types, unless they have not
+     * changed.
+     */
+    private void register() throws RepositoryException
+    {
+        final Registration previousRegistration = registration;
+
+        if (subscriptions.isEmpty())
+        {
+            registration = null;
+
+            if (previousRegistration != null)
+            {
+                observationManager.removeEventListener(previousRegistration);
+            }
+
+            return;
+        }
+
+        int eventTypes = 0;
+
+        for (final Subscription subscription : subscriptions.values())
+        {
+            eventTypes |= subscription.eventTypes;
+        }
+
+        final String observedPath = getObservedPath();
+
+        if ((previousRegistration != null) && (previousRegistration.eventTypes == eventTypes)
+            && (previousRegistration.observedPath.equals(observedPath)))
+        {
+            return;
+        }
+
+        final Registration newRegistration = new Registration(eventTypes, observedPath);
+
+        if (previousRegistration == null)
+        {
+            observationManager.addEventListener(newRegistration, eventTypes, observedPath, true, null, null, false);
+            registration = newRegistration;
+        }
+        else
+        {
+            // the previous listener is only removed once the new one receives
+            // events, so none is lost in between
+            setOverlapping(true);
+
+            try
+            {
+                observationManager.addEventListener(newRegistration, eventTypes, observedPath, true, null, null,
+                    false);
+                registration = newRegistration;
+                observationManager.removeEventListener(previousRegistration);
+            }
+            finally
+            {
+                setOverlapping(false);
+            }
+        }
+
+        if (LOG.isInfoEnabled())
+        {
+            LOG.info("Observing JCR for events of types: " + eventTypes + " - at: " + observedPath + " for "
+                     + subscriptions.size() + " receiver(s)");
+        }
+    }
+
+    private String getObservedPath()
+    {
+        String[] commonSegments = null;
+        int commonLength = 0;
+
+        for (final Subscription subscription : subscriptions.values())
+        {
+            final String[] segments = getSegments(subscription.absPath);
+
+            if (commonSegments == null)
+            {
+                commonSegments = segments;
+                commonLength = segments.length;
+            }
+            else
+            {
+                int i = 0;
+
+                while ((i < commonLength) && (i < segments.length) && (commonSegments[i].equals(segments[i])))
+                {
+                    i++;
+                }
+
+                commonLength = i;
+            }
+        }
+
+        final StringBuilder observedPath = new StringBuilder();
+
+        for (int i = 0; i < commonLength; i++)
+        {
+            observedPath.append('/').append(commonSegments[i]);
+        }
+
+        return observedPath.length() == 0 ? "/" : observedPath.toString();
+    }
+
+    static String getParentPath(final String path)
+    {
+        final int lastSlash = path.lastIndexOf('/');
+
+        return lastSlash <= 0 ? "/" : path.substring(0, lastSlash);
+    }
+
+    static String[] getSegments(final String path)
+    {
+        final String trimmedPath = path.replaceAll("^/+|/+$", "");
+
+        return trimmedPath.length() == 0 ? new String[0] : trimmedPath.split("/+");
+    }
+
+    /**
+     * A JCR listener registered for the union of the subscriptions at one point in
+     * time.
+     */
+    private final class Registration implements EventListener
+    {
+        private final int eventTypes;
+
+        private final String observedPath;
+
+        Registration(final int eventTypes, final String observedPath)
+        {
+            this.eventTypes = eventTypes;
+            this.observedPath = observedPath;
+        }
+
+        public void onEvent(final EventIterator eventIterator)
+        {
+            route(detach(eventIterator, this));
+        }
+    }
+
+    private static final class Subscription
+    {
+        private final EventListener listener;
+
+        private final int eventTypes;
+
+        private final String absPath;
+
+        private final boolean deep;
+
+        private final List<String> uuids;
+
+        private final List<String> nodeTypeNames;
+
+        Subscription(final EventListener listener,
+                     final int eventTypes,
+                     final String absPath,
+                     final boolean deep,
+                     final List<String> uuids,
+                     final List<String> nodeTypeNames)
+        {
+            this.listener = listener;
+            this.eventTypes = eventTypes;
+            this.absPath = absPath;
+            this.deep = deep;
+            this.uuids = uuids;
+            this.nodeTypeNames = nodeTypeNames;
+        }
+
+        boolean matches(final Node parentNode) throws RepositoryException
+        {
+            if ((uuids != null)
+                && ((!parentNode.isNodeType("mix:referenceable")) || (!uuids.contains(parentNode.getUUID()))))
+            {
+                return false;
+            }
+
+            if (nodeTypeNames != null)
+            {
+                for (final String nodeTypeName : nodeTypeNames)
+                {
+                    if (parentNode.isNodeType(nodeTypeName))
+                    {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    private static final class PathNode
+    {
+        private final Map<String, PathNode> children = new HashMap<String, PathNode>();
+
+        private final List<Subscription> deepSubscriptions = new ArrayList<Subscription>();
+
+        private final List<Subscription> exactSubscriptions = new ArrayList<Subscription>();
+
+        PathNode getOrCreate(final String path)
+        {
+            PathNode pathNode = this;
+
+            for (final String segment : getSegments(path))
+            {
+                PathNode child = pathNode.children.get(segment);
+
+                if (child == null)
+                {
+                    child = new PathNode();
+                    pathNode.children.put(segment, child);
+                }
+
+                pathNode = child;
+            }
+
+            return pathNode;
+        }
+
+        void add(final Subscription subscription)
+        {
+            (subscription.deep ? deepSubscriptions : exactSubscriptions).add(subscription);
+        }
+
+        void remove(final Subscription subscription)
+        {
+            deepSubscriptions.remove(subscription);
+            exactSubscriptions.remove(subscription);
+        }
+
+        void clear()
+        {
+            children.clear();
+            deepSubscriptions.clear();
+            exactSubscriptions.clear();
+        }
+    }
+}
@@ -9,12 +9,22 @@
  */
 package org.mule.transport.jcr.support;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
@@ -29,6 +39,7 @@ import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
+import javax.jcr.ValueFactory;
 import javax.jcr.ValueFormatException;
 
 import org.apache.commons.logging.Log;
@@ -36,8 +47,10 @@ import org.apache.commons.logging.LogFactory;
 import org.mule.api.MuleEvent;
 import org.mule.api.routing.filter.Filter;
 import org.mule.routing.filters.logic.AndFilter;
+import org.mule.transport.jcr.JcrBinaryReference;
 import org.mule.transport.jcr.JcrConnector;
 import org.mule.transport.jcr.JcrContentPayloadType;
+import org.mule.transport.jcr.JcrSpooledBinary;
 import org.mule.transport.jcr.filters.AbstractJcrNameFilter;
 import org.mule.transport.jcr.i18n.JcrMessages;
 import org.mule.util.IOUtils;
@@ -48,6 +61,13 @@ import org.mule.util.IOUtils;
 public abstract class JcrPropertyUtils {
 	private static final Log LOG = LogFactory.getLog(JcrPropertyUtils.class);
 
+	// java.nio.file is only available from Java 7 on, so it is used reflectively
+	private static final Class<?> PATH_CLASS = loadClass("java.nio.file.Path");
+
+	private static final Class<?> OPEN_OPTION_CLASS = loadClass("java.nio.file.OpenOption");
+
+	private static final Method FILES_NEW_INPUT_STREAM_METHOD = getFilesNewInputStreamMethod();
+
 	public static Serializable getNonBinaryPropertyValue(
 			final Value propertyValue, final int propertyType)
 			throws ValueFormatException, RepositoryException {
@@ -73,11 +93,27 @@ public abstract class JcrPropertyUtils {
 			final PropertyIterator propertyIterator)
 			throws RepositoryException, ValueFormatException {
 
+		return getPropertiesPayload(propertyIterator, null, false);
+	}
+
+	/**
+	 * @param valueCodec
+	 *            the codec that decodes the binaries it has encoded, or null.
+	 * @param primitiveArrays
+	 *            true to return the values of multi-valued long, double and
+	 *            boolean properties as primitive arrays instead of lists.
+	 */
+	public static Map<String, Object> getPropertiesPayload(
+			final PropertyIterator propertyIterator,
+			final JcrValueCodec valueCodec, final boolean primitiveArrays)
+			throws RepositoryException, ValueFormatException {
+
 		final Map<String, Object> result = new HashMap<String, Object>();
 
 		while (propertyIterator.hasNext()) {
 			final Property property = (Property) propertyIterator.next();
-			result.put(property.getName(), getPropertyPayload(property));
+			result.put(property.getName(), getPropertyPayload(property,
+					valueCodec, primitiveArrays));
 		}
 
 		return result.isEmpty() ? null : result;
@@ -120,6 +156,18 @@ public abstract class JcrPropertyUtils {
 	public static Value newPropertyValue(final Session session,
 			final Object value) throws RepositoryException, IOException {
 
+		return newPropertyValue(session, value, null);
+	}
+
+	/**
+	 * @param valueCodec
+	 *            the codec that encodes the values that have no JCR type
+	 *            instead of serializing them, or null to always serialize them.
+	 */
+	public static Value newPropertyValue(final Session session,
+			final Object value, final JcrValueCodec valueCodec)
+			throws RepositoryException, IOException {
+
 		if (value == null) {
 			throw new IllegalArgumentException(
 					"Impossible to store a null value in JCR!");
@@ -152,15 +200,35 @@ public abstract class JcrPropertyUtils {
 		} else if (value instanceof String) {
 			return session.getValueFactory().createValue((String) value);
 
+		} else if (isStreamable(value)) {
+			// File is Serializable: it must be streamed before being considered
+			// as such
+			final InputStream binaryStream = openBinaryStream(value);
+
+			try {
+				return session.getValueFactory().createValue(binaryStream);
+			} finally {
+				if (isFileReference(value)) {
+					binaryStream.close();
+				}
+			}
+
+		} else if ((valueCodec != null) && (valueCodec.canEncode(value))) {
+			final ValueBuffer buffer = new ValueBuffer();
+			valueCodec.encode(value, buffer);
+
+			return session.getValueFactory().createValue(
+					buffer.toInputStream());
+
 		} else if (value instanceof Serializable) {
-			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			final ObjectOutputStream oos = new ObjectOutputStream(baos);
+			final ValueBuffer buffer = new ValueBuffer();
+			final ObjectOutputStream oos = new ObjectOutputStream(buffer);
 			oos.writeObject(value);
 			oos.flush();
 			oos.close();
 
 			return session.getValueFactory().createValue(
-					new ByteArrayInputStream(baos.toByteArray()));
+					buffer.toInputStream());
 		} else {
 			throw new IllegalArgumentException(
 					"Impossible to store object of type: " + value.getClass());
@@ -168,16 +236,248 @@ public abstract class JcrPropertyUtils {
 
 	}
 
+	/**
+	 * @return true if the data can be streamed to a binary value, without being
+	 *         loaded in memory first if it is a file, path, channel or buffer.
+	 */
+	public static boolean isStreamable(final Object data) {
+		return (data instanceof InputStream) || (data instanceof byte[])
+				|| (data instanceof ReadableByteChannel)
+				|| (data instanceof ByteBuffer) || isFileReference(data);
+	}
+
+	/**
+	 * @return true if the data is a <code>File</code> or a
+	 *         <code>java.nio.file.Path</code>, for which
+	 *         {@link #openBinaryStream(Object)} opens a stream that the caller
+	 *         must close.
+	 */
+	public static boolean isFileReference(final Object data) {
+		return (data instanceof File)
+				|| ((PATH_CLASS != null) && (PATH_CLASS.isInstance(data)));
+	}
+
+	/**
+	 * Opens a stream on binary data: files and paths are read through their
+	 * channel, channels from their current position and buffers from their
+	 * remaining bytes, so none is copied to an intermediate array. Only the
+	 * streams opened on files and paths must be closed by the caller, the
+	 * others belonging to whoever provided the data.
+	 * 
+	 * @return the stream, or null if the data is not streamable.
+	 */
+	public static InputStream openBinaryStream(final Object data)
+			throws IOException {
+
+		if (data instanceof InputStream) {
+			return (InputStream) data;
+
+		} else if (data instanceof byte[]) {
+			return new ByteArrayInputStream((byte[]) data);
+
+		} else if (data instanceof File) {
+			return Channels.newInputStream(new FileInputStream((File) data)
+					.getChannel());
+
+		} else if (data instanceof ReadableByteChannel) {
+			return Channels.newInputStream((ReadableByteChannel) data);
+
+		} else if (data instanceof ByteBuffer) {
+			return new ByteBufferInputStream((ByteBuffer) data);
+
+		} else if (isFileReference(data)) {
+			return openPathStream(data);
+		}
+
+		return null;
+	}
+
+	private static InputStream openPathStream(final Object path)
+			throws IOException {
+
+		try {
+			// Files.newInputStream(path) supports all the file system
+			// providers, unlike path.toFile()
+			return (InputStream) FILES_NEW_INPUT_STREAM_METHOD.invoke(null,
+					path, Array.newInstance(OPEN_OPTION_CLASS, 0));
+		} catch (final InvocationTargetException ite) {
+			if (ite.getCause() instanceof IOException) {
+				throw (IOException) ite.getCause();
+			}
+
+			throw new IllegalArgumentException("Can not read path: " + path,
+					ite.getCause());
+		} catch (final IllegalAccessException iae) {
+			throw new IllegalStateException(iae);
+		}
+	}
+
+	private static Class<?> loadClass(final String className) {
+		try {
+			return Class.forName(className);
+		} catch (final ClassNotFoundException cnfe) {
+			// not available on this JVM
+			return null;
+		}
+	}
+
+	private static Method getFilesNewInputStreamMethod() {
+		if ((PATH_CLASS == null) || (OPEN_OPTION_CLASS == null)) {
+			return null;
+		}
+
+		try {
+			return loadClass("java.nio.file.Files").getMethod(
+					"newInputStream", PATH_CLASS,
+					Array.newInstance(OPEN_OPTION_CLASS, 0).getClass());
+		} catch (final NoSuchMethodException nsme) {
+			return null;
+		}
+	}
+
 	public static Value[] newPropertyValues(final Session session,
 			final Collection<?> objects) throws RepositoryException,
 			IOException {
 
+		return newPropertyValues(session, objects, null);
+	}
+
+	/**
+	 * @return true if the value is stored in a multi-valued property, which is
+	 *         the case of collections and of primitive arrays other than byte
+	 *         arrays.
+	 */
+	public static boolean isMultiValued(final Object value) {
+		return (value instanceof Collection<?>) || isPrimitiveArray(value);
+	}
+
+	/**
+	 * Stores collections and primitive arrays as multiple values, and any other
+	 * object as a single value.
+	 */
+	public static void setProperty(final Session session, final Node node,
+			final String propertyName, final Object value,
+			final JcrValueCodec valueCodec) throws RepositoryException,
+			IOException {
+
+		if (value instanceof Collection<?>) {
+			node.setProperty(propertyName, newPropertyValues(session,
+					(Collection<?>) value, valueCodec));
+		} else if (isPrimitiveArray(value)) {
+			node.setProperty(propertyName, newPrimitivePropertyValues(session,
+					value));
+		} else {
+			node.setProperty(propertyName, newPropertyValue(session, value,
+					valueCodec));
+		}
+	}
+
+	/**
+	 * @return the values of a <code>long[]</code>, <code>int[]</code>,
+	 *         <code>double[]</code>, <code>float[]</code> or
+	 *         <code>boolean[]</code>, created without boxing them.
+	 */
+	public static Value[] newPrimitivePropertyValues(final Session session,
+			final Object primitiveArray) throws RepositoryException {
+
+		final ValueFactory valueFactory = session.getValueFactory();
+
+		if (primitiveArray instanceof long[]) {
+			final long[] array = (long[]) primitiveArray;
+			final Value[] values = new Value[array.length];
+
+			for (int i = 0; i < array.length; i++) {
+				values[i] = valueFactory.createValue(array[i]);
+			}
+
+			return values;
+
+		} else if (primitiveArray instanceof int[]) {
+			final int[] array = (int[]) primitiveArray;
+			final Value[] values = new Value[array.length];
+
+			for (int i = 0; i < array.length; i++) {
+				values[i] = valueFactory.createValue((long) array[i]);
+			}
+
+			return values;
+
+		} else if (primitiveArray instanceof double[]) {
+			final double[] array = (double[]) primitiveArray;
+			final Value[] values = new Value[array.length];
+
+			for (int i = 0; i < array.length; i++) {
+				values[i] = valueFactory.createValue(array[i]);
+			}
+
+			return values;
+
+		} else if (primitiveArray instanceof float[]) {
+			final float[] array = (float[]) primitiveArray;
+			final Value[] values = new Value[array.length];
+
+			for (int i = 0; i < array.length; i++) {
+				values[i] = valueFactory.createValue((double) array[i]);
+			}
+
+			return values;
+
+		} else if (primitiveArray instanceof boolean[]) {
+			final boolean[] array = (boolean[]) primitiveArray;
+			final Value[] values = new Value[array.length];
+
+			for (int i = 0; i < array.length; i++) {
+				values[i] = valueFactory.createValue(array[i]);
+			}
+
+			return values;
+		}
+
+		throw new IllegalArgumentException(
+				"Impossible to store array of type: "
+						+ (primitiveArray == null ? null : primitiveArray
+								.getClass()));
+	}
+
+	private static boolean isPrimitiveArray(final Object value) {
+		return (value instanceof long[]) || (value instanceof int[])
+				|| (value instanceof double[]) || (value instanceof float[])
+				|| (value instanceof boolean[]);
+	}
+
+	/**
+	 * @return the elements of a primitive array, as the boxed types of the JCR
+	 *         values they are stored as.
+	 */
+	private static List<Object> toValueList(final Object primitiveArray) {
+		final int length = Array.getLength(primitiveArray);
+		final List<Object> valueList = new ArrayList<Object>(length);
+
+		for (int i = 0; i < length; i++) {
+			final Object element = Array.get(primitiveArray, i);
+
+			if (element instanceof Integer) {
+				valueList.add(Long.valueOf(((Integer) element).longValue()));
+			} else if (element instanceof Float) {
+				valueList.add(Double.valueOf(((Float) element).doubleValue()));
+			} else {
+				valueList.add(element);
+			}
+		}
+
+		return valueList;
+	}
+
+	public static Value[] newPropertyValues(final Session session,
+			final Collection<?> objects, final JcrValueCodec valueCodec)
+			throws RepositoryException, IOException {
+
 		final Value[] values = new Value[objects.size()];
 
 		int i = 0;
 
 		for (final Object object : objects) {
-			values[i++] = newPropertyValue(session, object);
+			values[i++] = newPropertyValue(session, object, valueCodec);
 		}
 
 		return values;
@@ -219,20 +519,179 @@ public abstract class JcrPropertyUtils {
 			final Node targetNode, final Map<String, ?> propertyNamesAndValues)
 			throws RepositoryException, IOException {
 
+		storeProperties(session, targetNode, propertyNamesAndValues, false,
+				false, null);
+	}
+
+	/**
+	 * Stores properties in a node. In delta mode, the properties whose current
+	 * values equal the new ones are not set, so they are neither persisted nor
+	 * observed as changed when the session is saved. Binary values are only
+	 * compared when provided as byte arrays, streams always being written.
+	 * 
+	 * @param deltaUpdate
+	 *            true to only set the properties that have changed.
+	 * @param removeAbsentProperties
+	 *            true to remove the properties of the node that are absent from
+	 *            the map, except protected ones.
+	 * @param valueCodec
+	 *            the codec of the values that have no JCR type, or null.
+	 * @return the number of properties set or removed.
+	 */
+	public static int storeProperties(final Session session,
+			final Node targetNode, final Map<String, ?> propertyNamesAndValues,
+			final boolean deltaUpdate, final boolean removeAbsentProperties,
+			final JcrValueCodec valueCodec) throws RepositoryException,
+			IOException {
+
+		int changedPropertyCount = 0;
+
 		for (final Map.Entry<String, ?> propertyNameAndValue : propertyNamesAndValues
 				.entrySet()) {
 
 			final String propertyName = propertyNameAndValue.getKey();
 			final Object propertyValue = propertyNameAndValue.getValue();
 
-			if ((propertyValue instanceof Collection<?>)) {
-				targetNode.setProperty(propertyName, JcrPropertyUtils
-						.newPropertyValues(session,
-								(Collection<?>) propertyValue));
-			} else {
-				targetNode.setProperty(propertyName, JcrPropertyUtils
-						.newPropertyValue(session, propertyValue));
+			if ((deltaUpdate)
+					&& (targetNode.hasProperty(propertyName))
+					&& (isUnchanged(targetNode.getProperty(propertyName),
+							propertyValue))) {
+				continue;
+			}
+
+			setProperty(session, targetNode, propertyName, propertyValue,
+					valueCodec);
+
+			changedPropertyCount++;
+		}
+
+		if (removeAbsentProperties) {
+			final List<Property> absentProperties = new ArrayList<Property>();
+			final PropertyIterator properties = targetNode.getProperties();
+
+			while (properties.hasNext()) {
+				final Property property = properties.nextProperty();
+
+				if ((!propertyNamesAndValues.containsKey(property.getName()))
+						&& (!property.getDefinition().isProtected())) {
+					absentProperties.add(property);
+				}
+			}
+
+			// removed once iterated, as removing alters the iterated properties
+			for (final Property absentProperty : absentProperties) {
+				absentProperty.remove();
+				changedPropertyCount++;
+			}
+		}
+
+		return changedPropertyCount;
+	}
+
+	/**
+	 * @return true if the current values of a property equal a new single or
+	 *         collection value, false if they differ or can not be compared.
+	 */
+	public static boolean isUnchanged(final Property property,
+			final Object newValue) throws RepositoryException, IOException {
+
+		if (property.getDefinition().isMultiple()) {
+			if (!isMultiValued(newValue)) {
+				return false;
+			}
+
+			final Value[] currentValues = property.getValues();
+			final Collection<?> newValues = isPrimitiveArray(newValue)
+					? toValueList(newValue)
+					: (Collection<?>) newValue;
+
+			if (currentValues.length != newValues.size()) {
+				return false;
+			}
+
+			int i = 0;
+
+			for (final Object newElement : newValues) {
+				if (!isSameValue(currentValues[i++], newElement)) {
+					return false;
+				}
 			}
+
+			return true;
+		}
+
+		return (!isMultiValued(newValue))
+				&& (isSameValue(property.getValue(), newValue));
+	}
+
+	private static boolean isSameValue(final Value currentValue,
+			final Object newValue) throws RepositoryException, IOException {
+
+		final int currentType = currentValue.getType();
+
+		if (newValue instanceof String) {
+			return (currentType == PropertyType.STRING)
+					&& (newValue.equals(currentValue.getString()));
+
+		} else if (newValue instanceof Boolean) {
+			return (currentType == PropertyType.BOOLEAN)
+					&& (((Boolean) newValue).booleanValue() == currentValue
+							.getBoolean());
+
+		} else if (newValue instanceof Long) {
+			return (currentType == PropertyType.LONG)
+					&& (((Long) newValue).longValue() == currentValue.getLong());
+
+		} else if (newValue instanceof Double) {
+			return (currentType == PropertyType.DOUBLE)
+					&& (newValue.equals(Double.valueOf(currentValue.getDouble())));
+
+		} else if (newValue instanceof Calendar) {
+			return (currentType == PropertyType.DATE)
+					&& (((Calendar) newValue).getTimeInMillis() == currentValue
+							.getDate().getTimeInMillis());
+
+		} else if (newValue instanceof Node) {
+			final Node node = (Node) newValue;
+
+			return (currentType == PropertyType.REFERENCE)
+					&& (node.isNodeType("mix:referenceable"))
+					&& (node.getUUID().equals(currentValue.getString()));
+
+		} else if (newValue instanceof byte[]) {
+			return (currentType == PropertyType.BINARY)
+					&& (isSameContent(currentValue.getStream(),
+							(byte[]) newValue));
+		}
+
+		return false;
+	}
+
+	private static boolean isSameContent(final InputStream currentContent,
+			final byte[] newContent) throws IOException {
+
+		try {
+			final byte[] buffer = new byte[Math.min(8192, newContent.length + 1)];
+			int offset = 0;
+			int length;
+
+			while ((length = currentContent.read(buffer)) != -1) {
+				if (offset + length > newContent.length) {
+					return false;
+				}
+
+				for (int i = 0; i < length; i++) {
+					if (buffer[i] != newContent[offset + i]) {
+						return false;
+					}
+				}
+
+				offset += length;
+			}
+
+			return offset == newContent.length;
+		} finally {
+			currentContent.close();
 		}
 	}
 
@@ -241,64 +700,258 @@ public abstract class JcrPropertyUtils {
 		LOG.error("Can not fetch property value for: " + propertyPath, e);
 	}
 
-	static Object getPropertyPayload(final Property property)
+	static Object getPropertyPayload(final Property property,
+			final JcrValueCodec valueCodec, final boolean primitiveArrays)
 			throws IllegalStateException, ValueFormatException,
 			RepositoryException {
 
 		if (property.getDefinition().isMultiple()) {
-			final List<Object> valuePayloads = new ArrayList<Object>();
-
 			final Value[] propertyValues = property.getValues();
 
+			if (primitiveArrays) {
+				final Object primitiveArray = getPrimitiveArrayPayload(
+						property.getType(), propertyValues);
+
+				if (primitiveArray != null) {
+					return primitiveArray;
+				}
+			}
+
+			final List<Object> valuePayloads = new ArrayList<Object>(
+					propertyValues.length);
+
 			for (int i = 0; i < propertyValues.length; i++) {
-				valuePayloads.add(JcrPropertyUtils
-						.getValuePayload(propertyValues[i]));
+				valuePayloads.add(JcrPropertyUtils.getValuePayload(
+						propertyValues[i], valueCodec));
 			}
 
 			return valuePayloads;
 		}
 
-		return JcrPropertyUtils.getValuePayload(property.getValue());
+		return JcrPropertyUtils.getValuePayload(property.getValue(),
+				valueCodec);
+	}
+
+	/**
+	 * @return the values as a <code>long[]</code>, <code>double[]</code> or
+	 *         <code>boolean[]</code>, or null if their type has no primitive
+	 *         array.
+	 */
+	private static Object getPrimitiveArrayPayload(final int propertyType,
+			final Value[] propertyValues) throws RepositoryException {
+
+		if (propertyType == PropertyType.LONG) {
+			final long[] result = new long[propertyValues.length];
+
+			for (int i = 0; i < propertyValues.length; i++) {
+				result[i] = propertyValues[i].getLong();
+			}
+
+			return result;
+
+		} else if (propertyType == PropertyType.DOUBLE) {
+			final double[] result = new double[propertyValues.length];
+
+			for (int i = 0; i < propertyValues.length; i++) {
+				result[i] = propertyValues[i].getDouble();
+			}
+
+			return result;
+
+		} else if (propertyType == PropertyType.BOOLEAN) {
+			final boolean[] result = new boolean[propertyValues.length];
+
+			for (int i = 0; i < propertyValues.length; i++) {
+				result[i] = propertyValues[i].getBoolean();
+			}
+
+			return result;
+		}
+
+		return null;
 	}
 
 	static Object getValuePayload(final Value value)
 			throws IllegalStateException, RepositoryException {
 
+		return getValuePayload(value, null);
+	}
+
+	/**
+	 * @return the value, decoded if it is a binary encoded by the codec.
+	 */
+	static Object getValuePayload(final Value value,
+			final JcrValueCodec valueCodec) throws IllegalStateException,
+			RepositoryException {
+
 		final int propertyType = value.getType();
 
-		if (propertyType == PropertyType.BINARY) {
+		if (propertyType != PropertyType.BINARY) {
+			return getNonBinaryPropertyValue(value, propertyType);
+		}
+
+		if (valueCodec == null) {
 			return value.getStream();
 		}
 
-		return getNonBinaryPropertyValue(value, propertyType);
+		final InputStream valueStream = value.getStream();
+		final InputStream stream = valueStream.markSupported() ? valueStream
+				: new BufferedInputStream(valueStream);
+
+		try {
+			if (!valueCodec.isEncoded(stream)) {
+				return stream;
+			}
+
+			// a user binary can start like an encoded value: if it can not be
+			// decoded to its very end, it is rewound and returned as is
+			stream.mark(Integer.MAX_VALUE);
+
+			try {
+				final Object decodedValue = valueCodec.decode(stream);
+
+				if (stream.read() == -1) {
+					stream.close();
+					return decodedValue;
+				}
+			} catch (final IOException ioe) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Binary value not decoded, returning it as is", ioe);
+				}
+			}
+
+			stream.reset();
+			return stream;
+		} catch (final IOException ioe) {
+			throw new RepositoryException("Can not decode binary value", ioe);
+		}
 	}
 
 	static Serializable outputProperty(final String propertyPath,
 			final Property property,
-			final JcrContentPayloadType contentPayloadType)
-			throws RepositoryException, ValueFormatException {
+			final JcrContentPayloadType contentPayloadType,
+			final JcrConnector connector) throws RepositoryException,
+			ValueFormatException {
 
 		Serializable result;
 
 		if (property.getDefinition().isMultiple()) {
-			final ArrayList<Serializable> contentList = new ArrayList<Serializable>();
-
 			final Value[] propertyValues = property.getValues();
 
+			if ((connector != null) && (connector.isPrimitiveArrayPayloads())) {
+				final Object primitiveArray = getPrimitiveArrayPayload(
+						property.getType(), propertyValues);
+
+				if (primitiveArray != null) {
+					return (Serializable) primitiveArray;
+				}
+			}
+
+			final ArrayList<Serializable> contentList = new ArrayList<Serializable>();
+
 			for (int i = 0; i < propertyValues.length; i++) {
-				contentList.add(outputPropertyValue(propertyPath,
-						propertyValues[i], contentPayloadType));
+				contentList.add(outputPropertyValue(propertyPath, property,
+						propertyValues[i], i, contentPayloadType, connector));
 			}
 
 			result = contentList;
 		} else {
-			result = outputPropertyValue(propertyPath, property.getValue(),
-					contentPayloadType);
+			result = outputPropertyValue(propertyPath, property, property
+					.getValue(), -1, contentPayloadType, connector);
 		}
 
 		return result;
 	}
 
+	private static Serializable outputPropertyValue(final String propertyPath,
+			final Property property, final Value propertyValue,
+			final int valueIndex,
+			final JcrContentPayloadType contentPayloadType,
+			final JcrConnector connector) throws RepositoryException {
+
+		if (property.getType() != PropertyType.BINARY) {
+			return outputPropertyValue(propertyPath, propertyValue,
+					contentPayloadType);
+		}
+
+		if (JcrContentPayloadType.REFERENCE.equals(contentPayloadType)) {
+			// the binary is not read until the reference stream is opened
+			return JcrBinaryReference.newReference(property, valueIndex,
+					connector);
+		}
+
+		if (!JcrContentPayloadType.FULL.equals(contentPayloadType)) {
+			return outputPropertyValue(propertyPath, propertyValue,
+					contentPayloadType);
+		}
+
+		final long length = valueIndex < 0 ? property.getLength() : property
+				.getLengths()[valueIndex];
+
+		final JcrBinarySpooler spooler = connector != null ? connector
+				.getBinarySpooler() : null;
+
+		try {
+			if ((spooler != null) && (spooler.isSpooled(length))) {
+				final InputStream data = propertyValue.getStream();
+
+				try {
+					final JcrSpooledBinary spooledBinary = spooler.spool(
+							propertyPath, data, length);
+
+					if (spooledBinary != null) {
+						return spooledBinary;
+					}
+				} finally {
+					data.close();
+				}
+
+				// the cap of spooled bytes is reached: the binary is referenced
+				// instead, so it is read only if it is consumed
+				LOG.warn("Spooled bytes cap reached, referencing binary: "
+						+ propertyPath);
+
+				return JcrBinaryReference.newReference(property, valueIndex,
+						connector);
+			}
+
+			if ((length < 0) || (length > Integer.MAX_VALUE)) {
+				return outputPropertyValue(propertyPath, propertyValue,
+						contentPayloadType);
+			}
+
+			// the buffer is sized exactly instead of growing while reading
+			final byte[] result = new byte[(int) length];
+			final DataInputStream data = new DataInputStream(propertyValue
+					.getStream());
+
+			try {
+				data.readFully(result);
+			} finally {
+				data.close();
+			}
+
+			return result;
+
+		} catch (final RepositoryException re) {
+			JcrPropertyUtils.logPropertyAccessError(propertyPath, re);
+		} catch (final IOException ioe) {
+			JcrPropertyUtils.logPropertyAccessError(propertyPath, ioe);
+		}
+
+		return "";
+	}
+
+	/**
+	 * A buffer whose content is read in place, instead of being copied to a new
+	 * array like <code>ByteArrayOutputStream.toByteArray()</code> does.
+	 */
+	private static final class ValueBuffer extends ByteArrayOutputStream {
+		InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
 	private JcrPropertyUtils() {
 		throw new UnsupportedOperationException("Do not instantiate");
 	}
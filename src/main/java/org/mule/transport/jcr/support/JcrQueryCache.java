@@ -0,0 +1,295 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+/**
+ * Caches the queries parsed by each session, keyed by language and statement, so
+ * they are only created once and then re-executed, and optionally the path of
+ * the node each query selects. Sessions are held until they are released, or
+ * evicted when more than <code>maxSessions</code> are cached. Cached results
+ * expire after a time to live and are all invalidated by any change observed in
+ * the workspace, since any change can alter the result of any query. At most
+ * <code>maxResults</code> results are cached, the least recently used being
+ * evicted first, and expired results are purged whenever a result is added.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrQueryCache implements EventListener
+{
+    private static final int DEFAULT_MAX_SESSIONS = 64;
+
+    private final int maxQueriesPerSession;
+
+    private final long resultTimeToLive;
+
+    private final Map<Session, Map<String, Query>> queriesBySession;
+
+    private final Map<String, CachedResult> results;
+
+    private long invalidationSequence;
+
+    private long queryHitCount;
+
+    private long queryMissCount;
+
+    private long resultHitCount;
+
+    private long resultMissCount;
+
+    /**
+     * @param maxQueriesPerSession the maximum number of parsed queries cached per
+     *            session, 0 disabling this cache.
+     * @param resultTimeToLive the time, in milliseconds, results are cached for, 0
+     *            disabling this cache.
+     * @param maxResults the maximum number of cached results.
+     */
+    public JcrQueryCache(final int maxQueriesPerSession, final long resultTimeToLive, final int maxResults)
+    {
+        this.maxQueriesPerSession = maxQueriesPerSession;
+        this.resultTimeToLive = resultTimeToLive;
+
+        results = new LinkedHashMap<String, CachedResult>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedResult> eldest)
+            {
+                return size() > maxResults;
+            }
+        };
+
+        queriesBySession = new LinkedHashMap<Session, Map<String, Query>>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Session, Map<String, Query>> eldest)
+            {
+                return size() > DEFAULT_MAX_SESSIONS;
+            }
+        };
+    }
+
+    /**
+     * @return the query parsed by the session for the language and statement,
+     *         created if not already cached.
+     */
+    public Query getQuery(final Session session, final String language, final String statement)
+        throws RepositoryException
+    {
+        if (maxQueriesPerSession <= 0)
+        {
+            return session.getWorkspace().getQueryManager().createQuery(statement, language);
+        }
+
+        final String key = newKey(language, statement);
+        Map<String, Query> sessionQueries;
+
+        synchronized (this)
+        {
+            sessionQueries = queriesBySession.get(session);
+
+            if (sessionQueries == null)
+            {
+                sessionQueries = new LinkedHashMap<String, Query>(16, 0.75f, true)
+                {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(final Map.Entry<String, Query> eldest)
+                    {
+                        return size() > maxQueriesPerSession;
+                    }
+                };
+
+                queriesBySession.put(session, sessionQueries);
+            }
+
+            final Query query = sessionQueries.get(key);
+
+            if (query != null)
+            {
+                queryHitCount++;
+                return query;
+            }
+
+            queryMissCount++;
+        }
+
+        // parsed out of the lock, as sessions are not shared between threads
+        final Query query = session.getWorkspace().getQueryManager().createQuery(statement, language);
+
+        synchronized (this)
+        {
+            sessionQueries.put(key, query);
+        }
+
+        return query;
+    }
+
+    /**
+     * Drops the queries parsed by a session, which is about to be closed.
+     */
+    public synchronized void release(final Session session)
+    {
+        queriesBySession.remove(session);
+    }
+
+    /**
+     * @return true if query results are cached.
+     */
+    public boolean isResultCacheEnabled()
+    {
+        return resultTimeToLive > 0L;
+    }
+
+    /**
+     * @return the sequence number of the last invalidation, to be passed to
+     *         {@link #putResultPath(String, String, String, long)}.
+     */
+    public synchronized long getInvalidationSequence()
+    {
+        return invalidationSequence;
+    }
+
+    /**
+     * @return the cached path of the node selected by a query, or null if it is not
+     *         cached or has expired.
+     */
+    public synchronized String getResultPath(final String language, final String statement)
+    {
+        final String key = newKey(language, statement);
+        final CachedResult result = results.get(key);
+
+        if ((result == null) || (System.currentTimeMillis() - result.creationTime > resultTimeToLive))
+        {
+            if (result != null)
+            {
+                results.remove(key);
+            }
+
+            resultMissCount++;
+            return null;
+        }
+
+        resultHitCount++;
+        return result.nodePath;
+    }
+
+    /**
+     * Caches the path of the node selected by a query, unless an invalidation
+     * occurred since <code>invalidationSequence</code> was read.
+     */
+    public synchronized void putResultPath(final String language,
+                                           final String statement,
+                                           final String nodePath,
+                                           final long invalidationSequence)
+    {
+        if ((isResultCacheEnabled()) && (nodePath != null)
+            && (invalidationSequence == this.invalidationSequence))
+        {
+            purgeExpiredResults();
+            results.put(newKey(language, statement), new CachedResult(nodePath));
+        }
+    }
+
+    /**
+     * @return the number of cached results, including the expired ones not purged
+     *         yet.
+     */
+    public synchronized int getResultCount()
+    {
+        return results.size();
+    }
+
+    /**
+     * Drops all the cached results.
+     */
+    public synchronized void invalidateResults()
+    {
+        invalidationSequence++;
+        results.clear();
+    }
+
+    public void onEvent(final EventIterator eventIterator)
+    {
+        invalidateResults();
+    }
+
+    public synchronized long getQueryHitCount()
+    {
+        return queryHitCount;
+    }
+
+    public synchronized long getQueryMissCount()
+    {
+        return queryMissCount;
+    }
+
+    public synchronized long getResultHitCount()
+    {
+        return resultHitCount;
+    }
+
+    public synchronized long getResultMissCount()
+    {
+        return resultMissCount;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "JcrQueryCache[sessions=" + queriesBySession.size() + ", queryHits=" + queryHitCount
+               + ", queryMisses=" + queryMissCount + ", results=" + results.size() + ", resultHits="
+               + resultHitCount + ", resultMisses=" + resultMissCount + "]";
+    }
+
+    private void purgeExpiredResults()
+    {
+        final long now = System.currentTimeMillis();
+
+        for (final Iterator<CachedResult> i = results.values().iterator(); i.hasNext();)
+        {
+            if (now - i.next().creationTime > resultTimeToLive)
+            {
+                i.remove();
+            }
+        }
+    }
+
+    private static String newKey(final String language, final String statement)
+    {
+        return language + '\n' + statement;
+    }
+
+    private static final class CachedResult
+    {
+        private final String nodePath;
+
+        private final long creationTime = System.currentTimeMillis();
+
+        CachedResult(final String nodePath)
+        {
+            this.nodePath = nodePath;
+        }
+    }
+}
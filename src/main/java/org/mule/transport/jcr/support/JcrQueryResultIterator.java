@@ -0,0 +1,225 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.jcr.Item;
+import javax.jcr.NodeIterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Iterates lazily on the nodes selected by a query, from an offset and up to a
+ * limit, materializing the payload of each node only when it is reached. It
+ * returns either each payload, or lists of up to <code>pageSize</code> payloads,
+ * so the memory it uses does not depend on the size of the result. The session
+ * the query has been executed with is released once the iterator is exhausted
+ * or closed: iterators that are not consumed to the end must be closed. Those
+ * left idle for too long can be closed with {@link #closeIfIdle(long)}, after
+ * which they fail when used.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrQueryResultIterator implements Iterator<Object>, Closeable
+{
+    private static final Log LOG = LogFactory.getLog(JcrQueryResultIterator.class);
+
+    /**
+     * Builds the payload of a selected item.
+     */
+    public interface PayloadFactory
+    {
+        /**
+         * @return the payload of the item, or null if it has none.
+         */
+        Object newPayload(Item item) throws Exception;
+    }
+
+    private final NodeIterator nodes;
+
+    private final long limit;
+
+    private final int pageSize;
+
+    private final boolean split;
+
+    private final PayloadFactory payloadFactory;
+
+    private final Runnable releaser;
+
+    private long returnedNodeCount;
+
+    private boolean closed;
+
+    private boolean closedWhenIdle;
+
+    private long lastAccessTime = System.currentTimeMillis();
+
+    /**
+     * @param limit the maximum number of nodes to iterate on, or a negative value
+     *            for all of them.
+     * @param split true to return each payload, false to return lists of
+     *            <code>pageSize</code> payloads.
+     * @param releaser called once, when the iterator is exhausted or closed.
+     */
+    public JcrQueryResultIterator(final NodeIterator nodes,
+                                  final long offset,
+                                  final long limit,
+                                  final int pageSize,
+                                  final boolean split,
+                                  final PayloadFactory payloadFactory,
+                                  final Runnable releaser)
+    {
+        this.nodes = nodes;
+        this.limit = limit;
+        this.pageSize = Math.max(1, pageSize);
+        this.split = split;
+        this.payloadFactory = payloadFactory;
+        this.releaser = releaser;
+
+        if (offset > 0L)
+        {
+            try
+            {
+                nodes.skip(offset);
+            }
+            catch (final NoSuchElementException nsee)
+            {
+                // the offset is beyond the result
+                close();
+            }
+        }
+    }
+
+    public synchronized boolean hasNext()
+    {
+        if (closedWhenIdle)
+        {
+            throw new IllegalStateException("The query result iterator has been closed after being idle for too long");
+        }
+
+        if (closed)
+        {
+            return false;
+        }
+
+        lastAccessTime = System.currentTimeMillis();
+
+        if (((limit >= 0L) && (returnedNodeCount >= limit)) || (!nodes.hasNext()))
+        {
+            close();
+            return false;
+        }
+
+        return true;
+    }
+
+    public synchronized Object next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+
+        if (split)
+        {
+            return nextPayload();
+        }
+
+        final List<Object> page = new ArrayList<Object>(pageSize);
+
+        do
+        {
+            page.add(nextPayload());
+        }
+        while ((page.size() < pageSize) && (hasNext()));
+
+        return page;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException("Query results can not be removed");
+    }
+
+    /**
+     * Releases the session of the query, if not already done.
+     */
+    public synchronized void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        closed = true;
+
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Closing query result iterator after " + returnedNodeCount + " node(s)");
+        }
+
+        if (releaser != null)
+        {
+            releaser.run();
+        }
+    }
+
+    /**
+     * Closes this iterator if it has not been used for longer than a timeout, so
+     * the session of an abandoned iterator is released.
+     *
+     * @return true if the iterator is closed.
+     */
+    public synchronized boolean closeIfIdle(final long idleTimeout)
+    {
+        if ((!closed) && (System.currentTimeMillis() - lastAccessTime > idleTimeout))
+        {
+            LOG.warn("Closing query result iterator left idle for more than " + idleTimeout + "ms after "
+                     + returnedNodeCount + " node(s): it should be closed when not consumed to the end");
+
+            closedWhenIdle = true;
+            close();
+        }
+
+        return closed;
+    }
+
+    /**
+     * @return the number of nodes returned so far.
+     */
+    public synchronized long getReturnedNodeCount()
+    {
+        return returnedNodeCount;
+    }
+
+    private Object nextPayload()
+    {
+        final Item node = nodes.nextNode();
+        returnedNodeCount++;
+
+        try
+        {
+            return payloadFactory.newPayload(node);
+        }
+        catch (final Exception e)
+        {
+            close();
+            throw new IllegalStateException("Can not build the payload of a query result node", e);
+        }
+    }
+}
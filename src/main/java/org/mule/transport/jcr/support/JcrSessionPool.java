@@ -0,0 +1,281 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.mule.transport.jcr.JcrConnector;
+
+/**
+ * A bounded pool of JCR sessions, all opened with the credentials and workspace of
+ * a particular <code>JcrConnector</code>. Sessions are validated when borrowed and
+ * any pending change is discarded when they are returned, so a borrower always
+ * gets a live and clean session.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrSessionPool
+{
+    private static final Log LOG = LogFactory.getLog(JcrSessionPool.class);
+
+    private static final ThreadLocal<Boolean> SESSION_CREATED = new ThreadLocal<Boolean>();
+
+    private final JcrConnector connector;
+
+    private final GenericObjectPool pool;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong waits = new AtomicLong();
+
+    private final AtomicLong totalWaitTime = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public JcrSessionPool(final JcrConnector connector,
+                          final int minIdle,
+                          final int maxActive,
+                          final long maxWait,
+                          final long evictionInterval,
+                          final long maxIdleTime)
+    {
+        this.connector = connector;
+
+        pool = new GenericObjectPool(new SessionFactory());
+        pool.setMaxActive(maxActive);
+        pool.setMaxIdle(maxActive);
+        pool.setMinIdle(minIdle);
+        pool.setMaxWait(maxWait);
+        pool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+        pool.setTestOnBorrow(true);
+        pool.setTestWhileIdle(true);
+        pool.setTimeBetweenEvictionRunsMillis(evictionInterval);
+        pool.setMinEvictableIdleTimeMillis(maxIdleTime);
+    }
+
+    /**
+     * Borrows a session from the pool, blocking up to the configured maximum wait
+     * time if all the sessions are in use.
+     *
+     * @return a live session, which must be given back with
+     *         {@link #returnSession(Session)} or
+     *         {@link #invalidateSession(Session)}.
+     * @throws RepositoryException if no session could be borrowed.
+     */
+    public Session borrowSession() throws RepositoryException
+    {
+        final boolean exhausted = (pool.getNumIdle() == 0) && (pool.getNumActive() >= pool.getMaxActive());
+        final long start = System.currentTimeMillis();
+
+        SESSION_CREATED.set(Boolean.FALSE);
+
+        try
+        {
+            final Session session = (Session) pool.borrowObject();
+
+            if (Boolean.TRUE.equals(SESSION_CREATED.get()))
+            {
+                misses.incrementAndGet();
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+
+            return session;
+        }
+        catch (final NoSuchElementException nsee)
+        {
+            throw new RepositoryException("Timed out after " + pool.getMaxWait()
+                                          + "ms while waiting for a JCR session from the pool of: "
+                                          + connector.getName(), nsee);
+        }
+        catch (final RepositoryException re)
+        {
+            throw re;
+        }
+        catch (final Exception e)
+        {
+            throw new RepositoryException("Can not borrow a JCR session from the pool of: "
+                                          + connector.getName(), e);
+        }
+        finally
+        {
+            SESSION_CREATED.remove();
+
+            if (exhausted)
+            {
+                waits.incrementAndGet();
+                totalWaitTime.addAndGet(System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    /**
+     * Gives a borrowed session back to the pool.
+     */
+    public void returnSession(final Session session)
+    {
+        if (session == null)
+        {
+            return;
+        }
+
+        try
+        {
+            pool.returnObject(session);
+        }
+        catch (final Exception e)
+        {
+            LOG.warn("Can not return JCR session to the pool of: " + connector.getName(), e);
+        }
+    }
+
+    /**
+     * Removes a borrowed session that has been found unusable from the pool.
+     */
+    public void invalidateSession(final Session session)
+    {
+        if (session == null)
+        {
+            return;
+        }
+
+        invalidations.incrementAndGet();
+
+        try
+        {
+            pool.invalidateObject(session);
+        }
+        catch (final Exception e)
+        {
+            LOG.warn("Can not invalidate JCR session from the pool of: " + connector.getName(), e);
+        }
+    }
+
+    /**
+     * Closes the pool and logs out all the idle sessions.
+     */
+    public void close()
+    {
+        try
+        {
+            pool.close();
+        }
+        catch (final Exception e)
+        {
+            LOG.warn("Can not close the JCR session pool of: " + connector.getName(), e);
+        }
+    }
+
+    /**
+     * @return the number of borrowings served by an idle session.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of borrowings that required a new session to be opened.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of borrowings that had to wait for a session to be given
+     *         back.
+     */
+    public long getWaits()
+    {
+        return waits.get();
+    }
+
+    /**
+     * @return the total time, in milliseconds, spent waiting for a session.
+     */
+    public long getTotalWaitTime()
+    {
+        return totalWaitTime.get();
+    }
+
+    /**
+     * @return the number of sessions that have been invalidated by borrowers.
+     */
+    public long getInvalidations()
+    {
+        return invalidations.get();
+    }
+
+    public int getNumActive()
+    {
+        return pool.getNumActive();
+    }
+
+    public int getNumIdle()
+    {
+        return pool.getNumIdle();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JcrSessionPool[active=" + getNumActive() + ", idle=" + getNumIdle() + ", hits=" + getHits()
+               + ", misses=" + getMisses() + ", waits=" + getWaits() + ", totalWaitTime="
+               + getTotalWaitTime() + "ms, invalidations=" + getInvalidations() + "]";
+    }
+
+    private final class SessionFactory extends BasePoolableObjectFactory
+    {
+        @Override
+        public Object makeObject() throws Exception
+        {
+            SESSION_CREATED.set(Boolean.TRUE);
+            return connector.newSession();
+        }
+
+        @Override
+        public void destroyObject(final Object obj) throws Exception
+        {
+            connector.terminateSession((Session) obj);
+        }
+
+        @Override
+        public boolean validateObject(final Object obj)
+        {
+            return ((Session) obj).isLive();
+        }
+
+        @Override
+        public void passivateObject(final Object obj) throws Exception
+        {
+            final Session session = (Session) obj;
+
+            if (session.isLive() && session.hasPendingChanges())
+            {
+                // never let a borrower see the unsaved changes of another one
+                session.refresh(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes the objects that have no JCR value type into binary values, and decodes
+ * them back when these values are read. Objects a codec can not encode are
+ * stored with Java serialization, and binaries it has not encoded are read as
+ * streams.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public interface JcrValueCodec
+{
+    /**
+     * @return true if the codec can encode the value and everything it holds.
+     */
+    boolean canEncode(Object value);
+
+    /**
+     * Writes a value that the codec can encode.
+     */
+    void encode(Object value, OutputStream out) throws IOException;
+
+    /**
+     * Checks if a binary has been encoded by the codec, without consuming it.
+     *
+     * @param in a stream that supports <code>mark</code> and <code>reset</code>.
+     * @return true if the stream starts with content encoded by the codec.
+     */
+    boolean isEncoded(InputStream in) throws IOException;
+
+    /**
+     * Reads a value written by {@link #encode(Object, OutputStream)}.
+     */
+    Object decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,379 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.mule.transport.jcr.i18n.JcrMessages;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Helpers for streaming XML in and out of JCR repositories.
+ *
+ * @author David Dossot (david@dossot.net)
+ */
+public abstract class JcrXmlUtils
+{
+    /**
+     * The namespace of system view XML elements.
+     */
+    public static final String SYSTEM_VIEW_NAMESPACE = "http://www.jcp.org/jcr/sv/1.0";
+
+    private static final String EXTERNAL_GENERAL_ENTITIES_FEATURE = "http://xml.org/sax/features/external-general-entities";
+
+    private static final String EXTERNAL_PARAMETER_ENTITIES_FEATURE = "http://xml.org/sax/features/external-parameter-entities";
+
+    private static final String LOAD_EXTERNAL_DTD_FEATURE = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+
+    /**
+     * Parses the XML of a payload straight into a content handler, typically
+     * obtained from <code>Session.getImportContentHandler</code> or
+     * <code>Workspace.getImportContentHandler</code>, so the document is never held
+     * in memory. As payloads can not be trusted, the XML is parsed with secure
+     * processing on and without resolving any external entity or DTD.
+     *
+     * @param payload an <code>InputStream</code>, a <code>Source</code>, a
+     *            <code>byte[]</code> or a <code>String</code> of XML.
+     * @param contentHandler the handler to feed with SAX events.
+     * @return the number of nodes described by the XML document.
+     * @throws TransformerException if the document can not be parsed or imported.
+     */
+    public static long importXml(final Object payload, final ContentHandler contentHandler)
+        throws TransformerException
+    {
+        final NodeCountingFilter nodeCountingFilter = new NodeCountingFilter();
+        nodeCountingFilter.setContentHandler(contentHandler);
+
+        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+        transformerFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+
+        transformerFactory.newTransformer().transform(newSecureSource(payload),
+            new SAXResult(nodeCountingFilter));
+
+        return nodeCountingFilter.getNodeCount();
+    }
+
+    /**
+     * Creates a content handler that serializes the SAX events it receives, for
+     * example from <code>Session.exportSystemView</code>, to a stream.
+     *
+     * @param outputStream the stream to write the XML to.
+     * @param maxDepth the depth, relative to the first node, beyond which nodes are
+     *            not written, or a negative value to write all of them.
+     * @return the content handler.
+     * @throws TransformerConfigurationException if no XML serializer is available.
+     */
+    public static ContentHandler newXmlWriter(final OutputStream outputStream, final int maxDepth)
+        throws TransformerConfigurationException
+    {
+        final TransformerHandler transformerHandler = ((SAXTransformerFactory) TransformerFactory.newInstance())
+            .newTransformerHandler();
+        transformerHandler.setResult(new StreamResult(outputStream));
+
+        if (maxDepth < 0)
+        {
+            return transformerHandler;
+        }
+
+        final DepthLimitingFilter depthLimitingFilter = new DepthLimitingFilter(maxDepth);
+        depthLimitingFilter.setContentHandler(transformerHandler);
+        return depthLimitingFilter;
+    }
+
+    /**
+     * @param behavior the name of an <code>ImportUUIDBehavior</code>: createNew,
+     *            removeExisting, replaceExisting or throwOnCollision, or its numeric
+     *            value.
+     * @return the matching <code>ImportUUIDBehavior</code> constant,
+     *         <code>IMPORT_UUID_CREATE_NEW</code> if blank.
+     */
+    public static int getImportUuidBehavior(final String behavior)
+    {
+        if ((behavior == null) || (behavior.trim().length() == 0) || ("createNew".equals(behavior)))
+        {
+            return ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW;
+        }
+        else if ("removeExisting".equals(behavior))
+        {
+            return ImportUUIDBehavior.IMPORT_UUID_COLLISION_REMOVE_EXISTING;
+        }
+        else if ("replaceExisting".equals(behavior))
+        {
+            return ImportUUIDBehavior.IMPORT_UUID_COLLISION_REPLACE_EXISTING;
+        }
+        else if ("throwOnCollision".equals(behavior))
+        {
+            return ImportUUIDBehavior.IMPORT_UUID_COLLISION_THROW;
+        }
+
+        return Integer.parseInt(behavior.trim());
+    }
+
+    /**
+     * Wraps the payload in a source parsed by a secure XML reader, unless it is an
+     * already parsed source like a <code>DOMSource</code>.
+     */
+    private static Source newSecureSource(final Object payload) throws TransformerException
+    {
+        final Source source = newSource(payload);
+
+        if ((source instanceof SAXSource) && (((SAXSource) source).getXMLReader() != null))
+        {
+            // the reader provided with the payload is trusted as is
+            return source;
+        }
+
+        final InputSource inputSource = SAXSource.sourceToInputSource(source);
+
+        if (inputSource == null)
+        {
+            return source;
+        }
+
+        return new SAXSource(newSecureXmlReader(), inputSource);
+    }
+
+    private static XMLReader newSecureXmlReader() throws TransformerException
+    {
+        try
+        {
+            final SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+            saxParserFactory.setNamespaceAware(true);
+            saxParserFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            setFeatureIfRecognized(saxParserFactory, EXTERNAL_GENERAL_ENTITIES_FEATURE, false);
+            setFeatureIfRecognized(saxParserFactory, EXTERNAL_PARAMETER_ENTITIES_FEATURE, false);
+            setFeatureIfRecognized(saxParserFactory, LOAD_EXTERNAL_DTD_FEATURE, false);
+
+            final XMLReader xmlReader = saxParserFactory.newSAXParser().getXMLReader();
+
+            // parsers that do not recognize the features above still can not reach
+            // any external resource
+            xmlReader.setEntityResolver(new EntityResolver()
+            {
+                public InputSource resolveEntity(final String publicId, final String systemId)
+                {
+                    return new InputSource(new StringReader(""));
+                }
+            });
+
+            return xmlReader;
+        }
+        catch (final ParserConfigurationException pce)
+        {
+            throw new TransformerException(pce);
+        }
+        catch (final SAXException se)
+        {
+            throw new TransformerException(se);
+        }
+    }
+
+    private static void setFeatureIfRecognized(final SAXParserFactory saxParserFactory,
+                                               final String feature,
+                                               final boolean value) throws ParserConfigurationException
+    {
+        try
+        {
+            saxParserFactory.setFeature(feature, value);
+        }
+        catch (final SAXNotRecognizedException snre)
+        {
+            // the entity resolver of the reader covers this feature
+        }
+        catch (final SAXNotSupportedException snse)
+        {
+            // the entity resolver of the reader covers this feature
+        }
+    }
+
+    private static Source newSource(final Object payload)
+    {
+        if (payload instanceof Source)
+        {
+            return (Source) payload;
+        }
+        else if (payload instanceof InputStream)
+        {
+            return new StreamSource((InputStream) payload);
+        }
+        else if (payload instanceof byte[])
+        {
+            return new StreamSource(new ByteArrayInputStream((byte[]) payload));
+        }
+        else if (payload instanceof String)
+        {
+            return new StreamSource(new StringReader((String) payload));
+        }
+
+        throw new IllegalArgumentException(JcrMessages.unsupportedXmlPayload(
+            payload == null ? null : payload.getClass()).getMessage());
+    }
+
+    /**
+     * Counts nodes while passing SAX events through: in system view only
+     * <code>sv:node</code> elements are nodes, while in document view every
+     * element is.
+     */
+    private static final class NodeCountingFilter extends XMLFilterImpl
+    {
+        private Boolean systemView;
+
+        private long nodeCount;
+
+        @Override
+        public void startElement(final String uri,
+                                 final String localName,
+                                 final String qName,
+                                 final Attributes atts) throws SAXException
+        {
+            if (systemView == null)
+            {
+                systemView = Boolean.valueOf(SYSTEM_VIEW_NAMESPACE.equals(uri));
+            }
+
+            if ((!systemView.booleanValue()) || ("node".equals(localName)))
+            {
+                nodeCount++;
+            }
+
+            super.startElement(uri, localName, qName, atts);
+        }
+
+        long getNodeCount()
+        {
+            return nodeCount;
+        }
+    }
+
+    /**
+     * Drops the nodes deeper than a maximum depth, along with all their content.
+     */
+    private static final class DepthLimitingFilter extends XMLFilterImpl
+    {
+        private final int maxDepth;
+
+        private Boolean systemView;
+
+        private int nodeDepth = -1;
+
+        private int skippedElements;
+
+        DepthLimitingFilter(final int maxDepth)
+        {
+            this.maxDepth = maxDepth;
+        }
+
+        @Override
+        public void startElement(final String uri,
+                                 final String localName,
+                                 final String qName,
+                                 final Attributes atts) throws SAXException
+        {
+            if (systemView == null)
+            {
+                systemView = Boolean.valueOf(SYSTEM_VIEW_NAMESPACE.equals(uri));
+            }
+
+            if (skippedElements > 0)
+            {
+                skippedElements++;
+                return;
+            }
+
+            if (isNode(uri, localName))
+            {
+                if (nodeDepth >= maxDepth)
+                {
+                    skippedElements = 1;
+                    return;
+                }
+
+                nodeDepth++;
+            }
+
+            super.startElement(uri, localName, qName, atts);
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName)
+            throws SAXException
+        {
+            if (skippedElements > 0)
+            {
+                skippedElements--;
+                return;
+            }
+
+            if (isNode(uri, localName))
+            {
+                nodeDepth--;
+            }
+
+            super.endElement(uri, localName, qName);
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) throws SAXException
+        {
+            if (skippedElements == 0)
+            {
+                super.characters(ch, start, length);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(final char[] ch, final int start, final int length)
+            throws SAXException
+        {
+            if (skippedElements == 0)
+            {
+                super.ignorableWhitespace(ch, start, length);
+            }
+        }
+
+        private boolean isNode(final String uri, final String localName)
+        {
+            return (!systemView.booleanValue())
+                   || (SYSTEM_VIEW_NAMESPACE.equals(uri) && "node".equals(localName));
+        }
+    }
+
+    private JcrXmlUtils()
+    {
+        throw new UnsupportedOperationException("Do not instantiate");
+    }
+}
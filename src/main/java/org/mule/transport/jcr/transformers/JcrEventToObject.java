@@ -12,14 +12,23 @@ package org.mule.transport.jcr.transformers;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
 import javax.jcr.observation.EventIterator;
 
 import org.mule.api.transformer.TransformerException;
+import org.mule.api.transport.Connector;
+import org.mule.config.i18n.MessageFactory;
 import org.mule.transformer.AbstractDiscoverableTransformer;
 import org.mule.transformer.types.SimpleDataType;
+import org.mule.transport.jcr.JcrConnector;
 import org.mule.transport.jcr.JcrContentPayloadType;
+import org.mule.transport.jcr.JcrEventBatch;
 import org.mule.transport.jcr.JcrMessage;
 import org.mule.transport.jcr.JcrMessageReceiver;
 import org.mule.transport.jcr.JcrMessageReceiverContext;
@@ -36,6 +45,8 @@ public class JcrEventToObject extends AbstractDiscoverableTransformer
 
     private JcrContentPayloadType contentPayloadType;
 
+    private int fetchParallelism;
+
     public JcrEventToObject()
     {
         super();
@@ -46,34 +57,293 @@ public class JcrEventToObject extends AbstractDiscoverableTransformer
     protected Object doTransform(final Object src, final String encoding) throws TransformerException
     {
 
-        final List<JcrMessage> eventList = new ArrayList<JcrMessage>();
         final EventIterator eventIterator = (EventIterator) src;
 
-        final JcrMessageReceiverContext jcrMessageReceiverContext = JcrMessageReceiver.getJcrMessageReceiverContext();
+        final JcrMessageReceiverContext jcrMessageReceiverContext = getReceiverContext(eventIterator);
+
+        if (jcrMessageReceiverContext == null)
+        {
+            throw new TransformerException(MessageFactory.createStaticMessage("No receiver context available for: "
+                                                                              + eventIterator), this);
+        }
+
+        final JcrContentPayloadType payloadType = contentPayloadType != null
+                                                                             ? contentPayloadType
+                                                                             : jcrMessageReceiverContext.getContentPayloadType();
+
+        final JcrConnector connector = jcrMessageReceiverContext.getConnector();
+
+        final List<Event> events = new ArrayList<Event>();
 
         while (eventIterator.hasNext())
         {
-            try
+            events.add(eventIterator.nextEvent());
+        }
+
+        final int parallelism = getParallelism(connector, payloadType, events.size());
+
+        if (parallelism > 1)
+        {
+            return fetchInParallel(events, connector, payloadType, parallelism);
+        }
+
+        final List<JcrMessage> eventList = new ArrayList<JcrMessage>();
+
+        // content is fetched with a pooled session, if the connector has a pool,
+        // so the observing session is not shared across concurrent transformations
+        final boolean pooled = (connector != null) && (connector.getSessionPool() != null)
+                               && (!JcrContentPayloadType.NONE.equals(payloadType));
+
+        final Session session;
+
+        try
+        {
+            session = pooled ? connector.borrowSession() : jcrMessageReceiverContext.getObservingSession();
+        }
+        catch (final RepositoryException re)
+        {
+            throw new TransformerException(this, re);
+        }
+
+        try
+        {
+            if (pooled)
+            {
+                addJcrMessages(events, session, payloadType, connector, eventList);
+            }
+            else
+            {
+                // JCR sessions are not thread-safe: the flow threads of a receiver
+                // take turns on its observing session
+                synchronized (session)
+                {
+                    addJcrMessages(events, session, payloadType, connector, eventList);
+                }
+            }
+        }
+        finally
+        {
+            if (pooled)
             {
-                eventList.add(JcrNodeUtils.newJcrMessage(eventIterator.nextEvent(),
-                    jcrMessageReceiverContext.getObservingSession(),
-                    contentPayloadType != null
-                                              ? contentPayloadType
-                                              : jcrMessageReceiverContext.getContentPayloadType()));
+                connector.releaseSession(session);
+            }
+        }
+
+        return eventList;
+    }
 
+    private void addJcrMessages(final List<Event> events,
+                                final Session session,
+                                final JcrContentPayloadType payloadType,
+                                final JcrConnector connector,
+                                final List<JcrMessage> eventList)
+    {
+        for (final Event event : events)
+        {
+            try
+            {
+                eventList.add(JcrNodeUtils.newJcrMessage(event, session, payloadType, connector));
             }
             catch (final RepositoryException re)
             {
                 logger.error("Can not process JCR event", re);
             }
         }
+    }
+
+    private int getParallelism(final JcrConnector connector,
+                               final JcrContentPayloadType payloadType,
+                               final int eventCount)
+    {
+        // parallel fetches need pooled reader sessions
+        if ((connector == null) || (connector.getContentFetchExecutor() == null)
+            || (connector.getSessionPool() == null) || (JcrContentPayloadType.NONE.equals(payloadType)))
+        {
+            return 1;
+        }
+
+        final int configuredParallelism = fetchParallelism > 0
+                                                              ? fetchParallelism
+                                                              : connector.getEventFetchParallelism();
+
+        return Math.min(configuredParallelism, eventCount);
+    }
+
+    /**
+     * Splits the events in contiguous ranges whose content is fetched
+     * concurrently, each with its own reader session: the first range is fetched
+     * by the calling thread. The messages are kept in the order of the events.
+     */
+    private List<JcrMessage> fetchInParallel(final List<Event> events,
+                                             final JcrConnector connector,
+                                             final JcrContentPayloadType payloadType,
+                                             final int parallelism) throws TransformerException
+    {
+        final JcrMessage[] messages = new JcrMessage[events.size()];
+        final int rangeSize = (events.size() + parallelism - 1) / parallelism;
+
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        try
+        {
+            for (int start = rangeSize; start < events.size(); start += rangeSize)
+            {
+                futures.add(connector.getContentFetchExecutor().submit(
+                    new ContentFetcher(events, messages, start, Math.min(start + rangeSize, events.size()),
+                        connector, payloadType)));
+            }
+
+            new ContentFetcher(events, messages, 0, Math.min(rangeSize, events.size()), connector, payloadType).call();
+
+            for (final Future<Void> future : futures)
+            {
+                future.get();
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new TransformerException(this, ie);
+        }
+        catch (final ExecutionException ee)
+        {
+            throw new TransformerException(this, ee.getCause());
+        }
+        catch (final Exception e)
+        {
+            throw new TransformerException(this, e);
+        }
+        finally
+        {
+            for (final Future<Void> future : futures)
+            {
+                future.cancel(true);
+            }
+        }
+
+        final List<JcrMessage> eventList = new ArrayList<JcrMessage>(messages.length);
+
+        for (final JcrMessage message : messages)
+        {
+            // events whose processing failed are left out, as in serial mode
+            if (message != null)
+            {
+                eventList.add(message);
+            }
+        }
 
         return eventList;
     }
 
+    @SuppressWarnings("deprecation")
+    private JcrMessageReceiverContext getReceiverContext(final EventIterator eventIterator)
+    {
+        if (eventIterator instanceof JcrEventBatch)
+        {
+            final JcrEventBatch eventBatch = (JcrEventBatch) eventIterator;
+
+            if (eventBatch.getReceiverContext() == null)
+            {
+                // the context is not serialized: a batch that went through a
+                // persistent queue has to look it up through its connector
+                eventBatch.setReceiverContext(lookupReceiverContext(eventBatch));
+            }
+
+            if (eventBatch.getReceiverContext() != null)
+            {
+                return eventBatch.getReceiverContext();
+            }
+        }
+
+        return JcrMessageReceiver.getJcrMessageReceiverContext();
+    }
+
+    private JcrMessageReceiverContext lookupReceiverContext(final JcrEventBatch eventBatch)
+    {
+        if ((eventBatch.getConnectorName() == null) || (muleContext == null))
+        {
+            return null;
+        }
+
+        final Connector connector = muleContext.getRegistry().lookupConnector(eventBatch.getConnectorName());
+
+        if (connector instanceof JcrConnector)
+        {
+            return ((JcrConnector) connector).lookupReceiverContext(eventBatch.getReceiverKey());
+        }
+
+        return null;
+    }
+
     public void setContentPayloadType(final String contentPayloadType)
     {
         this.contentPayloadType = JcrContentPayloadType.fromString(contentPayloadType);
     }
 
+    /**
+     * @param fetchParallelism the number of reader sessions used to fetch event
+     *            content in parallel, overriding the connector setting if greater
+     *            than zero.
+     */
+    public void setFetchParallelism(final int fetchParallelism)
+    {
+        this.fetchParallelism = fetchParallelism;
+    }
+
+    private final class ContentFetcher implements Callable<Void>
+    {
+        private final List<Event> events;
+
+        private final JcrMessage[] messages;
+
+        private final int start;
+
+        private final int end;
+
+        private final JcrConnector connector;
+
+        private final JcrContentPayloadType payloadType;
+
+        ContentFetcher(final List<Event> events,
+                       final JcrMessage[] messages,
+                       final int start,
+                       final int end,
+                       final JcrConnector connector,
+                       final JcrContentPayloadType payloadType)
+        {
+            this.events = events;
+            this.messages = messages;
+            this.start = start;
+            this.end = end;
+            this.connector = connector;
+            this.payloadType = payloadType;
+        }
+
+        public Void call() throws RepositoryException
+        {
+            final Session session = connector.borrowSession();
+
+            try
+            {
+                for (int i = start; i < end; i++)
+                {
+                    try
+                    {
+                        messages[i] = JcrNodeUtils.newJcrMessage(events.get(i), session, payloadType, connector);
+                    }
+                    catch (final RepositoryException re)
+                    {
+                        logger.error("Can not process JCR event", re);
+                    }
+                }
+            }
+            finally
+            {
+                connector.releaseSession(session);
+            }
+
+            return null;
+        }
+    }
+
 }
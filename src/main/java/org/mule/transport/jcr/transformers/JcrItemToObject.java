@@ -19,6 +19,7 @@ import org.mule.transformer.AbstractDiscoverableTransformer;
 import org.mule.transformer.types.SimpleDataType;
 import org.mule.transport.jcr.support.JcrNodeUtils;
 import org.mule.transport.jcr.support.JcrPropertyUtils;
+import org.mule.transport.jcr.support.JcrValueCodec;
 
 /**
  * Transforms a JCR <code>Item</code> or <code>PropertyIterator</code> into an object
@@ -28,6 +29,9 @@ import org.mule.transport.jcr.support.JcrPropertyUtils;
  */
 public class JcrItemToObject extends AbstractDiscoverableTransformer
 {
+    private JcrValueCodec valueCodec;
+
+    private boolean primitiveArrayPayloads;
 
     public JcrItemToObject()
     {
@@ -44,11 +48,12 @@ public class JcrItemToObject extends AbstractDiscoverableTransformer
         {
             if (src instanceof Item)
             {
-                return JcrNodeUtils.getItemPayload((Item) src);
+                return JcrNodeUtils.getItemPayload((Item) src, valueCodec, primitiveArrayPayloads);
             }
             else if (src instanceof PropertyIterator)
             {
-                return JcrPropertyUtils.getPropertiesPayload((PropertyIterator) src);
+                return JcrPropertyUtils.getPropertiesPayload((PropertyIterator) src, valueCodec,
+                    primitiveArrayPayloads);
             }
             else
             {
@@ -61,4 +66,40 @@ public class JcrItemToObject extends AbstractDiscoverableTransformer
             throw new TransformerException(this, re);
         }
     }
+
+    /**
+     * @return the valueCodec
+     */
+    public JcrValueCodec getValueCodec()
+    {
+        return valueCodec;
+    }
+
+    /**
+     * @param valueCodec the codec that decodes the binaries it has encoded, or
+     *            null to return all binaries as streams.
+     */
+    public void setValueCodec(final JcrValueCodec valueCodec)
+    {
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * @return the primitiveArrayPayloads
+     */
+    public boolean isPrimitiveArrayPayloads()
+    {
+        return primitiveArrayPayloads;
+    }
+
+    /**
+     * @param primitiveArrayPayloads true to return the values of multi-valued
+     *            long, double and boolean properties as <code>long[]</code>,
+     *            <code>double[]</code> and <code>boolean[]</code> instead of
+     *            lists.
+     */
+    public void setPrimitiveArrayPayloads(final boolean primitiveArrayPayloads)
+    {
+        this.primitiveArrayPayloads = primitiveArrayPayloads;
+    }
 }
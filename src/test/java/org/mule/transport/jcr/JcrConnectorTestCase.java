@@ -11,14 +11,35 @@
 package org.mule.transport.jcr;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+
 import org.junit.Test;
 import org.mule.api.MuleContext;
 import org.mule.api.lifecycle.InitialisationException;
 import org.mule.api.transport.Connector;
 import org.mule.transport.AbstractConnectorTestCase;
+import org.mule.transport.jcr.support.JcrSessionPool;
+import org.mule.transport.jcr.transformers.JcrEventToObject;
 
 /**
  * @author David Dossot (david@dossot.net)
@@ -79,4 +100,230 @@ public class JcrConnectorTestCase extends AbstractConnectorTestCase
         assertEquals(RepositoryTestSupport.PASSWORD, jcrConnector.getPassword());
         assertNull(jcrConnector.getWorkspaceName());
     }
+
+    @Test
+    public void testSessionPool() throws Exception
+    {
+        final JcrConnector jcrConnector = newJcrConnector(muleContext);
+        jcrConnector.setSessionPoolEnabled(true);
+        jcrConnector.setSessionPoolMaxActive(1);
+        jcrConnector.setSessionPoolMaxWait(100L);
+        jcrConnector.initialise();
+        jcrConnector.connect();
+
+        try
+        {
+            final JcrSessionPool pool = jcrConnector.getSessionPool();
+            assertNotNull(pool);
+
+            final Session session = jcrConnector.borrowSession();
+            assertTrue(session.isLive());
+            assertEquals(1, pool.getMisses());
+
+            try
+            {
+                jcrConnector.borrowSession();
+                fail("The pool should have been exhausted");
+            }
+            catch (final RepositoryException re)
+            {
+                // expected
+            }
+
+            jcrConnector.releaseSession(session);
+            assertSame(session, jcrConnector.borrowSession());
+            assertEquals(1, pool.getHits());
+            assertEquals(1, pool.getWaits());
+
+            session.logout();
+            jcrConnector.releaseSession(session);
+            assertEquals(1, pool.getInvalidations());
+
+            final Session newSession = jcrConnector.borrowSession();
+            assertFalse(session == newSession);
+            jcrConnector.releaseSession(newSession);
+        }
+        finally
+        {
+            jcrConnector.disconnect();
+            jcrConnector.dispose();
+        }
+
+        assertNull(jcrConnector.getSessionPool());
+    }
+
+    @Test
+    public void testSharedReaderSession() throws Exception
+    {
+        final JcrConnector jcrConnector = newJcrConnector(muleContext);
+        jcrConnector.setSharedObservationEnabled(true);
+        jcrConnector.initialise();
+        jcrConnector.connect();
+
+        final Session readerSession;
+
+        try
+        {
+            readerSession = jcrConnector.getSharedReaderSession();
+            assertTrue(readerSession.isLive());
+            assertSame(readerSession, jcrConnector.getSharedReaderSession());
+        }
+        finally
+        {
+            jcrConnector.disconnect();
+            jcrConnector.dispose();
+        }
+
+        assertFalse(readerSession.isLive());
+    }
+
+    @Test
+    public void testStreamingTasks() throws Exception
+    {
+        final JcrConnector jcrConnector = newJcrConnector(muleContext);
+        jcrConnector.setStreamingMaxThreads(1);
+        jcrConnector.initialise();
+
+        try
+        {
+            jcrConnector.submitStreamingTask(new Runnable()
+            {
+                public void run()
+                {
+                    // NOOP
+                }
+            });
+            fail("Streaming tasks can not be submitted before the connector is started");
+        }
+        catch (final IllegalStateException ise)
+        {
+            // expected
+        }
+
+        jcrConnector.start();
+
+        try
+        {
+            final AtomicInteger runs = new AtomicInteger();
+
+            final Runnable task = new Runnable()
+            {
+                public void run()
+                {
+                    runs.incrementAndGet();
+                }
+            };
+
+            final Future<?> first = jcrConnector.submitStreamingTask(task);
+            final Future<?> second = jcrConnector.submitStreamingTask(task);
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+
+            assertEquals(2, runs.get());
+
+            final Future<Void> failing = jcrConnector.submitStreamingTask(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    throw new IOException("test failure");
+                }
+            });
+
+            try
+            {
+                failing.get(5, TimeUnit.SECONDS);
+                fail("The failure of a streaming task should be reported by its future");
+            }
+            catch (final ExecutionException ee)
+            {
+                assertTrue(ee.getCause() instanceof IOException);
+            }
+        }
+        finally
+        {
+            jcrConnector.stop();
+            jcrConnector.dispose();
+        }
+    }
+
+    @Test
+    public void testParallelContentFetchRequiresSessionPool() throws Exception
+    {
+        final JcrConnector jcrConnector = newJcrConnector(muleContext);
+        jcrConnector.setEventFetchParallelism(4);
+
+        try
+        {
+            jcrConnector.initialise();
+            fail("Parallel content fetch without a session pool should be rejected");
+        }
+        catch (final InitialisationException ie)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testParallelContentFetch() throws Exception
+    {
+        final Node testDataNode = RepositoryTestSupport.getTestDataNode();
+        final List<JcrMessage> events = new ArrayList<JcrMessage>();
+
+        for (int i = 0; i < 10; i++)
+        {
+            final Property property = testDataNode.setProperty("parallel" + i, "value" + i);
+            events.add(JcrEventBatch.detach(new JcrEventTestCase.DummyEvent(property.getPath(),
+                Event.PROPERTY_CHANGED, "test")));
+        }
+
+        RepositoryTestSupport.getSession().save();
+
+        final JcrConnector jcrConnector = newJcrConnector(muleContext);
+        jcrConnector.setSessionPoolEnabled(true);
+        jcrConnector.setEventFetchParallelism(4);
+        jcrConnector.initialise();
+        jcrConnector.start();
+
+        try
+        {
+            assertNotNull(jcrConnector.getContentFetchExecutor());
+
+            final JcrEventBatch eventBatch = new JcrEventBatch(events);
+            eventBatch.setReceiverContext(new JcrMessageReceiverContext()
+            {
+                public JcrContentPayloadType getContentPayloadType()
+                {
+                    return JcrContentPayloadType.FULL;
+                }
+
+                public Session getObservingSession()
+                {
+                    return RepositoryTestSupport.getSession();
+                }
+
+                public JcrConnector getConnector()
+                {
+                    return jcrConnector;
+                }
+            });
+
+            final JcrEventToObject transformer = new JcrEventToObject();
+            transformer.setMuleContext(muleContext);
+
+            final List<?> messages = (List<?>) transformer.transform(eventBatch);
+            assertEquals(10, messages.size());
+
+            for (int i = 0; i < 10; i++)
+            {
+                assertEquals("value" + i, ((JcrMessage) messages.get(i)).getContent());
+            }
+        }
+        finally
+        {
+            jcrConnector.stop();
+            jcrConnector.dispose();
+        }
+
+        assertNull(jcrConnector.getContentFetchExecutor());
+    }
 }
@@ -31,6 +31,8 @@ public class JcrContentPayloadTypeTestCase
         assertEquals(JcrContentPayloadType.NO_BINARY, JcrContentPayloadType.fromString("nobinary"));
 
         assertEquals(JcrContentPayloadType.FULL, JcrContentPayloadType.fromString("full"));
+
+        assertEquals(JcrContentPayloadType.REFERENCE, JcrContentPayloadType.fromString("reference"));
     }
 
     @Test
@@ -14,21 +14,36 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.observation.Event;
 
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Test;
+import org.mule.transport.jcr.support.JcrEventCoalescer;
+import org.mule.transport.jcr.support.JcrEventHandOff;
 import org.mule.transport.jcr.support.JcrEventUtils;
 import org.mule.transport.jcr.support.JcrNodeUtils;
 import org.mule.transport.jcr.support.JcrPropertyUtils;
+import org.mule.util.IOUtils;
 
 import com.thoughtworks.xstream.XStream;
 
@@ -122,6 +137,30 @@ public class JcrEventTestCase
         testContentEventType(JcrContentPayloadType.NO_BINARY, property.getPath(), Event.PROPERTY_ADDED, "");
     }
 
+    @Test
+    public void testBinaryPropertyReference() throws Exception
+    {
+        final byte[] binaryContent = "binary.reference".getBytes();
+
+        final Property property = RepositoryTestSupport.getTestDataNode().setProperty("binaryReference",
+            new ByteArrayInputStream(binaryContent));
+
+        RepositoryTestSupport.getSession().save();
+
+        final JcrMessage jcrEvent = JcrNodeUtils.newJcrMessage(new DummyEvent(property.getPath(),
+            Event.PROPERTY_ADDED, USER_ID), RepositoryTestSupport.getSession(), JcrContentPayloadType.REFERENCE);
+
+        testXStreamSerialization(jcrEvent);
+
+        final JcrBinaryReference binaryReference = (JcrBinaryReference) jcrEvent.getContent();
+        assertEquals(property.getPath(), binaryReference.getPath());
+        assertEquals(binaryContent.length, binaryReference.getLength());
+        assertEquals(-1, binaryReference.getValueIndex());
+
+        assertTrue(Arrays.equals(binaryContent,
+            IOUtils.toByteArray(binaryReference.openStream(RepositoryTestSupport.getSession()))));
+    }
+
     @Test
     public void testBooleanProperty() throws Exception
     {
@@ -204,6 +243,89 @@ public class JcrEventTestCase
         testContentEventType(property.getPath(), Event.PROPERTY_CHANGED, Arrays.asList(values));
     }
 
+    @Test
+    public void testCoalescedEvents() throws Exception
+    {
+        final Node node = RepositoryTestSupport.getTestDataNode().addNode("coalesced");
+        node.setProperty("a", "valueA");
+        node.setProperty("b", 42L);
+        RepositoryTestSupport.getSession().save();
+
+        final List<JcrEventBatch> emitted = Collections.synchronizedList(new ArrayList<JcrEventBatch>());
+
+        final JcrEventCoalescer eventCoalescer = new JcrEventCoalescer("test", 50L,
+            new JcrEventHandOff.EventBatchProcessor()
+            {
+                public void process(final JcrEventBatch eventBatch) throws Exception
+                {
+                    emitted.add(eventBatch);
+                }
+            });
+
+        eventCoalescer.start();
+        eventCoalescer.add(new JcrEventBatch(Arrays.asList(
+            JcrEventBatch.detach(new DummyEvent(node.getPath(), Event.NODE_ADDED, USER_ID)),
+            JcrEventBatch.detach(new DummyEvent(node.getPath() + "/a", Event.PROPERTY_ADDED, USER_ID)),
+            JcrEventBatch.detach(new DummyEvent(node.getPath() + "/b", Event.PROPERTY_ADDED, USER_ID)),
+            JcrEventBatch.detach(new DummyEvent(node.getPath() + "/a", Event.PROPERTY_CHANGED, USER_ID)))));
+        eventCoalescer.stop();
+
+        assertEquals(1, emitted.size());
+        assertEquals(1, emitted.get(0).getSize());
+        assertEquals(4, eventCoalescer.getReceivedEvents());
+
+        final JcrMessage jcrEvent = JcrNodeUtils.newJcrMessage(emitted.get(0).nextEvent(),
+            RepositoryTestSupport.getSession(), JcrContentPayloadType.FULL);
+
+        testXStreamSerialization(jcrEvent);
+
+        assertTrue(jcrEvent.isCoalesced());
+        assertEquals(node.getPath(), jcrEvent.getPath());
+        assertEquals(Event.NODE_ADDED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED, jcrEvent.getType());
+        assertEquals("NODE_ADDED|PROPERTY_ADDED|PROPERTY_CHANGED", jcrEvent.getTypeAsString());
+
+        final Map<?, ?> changedProperties = (Map<?, ?>) jcrEvent.getContent();
+        assertEquals(2, changedProperties.size());
+        assertEquals("valueA", changedProperties.get("a"));
+        assertEquals(Long.valueOf(42L), changedProperties.get("b"));
+    }
+
+    @Test
+    public void testCoalescedRemovedThenReAddedNode() throws Exception
+    {
+        final Node node = RepositoryTestSupport.getTestDataNode().addNode("readded");
+        node.setProperty("a", "valueA");
+        RepositoryTestSupport.getSession().save();
+
+        final List<JcrEventBatch> emitted = Collections.synchronizedList(new ArrayList<JcrEventBatch>());
+
+        final JcrEventCoalescer eventCoalescer = new JcrEventCoalescer("test", 50L,
+            new JcrEventHandOff.EventBatchProcessor()
+            {
+                public void process(final JcrEventBatch eventBatch) throws Exception
+                {
+                    emitted.add(eventBatch);
+                }
+            });
+
+        eventCoalescer.start();
+        eventCoalescer.add(new JcrEventBatch(Arrays.asList(
+            JcrEventBatch.detach(new DummyEvent(node.getPath(), Event.NODE_REMOVED, USER_ID)),
+            JcrEventBatch.detach(new DummyEvent(node.getPath(), Event.NODE_ADDED, USER_ID)),
+            JcrEventBatch.detach(new DummyEvent(node.getPath() + "/a", Event.PROPERTY_ADDED, USER_ID)))));
+        eventCoalescer.stop();
+
+        assertEquals(1, emitted.size());
+
+        final JcrMessage jcrEvent = JcrNodeUtils.newJcrMessage(emitted.get(0).nextEvent(),
+            RepositoryTestSupport.getSession(), JcrContentPayloadType.FULL);
+
+        assertTrue((jcrEvent.getType() & Event.NODE_REMOVED) != 0);
+
+        // the node exists again, so its content is fetched
+        assertEquals("valueA", ((Map<?, ?>) jcrEvent.getContent()).get("a"));
+    }
+
     @Test
     public void testExceptionWhenGettingValue()
     {
@@ -258,6 +380,69 @@ public class JcrEventTestCase
         }
     }
 
+    @Test
+    public void testCompactSerialization() throws Exception
+    {
+        final JcrMessage stringMessage = new JcrMessage("/foo/bar", Event.PROPERTY_CHANGED, "PROPERTY_CHANGED",
+            USER_ID, StringUtils.repeat("foo", 10000), "uuid");
+
+        final byte[] serializedMessage = SerializationUtils.serialize(stringMessage);
+        assertTrue(serializedMessage.length < 1000);
+        assertEquals(stringMessage, SerializationUtils.deserialize(serializedMessage));
+        assertEquals(stringMessage.hashCode(), SerializationUtils.deserialize(serializedMessage).hashCode());
+
+        final JcrMessage binaryMessage = new JcrMessage("/foo", Event.NODE_ADDED | Event.PROPERTY_ADDED,
+            JcrEventUtils.getEventTypeNamesFromMask(Event.NODE_ADDED | Event.PROPERTY_ADDED), null, new byte[]{1, 2,
+                3}, null, true);
+
+        assertEquals(binaryMessage, SerializationUtils.clone(binaryMessage));
+        testXStreamSerialization(binaryMessage);
+
+        assertEquals(new JcrMessage("/foo", Event.NODE_REMOVED, null, null, null, null), SerializationUtils
+            .clone(new JcrMessage("/foo", Event.NODE_REMOVED, null, null, null, null)));
+    }
+
+    @Test
+    public void testBaselineSerializedFormIsReadable() throws Exception
+    {
+        // serialized with the default form of the first released JcrMessage
+        final InputStream baselineForm = getClass().getResourceAsStream("/jcr-message-baseline.ser");
+
+        try
+        {
+            assertNotNull(baselineForm);
+            assertEquals(new JcrMessage("/foo/bar", Event.PROPERTY_CHANGED, "PROPERTY_CHANGED", "admin", "baz",
+                "uuid"), SerializationUtils.deserialize(baselineForm));
+        }
+        finally
+        {
+            IOUtils.closeQuietly(baselineForm);
+        }
+    }
+
+    @Test
+    public void testInvalidCompactFormVersionsAreRejected() throws Exception
+    {
+        for (final byte version : new byte[]{0, -1, 2})
+        {
+            final ByteArrayOutputStream serializedForm = new ByteArrayOutputStream();
+            final ObjectOutputStream out = new ObjectOutputStream(serializedForm);
+            out.writeByte(version);
+            out.close();
+
+            try
+            {
+                new JcrMessage.CompactForm().readExternal(new ObjectInputStream(new ByteArrayInputStream(
+                    serializedForm.toByteArray())));
+                fail("version " + version + " should have been rejected");
+            }
+            catch (final InvalidObjectException ioe)
+            {
+                // expected
+            }
+        }
+    }
+
     private void testXStreamSerialization(final JcrMessage jcrMessage)
     {
         assertEquals(jcrMessage, XSTREAM.fromXML(XSTREAM.toXML(jcrMessage)));
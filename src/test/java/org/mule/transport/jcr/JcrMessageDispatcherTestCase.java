@@ -11,18 +11,27 @@
 package org.mule.transport.jcr;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -40,6 +49,7 @@ import org.mule.api.transport.DispatchException;
 import org.mule.api.transport.PropertyScope;
 import org.mule.transport.jcr.handlers.NodeTypeHandler;
 import org.mule.transport.jcr.handlers.NtQueryNodeTypeHandler;
+import org.mule.util.FileUtils;
 import org.mule.util.IOUtils;
 
 /**
@@ -351,6 +361,239 @@ public class JcrMessageDispatcherTestCase extends AbstractJcrMessagerTestCase
         assertEquals(2, RepositoryTestSupport.getTestDataNode().getNodes("new-forced-node").getSize());
     }
 
+    @Test
+    public void testBatchCreate() throws Exception
+    {
+        final List<Object> payloads = new ArrayList<Object>();
+
+        for (final String nodeRelPath : new String[]{"batch-a", "batch-b", null})
+        {
+            final Map<String, Object> payload = new HashMap<String, Object>();
+            payload.put("longProperty", new Long(payloads.size()));
+
+            if (nodeRelPath != null)
+            {
+                payload.put(JcrConnector.JCR_NODE_RELPATH_PROPERTY, nodeRelPath);
+            }
+
+            payloads.add(payload);
+        }
+
+        final MuleEvent event = getTestEvent(payloads);
+        event.getMessage().setProperty(JcrConnector.JCR_BATCH_CREATE_PROPERTY, "true",
+            PropertyScope.INVOCATION);
+        event.getMessage().setProperty(JcrConnector.JCR_BATCH_SAVE_INTERVAL_PROPERTY, "2",
+            PropertyScope.INVOCATION);
+        event.getMessage().setProperty(JcrConnector.JCR_NODE_RELPATH_PROPERTY, "batch-default",
+            PropertyScope.INVOCATION);
+        event.getMessage().setProperty(JcrConnector.JCR_NODE_TYPE_NAME_PROPERTY, "nt:unstructured",
+            PropertyScope.INVOCATION);
+        RequestContext.setEvent(event);
+
+        final MuleMessage result = messageDispatcher.doSend(event);
+        assertSame(payloads, result.getPayload());
+        assertEquals(Arrays.asList("/testData/batch-a", "/testData/batch-b", "/testData/batch-default"),
+            result.getProperty(JcrConnector.JCR_ITEM_PATHS, PropertyScope.INVOCATION));
+
+        final Node testDataNode = RepositoryTestSupport.getTestDataNode();
+        assertEquals(0L, testDataNode.getNode("batch-a").getProperty("longProperty").getLong());
+        assertFalse(testDataNode.getNode("batch-a").hasProperty(JcrConnector.JCR_NODE_RELPATH_PROPERTY));
+        assertEquals(2L, testDataNode.getNode("batch-default").getProperty("longProperty").getLong());
+    }
+
+    @Test
+    public void testImportXml() throws Exception
+    {
+        final String documentView = "<imported xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" "
+                                    + "jcr:primaryType=\"nt:unstructured\" title=\"foo\">"
+                                    + "<child jcr:primaryType=\"nt:unstructured\" title=\"bar\"/></imported>";
+
+        final MuleEvent event = getTestEvent(new ByteArrayInputStream(documentView.getBytes("UTF-8")));
+        event.getMessage().setProperty(JcrConnector.JCR_IMPORT_XML_PROPERTY, "true", PropertyScope.INVOCATION);
+        event.getMessage().setProperty(JcrConnector.JCR_IMPORT_UUID_BEHAVIOR_PROPERTY, "throwOnCollision",
+            PropertyScope.INVOCATION);
+        RequestContext.setEvent(event);
+
+        final MuleMessage result = messageDispatcher.doSend(event);
+        assertEquals(2L, result.getProperty(JcrConnector.JCR_IMPORTED_NODE_COUNT, PropertyScope.INVOCATION));
+        assertEquals("/testData", result.getProperty("itemPath", PropertyScope.INVOCATION));
+
+        final Node imported = RepositoryTestSupport.getTestDataNode().getNode("imported");
+        assertEquals("foo", imported.getProperty("title").getString());
+        assertEquals("bar", imported.getNode("child").getProperty("title").getString());
+    }
+
+    @Test
+    public void testImportXmlIgnoresExternalEntities() throws Exception
+    {
+        final File secretFile = File.createTempFile("secret", ".txt");
+        secretFile.deleteOnExit();
+        FileUtils.writeStringToFile(secretFile, "secret");
+
+        final String systemView = "<?xml version=\"1.0\"?><!DOCTYPE sv:node [<!ENTITY secret SYSTEM \""
+                                  + secretFile.toURI()
+                                  + "\">]><sv:node xmlns:sv=\"http://www.jcp.org/jcr/sv/1.0\" sv:name=\"external\">"
+                                  + "<sv:property sv:name=\"jcr:primaryType\" sv:type=\"Name\">"
+                                  + "<sv:value>nt:unstructured</sv:value></sv:property>"
+                                  + "<sv:property sv:name=\"title\" sv:type=\"String\">"
+                                  + "<sv:value>&secret;</sv:value></sv:property></sv:node>";
+
+        final MuleEvent event = getTestEvent(systemView.getBytes("UTF-8"));
+        event.getMessage().setProperty(JcrConnector.JCR_IMPORT_XML_PROPERTY, "true", PropertyScope.INVOCATION);
+        RequestContext.setEvent(event);
+
+        messageDispatcher.doSend(event);
+
+        final Node imported = RepositoryTestSupport.getTestDataNode().getNode("external");
+        assertFalse(imported.hasProperty("title")
+                    && imported.getProperty("title").getString().contains("secret"));
+    }
+
+    @Test
+    public void testStoreWithGroupCommit() throws Exception
+    {
+        connector.stop();
+        connector.setGroupCommitEnabled(true);
+        connector.setGroupCommitMaxDelay(250L);
+        connector.start();
+
+        final List<MuleEvent> events = new ArrayList<MuleEvent>();
+
+        for (int i = 0; i < 3; i++)
+        {
+            final MuleEvent event = getTestEvent("bar" + i);
+            event.getMessage().setProperty(JcrConnector.JCR_NODE_RELPATH_PROPERTY, "grouped-node",
+                PropertyScope.INVOCATION);
+            event.getMessage().setProperty(JcrConnector.JCR_ALWAYS_CREATE_CHILD_NODE_PROPERTY, "true",
+                PropertyScope.INVOCATION);
+            events.add(event);
+        }
+
+        // this one can not be stored and must not prevent the others to be saved
+        final MuleEvent badEvent = getTestEvent(new Object());
+        badEvent.getMessage().setProperty(JcrConnector.JCR_NODE_RELPATH_PROPERTY, "noderelpath-target",
+            PropertyScope.INVOCATION);
+        events.add(badEvent);
+
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        final List<Thread> senders = new ArrayList<Thread>();
+
+        for (final MuleEvent event : events)
+        {
+            senders.add(new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        results.add(messageDispatcher.doSend(event).getProperty("itemPath",
+                            PropertyScope.INVOCATION));
+                    }
+                    catch (final Exception e)
+                    {
+                        results.add(e);
+                    }
+                }
+            }));
+        }
+
+        for (final Thread sender : senders)
+        {
+            sender.start();
+        }
+
+        for (final Thread sender : senders)
+        {
+            sender.join(10000L);
+        }
+
+        assertEquals(4, results.size());
+
+        final Set<Object> itemPaths = new HashSet<Object>();
+        int failures = 0;
+
+        for (final Object result : results)
+        {
+            if (result instanceof IllegalArgumentException)
+            {
+                failures++;
+            }
+            else
+            {
+                itemPaths.add(result);
+            }
+        }
+
+        assertEquals(1, failures);
+        assertEquals(3, itemPaths.size());
+        assertEquals(3, RepositoryTestSupport.getTestDataNode().getNodes("grouped-node").getSize());
+        assertTrue(connector.getGroupCommitter().getFallbackSaves() > 0);
+    }
+
+    @Test
+    public void testTimedOutGroupCommitWriteWithdrawn() throws Exception
+    {
+        connector.stop();
+        connector.setGroupCommitEnabled(true);
+        connector.setGroupCommitMaxDelay(1000L);
+        connector.setGroupCommitWriteTimeout(100L);
+        connector.start();
+
+        final MuleEvent event = getTestEvent("bar");
+        event.getMessage().setProperty(JcrConnector.JCR_NODE_RELPATH_PROPERTY, "withdrawn-node",
+            PropertyScope.INVOCATION);
+        event.getMessage().setProperty(JcrConnector.JCR_ALWAYS_CREATE_CHILD_NODE_PROPERTY, "true",
+            PropertyScope.INVOCATION);
+
+        try
+        {
+            messageDispatcher.doSend(event);
+            fail("The write should have timed out while its group was collected");
+        }
+        catch (final DispatchException de)
+        {
+            // expected
+        }
+
+        // lets the group be committed
+        Thread.sleep(2000L);
+
+        assertFalse(RepositoryTestSupport.getTestDataNode().hasNode("withdrawn-node"));
+        assertEquals(0L, connector.getGroupCommitter().getWrites());
+    }
+
+    @Test
+    public void testStoreInvalidatesCachedItems() throws Exception
+    {
+        connector.stop();
+        connector.disconnect();
+        connector.setItemCacheEnabled(true);
+        connector.connect();
+        connector.start();
+
+        cacheItem("node", "/testData/noderelpath-target");
+        cacheItem("parent", "/testData");
+        cacheItem("sibling", "/testData/pi");
+
+        final MuleEvent event = getTestEvent(Collections.singletonMap("longProperty", Long.valueOf(1234L)));
+        event.getMessage().setProperty(JcrConnector.JCR_NODE_RELPATH_PROPERTY, "noderelpath-target",
+            PropertyScope.INVOCATION);
+        RequestContext.setEvent(event);
+
+        messageDispatcher.doSend(event);
+
+        // invalidated as soon as saved, without waiting for observation events
+        assertNull(connector.getItemCache().get("node"));
+        assertNull(connector.getItemCache().get("parent"));
+        assertEquals("sibling", connector.getItemCache().get("sibling"));
+    }
+
+    private void cacheItem(final String key, final String itemPath)
+    {
+        assertTrue(connector.getItemCache().put(key, itemPath, key,
+            connector.getItemCache().getInvalidationSequence()));
+    }
+
     @Test
     public void testFailedStoreUnderProperty() throws Exception
     {
@@ -15,7 +15,11 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
@@ -30,6 +34,7 @@ import org.mule.routing.filters.logic.NotFilter;
 import org.mule.transport.NullPayload;
 import org.mule.transport.jcr.filters.JcrNodeNameFilter;
 import org.mule.transport.jcr.filters.JcrPropertyNameFilter;
+import org.mule.util.IOUtils;
 
 /**
  * @author David Dossot (david@dossot.net)
@@ -85,6 +90,56 @@ public class JcrMessageRequesterTestCase extends AbstractJcrMessagerTestCase
         assertTrue(received.getPayload() instanceof InputStream);
     }
 
+    @Test
+    public void testExportSubtree() throws Exception
+    {
+        final MuleEvent event = getTestEvent(null);
+        event.getMessage().setProperty(JcrConnector.JCR_EXPORT_VIEW_PROPERTY,
+            JcrMessageRequester.EXPORT_VIEW_DOCUMENT, PropertyScope.INVOCATION);
+        event.getMessage().setProperty(JcrConnector.JCR_EXPORT_SKIP_BINARY_PROPERTY, "true",
+            PropertyScope.INVOCATION);
+        RequestContext.setEvent(event);
+
+        String exported = IOUtils.toString((InputStream) messageRequester.request(0).getPayload());
+        assertTrue(exported, exported.indexOf("noderelpath-target") > 0);
+        assertTrue(exported, exported.indexOf("EHLO SPAM") > 0);
+
+        event.getMessage().setProperty(JcrConnector.JCR_EXPORT_VIEW_PROPERTY,
+            JcrMessageRequester.EXPORT_VIEW_SYSTEM, PropertyScope.INVOCATION);
+        event.getMessage().setProperty(JcrConnector.JCR_EXPORT_DEPTH_PROPERTY, "0", PropertyScope.INVOCATION);
+
+        exported = IOUtils.toString((InputStream) messageRequester.request(0).getPayload());
+        assertTrue(exported, exported.indexOf("sv:node") > 0);
+        assertFalse(exported, exported.indexOf("noderelpath-target") > 0);
+    }
+
+    @Test
+    public void testExportSubtreeAbortedWhenNotRead() throws Exception
+    {
+        connector.setStreamingBufferSize(64);
+        connector.setExportWriteTimeout(100L);
+
+        final MuleEvent event = getTestEvent(null);
+        event.getMessage().setProperty(JcrConnector.JCR_EXPORT_VIEW_PROPERTY,
+            JcrMessageRequester.EXPORT_VIEW_SYSTEM, PropertyScope.INVOCATION);
+        RequestContext.setEvent(event);
+
+        final InputStream exported = (InputStream) messageRequester.request(0).getPayload();
+
+        // lets the export fill the pipe then give up waiting for it to be read
+        Thread.sleep(1000L);
+
+        try
+        {
+            IOUtils.toString(exported);
+            fail("Reading an aborted export should fail");
+        }
+        catch (final IOException ioe)
+        {
+            // expected
+        }
+    }
+
     @Test
     public void testReceiveWithEventUUID() throws Exception
     {
@@ -163,6 +218,114 @@ public class JcrMessageRequesterTestCase extends AbstractJcrMessagerTestCase
         assertEquals(NullPayload.getInstance(), messageRequester.request(0).getPayload());
     }
 
+    @Test
+    public void testReceiveAllQueryResults() throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            RepositoryTestSupport.getTestDataNode().addNode("result" + i).setProperty("index", i);
+        }
+
+        RepositoryTestSupport.getSession().save();
+
+        final List<Object> payloads = new ArrayList<Object>();
+        Iterator<?> results = requestAllQueryResults(null, null, null, "true");
+
+        while (results.hasNext())
+        {
+            final Object payload = results.next();
+            assertTrue(payload instanceof Map<?, ?>);
+            payloads.add(payload);
+        }
+
+        assertEquals(4, payloads.size());
+
+        results = requestAllQueryResults(null, null, "1", null);
+        assertEquals(1, ((List<?>) results.next()).size());
+        assertFalse(results.hasNext());
+
+        results = requestAllQueryResults(null, null, String.valueOf(payloads.size() - 1), "false");
+        assertEquals(payloads.size() - 1, ((List<?>) results.next()).size());
+        assertTrue(results.hasNext());
+
+        results = requestAllQueryResults("1", "2", null, "true");
+        assertEquals(payloads.get(1), results.next());
+        assertEquals(payloads.get(2), results.next());
+        assertFalse(results.hasNext());
+
+        assertFalse(requestAllQueryResults(String.valueOf(payloads.size()), null, null, null).hasNext());
+    }
+
+    @Test
+    public void testAbandonedQueryResultsAreClosed() throws Exception
+    {
+        connector.stop();
+        connector.setQueryResultIdleTimeout(100L);
+        connector.start();
+
+        for (int i = 0; i < 3; i++)
+        {
+            RepositoryTestSupport.getTestDataNode().addNode("result" + i);
+        }
+
+        RepositoryTestSupport.getSession().save();
+
+        final Iterator<?> results = requestAllQueryResults(null, null, "1", null);
+        results.next();
+
+        // the iterator is neither consumed nor closed: its session is reclaimed
+        Thread.sleep(1000L);
+
+        try
+        {
+            results.hasNext();
+            fail("An iterator closed after being left idle should not be usable");
+        }
+        catch (final IllegalStateException ise)
+        {
+            // expected
+        }
+    }
+
+    private Iterator<?> requestAllQueryResults(final String offset,
+                                               final String limit,
+                                               final String pageSize,
+                                               final String split) throws Exception
+    {
+        final MuleEvent event = getTestEvent(null);
+        event.getMessage().setProperty(JcrConnector.JCR_QUERY_STATEMENT_PROPERTY,
+            "/jcr:root/" + RepositoryTestSupport.ROOT_NODE_NAME + "/element(*, nt:base)", PropertyScope.INVOCATION);
+        event.getMessage().setProperty(JcrConnector.JCR_QUERY_LANGUAGE_PROPERTY, "xpath",
+            PropertyScope.INVOCATION);
+        event.getMessage().setProperty(JcrConnector.JCR_QUERY_ALL_RESULTS_PROPERTY, "true",
+            PropertyScope.INVOCATION);
+
+        if (offset != null)
+        {
+            event.getMessage().setProperty(JcrConnector.JCR_QUERY_OFFSET_PROPERTY, offset, PropertyScope.INVOCATION);
+        }
+
+        if (limit != null)
+        {
+            event.getMessage().setProperty(JcrConnector.JCR_QUERY_LIMIT_PROPERTY, limit, PropertyScope.INVOCATION);
+        }
+
+        if (pageSize != null)
+        {
+            event.getMessage().setProperty(JcrConnector.JCR_QUERY_PAGE_SIZE_PROPERTY, pageSize,
+                PropertyScope.INVOCATION);
+        }
+
+        if (split != null)
+        {
+            event.getMessage().setProperty(JcrConnector.JCR_QUERY_SPLIT_PROPERTY, split, PropertyScope.INVOCATION);
+        }
+
+        RequestContext.setEvent(event);
+
+        return (Iterator<?>) messageRequester.request(0).getPayload();
+    }
+
     @Test
     public void testReceiveWithEventQueryAndNodeRelpath() throws Exception
     {
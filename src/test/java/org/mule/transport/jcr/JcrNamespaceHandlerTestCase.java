@@ -90,6 +90,10 @@ public class JcrNamespaceHandlerTestCase extends FunctionalTestCase
         assertEquals(Arrays.asList(new String[]{"foo", "bar"}), c.getUuids());
 
         assertEquals(Arrays.asList(new String[]{"oof", "rab"}), c.getNodeTypeNames());
+
+        assertFalse(c.isSessionPoolEnabled());
+        assertEquals(4, c.getSessionPoolMaxActive());
+        assertEquals(1000L, c.getSessionPoolMaxWait());
     }
 
     @Test
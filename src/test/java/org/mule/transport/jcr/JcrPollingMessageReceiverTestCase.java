@@ -0,0 +1,51 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.mule.api.endpoint.InboundEndpoint;
+import org.mule.api.service.Service;
+import org.mule.api.transport.MessageReceiver;
+import org.mule.transport.AbstractMessageReceiverTestCase;
+
+import com.mockobjects.dynamic.Mock;
+
+/**
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrPollingMessageReceiverTestCase extends AbstractMessageReceiverTestCase
+{
+    @Override
+    public MessageReceiver getMessageReceiver() throws Exception
+    {
+        final Mock mockService = new Mock(Service.class);
+        mockService.expectAndReturn("getResponseRouter", null);
+
+        return new JcrPollingMessageReceiver(endpoint.getConnector(), (Service) mockService.proxy(), endpoint);
+    }
+
+    @Override
+    public InboundEndpoint getEndpoint() throws Exception
+    {
+        return JcrEndpointTestCase.newInboundEndpoint(muleContext, "jcr://path/to/polledNode");
+    }
+
+    @Test
+    public void testAdaptivePollingInterval()
+    {
+        assertEquals(2000L, JcrPollingMessageReceiver.getNextPollingInterval(1000L, 0, 1000L, 30000L));
+        assertEquals(30000L, JcrPollingMessageReceiver.getNextPollingInterval(20000L, 0, 1000L, 30000L));
+        assertEquals(10000L, JcrPollingMessageReceiver.getNextPollingInterval(20000L, 5, 1000L, 30000L));
+        assertEquals(1000L, JcrPollingMessageReceiver.getNextPollingInterval(1500L, 5, 1000L, 30000L));
+    }
+}
@@ -10,10 +10,14 @@
 
 package org.mule.transport.jcr;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.jcr.Node;
 import javax.jcr.Repository;
 import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
+import javax.jcr.observation.Event;
 
 import org.apache.jackrabbit.core.TransientRepository;
 
@@ -114,4 +118,34 @@ public abstract class RepositoryTestSupport
 
         return testDataNode;
     }
+
+    /**
+     * @return a batch of property changes at the given paths.
+     */
+    public static JcrEventBatch newBatch(final String... propertyPaths)
+    {
+        final List<JcrMessage> events = new ArrayList<JcrMessage>();
+
+        for (final String propertyPath : propertyPaths)
+        {
+            events.add(new JcrMessage(propertyPath, Event.PROPERTY_CHANGED, "PROPERTY_CHANGED", "test", "", null));
+        }
+
+        return new JcrEventBatch(events);
+    }
+
+    /**
+     * @return a batch of the given events, detached from the repository.
+     */
+    public static JcrEventBatch newBatch(final Event... events) throws Exception
+    {
+        final List<JcrMessage> detachedEvents = new ArrayList<JcrMessage>();
+
+        for (final Event event : events)
+        {
+            detachedEvents.add(JcrEventBatch.detach(event));
+        }
+
+        return new JcrEventBatch(detachedEvents);
+    }
 }
@@ -11,7 +11,14 @@
 package org.mule.transport.jcr.handlers;
 
 import static org.junit.Assert.assertEquals;
-
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
 import java.util.Collections;
 
 import javax.jcr.Node;
@@ -28,6 +35,8 @@ import org.mule.api.MuleMessage;
 import org.mule.api.transport.PropertyScope;
 import org.mule.tck.junit4.AbstractMuleContextTestCase;
 import org.mule.transport.jcr.RepositoryTestSupport;
+import org.mule.transport.jcr.support.JcrContentDigester;
+import org.mule.util.FileUtils;
 import org.mule.util.StringUtils;
 
 /**
@@ -158,6 +167,141 @@ public class NodeTypeHandlersTest extends AbstractMuleContextTestCase
         assertEquals(1, StringUtils.countMatches(dumpResult, MODIFIED_RESOURCE_NODE_CONTENT));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStreamedResourceContent() throws Exception
+    {
+        final Session session = RepositoryTestSupport.getSession();
+        final Node testDataNode = RepositoryTestSupport.getTestDataNode();
+        final NodeTypeHandler resourceHandler = new NodeTypeHandlerManager().getNodeTypeHandler("nt:resource");
+
+        final File file = File.createTempFile("jcr-resource", ".txt");
+        file.deleteOnExit();
+        FileUtils.writeStringToFile(file, "file-content");
+
+        MuleMessage msg = new DefaultMuleMessage(file, Collections.EMPTY_MAP, muleContext);
+        msg.setProperty("jcr:mimeType", "text/plain", PropertyScope.INVOCATION);
+        final Node resourceNode = resourceHandler.createNode(session, testDataNode, "streamedResourceNode", msg);
+        assertEquals("file-content", resourceNode.getProperty("jcr:data").getString());
+
+        final FileInputStream fileInputStream = new FileInputStream(file);
+
+        try
+        {
+            msg = new DefaultMuleMessage(fileInputStream.getChannel(), Collections.EMPTY_MAP, muleContext);
+            msg.setProperty("jcr:mimeType", "text/plain", PropertyScope.INVOCATION);
+            resourceHandler.updateContent(session, resourceNode, msg);
+            assertEquals("file-content", resourceNode.getProperty("jcr:data").getString());
+        }
+        finally
+        {
+            fileInputStream.close();
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(14);
+        buffer.put("buffer-content".getBytes()).flip();
+        msg = new DefaultMuleMessage(buffer, Collections.EMPTY_MAP, muleContext);
+        msg.setProperty("jcr:mimeType", "text/plain", PropertyScope.INVOCATION);
+        resourceHandler.updateContent(session, resourceNode, msg);
+        assertEquals("buffer-content", resourceNode.getProperty("jcr:data").getString());
+        assertEquals(0, buffer.position());
+
+        session.refresh(false);
+        assertTrue(file.delete());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testUnchangedResourceContentNotWritten() throws Exception
+    {
+        final Session session = RepositoryTestSupport.getSession();
+        final Node testDataNode = RepositoryTestSupport.getTestDataNode();
+
+        final NodeTypeHandlerManager nodeTypeManager = new NodeTypeHandlerManager();
+        final JcrContentDigester contentDigester = new JcrContentDigester("SHA-256", "contentDigest");
+        nodeTypeManager.setContentDigester(contentDigester);
+        final NodeTypeHandler resourceHandler = nodeTypeManager.getNodeTypeHandler("nt:resource");
+
+        MuleMessage msg = new DefaultMuleMessage(ORIGINAL_RESOURCE_NODE_CONTENT, Collections.EMPTY_MAP,
+            muleContext);
+        msg.setProperty("jcr:mimeType", "text/plain", PropertyScope.INVOCATION);
+        final Node resourceNode = resourceHandler.createNode(session, testDataNode, "digestedResourceNode", msg);
+        session.save();
+
+        final Calendar lastModified = resourceNode.getProperty("jcr:lastModified").getDate();
+
+        msg = new DefaultMuleMessage(ORIGINAL_RESOURCE_NODE_CONTENT, Collections.EMPTY_MAP, muleContext);
+        msg.setProperty("jcr:mimeType", "text/plain", PropertyScope.INVOCATION);
+        resourceHandler.updateContent(session, resourceNode, msg);
+
+        assertFalse(session.hasPendingChanges());
+        assertEquals(lastModified, resourceNode.getProperty("jcr:lastModified").getDate());
+        assertEquals(1L, contentDigester.getWrittenCount());
+        assertEquals(1L, contentDigester.getSkippedWriteCount());
+
+        msg = new DefaultMuleMessage(MODIFIED_RESOURCE_NODE_CONTENT, Collections.EMPTY_MAP, muleContext);
+        msg.setProperty("jcr:mimeType", "text/plain", PropertyScope.INVOCATION);
+        resourceHandler.updateContent(session, resourceNode, msg);
+
+        assertTrue(session.hasPendingChanges());
+        assertEquals(MODIFIED_RESOURCE_NODE_CONTENT, resourceNode.getProperty("jcr:data").getString());
+        assertEquals(2L, contentDigester.getWrittenCount());
+
+        resourceNode.remove();
+        session.save();
+    }
+
+    @Test
+    public void testStoredDigestNotTrustedAfterOutsideRewrite() throws Exception
+    {
+        final Session session = RepositoryTestSupport.getSession();
+        final Node node = RepositoryTestSupport.getTestDataNode().addNode("digestedUnstructuredNode");
+
+        final JcrContentDigester contentDigester = new JcrContentDigester("SHA-256", "contentDigest");
+
+        assertTrue(contentDigester.setIfChanged(session, node, "data", new ByteArrayInputStream(
+            ORIGINAL_UNSTRUCTURED_NODE_CONTENT.getBytes())));
+        assertTrue(node.hasProperty("contentDigest"));
+        session.save();
+
+        assertFalse(contentDigester.setIfChanged(session, node, "data", new ByteArrayInputStream(
+            ORIGINAL_UNSTRUCTURED_NODE_CONTENT.getBytes())));
+
+        // another client rewrites the content without updating its digest
+        node.setProperty("data", new ByteArrayInputStream("rewritten".getBytes()));
+        session.save();
+
+        assertTrue(contentDigester.setIfChanged(session, node, "data", new ByteArrayInputStream(
+            ORIGINAL_UNSTRUCTURED_NODE_CONTENT.getBytes())));
+        assertEquals(ORIGINAL_UNSTRUCTURED_NODE_CONTENT, node.getProperty("data").getString());
+
+        // a digest stored without the length of its content is not trusted either
+        node.setProperty("contentDigest", "SHA-256:0123");
+        node.setProperty("data", new ByteArrayInputStream(MODIFIED_UNSTRUCTURED_NODE_CONTENT.getBytes()));
+        session.save();
+
+        assertFalse(contentDigester.setIfChanged(session, node, "data", new ByteArrayInputStream(
+            MODIFIED_UNSTRUCTURED_NODE_CONTENT.getBytes())));
+
+        // nor is a digest whose content has been rewritten with the same length
+        assertTrue(contentDigester.setIfChanged(session, node, "data", new ByteArrayInputStream(
+            ORIGINAL_UNSTRUCTURED_NODE_CONTENT.getBytes())));
+        session.save();
+
+        assertEquals(ORIGINAL_UNSTRUCTURED_NODE_CONTENT.length(), MODIFIED_UNSTRUCTURED_NODE_CONTENT.length());
+        node.setProperty("data", new ByteArrayInputStream(MODIFIED_UNSTRUCTURED_NODE_CONTENT.getBytes()));
+        session.save();
+
+        assertTrue(contentDigester.setIfChanged(session, node, "data", new ByteArrayInputStream(
+            ORIGINAL_UNSTRUCTURED_NODE_CONTENT.getBytes())));
+        assertEquals(ORIGINAL_UNSTRUCTURED_NODE_CONTENT, node.getProperty("data").getString());
+        assertEquals(4L, contentDigester.getWrittenCount());
+        assertEquals(2L, contentDigester.getSkippedWriteCount());
+
+        node.remove();
+        session.save();
+    }
+
     /** Recursively outputs the contents of the given node. */
     private static String dump(final Node node) throws RepositoryException
     {
@@ -28,5 +28,11 @@ public class JcrMessagesTestCase
         assertTrue(JcrMessages.missingDependency("bar").getMessage().indexOf("bar") >= 0);
 
         assertNotNull(JcrMessages.observationsNotSupported());
+
+        assertTrue(JcrMessages.unsupportedXmlPayload(Object.class).getMessage().indexOf("Object") >= 0);
+
+        assertTrue(JcrMessages.groupCommitTimeout(1234L).getMessage().indexOf("1234") >= 0);
+
+        assertNotNull(JcrMessages.parallelFetchRequiresSessionPool());
     }
 }
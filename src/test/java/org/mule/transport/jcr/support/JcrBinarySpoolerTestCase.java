@@ -0,0 +1,144 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.mule.transport.jcr.JcrSpooledBinary;
+import org.mule.util.FileUtils;
+import org.mule.util.IOUtils;
+
+/**
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrBinarySpoolerTestCase
+{
+    private final File spoolDirectory = new File(System.getProperty("java.io.tmpdir"), "jcr-spool-test-"
+                                                                                      + System.nanoTime());
+
+    private final JcrBinarySpooler binarySpooler = new JcrBinarySpooler(spoolDirectory, 4L, 16L);
+
+    @After
+    public void deleteSpoolDirectory()
+    {
+        binarySpooler.stop();
+        FileUtils.deleteQuietly(spoolDirectory);
+    }
+
+    @Test
+    public void testInlineThreshold()
+    {
+        assertFalse(binarySpooler.isSpooled(4L));
+        assertTrue(binarySpooler.isSpooled(5L));
+        assertTrue(binarySpooler.isSpooled(-1L));
+    }
+
+    @Test
+    public void testSpoolAndDispose() throws Exception
+    {
+        final byte[] data = "0123456789".getBytes();
+
+        final JcrSpooledBinary spooledBinary = binarySpooler.spool("/foo/bar", new ByteArrayInputStream(data),
+            data.length);
+
+        assertNotNull(spooledBinary);
+        assertEquals(data.length, spooledBinary.getLength());
+        assertEquals(data.length, binarySpooler.getSpooledBytes());
+        assertTrue(Arrays.equals(data, IOUtils.toByteArray(spooledBinary.openStream())));
+
+        spooledBinary.dispose();
+
+        assertFalse(spooledBinary.getFile().exists());
+        assertEquals(0L, binarySpooler.getSpooledBytes());
+    }
+
+    @Test
+    public void testSerializedCopyOutlivesSpooledFile() throws Exception
+    {
+        final byte[] data = "0123456789".getBytes();
+
+        final JcrSpooledBinary spooledBinary = binarySpooler.spool("/foo/bar", new ByteArrayInputStream(data),
+            data.length);
+
+        final byte[] serialized = SerializationUtils.serialize(spooledBinary);
+        spooledBinary.dispose();
+        assertFalse(spooledBinary.getFile().exists());
+
+        final JcrSpooledBinary copy = (JcrSpooledBinary) SerializationUtils.deserialize(serialized);
+        assertEquals("/foo/bar", copy.getPath());
+        assertEquals(data.length, copy.getLength());
+        assertNull(copy.getFile());
+        assertTrue(Arrays.equals(data, IOUtils.toByteArray(copy.openStream())));
+    }
+
+    @Test
+    public void testSpooledBytesCap() throws Exception
+    {
+        final byte[] data = "0123456789".getBytes();
+
+        final JcrSpooledBinary spooledBinary = binarySpooler.spool("/foo/bar", new ByteArrayInputStream(data),
+            data.length);
+
+        assertNotNull(spooledBinary);
+        assertNull(binarySpooler.spool("/foo/baz", new ByteArrayInputStream(data), data.length));
+        assertEquals(1L, binarySpooler.getRejectedCount());
+
+        spooledBinary.dispose();
+
+        assertNotNull(binarySpooler.spool("/foo/baz", new ByteArrayInputStream(data), data.length));
+    }
+
+    @Test
+    public void testCapEnforcedWhileCopying() throws Exception
+    {
+        final byte[] data = "0123456789012345678901234".getBytes();
+
+        // of unknown length, then longer than reported
+        assertNull(binarySpooler.spool("/foo/bar", new ByteArrayInputStream(data), -1L));
+        assertNull(binarySpooler.spool("/foo/bar", new ByteArrayInputStream(data), 8L));
+
+        assertEquals(2L, binarySpooler.getRejectedCount());
+        assertEquals(0L, binarySpooler.getSpooledBytes());
+        assertEquals(0, spoolDirectory.list().length);
+
+        final JcrSpooledBinary spooledBinary = binarySpooler.spool("/foo/bar", new ByteArrayInputStream(data,
+            0, 12), -1L);
+
+        assertNotNull(spooledBinary);
+        assertEquals(12L, binarySpooler.getSpooledBytes());
+    }
+
+    @Test
+    public void testStopKeepsFilesInFlight() throws Exception
+    {
+        final byte[] data = "0123456789".getBytes();
+
+        final JcrSpooledBinary spooledBinary = binarySpooler.spool("/foo/bar", new ByteArrayInputStream(data),
+            data.length);
+
+        binarySpooler.stop();
+
+        assertTrue(Arrays.equals(data, IOUtils.toByteArray(spooledBinary.openStream())));
+        spooledBinary.dispose();
+        assertFalse(spooledBinary.getFile().exists());
+    }
+}
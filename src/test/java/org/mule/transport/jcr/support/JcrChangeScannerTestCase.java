@@ -0,0 +1,146 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.observation.Event;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mule.transport.jcr.JcrEventBatch;
+import org.mule.transport.jcr.JcrMessage;
+import org.mule.transport.jcr.RepositoryTestSupport;
+
+/**
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrChangeScannerTestCase
+{
+    private final File watermarkFile = new File(System.getProperty("java.io.tmpdir"), "jcr-watermark-test-"
+                                                                                      + System.nanoTime()
+                                                                                      + ".properties");
+
+    @After
+    public void deleteWatermarkFile()
+    {
+        watermarkFile.delete();
+    }
+
+    @Test
+    public void testEncodeName()
+    {
+        assertEquals("jcr:content", JcrChangeScanner.encodeName("jcr:content"));
+        assertEquals("_x0031_23", JcrChangeScanner.encodeName("123"));
+        assertEquals("my_x0020_doc", JcrChangeScanner.encodeName("my doc"));
+    }
+
+    @Test
+    public void testCatchUp() throws Exception
+    {
+        final Node scannedNode = RepositoryTestSupport.getTestDataNode().addNode("scanned" + System.nanoTime());
+        RepositoryTestSupport.getSession().save();
+
+        JcrChangeScanner changeScanner = newChangeScanner(scannedNode);
+        final RecordingProcessor processor = new RecordingProcessor();
+
+        // no watermark yet: nothing to catch up
+        assertEquals(0, changeScanner.scan(RepositoryTestSupport.getSession(), processor));
+        assertTrue(changeScanner.getWatermark() > 0L);
+        changeScanner.save();
+
+        final Node fileNode = scannedNode.addNode("file", "nt:file");
+        final Node resourceNode = fileNode.addNode("jcr:content", "nt:resource");
+        resourceNode.setProperty("jcr:mimeType", "text/plain");
+        resourceNode.setProperty("jcr:lastModified", Calendar.getInstance());
+        resourceNode.setProperty("jcr:data", "foo");
+        RepositoryTestSupport.getSession().save();
+
+        changeScanner = newChangeScanner(scannedNode);
+        changeScanner.load();
+
+        assertEquals(2, changeScanner.scan(RepositoryTestSupport.getSession(), processor));
+        assertEquals(1, processor.batchCount);
+        assertTrue(processor.changes.contains(Event.NODE_ADDED + fileNode.getPath()));
+        assertTrue(processor.changes.contains(Event.PROPERTY_CHANGED + resourceNode.getPath() + "/jcr:lastModified"));
+
+        // the overlap window is scanned again, but its changes are not emitted twice
+        assertEquals(0, changeScanner.scan(RepositoryTestSupport.getSession(), processor));
+        changeScanner.save();
+
+        changeScanner = newChangeScanner(scannedNode);
+        changeScanner.load();
+        assertEquals(0, changeScanner.scan(RepositoryTestSupport.getSession(), processor));
+    }
+
+    @Test
+    public void testLiveEventsReceivedDuringScan() throws Exception
+    {
+        final Node scannedNode = RepositoryTestSupport.getTestDataNode().addNode("scanned" + System.nanoTime());
+        RepositoryTestSupport.getSession().save();
+
+        final JcrChangeScanner changeScanner = newChangeScanner(scannedNode);
+        final RecordingProcessor processor = new RecordingProcessor();
+        changeScanner.scan(RepositoryTestSupport.getSession(), processor);
+
+        // committed after the listener is subscribed but before the scan: the
+        // scan and the live events both report it
+        final Node addedNode = scannedNode.addNode("added", "nt:folder");
+        RepositoryTestSupport.getSession().save();
+        final long receivedTime = System.currentTimeMillis();
+
+        Thread.sleep(10L);
+        assertEquals(1, changeScanner.scan(RepositoryTestSupport.getSession(), processor));
+
+        final JcrMessage addedEvent = new JcrMessage(addedNode.getPath(), Event.NODE_ADDED, "NODE_ADDED", "test", "",
+            null);
+        assertTrue(changeScanner.isEmitted(addedEvent, receivedTime));
+
+        // events received once the query has run may report later changes
+        assertFalse(changeScanner.isEmitted(addedEvent, System.currentTimeMillis()));
+
+        assertFalse(changeScanner.isEmitted(new JcrMessage(scannedNode.getPath() + "/other", Event.NODE_ADDED,
+            "NODE_ADDED", "test", "", null), receivedTime));
+        assertFalse(changeScanner.isEmitted(new JcrMessage(addedNode.getPath() + "/jcr:primaryType",
+            Event.PROPERTY_ADDED, "PROPERTY_ADDED", "test", "", null), receivedTime));
+    }
+
+    private JcrChangeScanner newChangeScanner(final Node scannedNode) throws Exception
+    {
+        return new JcrChangeScanner(scannedNode.getPath(), true, Event.NODE_ADDED | Event.PROPERTY_CHANGED, 10,
+            60000L, watermarkFile);
+    }
+
+    private static final class RecordingProcessor implements JcrEventHandOff.EventBatchProcessor
+    {
+        private final List<String> changes = new ArrayList<String>();
+
+        private int batchCount;
+
+        public void process(final JcrEventBatch eventBatch) throws Exception
+        {
+            batchCount++;
+
+            for (final JcrMessage event : eventBatch.getEvents())
+            {
+                changes.add(event.getType() + event.getPath());
+            }
+        }
+    }
+}
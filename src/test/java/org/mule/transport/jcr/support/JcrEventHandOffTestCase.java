@@ -0,0 +1,134 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mule.transport.jcr.JcrEventBatch;
+import org.mule.transport.jcr.JcrMessage;
+import org.mule.transport.jcr.RepositoryTestSupport;
+import org.mule.transport.jcr.support.JcrEventHandOff.OverflowPolicy;
+
+/**
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrEventHandOffTestCase
+{
+    private final List<String> processedPaths = Collections.synchronizedList(new ArrayList<String>());
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final JcrEventHandOff.EventBatchProcessor blockingProcessor = new JcrEventHandOff.EventBatchProcessor()
+    {
+        public void process(final JcrEventBatch eventBatch) throws Exception
+        {
+            release.await(10, TimeUnit.SECONDS);
+
+            for (final JcrMessage event : eventBatch.getEvents())
+            {
+                processedPaths.add(event.getPath());
+            }
+        }
+    };
+
+    @Test
+    public void testOrderPerNodeWithManyWorkers() throws Exception
+    {
+        final JcrEventHandOff eventHandOff = new JcrEventHandOff("test", blockingProcessor, 100, 4,
+            OverflowPolicy.BLOCK, null);
+        eventHandOff.start();
+        release.countDown();
+
+        for (int i = 0; i < 20; i++)
+        {
+            eventHandOff.handOff(RepositoryTestSupport.newBatch("/a/p" + i, "/b/p" + i));
+        }
+
+        eventHandOff.stop();
+
+        assertEquals(40, eventHandOff.getProcessedCount());
+        assertInOrder("/a/p");
+        assertInOrder("/b/p");
+    }
+
+    @Test
+    public void testDropOldest() throws Exception
+    {
+        final JcrEventHandOff eventHandOff = new JcrEventHandOff("test", blockingProcessor, 2, 1,
+            OverflowPolicy.DROP_OLDEST, null);
+        eventHandOff.start();
+
+        for (int i = 0; i < 10; i++)
+        {
+            eventHandOff.handOff(RepositoryTestSupport.newBatch("/a/p" + i));
+        }
+
+        assertTrue(eventHandOff.getQueueDepth() <= 2);
+        assertTrue(eventHandOff.getDroppedCount() >= 7);
+
+        release.countDown();
+        eventHandOff.stop();
+
+        assertEquals(10, eventHandOff.getProcessedCount() + eventHandOff.getDroppedCount());
+        assertTrue(processedPaths.contains("/a/p9"));
+    }
+
+    @Test
+    public void testSpill() throws Exception
+    {
+        final File spillDirectory = new File(System.getProperty("java.io.tmpdir"), "jcr-spill-test-"
+                                                                                  + System.nanoTime());
+
+        final JcrEventHandOff eventHandOff = new JcrEventHandOff("test", blockingProcessor, 2, 1,
+            OverflowPolicy.SPILL, spillDirectory);
+        eventHandOff.start();
+
+        for (int i = 0; i < 10; i++)
+        {
+            eventHandOff.handOff(RepositoryTestSupport.newBatch("/a/p" + i));
+        }
+
+        assertTrue(eventHandOff.getSpilledCount() >= 7);
+        assertTrue(eventHandOff.getQueueDepth() >= 9);
+        assertTrue(eventHandOff.getOldestEventAge() >= 0L);
+
+        release.countDown();
+        eventHandOff.stop();
+
+        assertEquals(10, eventHandOff.getProcessedCount());
+        assertEquals(0, eventHandOff.getDroppedCount());
+        assertInOrder("/a/p");
+        assertEquals(0, spillDirectory.list().length);
+        spillDirectory.delete();
+    }
+
+    private void assertInOrder(final String prefix)
+    {
+        int expected = 0;
+
+        for (final String path : processedPaths)
+        {
+            if (path.startsWith(prefix))
+            {
+                assertEquals(prefix + expected++, path);
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mule.transport.jcr.JcrEventBatch;
+import org.mule.transport.jcr.RepositoryTestSupport;
+import org.mule.transport.jcr.support.JcrEventJournal.SyncPolicy;
+
+/**
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrEventJournalTestCase
+{
+    private final File journalDirectory = new File(System.getProperty("java.io.tmpdir"), "jcr-journal-test-"
+                                                                                         + System.nanoTime());
+
+    @After
+    public void deleteJournalDirectory()
+    {
+        for (final File file : journalDirectory.listFiles())
+        {
+            file.delete();
+        }
+
+        journalDirectory.delete();
+    }
+
+    @Test
+    public void testReplayUnacknowledgedBatches() throws Exception
+    {
+        JcrEventJournal eventJournal = new JcrEventJournal("test", journalDirectory, 4096, SyncPolicy.ALWAYS, 0L);
+        assertTrue(eventJournal.open().isEmpty());
+
+        final JcrEventBatch acknowledged = RepositoryTestSupport.newBatch("/a/p1", "/a/p2");
+        final JcrEventBatch partiallyAcknowledged = RepositoryTestSupport.newBatch("/b/p1", "/b/p2");
+        final JcrEventBatch pending = RepositoryTestSupport.newBatch("/c/p1");
+
+        eventJournal.append(acknowledged);
+        eventJournal.append(partiallyAcknowledged);
+        eventJournal.append(pending);
+        assertEquals(3, eventJournal.getPendingEntryCount());
+
+        eventJournal.acknowledge(acknowledged.getJournalEntries());
+        eventJournal.acknowledge(partiallyAcknowledged.getJournalEntries(0));
+        assertEquals(2, eventJournal.getPendingEntryCount());
+        eventJournal.close();
+
+        eventJournal = new JcrEventJournal("test", journalDirectory, 4096, SyncPolicy.NEVER, 0L);
+        final List<JcrEventBatch> replayedBatches = eventJournal.open();
+
+        assertEquals(2, replayedBatches.size());
+        assertEquals("/b/p1", replayedBatches.get(0).getEvents().get(0).getPath());
+        assertEquals(2, replayedBatches.get(0).getSize());
+        assertEquals("/c/p1", replayedBatches.get(1).getEvents().get(0).getPath());
+
+        for (final JcrEventBatch replayedBatch : replayedBatches)
+        {
+            eventJournal.acknowledge(replayedBatch.getJournalEntries());
+        }
+
+        assertEquals(0, eventJournal.getPendingEntryCount());
+        assertEquals(1, eventJournal.getSegmentCount());
+        eventJournal.close();
+
+        eventJournal = new JcrEventJournal("test", journalDirectory, 4096, SyncPolicy.NEVER, 0L);
+        assertTrue(eventJournal.open().isEmpty());
+        eventJournal.close();
+    }
+
+    @Test
+    public void testSegmentRollingAndDeletion() throws Exception
+    {
+        final JcrEventJournal eventJournal = new JcrEventJournal("test", journalDirectory, 1024,
+            SyncPolicy.INTERVAL, 10L);
+        eventJournal.open();
+
+        final List<JcrEventBatch> eventBatches = new ArrayList<JcrEventBatch>();
+
+        for (int i = 0; i < 20; i++)
+        {
+            final JcrEventBatch eventBatch = RepositoryTestSupport.newBatch("/a/p" + i);
+            eventJournal.append(eventBatch);
+            eventBatches.add(eventBatch);
+        }
+
+        assertTrue(eventJournal.getSegmentCount() > 1);
+
+        for (final JcrEventBatch eventBatch : eventBatches)
+        {
+            eventJournal.acknowledge(eventBatch.getJournalEntries());
+        }
+
+        assertEquals(0, eventJournal.getPendingEntryCount());
+        assertEquals(1, eventJournal.getSegmentCount());
+        eventJournal.close();
+    }
+
+    @Test
+    public void testCompactionLeavesRoomForRollingRecord() throws Exception
+    {
+        JcrEventJournal eventJournal = new JcrEventJournal("test", journalDirectory, 1024, SyncPolicy.NEVER, 0L);
+        eventJournal.open();
+
+        final List<JcrEventBatch> eventBatches = new ArrayList<JcrEventBatch>();
+
+        for (int i = 0; i < 3; i++)
+        {
+            final JcrEventBatch eventBatch = RepositoryTestSupport.newBatch("/a/p" + i);
+            eventJournal.append(eventBatch);
+            eventBatches.add(eventBatch);
+        }
+
+        assertEquals(1, eventJournal.getSegmentCount());
+
+        // most entries are acknowledged, so the next roll compacts the segment
+        eventJournal.acknowledge(eventBatches.get(0).getJournalEntries());
+        eventJournal.acknowledge(eventBatches.get(1).getJournalEntries());
+
+        final String[] largeBatchPaths = new String[100];
+
+        for (int i = 0; i < largeBatchPaths.length; i++)
+        {
+            largeBatchPaths[i] = "/b/a/rather/long/path/to/a/property/" + i;
+        }
+
+        // larger than a segment: the new segment is sized for this record only
+        eventJournal.append(RepositoryTestSupport.newBatch(largeBatchPaths));
+
+        assertEquals(2, eventJournal.getPendingEntryCount());
+        eventJournal.close();
+
+        eventJournal = new JcrEventJournal("test", journalDirectory, 1024, SyncPolicy.NEVER, 0L);
+        final List<JcrEventBatch> replayedBatches = eventJournal.open();
+
+        assertEquals(2, replayedBatches.size());
+        assertEquals("/a/p2", replayedBatches.get(0).getEvents().get(0).getPath());
+        assertEquals(largeBatchPaths.length, replayedBatches.get(1).getSize());
+        eventJournal.close();
+    }
+
+    @Test
+    public void testCorruptRecordsAreSkipped() throws Exception
+    {
+        JcrEventJournal eventJournal = new JcrEventJournal("test", journalDirectory, 4096, SyncPolicy.ALWAYS, 0L);
+        eventJournal.open();
+        eventJournal.append(RepositoryTestSupport.newBatch("/a/p1"));
+        eventJournal.append(RepositoryTestSupport.newBatch("/b/p1"));
+        eventJournal.close();
+
+        final File[] segmentFiles = journalDirectory.listFiles();
+        assertEquals(1, segmentFiles.length);
+
+        // flips a byte in the payload of the first record
+        final RandomAccessFile segmentFile = new RandomAccessFile(segmentFiles[0], "rw");
+
+        try
+        {
+            segmentFile.seek(64);
+            final int original = segmentFile.read();
+            segmentFile.seek(64);
+            segmentFile.write(original ^ 0xFF);
+        }
+        finally
+        {
+            segmentFile.close();
+        }
+
+        eventJournal = new JcrEventJournal("test", journalDirectory, 4096, SyncPolicy.NEVER, 0L);
+        final List<JcrEventBatch> replayedBatches = eventJournal.open();
+
+        assertEquals(1, replayedBatches.size());
+        assertEquals("/b/p1", replayedBatches.get(0).getEvents().get(0).getPath());
+        eventJournal.close();
+    }
+}
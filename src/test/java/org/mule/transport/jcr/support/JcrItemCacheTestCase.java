@@ -0,0 +1,104 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.observation.Event;
+
+import org.junit.Test;
+import org.mule.transport.jcr.JcrEventBatch;
+import org.mule.transport.jcr.JcrMessage;
+
+/**
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrItemCacheTestCase
+{
+    @Test
+    public void testHitsAndEvictions()
+    {
+        final JcrItemCache itemCache = new JcrItemCache(2, 1024L, 0L);
+
+        assertNull(itemCache.get("a"));
+        assertTrue(itemCache.put("a", "/a", "foo", itemCache.getInvalidationSequence()));
+        assertTrue(itemCache.put("b", "/b", "bar", itemCache.getInvalidationSequence()));
+        assertEquals("foo", itemCache.get("a"));
+
+        // "b" is the least recently used entry
+        assertTrue(itemCache.put("c", "/c", "baz", itemCache.getInvalidationSequence()));
+        assertNull(itemCache.get("b"));
+        assertEquals("foo", itemCache.get("a"));
+        assertEquals(2, itemCache.getEntryCount());
+        assertEquals(1L, itemCache.getEvictionCount());
+        assertEquals(0.5D, itemCache.getHitRate(), 0.01D);
+
+        // too large and not cacheable payloads
+        assertFalse(itemCache.put("d", "/d", new byte[2048], itemCache.getInvalidationSequence()));
+        assertFalse(itemCache.put("e", "/e", Collections.singletonList(new ByteArrayInputStream(new byte[0])),
+            itemCache.getInvalidationSequence()));
+
+        // mutable objects that can not be copied are not shared with callers
+        assertFalse(itemCache.put("f", "/f", new Date(), itemCache.getInvalidationSequence()));
+        assertFalse(itemCache.put("g", "/g", Collections.singletonMap("date", new Date()),
+            itemCache.getInvalidationSequence()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCopiedPayloads()
+    {
+        final JcrItemCache itemCache = new JcrItemCache(10, 1024L, 0L);
+
+        final Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("foo", "bar");
+        itemCache.put("a", "/a", payload, itemCache.getInvalidationSequence());
+
+        ((Map<String, Object>) itemCache.get("a")).put("foo", "baz");
+        assertEquals(payload, itemCache.get("a"));
+    }
+
+    @Test
+    public void testInvalidation() throws Exception
+    {
+        final JcrItemCache itemCache = new JcrItemCache(10, 1024L, 0L);
+
+        final long invalidationSequence = itemCache.getInvalidationSequence();
+        itemCache.put("node", "/a/b", "node", invalidationSequence);
+        itemCache.put("parent", "/a", "parent", invalidationSequence);
+        itemCache.put("child", "/a/b/c", "child", invalidationSequence);
+        itemCache.put("sibling", "/a/bb", "sibling", invalidationSequence);
+
+        itemCache.onEvent(new JcrEventBatch(Collections.singletonList(new JcrMessage("/a/b/p",
+            Event.PROPERTY_CHANGED, "PROPERTY_CHANGED", "test", "", null))));
+
+        assertNull(itemCache.get("node"));
+        assertNull(itemCache.get("parent"));
+        assertEquals("child", itemCache.get("child"));
+        assertEquals("sibling", itemCache.get("sibling"));
+
+        assertEquals(2, itemCache.invalidate("/a"));
+        assertEquals(4L, itemCache.getInvalidationCount());
+        assertEquals(0, itemCache.getEntryCount());
+
+        // a payload read before an invalidation is not cached
+        assertFalse(itemCache.put("node", "/a/b", "node", invalidationSequence));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.EventListenerIterator;
+import javax.jcr.observation.ObservationManager;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mule.transport.jcr.JcrEventTestCase;
+import org.mule.transport.jcr.RepositoryTestSupport;
+
+/**
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrObservationMultiplexerTestCase
+{
+    private final JcrObservationMultiplexer multiplexer;
+
+    public JcrObservationMultiplexerTestCase() throws Exception
+    {
+        multiplexer = new JcrObservationMultiplexer(RepositoryTestSupport.getSession());
+    }
+
+    @After
+    public void stopMultiplexer() throws Exception
+    {
+        multiplexer.stop();
+    }
+
+    @Test
+    public void testPaths()
+    {
+        assertEquals("/", JcrObservationMultiplexer.getParentPath("/foo"));
+        assertEquals("/foo", JcrObservationMultiplexer.getParentPath("/foo/bar"));
+        assertEquals(0, JcrObservationMultiplexer.getSegments("/").length);
+        assertTrue(Arrays.equals(new String[]{"foo", "bar"}, JcrObservationMultiplexer.getSegments("/foo/bar/")));
+    }
+
+    @Test
+    public void testRouting() throws Exception
+    {
+        final RecordingListener deepListener = new RecordingListener();
+        final RecordingListener shallowListener = new RecordingListener();
+        final RecordingListener nodeListener = new RecordingListener();
+        final RecordingListener typedListener = new RecordingListener();
+
+        multiplexer.subscribe(deepListener, Event.PROPERTY_CHANGED, "/a", true, null, null);
+        multiplexer.subscribe(shallowListener, Event.PROPERTY_CHANGED, "/a", false, null, null);
+        multiplexer.subscribe(nodeListener, Event.NODE_ADDED, "/a/b", true, null, null);
+        multiplexer.subscribe(typedListener, Event.PROPERTY_CHANGED, "/", true, null,
+            Collections.singletonList("nt:unknownType"));
+
+        assertEquals(4, multiplexer.getSubscriptionCount());
+
+        multiplexer.onEvent(RepositoryTestSupport.newBatch(new JcrEventTestCase.DummyEvent("/a/p", Event.PROPERTY_CHANGED, "test"),
+            new JcrEventTestCase.DummyEvent("/a/b/c/p", Event.PROPERTY_CHANGED, "test"),
+            new JcrEventTestCase.DummyEvent("/a/b/n", Event.NODE_ADDED, "test"),
+            new JcrEventTestCase.DummyEvent("/z/p", Event.PROPERTY_CHANGED, "test")));
+
+        assertEquals(Arrays.asList("/a/p", "/a/b/c/p"), deepListener.paths);
+        assertEquals(Arrays.asList("/a/p"), shallowListener.paths);
+        assertEquals(Arrays.asList("/a/b/n"), nodeListener.paths);
+        assertTrue(typedListener.paths.isEmpty());
+
+        multiplexer.unsubscribe(deepListener);
+        assertEquals(3, multiplexer.getSubscriptionCount());
+
+        multiplexer.onEvent(RepositoryTestSupport.newBatch(new JcrEventTestCase.DummyEvent("/a/q", Event.PROPERTY_CHANGED, "test")));
+
+        assertEquals(2, deepListener.paths.size());
+        assertEquals(Arrays.asList("/a/p", "/a/q"), shallowListener.paths);
+    }
+
+    @Test
+    public void testReRegistration() throws Exception
+    {
+        final ObservationManager observationManager = RepositoryTestSupport.getSession()
+            .getWorkspace()
+            .getObservationManager();
+        final List<EventListener> existingListeners = getRegisteredListeners(observationManager);
+
+        final String testDataPath = "/" + RepositoryTestSupport.ROOT_NODE_NAME;
+        final RecordingListener narrowListener = new RecordingListener();
+        final RecordingListener sameListener = new RecordingListener();
+        final RecordingListener wideListener = new RecordingListener();
+
+        multiplexer.subscribe(narrowListener, Event.NODE_ADDED, testDataPath + "/narrow", true, null, null);
+        final List<EventListener> registeredListeners = getRegisteredListeners(observationManager);
+        registeredListeners.removeAll(existingListeners);
+        assertEquals(1, registeredListeners.size());
+
+        // the observed path and event types do not change
+        multiplexer.subscribe(sameListener, Event.NODE_ADDED, testDataPath + "/narrow", false, null, null);
+        assertTrue(getRegisteredListeners(observationManager).containsAll(registeredListeners));
+
+        multiplexer.subscribe(wideListener, Event.NODE_ADDED, testDataPath, true, null, null);
+        final List<EventListener> reRegisteredListeners = getRegisteredListeners(observationManager);
+        reRegisteredListeners.removeAll(existingListeners);
+        assertEquals(1, reRegisteredListeners.size());
+        assertFalse(registeredListeners.equals(reRegisteredListeners));
+
+        RepositoryTestSupport.getTestDataNode().addNode("widened");
+        RepositoryTestSupport.getSession().save();
+        Thread.sleep(1000L);
+
+        assertEquals(Arrays.asList(testDataPath + "/widened"), wideListener.paths);
+    }
+
+    private static List<EventListener> getRegisteredListeners(final ObservationManager observationManager)
+        throws Exception
+    {
+        final List<EventListener> listeners = new ArrayList<EventListener>();
+        final EventListenerIterator listenerIterator = observationManager.getRegisteredEventListeners();
+
+        while (listenerIterator.hasNext())
+        {
+            listeners.add(listenerIterator.nextEventListener());
+        }
+
+        return listeners;
+    }
+
+    private static final class RecordingListener implements EventListener
+    {
+        private final List<String> paths = new ArrayList<String>();
+
+        public void onEvent(final EventIterator eventIterator)
+        {
+            while (eventIterator.hasNext())
+            {
+                try
+                {
+                    paths.add(eventIterator.nextEvent().getPath());
+                }
+                catch (final Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+}
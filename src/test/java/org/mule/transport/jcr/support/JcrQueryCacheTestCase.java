@@ -0,0 +1,101 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.jcr.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.query.Query;
+
+import org.junit.Test;
+import org.mule.transport.jcr.JcrEventBatch;
+import org.mule.transport.jcr.JcrMessage;
+import org.mule.transport.jcr.RepositoryTestSupport;
+
+/**
+ * @author David Dossot (david@dossot.net)
+ */
+public class JcrQueryCacheTestCase
+{
+    private static final String STATEMENT = "//testData";
+
+    @Test
+    public void testParsedQueries() throws Exception
+    {
+        final JcrQueryCache queryCache = new JcrQueryCache(2, 0L, 10);
+        final Session session = RepositoryTestSupport.getSession();
+
+        final Query query = queryCache.getQuery(session, Query.XPATH, STATEMENT);
+        assertSame(query, queryCache.getQuery(session, Query.XPATH, STATEMENT));
+        assertTrue(query.execute().getNodes().hasNext());
+        assertTrue(queryCache.getQuery(session, Query.XPATH, STATEMENT).execute().getNodes().hasNext());
+        assertEquals(2L, queryCache.getQueryHitCount());
+        assertEquals(1L, queryCache.getQueryMissCount());
+
+        queryCache.release(session);
+        assertNotSame(query, queryCache.getQuery(session, Query.XPATH, STATEMENT));
+        assertFalse(queryCache.isResultCacheEnabled());
+    }
+
+    @Test
+    public void testCachedResults() throws Exception
+    {
+        final JcrQueryCache queryCache = new JcrQueryCache(2, 60000L, 10);
+        assertTrue(queryCache.isResultCacheEnabled());
+
+        assertNull(queryCache.getResultPath(Query.XPATH, STATEMENT));
+
+        queryCache.putResultPath(Query.XPATH, STATEMENT, "/testData", queryCache.getInvalidationSequence());
+        assertEquals("/testData", queryCache.getResultPath(Query.XPATH, STATEMENT));
+
+        final long invalidationSequence = queryCache.getInvalidationSequence();
+
+        queryCache.onEvent(new JcrEventBatch(Collections.singletonList(new JcrMessage("/foo/bar",
+            Event.PROPERTY_CHANGED, "PROPERTY_CHANGED", "test", "", null))));
+
+        assertNull(queryCache.getResultPath(Query.XPATH, STATEMENT));
+
+        // a result read before the invalidation is not cached
+        queryCache.putResultPath(Query.XPATH, STATEMENT, "/testData", invalidationSequence);
+        assertNull(queryCache.getResultPath(Query.XPATH, STATEMENT));
+        assertEquals(1L, queryCache.getResultHitCount());
+        assertEquals(3L, queryCache.getResultMissCount());
+    }
+
+    @Test
+    public void testBoundedResults() throws Exception
+    {
+        final JcrQueryCache queryCache = new JcrQueryCache(2, 200L, 2);
+
+        queryCache.putResultPath(Query.XPATH, "//a", "/a", queryCache.getInvalidationSequence());
+        queryCache.putResultPath(Query.XPATH, "//b", "/b", queryCache.getInvalidationSequence());
+        assertEquals("/a", queryCache.getResultPath(Query.XPATH, "//a"));
+
+        // the least recently used result is evicted
+        queryCache.putResultPath(Query.XPATH, "//c", "/c", queryCache.getInvalidationSequence());
+        assertEquals(2, queryCache.getResultCount());
+        assertEquals("/a", queryCache.getResultPath(Query.XPATH, "//a"));
+        assertNull(queryCache.getResultPath(Query.XPATH, "//b"));
+
+        // expired results are purged when a result is added
+        Thread.sleep(400L);
+        queryCache.putResultPath(Query.XPATH, "//d", "/d", queryCache.getInvalidationSequence());
+        assertEquals(1, queryCache.getResultCount());
+    }
+}
@@ -2,18 +2,32 @@
 package org.mule.transport.jcr.support;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
 import javax.jcr.Session;
 import javax.naming.CompositeName;
 
@@ -22,6 +36,8 @@ import org.mule.api.MuleEvent;
 import org.mule.api.transport.PropertyScope;
 import org.mule.tck.MuleTestUtils;
 import org.mule.tck.junit4.AbstractMuleContextTestCase;
+import org.mule.transport.jcr.JcrConnector;
+import org.mule.transport.jcr.JcrContentPayloadType;
 import org.mule.transport.jcr.RepositoryTestSupport;
 import org.mule.util.IOUtils;
 import org.mule.util.StringUtils;
@@ -125,6 +141,187 @@ public class JcrUtilsTestCase extends AbstractMuleContextTestCase
         assertEquals(s, deserializedValue);
     }
 
+    @Test
+    public void testCodecPropertyValues() throws Exception
+    {
+        final JcrValueCodec valueCodec = new JcrCompactValueCodec();
+
+        final Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("bar", Boolean.TRUE);
+
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("integer", Integer.valueOf(-42));
+        map.put("list", new ArrayList<Object>(Arrays.asList("foo", Long.valueOf(123L), null)));
+        map.put("date", new Date(1234567890L));
+        map.put("nested", nested);
+
+        assertEquals(map, JcrPropertyUtils.getValuePayload(JcrPropertyUtils.newPropertyValue(session, map,
+            valueCodec), valueCodec));
+
+        // binaries not encoded by the codec are still read as streams
+        final Object retrievedValue = JcrPropertyUtils.getValuePayload(JcrPropertyUtils.newPropertyValue(
+            session, "baz".getBytes(), valueCodec), valueCodec);
+
+        assertTrue(areEqual("baz".getBytes(), retrievedValue));
+
+        // and values it can not encode are still serialized
+        assertTrue(JcrPropertyUtils.getValuePayload(JcrPropertyUtils.newPropertyValue(session,
+            new CompositeName("a/b"), valueCodec), valueCodec) instanceof InputStream);
+    }
+
+    @Test
+    public void testCodecOnlyEncodesRestoredCollections() throws Exception
+    {
+        final JcrValueCodec valueCodec = new JcrCompactValueCodec();
+
+        assertTrue(valueCodec.canEncode(new ArrayList<Object>(Arrays.asList("foo", "bar"))));
+        assertTrue(valueCodec.canEncode(new LinkedHashSet<Object>(Arrays.asList("foo", "bar"))));
+        assertTrue(valueCodec.canEncode(new LinkedHashMap<Object, Object>()));
+
+        // these would be decoded as another class
+        assertFalse(valueCodec.canEncode(Arrays.asList("foo", "bar")));
+        assertFalse(valueCodec.canEncode(new TreeMap<Object, Object>()));
+        assertFalse(valueCodec.canEncode(new TreeSet<Object>()));
+        assertFalse(valueCodec.canEncode(Collections.singletonMap("foo", "bar")));
+
+        // a value shared by two elements is not a cycle
+        final List<Object> shared = new ArrayList<Object>();
+        shared.add("foo");
+        final List<Object> twice = new ArrayList<Object>();
+        twice.add(shared);
+        twice.add(shared);
+        assertTrue(valueCodec.canEncode(twice));
+
+        // but a collection that contains itself is left to Java serialization
+        final List<Object> selfReferencing = new ArrayList<Object>();
+        selfReferencing.add("foo");
+        selfReferencing.add(selfReferencing);
+        assertFalse(valueCodec.canEncode(selfReferencing));
+
+        final Map<Object, Object> nested = new LinkedHashMap<Object, Object>();
+        final List<Object> cyclic = new ArrayList<Object>();
+        cyclic.add(nested);
+        nested.put("cyclic", cyclic);
+        assertFalse(valueCodec.canEncode(cyclic));
+
+        assertTrue(JcrPropertyUtils.getValuePayload(JcrPropertyUtils.newPropertyValue(session, selfReferencing,
+            valueCodec), valueCodec) instanceof InputStream);
+    }
+
+    @Test
+    public void testBinariesLookingEncodedReadAsIs() throws Exception
+    {
+        final JcrValueCodec valueCodec = new JcrCompactValueCodec();
+
+        // an unknown tag, then a valid value followed by more data
+        final byte[][] binaries = {{'M', 'J', 'V', 1, 99, 'x'}, {'M', 'J', 'V', 1, 0, 'x'}};
+
+        for (final byte[] binary : binaries)
+        {
+            final Object retrievedValue = JcrPropertyUtils.getValuePayload(JcrPropertyUtils.newPropertyValue(
+                session, binary, null), valueCodec);
+
+            assertTrue(Arrays.equals(binary, IOUtils.toByteArray((InputStream) retrievedValue)));
+        }
+    }
+
+    @Test
+    public void testCorruptSizesDoNotAllocateMemory() throws Exception
+    {
+        final JcrValueCodec valueCodec = new JcrCompactValueCodec();
+
+        // bytes then a list, both of Integer.MAX_VALUE elements, with no content
+        final byte[][] values = {{'M', 'J', 'V', 1, 11, (byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F},
+            {'M', 'J', 'V', 1, 14, (byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}};
+
+        for (final byte[] value : values)
+        {
+            try
+            {
+                valueCodec.decode(new ByteArrayInputStream(value));
+                fail("A truncated value should not be decoded");
+            }
+            catch (final EOFException eofe)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testPrimitiveArrayPropertyValues() throws Exception
+    {
+        final Node node = RepositoryTestSupport.getTestDataNode().addNode("seriesNode", "nt:unstructured");
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("longs", new long[]{1L, 2L, 3L});
+        properties.put("ints", new int[]{4, 5});
+        properties.put("doubles", new double[]{0.5D, 1.5D});
+        properties.put("booleans", new boolean[]{true, false});
+
+        assertEquals(4, JcrPropertyUtils.storeProperties(session, node, properties, true, false, null));
+        assertEquals(0, JcrPropertyUtils.storeProperties(session, node, properties, true, false, null));
+
+        assertTrue(Arrays.equals(new long[]{1L, 2L, 3L}, (long[]) JcrPropertyUtils.getPropertyPayload(
+            node.getProperty("longs"), null, true)));
+        assertTrue(Arrays.equals(new long[]{4L, 5L}, (long[]) JcrPropertyUtils.getPropertyPayload(
+            node.getProperty("ints"), null, true)));
+        assertTrue(Arrays.equals(new double[]{0.5D, 1.5D}, (double[]) JcrPropertyUtils.getPropertyPayload(
+            node.getProperty("doubles"), null, true)));
+        assertTrue(Arrays.equals(new boolean[]{true, false}, (boolean[]) JcrPropertyUtils.getPropertyPayload(
+            node.getProperty("booleans"), null, true)));
+
+        // lists of boxed values remain the default
+        assertEquals(Arrays.asList(Long.valueOf(1L), Long.valueOf(2L), Long.valueOf(3L)),
+            JcrPropertyUtils.getPropertyPayload(node.getProperty("longs"), null, false));
+
+        // the content of received events follows the connector setting
+        final Property longs = node.getProperty("longs");
+        final JcrConnector connector = new JcrConnector(muleContext);
+
+        assertEquals(Arrays.asList(Long.valueOf(1L), Long.valueOf(2L), Long.valueOf(3L)),
+            JcrPropertyUtils.outputProperty(longs.getPath(), longs, JcrContentPayloadType.FULL, connector));
+
+        connector.setPrimitiveArrayPayloads(true);
+        assertTrue(Arrays.equals(new long[]{1L, 2L, 3L}, (long[]) JcrPropertyUtils.outputProperty(
+            longs.getPath(), longs, JcrContentPayloadType.FULL, connector)));
+
+        node.remove();
+        session.save();
+    }
+
+    @Test
+    public void testDeltaStoreProperties() throws Exception
+    {
+        final Node node = RepositoryTestSupport.getTestDataNode().addNode("deltaNode", "nt:unstructured");
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("string", "foo");
+        properties.put("long", Long.valueOf(123L));
+        properties.put("multiple", Arrays.asList("bar", "baz"));
+        properties.put("binary", "data".getBytes());
+
+        assertEquals(4, JcrPropertyUtils.storeProperties(session, node, properties, true, false, null));
+        session.save();
+
+        assertEquals(0, JcrPropertyUtils.storeProperties(session, node, properties, true, false, null));
+        assertFalse(session.hasPendingChanges());
+
+        properties.put("long", Long.valueOf(456L));
+        properties.put("multiple", Arrays.asList("bar"));
+        assertEquals(2, JcrPropertyUtils.storeProperties(session, node, properties, true, false, null));
+        assertEquals(456L, node.getProperty("long").getLong());
+
+        // protected properties, like jcr:primaryType, are never removed
+        assertEquals(3, JcrPropertyUtils.storeProperties(session, node, Collections.singletonMap("string",
+            "foo"), true, true, null));
+        assertFalse(node.hasProperty("long"));
+        assertTrue(node.hasProperty("jcr:primaryType"));
+
+        node.remove();
+        session.save();
+    }
+
     private boolean areEqual(final Object l, final Object r) throws Exception
     {
         if ((l instanceof InputStream) && (r instanceof InputStream))
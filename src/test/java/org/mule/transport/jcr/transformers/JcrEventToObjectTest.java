@@ -10,17 +10,27 @@
 
 package org.mule.transport.jcr.transformers;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
 import java.util.Collections;
+import java.util.List;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.observation.Event;
 
+import org.apache.commons.lang.SerializationUtils;
 import org.apache.jackrabbit.commons.iterator.EventIteratorAdapter;
+import org.junit.Test;
 import org.mule.api.transformer.Transformer;
 import org.mule.transformer.AbstractTransformerTestCase;
+import org.mule.transport.jcr.JcrConnector;
 import org.mule.transport.jcr.JcrContentPayloadType;
+import org.mule.transport.jcr.JcrEventBatch;
 import org.mule.transport.jcr.JcrEventTestCase;
+import org.mule.transport.jcr.JcrMessage;
 import org.mule.transport.jcr.JcrMessageReceiver;
 import org.mule.transport.jcr.JcrMessageReceiverContext;
 import org.mule.transport.jcr.RepositoryTestSupport;
@@ -69,6 +79,11 @@ public class JcrEventToObjectTest extends AbstractTransformerTestCase
             {
                 return RepositoryTestSupport.getSession();
             }
+
+            public JcrConnector getConnector()
+            {
+                return null;
+            }
         });
 
         testJcrEvent = new JcrEventTestCase.DummyEvent("/", Event.PROPERTY_CHANGED, "foo");
@@ -82,4 +97,106 @@ public class JcrEventToObjectTest extends AbstractTransformerTestCase
         return new JcrEventToObject();
     }
 
+    @Test
+    public void testReceiverContextCarriedByBatch() throws Exception
+    {
+        final JcrMessageReceiverContext sharedContext = JcrMessageReceiver.getJcrMessageReceiverContext();
+        JcrMessageReceiver.setJcrMessageReceiverContext(null);
+
+        try
+        {
+            final JcrEventBatch eventBatch = JcrEventBatch.detach(new EventIteratorAdapter(
+                Collections.singleton(new JcrEventTestCase.DummyEvent("/", Event.NODE_ADDED, "foo"))));
+
+            eventBatch.setReceiverContext(new JcrMessageReceiverContext()
+            {
+                public JcrContentPayloadType getContentPayloadType()
+                {
+                    return JcrContentPayloadType.NONE;
+                }
+
+                public Session getObservingSession()
+                {
+                    return RepositoryTestSupport.getSession();
+                }
+
+                public JcrConnector getConnector()
+                {
+                    return null;
+                }
+            });
+
+            final List<?> result = (List<?>) getTransformer().transform(eventBatch);
+            assertEquals(1, result.size());
+            assertEquals("/", ((JcrMessage) result.get(0)).getPath());
+        }
+        finally
+        {
+            JcrMessageReceiver.setJcrMessageReceiverContext(sharedContext);
+        }
+    }
+
+    @Test
+    public void testReceiverContextLookedUpAfterSerialization() throws Exception
+    {
+        final JcrMessageReceiverContext sharedContext = JcrMessageReceiver.getJcrMessageReceiverContext();
+        JcrMessageReceiver.setJcrMessageReceiverContext(null);
+
+        try
+        {
+            final JcrMessageReceiverContext receiverContext = new JcrMessageReceiverContext()
+            {
+                public JcrContentPayloadType getContentPayloadType()
+                {
+                    return JcrContentPayloadType.NONE;
+                }
+
+                public Session getObservingSession()
+                {
+                    return RepositoryTestSupport.getSession();
+                }
+
+                public JcrConnector getConnector()
+                {
+                    return null;
+                }
+            };
+
+            final JcrConnector connector = new JcrConnector(muleContext)
+            {
+                @Override
+                public JcrMessageReceiverContext lookupReceiverContext(final String receiverKey)
+                {
+                    return "test-receiver".equals(receiverKey) ? receiverContext : null;
+                }
+            };
+
+            connector.setName("Test-Jcr-Lookup");
+            connector.setRepository(RepositoryTestSupport.getRepository());
+            muleContext.getRegistry().registerConnector(connector);
+
+            final JcrEventBatch eventBatch = JcrEventBatch.detach(new EventIteratorAdapter(
+                Collections.singleton(new JcrEventTestCase.DummyEvent("/", Event.NODE_ADDED, "foo"))));
+
+            eventBatch.setReceiver(receiverContext, connector.getName(), "test-receiver");
+
+            final JcrEventBatch deserializedBatch = (JcrEventBatch) SerializationUtils.clone(eventBatch);
+            assertNull(deserializedBatch.getReceiverContext());
+            assertEquals("Test-Jcr-Lookup", deserializedBatch.getConnectorName());
+            assertEquals("test-receiver", deserializedBatch.getReceiverKey());
+
+            final Transformer transformer = getTransformer();
+            transformer.setMuleContext(muleContext);
+
+            final List<?> result = (List<?>) transformer.transform(deserializedBatch);
+            assertEquals(1, result.size());
+            assertEquals("/", ((JcrMessage) result.get(0)).getPath());
+            assertSame(receiverContext, deserializedBatch.getReceiverContext());
+        }
+        finally
+        {
+            JcrMessageReceiver.setJcrMessageReceiverContext(sharedContext);
+        }
+    }
+
 }